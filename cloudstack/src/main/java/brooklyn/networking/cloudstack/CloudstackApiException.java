@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import javax.annotation.Nullable;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * Indicates a CloudStack API call failed: either the server returned an error response, or
+ * (with a status code of -1) the request could not be completed, e.g. because the endpoint was unreachable.
+ */
+@Beta
+public class CloudstackApiException extends RuntimeException {
+
+    private static final long serialVersionUID = -2316718094233461087L;
+
+    private final String command;
+    private final int statusCode;
+    private final String errorText;
+    private final boolean retryable;
+
+    public CloudstackApiException(String command, int statusCode, @Nullable String errorText, boolean retryable, @Nullable Throwable cause) {
+        super("CloudStack "+command+" failed"+(statusCode >= 0 ? " with "+statusCode : "")
+                +(errorText != null ? ": "+errorText : (cause != null ? ": "+cause : "")), cause);
+        this.command = command;
+        this.statusCode = statusCode;
+        this.errorText = errorText;
+        this.retryable = retryable;
+    }
+
+    public String getCommand() {
+        return command;
+    }
+
+    /** the HTTP status code (which CloudStack also uses as its error code), or -1 if there was no response */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    @Nullable
+    public String getErrorText() {
+        return errorText;
+    }
+
+    /** whether the failure was transient, i.e. the call may succeed if tried again later */
+    public boolean isRetryable() {
+        return retryable;
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jclouds.cloudstack.domain.AsyncJob;
+import org.jclouds.cloudstack.domain.AsyncJob.Status;
+import org.jclouds.cloudstack.features.AsyncJobApi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+
+import com.google.common.annotations.Beta;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+/**
+ * Tracks outstanding CloudStack async jobs, polling for all of them together.
+ * <p>
+ * Polls are run by a single daemon thread shared by all trackers, so a tracker holds no thread of its own
+ * (and one which is never {@link #close() closed} costs nothing once its jobs are done).
+ * <p>
+ * When more than one job is outstanding, one {@code listAsyncJobs} call is used per poll (falling back to
+ * {@code queryAsyncJobResult} for any job not in that listing). The poll interval starts at
+ * {@link #DEFAULT_MIN_POLL_PERIOD}, grows by {@link #BACKOFF_MULTIPLIER} each time a poll sees no job complete
+ * (up to {@link #DEFAULT_MAX_POLL_PERIOD}), and is reset whenever a job completes or a new job is tracked.
+ */
+@Beta
+public class CloudstackAsyncJobTracker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CloudstackAsyncJobTracker.class);
+
+    public static final Duration DEFAULT_MIN_POLL_PERIOD = Duration.millis(250);
+    public static final Duration DEFAULT_MAX_POLL_PERIOD = Duration.seconds(5);
+    public static final double BACKOFF_MULTIPLIER = 1.5;
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "brooklyn-cloudstack-job-tracker");
+            t.setDaemon(true);
+            return t;
+        }});
+
+    private final AsyncJobApi asyncJobApi;
+    private final long minPollPeriodMillis;
+    private final long maxPollPeriodMillis;
+    private final ConcurrentMap<String, SettableFuture<AsyncJob<Object>>> outstanding = Maps.newConcurrentMap();
+
+    private final Object pollMutex = new Object();
+    private boolean pollScheduled = false;
+    private boolean closed = false;
+    private long currentPollPeriodMillis;
+
+    public CloudstackAsyncJobTracker(AsyncJobApi asyncJobApi) {
+        this(asyncJobApi, DEFAULT_MIN_POLL_PERIOD, DEFAULT_MAX_POLL_PERIOD);
+    }
+
+    public CloudstackAsyncJobTracker(AsyncJobApi asyncJobApi, Duration minPollPeriod, Duration maxPollPeriod) {
+        this.asyncJobApi = asyncJobApi;
+        this.minPollPeriodMillis = minPollPeriod.toMilliseconds();
+        this.maxPollPeriodMillis = maxPollPeriod.toMilliseconds();
+        this.currentPollPeriodMillis = minPollPeriodMillis;
+    }
+
+    /**
+     * Starts tracking the given job (if not already tracked), returning a future which completes
+     * with the job once it is no longer in progress (whether it succeeded or failed).
+     */
+    public ListenableFuture<AsyncJob<Object>> track(String jobId) {
+        SettableFuture<AsyncJob<Object>> future = outstanding.get(jobId);
+        if (future == null) {
+            SettableFuture<AsyncJob<Object>> contender = SettableFuture.create();
+            future = outstanding.putIfAbsent(jobId, contender);
+            if (future == null) future = contender;
+        }
+        synchronized (pollMutex) {
+            // new work, so poll promptly rather than at the backed-off rate
+            currentPollPeriodMillis = minPollPeriodMillis;
+            schedulePollIfNecessary();
+        }
+        return future;
+    }
+
+    /** blocks until the job is no longer in progress, returning its final state */
+    public AsyncJob<Object> waitFor(String jobId) {
+        try {
+            return track(jobId).get();
+        } catch (Exception e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    /** tracks all the given jobs together, blocking until all are no longer in progress; results are in the same order */
+    public List<AsyncJob<Object>> waitFor(Iterable<String> jobIds) {
+        List<ListenableFuture<AsyncJob<Object>>> futures = Lists.newArrayList();
+        for (String jobId : jobIds) {
+            futures.add(track(jobId));
+        }
+        ImmutableList.Builder<AsyncJob<Object>> result = ImmutableList.builder();
+        try {
+            for (ListenableFuture<AsyncJob<Object>> future : futures) {
+                result.add(future.get());
+            }
+        } catch (Exception e) {
+            throw Exceptions.propagate(e);
+        }
+        return result.build();
+    }
+
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    /** stops polling, cancelling the futures of any jobs still outstanding */
+    public void close() {
+        synchronized (pollMutex) {
+            closed = true;
+        }
+        for (SettableFuture<AsyncJob<Object>> future : outstanding.values()) {
+            future.cancel(false);
+        }
+        outstanding.clear();
+    }
+
+    private void schedulePollIfNecessary() {
+        // must hold pollMutex
+        if (!pollScheduled && !closed && !outstanding.isEmpty()) {
+            pollScheduled = true;
+            SCHEDULER.schedule(new Runnable() {
+                @Override public void run() {
+                    poll();
+                }},
+                currentPollPeriodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    protected void poll() {
+        boolean progress = false;
+        try {
+            progress = pollOnce();
+        } catch (Exception e) {
+            // transient failure (e.g. API unavailable); keep the jobs and back off
+            LOG.debug("Problem polling CloudStack async jobs "+outstanding.keySet()+"; will retry", e);
+            Exceptions.propagateIfFatal(e);
+        } finally {
+            synchronized (pollMutex) {
+                pollScheduled = false;
+                if (progress) {
+                    currentPollPeriodMillis = minPollPeriodMillis;
+                } else {
+                    currentPollPeriodMillis = Math.min(maxPollPeriodMillis, (long) (currentPollPeriodMillis * BACKOFF_MULTIPLIER));
+                }
+                schedulePollIfNecessary();
+            }
+        }
+    }
+
+    /** returns true if any job completed */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    protected boolean pollOnce() {
+        List<String> jobIds = ImmutableList.copyOf(outstanding.keySet());
+        if (jobIds.isEmpty()) return false;
+
+        Map<String, AsyncJob<Object>> latest = Maps.newLinkedHashMap();
+        if (jobIds.size() > 1) {
+            Set<AsyncJob<?>> jobs = asyncJobApi.listAsyncJobs();
+            if (jobs != null) {
+                for (AsyncJob job : jobs) {
+                    if (outstanding.containsKey(job.getId())) latest.put(job.getId(), (AsyncJob<Object>) job);
+                }
+            }
+        }
+        for (String jobId : jobIds) {
+            if (!latest.containsKey(jobId)) {
+                // single job, or not included in the listing (e.g. belongs to another account)
+                latest.put(jobId, asyncJobApi.<Object>getAsyncJob(jobId));
+            }
+        }
+
+        boolean progress = false;
+        for (Map.Entry<String, AsyncJob<Object>> entry : latest.entrySet()) {
+            String jobId = entry.getKey();
+            AsyncJob<Object> job = entry.getValue();
+            if (job == null) {
+                SettableFuture<AsyncJob<Object>> future = outstanding.remove(jobId);
+                if (future != null) future.setException(new IllegalStateException("Unknown CloudStack job "+jobId));
+                progress = true;
+            } else if (job.getStatus() != Status.IN_PROGRESS) {
+                SettableFuture<AsyncJob<Object>> future = outstanding.remove(jobId);
+                if (future != null) future.set(job);
+                LOG.debug("CloudStack job {} completed: {}", jobId, job);
+                progress = true;
+            } else {
+                LOG.trace("CloudStack job {} still in progress: {}", jobId, job);
+            }
+        }
+        if (LOG.isDebugEnabled() && !progress) {
+            LOG.debug("Polled {} CloudStack job(s), none complete yet", jobIds.size());
+        }
+        return progress;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.jclouds.cloudstack.domain.AsyncJob;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+import brooklyn.util.time.Time;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
+
+/**
+ * Deletes CloudStack resources in bulk: all the delete calls are issued up front (with at most
+ * {@code maxConcurrency} in flight), and the resulting async jobs are then waited on together
+ * via the client's {@link CloudstackAsyncJobTracker}.
+ * <p>
+ * {@link #deleteVpcAndContents(String)} orders dependent deletions: VMs, then public IPs, then tiers, then the VPC.
+ * VMs are expunged when destroyed where the account is allowed to; otherwise a destroyed VM keeps its tier
+ * until the cloud expunges it, so tiers are only deleted once their VMs are no longer listed.
+ */
+@Beta
+public class CloudstackBulkDeletion {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CloudstackBulkDeletion.class);
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 8;
+    public static final Duration DEFAULT_EXPUNGE_TIMEOUT = Duration.minutes(10);
+    private static final Duration MAX_EXPUNGE_POLL_PERIOD = Duration.seconds(5);
+
+    /** as CloudStack reports {@code expunge=true} from a non-admin account ("Parameter expunge can be passed by Admin only") */
+    private static final Pattern EXPUNGE_NOT_PERMITTED = Pattern.compile(
+            "(?i).*expunge.*(admin|not allowed|permission|denied).*", Pattern.DOTALL);
+
+    /** outcome of a bulk deletion */
+    public static class Report {
+        private final List<String> succeeded;
+        private final Map<String, String> failed;
+        private final Duration elapsed;
+
+        public Report(List<String> succeeded, Map<String, String> failed, Duration elapsed) {
+            this.succeeded = ImmutableList.copyOf(succeeded);
+            this.failed = ImmutableMap.copyOf(failed);
+            this.elapsed = elapsed;
+        }
+        /** ids of the resources deleted */
+        public List<String> getSucceeded() {
+            return succeeded;
+        }
+        /** ids of the resources which could not be deleted, with the reason */
+        public Map<String, String> getFailed() {
+            return failed;
+        }
+        public Duration getElapsed() {
+            return elapsed;
+        }
+        public boolean isSuccess() {
+            return failed.isEmpty();
+        }
+        /** combines this report with one for a subsequent step */
+        public Report and(Report other) {
+            List<String> s = Lists.newArrayList(succeeded);
+            s.addAll(other.succeeded);
+            Map<String, String> f = Maps.newLinkedHashMap(failed);
+            f.putAll(other.failed);
+            return new Report(s, f, elapsed.add(other.elapsed));
+        }
+        @Override
+        public String toString() {
+            return "Report[succeeded="+succeeded.size()+"; failed="+failed+"; elapsed="+Time.makeTimeStringRounded(elapsed)+"]";
+        }
+    }
+
+    private final CloudstackNew40FeaturesClient client;
+    private final int maxConcurrency;
+    private final Duration expungeTimeout;
+
+    public CloudstackBulkDeletion(CloudstackNew40FeaturesClient client) {
+        this(client, DEFAULT_MAX_CONCURRENCY);
+    }
+
+    public CloudstackBulkDeletion(CloudstackNew40FeaturesClient client, int maxConcurrency) {
+        this(client, maxConcurrency, DEFAULT_EXPUNGE_TIMEOUT);
+    }
+
+    public CloudstackBulkDeletion(CloudstackNew40FeaturesClient client, int maxConcurrency, Duration expungeTimeout) {
+        this.client = client;
+        this.maxConcurrency = maxConcurrency;
+        this.expungeTimeout = expungeTimeout;
+    }
+
+    /** destroys the VMs, expunging them at once unless the account is not allowed to */
+    public Report deleteVms(Iterable<String> vmIds) {
+        return deleteAll("VM", vmIds, new Function<String, String>() {
+            @Override public String apply(String id) {
+                try {
+                    return client.startDestroyVirtualMachine(id, true);
+                } catch (CloudstackApiException e) {
+                    // e.g. VM not found, or in the wrong state: destroying without expunging would fail the same way
+                    if (!isExpungeNotPermitted(e)) throw e;
+                    LOG.debug("Not allowed to expunge VM {} ({}); destroying it for the cloud to expunge later", id, e.getErrorText());
+                    return client.startDestroyVirtualMachine(id, false);
+                }
+            }});
+    }
+
+    static boolean isExpungeNotPermitted(CloudstackApiException e) {
+        return !e.isRetryable() && e.getErrorText() != null && EXPUNGE_NOT_PERMITTED.matcher(e.getErrorText()).matches();
+    }
+
+    /**
+     * Waits until none of the given VMs is listed by {@code listVirtualMachines} with the given filters
+     * (a destroyed VM is listed, and holds its network, until expunged), for up to the expunge timeout.
+     *
+     * @return a report whose failures are the VMs still present at the timeout
+     */
+    public Report awaitExpunged(Multimap<String, String> filters, Iterable<String> vmIds) {
+        long startTime = System.currentTimeMillis();
+        Set<String> remaining = Sets.newLinkedHashSet(vmIds);
+        long pollPeriod = 250;
+        while (true) {
+            Set<String> listed = Sets.newLinkedHashSet();
+            if (!remaining.isEmpty()) {
+                for (Map<String, String> vm : client.listPaged("listVirtualMachines", "virtualmachine", filters, ImmutableSet.of("id"))) {
+                    listed.add(vm.get("id"));
+                }
+            }
+            remaining.retainAll(listed);
+            Duration elapsed = Duration.millis(System.currentTimeMillis() - startTime);
+            if (remaining.isEmpty() || elapsed.isLongerThan(expungeTimeout)) {
+                Map<String, String> failed = Maps.newLinkedHashMap();
+                for (String id : remaining) {
+                    failed.put(id, "not expunged within "+Time.makeTimeStringRounded(expungeTimeout));
+                }
+                if (!failed.isEmpty()) LOG.warn("VMs {} not expunged within {}", failed.keySet(), Time.makeTimeStringRounded(expungeTimeout));
+                return new Report(ImmutableList.<String>of(), failed, elapsed);
+            }
+            LOG.debug("Waiting for VMs {} to be expunged", remaining);
+            Time.sleep(pollPeriod);
+            pollPeriod = Math.min(MAX_EXPUNGE_POLL_PERIOD.toMilliseconds(), pollPeriod * 2);
+        }
+    }
+
+    public Report disassociateIps(Iterable<String> ipIds) {
+        return deleteAll("IP", ipIds, new Function<String, String>() {
+            @Override public String apply(String id) {
+                return client.getCloudstackGlobalClient().getAddressApi().disassociateIPAddress(id);
+            }});
+    }
+
+    public Report deleteNetworks(Iterable<String> networkIds) {
+        return deleteAll("network", networkIds, new Function<String, String>() {
+            @Override public String apply(String id) {
+                return client.getNetworkClient().deleteNetwork(id);
+            }});
+    }
+
+    public Report deleteVpcs(Iterable<String> vpcIds) {
+        return deleteAll("VPC", vpcIds, new Function<String, String>() {
+            @Override public String apply(String id) {
+                return client.startDeleteVpc(id);
+            }});
+    }
+
+    /**
+     * Deletes the VPC along with everything in it, in dependency order: VMs (waiting for them to be expunged),
+     * then public IPs (other than the source NAT IP, which goes with the VPC), then tiers, then the VPC itself.
+     * Later steps are attempted even if earlier ones had failures, as partial cleanup is still useful.
+     */
+    public Report deleteVpcAndContents(String vpcId) {
+        Multimap<String, String> inVpc = ImmutableMultimap.of("vpcid", vpcId);
+
+        List<String> vms = Lists.newArrayList();
+        Set<String> toExpunge = Sets.newLinkedHashSet();
+        for (Map<String, String> vm : client.listPaged("listVirtualMachines", "virtualmachine", inVpc, ImmutableSet.of("id", "state"))) {
+            String state = vm.get("state");
+            // destroyed ones only need to be waited for
+            if (!"Destroyed".equalsIgnoreCase(state) && !"Expunging".equalsIgnoreCase(state)) vms.add(vm.get("id"));
+            toExpunge.add(vm.get("id"));
+        }
+        Report result = deleteVms(vms);
+        toExpunge.removeAll(result.getFailed().keySet());
+        result = result.and(awaitExpunged(inVpc, toExpunge));
+
+        List<String> ips = Lists.newArrayList();
+        for (Map<String, String> ip : client.listPaged("listPublicIpAddresses", "publicipaddress", inVpc, ImmutableSet.of("id", "issourcenat"))) {
+            if (!"true".equals(ip.get("issourcenat"))) ips.add(ip.get("id"));
+        }
+        result = result.and(disassociateIps(ips));
+
+        List<String> tiers = Lists.newArrayList();
+        for (Map<String, String> tier : client.listPaged("listNetworks", "network", inVpc, ImmutableSet.of("id"))) {
+            tiers.add(tier.get("id"));
+        }
+        result = result.and(deleteNetworks(tiers));
+
+        result = result.and(deleteVpcs(ImmutableList.of(vpcId)));
+        LOG.info("Deleted VPC {} and contents: {}", vpcId, result);
+        return result;
+    }
+
+    /**
+     * Issues the delete call for each id (the function returns the job id, or null if the deletion was synchronous),
+     * with bounded concurrency, and then waits for all the jobs together.
+     */
+    protected Report deleteAll(final String type, Iterable<String> ids, final Function<String, String> deleter) {
+        long startTime = System.currentTimeMillis();
+        List<String> idList = ImmutableList.copyOf(ids);
+        List<String> succeeded = Lists.newArrayList();
+        Map<String, String> failed = Maps.newLinkedHashMap();
+        if (idList.isEmpty()) return new Report(succeeded, failed, Duration.ZERO);
+
+        Map<String, Future<String>> issued = Maps.newLinkedHashMap();
+        ExecutorService executor = newExecutor(type, Math.min(maxConcurrency, idList.size()));
+        try {
+            for (final String id : idList) {
+                issued.put(id, executor.submit(new Callable<String>() {
+                    @Override public String call() {
+                        LOG.debug("deleting {} {}", type, id);
+                        return deleter.apply(id);
+                    }}));
+            }
+
+            Map<String, String> jobToId = Maps.newLinkedHashMap();
+            for (Map.Entry<String, Future<String>> entry : issued.entrySet()) {
+                String id = entry.getKey();
+                try {
+                    String job = entry.getValue().get();
+                    if (job == null) {
+                        succeeded.add(id);
+                    } else {
+                        jobToId.put(job, id);
+                    }
+                } catch (Exception e) {
+                    Exceptions.propagateIfFatal(e);
+                    Throwable cause = (e instanceof ExecutionException && e.getCause() != null) ? e.getCause() : e;
+                    LOG.info("failed to delete "+type+" "+id+": "+cause);
+                    failed.put(id, cause.toString());
+                }
+            }
+
+            List<String> jobIds = ImmutableList.copyOf(jobToId.keySet());
+            List<AsyncJob<Object>> jobs = client.getJobTracker().waitFor(jobIds);
+            for (int i = 0; i < jobs.size(); i++) {
+                AsyncJob<Object> job = jobs.get(i);
+                String id = jobToId.get(jobIds.get(i));
+                if (job.hasSucceed()) {
+                    succeeded.add(id);
+                } else {
+                    LOG.warn("job to delete {} {} failed: {}", new Object[] {type, id, job});
+                    failed.put(id, "job "+jobIds.get(i)+" failed: "+job.getError());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Report result = new Report(succeeded, failed, Duration.millis(System.currentTimeMillis() - startTime));
+        LOG.debug("Bulk deletion of {} {}(s): {}", new Object[] {idList.size(), type, result});
+        return result;
+    }
+
+    private ExecutorService newExecutor(final String type, int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "brooklyn-cloudstack-delete-"+type+"-"+count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }});
+    }
+}
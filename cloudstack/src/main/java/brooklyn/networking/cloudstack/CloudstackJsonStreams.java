@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Map;
+import java.util.Set;
+
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.http.HttpToolResponse;
+import brooklyn.util.stream.Streams;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Streaming extraction of fields from CloudStack JSON responses, using a {@link JsonReader} rather than
+ * building a tree of the whole response.
+ * <p>
+ * CloudStack wraps every response in a single object named after the command, e.g.
+ * <code>{"listvpcsresponse":{"count":2,"vpc":[{...},{...}]}}</code> or
+ * <code>{"createvpcresponse":{"id":"...","jobid":"..."}}</code>.
+ * Only primitive fields are extracted (as strings); nested objects and arrays are skipped.
+ */
+@Beta
+public class CloudstackJsonStreams {
+
+    public static final Set<String> ID_AND_JOBID = ImmutableSet.of("id", "jobid");
+
+    /** receives each item of a list response; return false to stop reading */
+    public interface ItemVisitor {
+        public boolean visit(Map<String, String> item);
+    }
+
+    /** summary of a list response read by {@link CloudstackJsonStreams#visitListResponse(InputStream, String, Set, ItemVisitor)} */
+    public static class ListSummary {
+        private final int count;
+        private final int itemsRead;
+        private final boolean stoppedEarly;
+
+        ListSummary(int count, int itemsRead, boolean stoppedEarly) {
+            this.count = count;
+            this.itemsRead = itemsRead;
+            this.stoppedEarly = stoppedEarly;
+        }
+        /** the {@code count} reported by the server (total across all pages), or -1 if not seen */
+        public int getCount() {
+            return count;
+        }
+        /** the number of items passed to the visitor */
+        public int getItemsRead() {
+            return itemsRead;
+        }
+        /** true if the visitor asked to stop before the end of the response */
+        public boolean isStoppedEarly() {
+            return stoppedEarly;
+        }
+        @Override
+        public String toString() {
+            return "ListSummary[count="+count+"; read="+itemsRead+(stoppedEarly ? "; stoppedEarly" : "")+"]";
+        }
+    }
+
+    private CloudstackJsonStreams() {}
+
+    public static Map<String, String> readTopLevelFields(HttpToolResponse response, Set<String> fields) {
+        return readTopLevelFields(new ByteArrayInputStream(response.getContent()), fields);
+    }
+
+    /**
+     * Reads the requested primitive fields of the single object wrapped in the response,
+     * e.g. the {@code id} and {@code jobid} of an async command's response.
+     */
+    public static Map<String, String> readTopLevelFields(InputStream is, Set<String> fields) {
+        JsonReader reader = newReader(is);
+        try {
+            reader.beginObject();
+            if (!reader.hasNext()) return Maps.newLinkedHashMap();
+            reader.nextName();
+            return readFields(reader, fields);
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        } finally {
+            Streams.closeQuietly(reader);
+        }
+    }
+
+    public static ListSummary visitListResponse(HttpToolResponse response, String itemKey, Set<String> fields, ItemVisitor visitor) {
+        return visitListResponse(new ByteArrayInputStream(response.getContent()), itemKey, fields, visitor);
+    }
+
+    /**
+     * Streams the items of a list response, passing the requested primitive fields of each to the visitor.
+     *
+     * @param itemKey the name of the array of items, e.g. {@code vpc} for {@code listVPCs}
+     */
+    public static ListSummary visitListResponse(InputStream is, String itemKey, Set<String> fields, ItemVisitor visitor) {
+        JsonReader reader = newReader(is);
+        int count = -1;
+        int itemsRead = 0;
+        try {
+            reader.beginObject();
+            if (!reader.hasNext()) return new ListSummary(count, itemsRead, false);
+            reader.nextName();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("count".equals(name) && reader.peek() == JsonToken.NUMBER) {
+                    count = reader.nextInt();
+                } else if (itemKey.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        Map<String, String> item = readFields(reader, fields);
+                        itemsRead++;
+                        if (!visitor.visit(item)) {
+                            // no need to read the rest
+                            return new ListSummary(count, itemsRead, true);
+                        }
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            return new ListSummary(count, itemsRead, false);
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        } finally {
+            Streams.closeQuietly(reader);
+        }
+    }
+
+    private static Map<String, String> readFields(JsonReader reader, Set<String> fields) throws IOException {
+        Map<String, String> result = Maps.newLinkedHashMap();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            JsonToken token = reader.peek();
+            if (fields.contains(name) && (token == JsonToken.STRING || token == JsonToken.NUMBER)) {
+                result.put(name, reader.nextString());
+            } else if (fields.contains(name) && token == JsonToken.BOOLEAN) {
+                result.put(name, Boolean.toString(reader.nextBoolean()));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return result;
+    }
+
+    private static JsonReader newReader(InputStream is) {
+        return new JsonReader(new InputStreamReader(is, Charsets.UTF_8));
+    }
+}
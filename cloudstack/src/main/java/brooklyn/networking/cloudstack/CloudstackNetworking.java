@@ -18,14 +18,16 @@ package brooklyn.networking.cloudstack;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.jclouds.cloudstack.domain.Account;
 import org.jclouds.cloudstack.domain.Network;
 import org.jclouds.cloudstack.domain.Zone;
 import org.jclouds.cloudstack.options.CreateNetworkOptions;
 import org.jclouds.cloudstack.options.ListAccountsOptions;
-import org.jclouds.cloudstack.options.ListNetworksOptions;
 import org.jclouds.cloudstack.options.ListZonesOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,7 +39,11 @@ import brooklyn.util.config.ConfigBag;
 import brooklyn.util.net.Cidr;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
 
 public class CloudstackNetworking {
 
@@ -57,38 +63,48 @@ public class CloudstackNetworking {
         client.close();
     }
 
-    public String findDomainIdForAccount(String accountName) {
-        Set<Account> accounts = client.getAccountClient().listAccounts(ListAccountsOptions.Builder.name(accountName));
-        Account account = Iterables.getOnlyElement(accounts, null);
-        if (account == null) {
-            throw new IllegalStateException("No account found in "+loc+"} with name "+accountName);
-        }
-        return account.getDomainId();
+    public String findDomainIdForAccount(final String accountName) {
+        return client.getReferenceDataCache().get("domainForAccount:"+accountName, new Callable<String>() {
+            @Override public String call() {
+                Set<Account> accounts = client.getAccountClient().listAccounts(ListAccountsOptions.Builder.name(accountName));
+                Account account = Iterables.getOnlyElement(accounts, null);
+                if (account == null) {
+                    throw new IllegalStateException("No account found in "+loc+"} with name "+accountName);
+                }
+                return account.getDomainId();
+            }});
     }
 
     public Network findPrivateNetwork(String accountName, String domainId) {
         // note: listNetworks includes networks with "null" account
-        Set<Network> networks = client.getNetworkClient().listNetworks(ListNetworksOptions.Builder.accountInDomain(accountName, domainId).isShared(false));
-        for (Network network : networks) {
-            if (accountName.equals(network.getAccount())) {
-                LOG.debug("Found private network in {} for account {} in domain {}: {}", new Object[] {loc, accountName, domainId, network});
-                return network;
+        // pages through the (id, account) of each network, stopping at the first match, and only then retrieves it in full
+        Multimap<String, String> filters = ImmutableMultimap.of("account", accountName, "domainid", domainId, "isshared", "false");
+        List<String> contenders = Lists.newArrayList();
+        for (Map<String, String> network : client.listPaged("listNetworks", "network", filters, ImmutableSet.of("id", "account"))) {
+            if (accountName.equals(network.get("account"))) {
+                Network result = client.getNetworkClient().getNetwork(network.get("id"));
+                LOG.debug("Found private network in {} for account {} in domain {}: {}", new Object[] {loc, accountName, domainId, result});
+                return result;
             }
+            contenders.add(network.get("id"));
         }
-        LOG.debug("No private network found in {} for account {} in domain {}: contenders {}", new Object[] {loc, accountName, domainId, networks});
+        LOG.debug("No private network found in {} for account {} in domain {}: contenders {}", new Object[] {loc, accountName, domainId, contenders});
         return null;
     }
 
-    public Zone findAvailableZone(String domainId) {
-        Set<Zone> zones = client.getZoneClient().listZones(ListZonesOptions.Builder.available(true));
-        for (Zone zone : zones) {
-            if (zone.getDomainId() == null || zone.getDomainId().equals(domainId)) {
-                LOG.debug("Found available zone in {} for domain {}: {}", new Object[] {loc, domainId, zone});
-                return zone;
-            }
-        }
-        LOG.debug("No available zone for domain {}; zones: {}", domainId, zones);
-        return null;
+    public Zone findAvailableZone(final String domainId) {
+        return client.getReferenceDataCache().get("availableZone.domain:"+domainId, new Callable<Zone>() {
+            @Override public Zone call() {
+                Set<Zone> zones = client.getZoneClient().listZones(ListZonesOptions.Builder.available(true));
+                for (Zone zone : zones) {
+                    if (zone.getDomainId() == null || zone.getDomainId().equals(domainId)) {
+                        LOG.debug("Found available zone in {} for domain {}: {}", new Object[] {loc, domainId, zone});
+                        return zone;
+                    }
+                }
+                LOG.debug("No available zone for domain {}; zones: {}", domainId, zones);
+                return null;
+            }});
     }
 
     // create a private subnet, using the jclouds-cloudstack context
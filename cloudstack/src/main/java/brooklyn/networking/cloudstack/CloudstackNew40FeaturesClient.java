@@ -20,12 +20,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.http.pool.PoolStats;
 import org.jclouds.Constants;
 import org.jclouds.ContextBuilder;
 import org.jclouds.cloudstack.CloudStackContext;
@@ -36,7 +41,6 @@ import org.jclouds.cloudstack.domain.Network;
 import org.jclouds.cloudstack.domain.NetworkOffering;
 import org.jclouds.cloudstack.domain.PortForwardingRule.Protocol;
 import org.jclouds.cloudstack.domain.PublicIPAddress;
-import org.jclouds.cloudstack.domain.VirtualMachine;
 import org.jclouds.cloudstack.domain.Zone;
 import org.jclouds.cloudstack.features.AsyncJobApi;
 import org.jclouds.cloudstack.features.GlobalAccountApi;
@@ -57,20 +61,25 @@ import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.basic.ConfigKeys;
 import brooklyn.location.jclouds.JcloudsLocation;
 import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.http.HttpToolResponse;
+import brooklyn.util.time.Duration;
 import brooklyn.util.time.Time;
 
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.stream.JsonReader;
 import com.google.inject.Module;
@@ -85,12 +94,25 @@ public class CloudstackNew40FeaturesClient {
     @SuppressWarnings("unused") private final String secretKey;
 
     private final CloudStackContext context;
+    private final CloudstackAsyncJobTracker jobTracker;
+    private final CloudstackReferenceDataCache referenceData;
+    private final CloudstackResilientInvoker invoker;
+
+    public static final ConfigKey<Duration> REFERENCE_DATA_CACHE_TTL = ConfigKeys.newConfigKey(Duration.class,
+            "cloudstack.referenceData.cacheTtl",
+            "How long to cache rarely-changing data such as offerings and zones (shared by all clients of the same endpoint)",
+            CloudstackReferenceDataCache.DEFAULT_TTL);
 
     public static CloudstackNew40FeaturesClient newInstance(JcloudsLocation loc) {
-        return newInstance(loc.getConfig(JcloudsLocation.CLOUD_ENDPOINT), loc.getIdentity(), loc.getCredential());
+        return newInstance(loc.getConfig(JcloudsLocation.CLOUD_ENDPOINT), loc.getIdentity(), loc.getCredential(),
+                loc.getConfig(REFERENCE_DATA_CACHE_TTL));
     }
 
     public static CloudstackNew40FeaturesClient newInstance(String endpoint, String apiKey, String secretKey) {
+        return newInstance(endpoint, apiKey, secretKey, CloudstackReferenceDataCache.DEFAULT_TTL);
+    }
+
+    public static CloudstackNew40FeaturesClient newInstance(String endpoint, String apiKey, String secretKey, Duration referenceDataCacheTtl) {
         Properties overrides = new Properties();
         overrides.setProperty(Constants.PROPERTY_TRUST_ALL_CERTS, "true");
         overrides.setProperty(Constants.PROPERTY_RELAX_HOSTNAME, "true");
@@ -107,20 +129,55 @@ public class CloudstackNew40FeaturesClient {
             .overrides(overrides);
 
         CloudStackContext context = builder.buildView(CloudStackContext.class);
-        return new CloudstackNew40FeaturesClient(endpoint, apiKey, secretKey, context);
+        return new CloudstackNew40FeaturesClient(endpoint, apiKey, secretKey, context,
+                CloudstackReferenceDataCache.forEndpoint(endpoint, apiKey, referenceDataCacheTtl));
     }
 
     public CloudstackNew40FeaturesClient(String endpoint, String apiKey, String secretKey, CloudStackContext context) {
+        this(endpoint, apiKey, secretKey, context, CloudstackReferenceDataCache.forEndpoint(endpoint, apiKey, CloudstackReferenceDataCache.DEFAULT_TTL));
+    }
+
+    public CloudstackNew40FeaturesClient(String endpoint, String apiKey, String secretKey, CloudStackContext context, CloudstackReferenceDataCache referenceData) {
         this.apiKey = apiKey;
         this.secretKey = secretKey;
         this.endpoint = endpoint;
         this.context = context;
+        this.jobTracker = new CloudstackAsyncJobTracker(getAsyncJobClient());
+        this.referenceData = referenceData;
+        this.invoker = CloudstackResilientInvoker.forEndpoint(URI.create(endpoint));
     }
 
     public void close() {
+        jobTracker.close();
         context.close();
     }
 
+    /**
+     * Cache of offerings, zones, etc for this endpoint and account; use {@link CloudstackReferenceDataCache#invalidateAll()}
+     * if these are known to have changed.
+     */
+    public CloudstackReferenceDataCache getReferenceDataCache() {
+        return referenceData;
+    }
+
+    /** tracker used to wait for this client's async jobs, polling for all outstanding jobs together */
+    public CloudstackAsyncJobTracker getJobTracker() {
+        return jobTracker;
+    }
+
+    /** retry and circuit-breaker state (and error counters) for requests made directly by this client to its endpoint */
+    public CloudstackResilientInvoker getResilientInvoker() {
+        return invoker;
+    }
+
+    /**
+     * Statistics (leased, available, etc) of the HTTP connection pool used for requests to this client's endpoint;
+     * the pool is shared by all clients of the same endpoint.
+     */
+    public PoolStats getHttpConnectionPoolStats() {
+        return HttpClientPool.forEndpoint(URI.create(endpoint)).getStats();
+    }
+
     public CloudStackGlobalApi getCloudstackGlobalClient() {
         return context.getGlobalApi();
     }
@@ -176,16 +233,10 @@ public class CloudstackNew40FeaturesClient {
     public List<String> findVpcIdsNameMatchingRegex(String regex) throws InterruptedException {
         List<String> result = new ArrayList<String>();
 
-        JsonArray jr = listVpcsJson();
-        if (jr==null) return result;
-
-        Iterator<JsonElement> jvii = jr.iterator();
-
-        while (jvii.hasNext()) {
-            JsonObject jvo = jvii.next().getAsJsonObject();
-            String name = jvo.get("name").getAsString();
+        for (Map<String, String> vpc : listPaged("listVPCs", "vpc", keywordFilter(regex), VPC_FIELDS)) {
+            String name = vpc.get("name");
             if (name!=null && name.matches(regex))
-                result.add(jvo.get("id").getAsString());
+                result.add(vpc.get("id"));
         }
         LOG.debug("VPC's matching {}: {}, ", regex, result);
 
@@ -193,15 +244,11 @@ public class CloudstackNew40FeaturesClient {
     }
 
     public String findVpcIdWithCidr(String cidr) {
-        JsonArray jr = listVpcsJson();
-        if (jr==null) return null;
-        Iterator<JsonElement> jvii = jr.iterator();
         List<String> cidrs = new ArrayList<String>();
-        while (jvii.hasNext()) {
-            JsonObject jvo = jvii.next().getAsJsonObject();
-            String cidrV = jvo.get("cidr").getAsString();
+        for (Map<String, String> vpc : listPaged("listVPCs", "vpc", ImmutableMultimap.<String, String>of(), VPC_FIELDS)) {
+            String cidrV = vpc.get("cidr");
             if (cidrV!=null && cidrV.equals(cidr)) {
-                String vpcId = jvo.get("id").getAsString();
+                String vpcId = vpc.get("id");
                 LOG.debug("found vpcId {} matching CIDR {}", vpcId, cidr);
                 return vpcId;
             }
@@ -211,10 +258,138 @@ public class CloudstackNew40FeaturesClient {
         return null;
     }
 
-    protected JsonArray listVpcsJson() {
-        Multimap<String, String> params = ArrayListMultimap.create();
-        params.put("command", "listVPCs");
+    private static final Set<String> VPC_FIELDS = ImmutableSet.of("id", "name", "cidr");
+    private static final Set<String> ID_AND_NAME = ImmutableSet.of("id", "name");
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    /**
+     * Lazily iterates over the results of a CloudStack list command, fetching one page
+     * (of {@link #DEFAULT_PAGE_SIZE} items) at a time as the iteration proceeds, so callers
+     * which stop early do not retrieve the rest.
+     *
+     * @param command  e.g. {@code listVPCs}
+     * @param itemKey  the name of the array of items in the response, e.g. {@code vpc}
+     * @param filters  additional query parameters, e.g. from {@link #keywordFilter(String)}
+     * @param fields   the (primitive) fields to extract for each item
+     */
+    public Iterable<Map<String, String>> listPaged(final String command, final String itemKey, final Multimap<String, String> filters, final Set<String> fields) {
+        return listPaged(command, itemKey, filters, fields, DEFAULT_PAGE_SIZE);
+    }
+
+    public Iterable<Map<String, String>> listPaged(final String command, final String itemKey, final Multimap<String, String> filters, final Set<String> fields, final int pageSize) {
+        return new Iterable<Map<String, String>>() {
+            @Override public Iterator<Map<String, String>> iterator() {
+                return new PagedIterator(command, itemKey, filters, fields, pageSize);
+            }};
+    }
 
+    /** true if any item returned by the list command has a name matching the regex; stops at the first match */
+    protected boolean anyNameMatching(String command, String itemKey, String regex) {
+        for (Map<String, String> item : listPaged(command, itemKey, keywordFilter(regex), ID_AND_NAME)) {
+            String name = item.get("name");
+            if (name!=null && name.matches(regex)) return true;
+        }
+        return false;
+    }
+
+    /** id and name of the items returned by the list command whose name matches the regex */
+    protected List<Map<String, String>> listNameMatching(String command, String itemKey, String regex) {
+        List<Map<String, String>> result = Lists.newArrayList();
+        for (Map<String, String> item : listPaged(command, itemKey, keywordFilter(regex), ID_AND_NAME)) {
+            String name = item.get("name");
+            if (name!=null && name.matches(regex)) result.add(item);
+        }
+        return result;
+    }
+
+    private static List<String> ids(List<Map<String, String>> items) {
+        List<String> result = Lists.newArrayList();
+        for (Map<String, String> item : items) {
+            result.add(item.get("id"));
+        }
+        return result;
+    }
+
+    /**
+     * Returns a {@code keyword} filter for the given regex if it is a plain literal (optionally anchored, or with
+     * a leading or trailing {@code .*}), so that the server can narrow the results; otherwise (e.g. for an
+     * alternation such as {@code a|b}) no filter, as a keyword could exclude matches. CloudStack matches keywords
+     * as substrings, so callers must still apply the regex.
+     */
+    public static Multimap<String, String> keywordFilter(String regex) {
+        String literal = regex;
+        if (literal.startsWith("^")) literal = literal.substring(1);
+        else if (literal.startsWith(".*")) literal = literal.substring(2);
+        if (literal.endsWith(".*")) literal = literal.substring(0, literal.length()-2);
+        else if (literal.endsWith("$")) literal = literal.substring(0, literal.length()-1);
+        for (int i = 0; i < literal.length(); i++) {
+            if (".[]{}()*+?^$|\\".indexOf(literal.charAt(i)) >= 0) return ImmutableMultimap.of();
+        }
+        if (literal.length() == 0) return ImmutableMultimap.of();
+        return ImmutableMultimap.of("keyword", literal);
+    }
+
+    private class PagedIterator extends AbstractIterator<Map<String, String>> {
+        private final String command;
+        private final String itemKey;
+        private final Multimap<String, String> filters;
+        private final Set<String> fields;
+        private final int pageSize;
+        private int page = 0;
+        private int itemsRead = 0;
+        private boolean lastPage = false;
+        private Iterator<Map<String, String>> current = Iterators.emptyIterator();
+
+        PagedIterator(String command, String itemKey, Multimap<String, String> filters, Set<String> fields, int pageSize) {
+            this.command = command;
+            this.itemKey = itemKey;
+            this.filters = filters;
+            this.fields = fields;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        protected Map<String, String> computeNext() {
+            while (!current.hasNext()) {
+                if (lastPage) return endOfData();
+                current = fetchNextPage().iterator();
+            }
+            return current.next();
+        }
+
+        private List<Map<String, String>> fetchNextPage() {
+            page++;
+            Multimap<String, String> params = ArrayListMultimap.create();
+            params.put("command", command);
+            params.putAll(filters);
+            params.put("page", ""+page);
+            params.put("pagesize", ""+pageSize);
+
+            HttpToolResponse response = invoke(params);
+
+            final List<Map<String, String>> items = Lists.newArrayList();
+            CloudstackJsonStreams.ListSummary summary = CloudstackJsonStreams.visitListResponse(response, itemKey, fields,
+                    new CloudstackJsonStreams.ItemVisitor() {
+                        @Override public boolean visit(Map<String, String> item) {
+                            items.add(item);
+                            return true;
+                        }});
+            itemsRead += items.size();
+            lastPage = items.size() < pageSize || (summary.getCount() >= 0 && itemsRead >= summary.getCount());
+            LOG.debug("{} page {} ({}): {}", new Object[] {command, page, filters, summary});
+            return items;
+        }
+    }
+
+    /**
+     * Signs and issues the request for the given command and parameters, retrying transient failures
+     * (see {@link CloudstackResilientInvoker}).
+     *
+     * @throws CloudstackApiException if the request failed
+     */
+    protected HttpToolResponse invoke(Multimap<String, String> params) {
+        String command = Iterables.getFirst(params.get("command"), "unknown");
         params.put("apiKey", this.apiKey);
         params.put("response", "json");
 
@@ -227,13 +402,7 @@ public class CloudstackNew40FeaturesClient {
 
         request = getQuerySigner().filter(request);
 
-        HttpToolResponse response = HttpUtil.invoke(request);
-
-        JsonElement jr = json(response);
-        LOG.debug(pretty(jr));
-
-        JsonElement vpcs = jr.getAsJsonObject().get("listvpcsresponse").getAsJsonObject().get("vpc");
-        return vpcs==null ? null : vpcs.getAsJsonArray();
+        return invoker.invoke(command, request);
     }
 
     public String createVpc(String cidr, String displayText, String name, String vpcOfferingId, String zoneId) {
@@ -245,20 +414,17 @@ public class CloudstackNew40FeaturesClient {
         params.put("vpcOfferingId", vpcOfferingId);
         params.put("zoneId", zoneId);
 
-        params.put("apiKey", this.apiKey);
-        params.put("response", "json");
-
-        HttpRequest request = HttpRequest.builder()
-            .method("GET")
-            .endpoint(this.endpoint)
-            .addQueryParams(params)
-            .addHeader("Accept", "application/json")
-            .build();
+        HttpToolResponse response = invoke(params);
 
-        request = getQuerySigner().filter(request);
+        try {
+            return waitForJobCompletion(response);
+        } catch (InterruptedException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
 
-        HttpToolResponse response = HttpUtil.invoke(request);
-        // todo: handle non-2xx response
+    public String deleteVpc(String vpcId) {
+        HttpToolResponse response = deleteVpcResponse(vpcId);
 
         try {
             return waitForJobCompletion(response);
@@ -267,32 +433,40 @@ public class CloudstackNew40FeaturesClient {
         }
     }
 
-    public String deleteVpc(String vpcId) {
+    /** issues the request to delete the VPC, returning the job id without waiting for it */
+    public String startDeleteVpc(String vpcId) {
+        HttpToolResponse response = deleteVpcResponse(vpcId);
+        return CloudstackJsonStreams.readTopLevelFields(response, CloudstackJsonStreams.ID_AND_JOBID).get("jobid");
+    }
+
+    private HttpToolResponse deleteVpcResponse(String vpcId) {
         Multimap<String, String> params = ArrayListMultimap.create();
         params.put("command", "deleteVPC");
         params.put("id", vpcId);
 
-        params.put("apiKey", this.apiKey);
-        params.put("response", "json");
-
-        HttpRequest request = HttpRequest.builder()
-            .method("GET")
-            .endpoint(this.endpoint)
-            .addQueryParams(params)
-            .addHeader("Accept", "application/json")
-            .build();
+        return invoke(params);
+    }
 
-        request = getQuerySigner().filter(request);
+    /**
+     * Destroys the VM, returning the job id. With {@code expunge} the VM is removed at once, rather than
+     * being kept (in state Destroyed, still attached to its network) until the cloud's expunge delay has passed;
+     * CloudStack only allows some accounts to expunge.
+     */
+    public String startDestroyVirtualMachine(String vmId, boolean expunge) {
+        Multimap<String, String> params = ArrayListMultimap.create();
+        params.put("command", "destroyVirtualMachine");
+        params.put("id", vmId);
+        if (expunge) params.put("expunge", "true");
 
-        HttpToolResponse response = HttpUtil.invoke(request);
-        // todo: handle non-2xx response
+        HttpToolResponse response = invoke(params);
+        return CloudstackJsonStreams.readTopLevelFields(response, CloudstackJsonStreams.ID_AND_JOBID).get("jobid");
+    }
 
-        try {
-            return waitForJobCompletion(response);
-        } catch (InterruptedException e) {
-            throw Exceptions.propagate(e);
-        }
+    /** bulk deletion using this client, issuing up to {@link CloudstackBulkDeletion#DEFAULT_MAX_CONCURRENCY} deletions at once */
+    public CloudstackBulkDeletion getBulkDeletion() {
+        return new CloudstackBulkDeletion(this);
     }
+
     /** gets the ID of the thing whose job we were waiting on, if applicable */
     protected String waitForJobCompletion(HttpToolResponse response) throws InterruptedException {
         // FIXME response.getMessage(), to do something like httpUrlConnection.getResponseMessage()
@@ -305,28 +479,21 @@ public class CloudstackNew40FeaturesClient {
 
     protected String waitForJobCompletion(int statusCode, InputStream payload, String message) throws InterruptedException {
         if (statusCode < 200 || statusCode >= 300) {
-            throw new RuntimeException("Error: " + message);
+            throw new CloudstackApiException("job", statusCode, message, false, null);
         }
 
-        JsonElement jr = json(payload);
-        LOG.debug(pretty(jr));
-
-        JsonObject jobfields = jr.getAsJsonObject().entrySet().iterator().next().getValue().getAsJsonObject();
-        JsonElement responseIdJson = jobfields.get("id");
-        String responseId = responseIdJson!=null ? responseIdJson.getAsString() : null;
-        String jobId = jobfields.get("jobid").getAsString();
-
-        do {
-            AsyncJob<Object> job = getAsyncJobClient().getAsyncJob(jobId);
-            LOG.debug("waiting: "+job);
-            if (job.hasFailed()) throw new IllegalStateException("Failed job: "+job);
-            if (job.hasSucceed()) {
-                Status status = job.getStatus();
-                if (Status.FAILED.equals(status)) throw new IllegalStateException("Failed job: "+job);
-                if (Status.SUCCEEDED.equals(status)) return responseId;
-            }
-            Thread.sleep(1000);
-        } while (true);
+        Map<String, String> jobfields = CloudstackJsonStreams.readTopLevelFields(payload, CloudstackJsonStreams.ID_AND_JOBID);
+        LOG.debug("job response fields: {}", jobfields);
+
+        String responseId = jobfields.get("id");
+        String jobId = jobfields.get("jobid");
+        if (jobId==null) throw new IllegalStateException("No job id in response: "+jobfields);
+
+        LOG.debug("waiting for job {}", jobId);
+        AsyncJob<Object> job = jobTracker.waitFor(jobId);
+        if (job.hasFailed() || Status.FAILED.equals(job.getStatus())) throw new IllegalStateException("Failed job: "+job);
+        if (!Status.SUCCEEDED.equals(job.getStatus())) throw new IllegalStateException("Unexpected job status: "+job);
+        return responseId;
     }
 
     public static JsonElement json(HttpToolResponse response) {
@@ -363,44 +530,47 @@ public class CloudstackNew40FeaturesClient {
             .create();
     }
 
-    private Set<Zone> zones = null;
+    protected Set<Zone> listZonesCached() {
+        return referenceData.get("zones", new Callable<Set<Zone>>() {
+            @Override public Set<Zone> call() {
+                return getZoneClient().listZones();
+            }});
+    }
 
     public Zone findZoneMatchingName(String name) {
-        if (zones==null) zones = getZoneClient().listZones();
+        Set<Zone> zones = listZonesCached();
         for (Zone z: zones) if (name.equals(z.getName())) return z;
         return null;
     }
 
     public Zone findZoneMatchingRegex(String regex) {
-        if (zones==null) zones = getZoneClient().listZones();
+        Set<Zone> zones = listZonesCached();
         for (Zone z: zones) if (z.getName()!=null && z.getName().matches(regex)) return z;
         return null;
     }
 
     public String getFirstVpcOfferingId() {
+        return referenceData.get("vpcOffering.first", new Callable<String>() {
+            @Override public String call() {
+                return loadFirstVpcOfferingId();
+            }});
+    }
+
+    protected String loadFirstVpcOfferingId() {
         Multimap<String, String> params = ArrayListMultimap.create();
         params.put("command", "listVPCOfferings");
-        params.put("apiKey", this.apiKey);
-        params.put("response", "json");
-
-        HttpRequest request = HttpRequest.builder()
-            .method("GET")
-            .endpoint(this.endpoint)
-            .addQueryParams(params)
-            .addHeader("Accept", "application/json")
-            .build();
+        HttpToolResponse response = invoke(params);
+        if (LOG.isDebugEnabled()) LOG.debug("LIST VPC OFFERS\n"+pretty(json(response)));
 
-        request = getQuerySigner().filter(request);
-
-        HttpToolResponse response = HttpUtil.invoke(request);
-        JsonElement offers = json(response);
-        LOG.debug("LIST VPC OFFERS\n"+pretty(offers));
-
-        String id = offers.getAsJsonObject().get("listvpcofferingsresponse").
-            getAsJsonObject().get("vpcoffering").getAsJsonArray().
-            get(0).getAsJsonObject().get("id").getAsString();
-        LOG.debug("  using first VPC offering ID: "+id);
-        return id;
+        final AtomicReference<String> id = new AtomicReference<String>();
+        CloudstackJsonStreams.visitListResponse(response, "vpcoffering", ImmutableSet.of("id"), new CloudstackJsonStreams.ItemVisitor() {
+            @Override public boolean visit(Map<String, String> offering) {
+                id.set(offering.get("id"));
+                return false;
+            }});
+        if (id.get()==null) throw new IllegalStateException("No VPC offerings found at "+endpoint);
+        LOG.debug("  using first VPC offering ID: "+id.get());
+        return id.get();
     }
 
     public String createVpcTier(String name, String displayText,
@@ -420,25 +590,12 @@ public class CloudstackNew40FeaturesClient {
         params.put("gateway", gateway);
         params.put("netmask", netmask);
 
-        params.put("apiKey", this.apiKey);
-        params.put("response", "json");
-
         LOG.debug("createVpcTier GET "+params);
 
-        HttpRequest request = HttpRequest.builder()
-            .method("GET")
-            .endpoint(this.endpoint)
-            .addQueryParams(params)
-            .addHeader("Accept", "application/json")
-            .build();
-
-        request = getQuerySigner().filter(request);
-
-        HttpToolResponse response = HttpUtil.invoke(request);
-        // TODO does non-2xx response need to be handled separately ?
+        HttpToolResponse response = invoke(params);
 
         JsonElement jr = json(response);
-        LOG.debug("createVpcTier GOT "+jr);
+        if (LOG.isDebugEnabled()) LOG.debug("createVpcTier GOT "+jr);
 
         // seems this is created immediately
         return jr.getAsJsonObject().get("createnetworkresponse")
@@ -448,72 +605,43 @@ public class CloudstackNew40FeaturesClient {
     }
 
     public Network findNetworkNameMatchingRegex(String regex) {
-        Set<Network> networks = getNetworkClient().listNetworks();
         LOG.debug("NETWORKS: ");
-        for (Network nw: networks) {
+        for (Map<String, String> nw : listPaged("listNetworks", "network", keywordFilter(regex), ID_AND_NAME)) {
             LOG.debug("  "+nw);
-            if (nw.getName().matches(regex)) {
+            String name = nw.get("name");
+            if (name!=null && name.matches(regex)) {
                 LOG.debug("  ^^^");
-                return nw;
+                return getNetworkClient().getNetwork(nw.get("id"));
             }
         }
         return null;
     }
 
-    public void deleteVpcsWhereNameMatchesRegex(String regex) {
+    public CloudstackBulkDeletion.Report deleteVpcsWhereNameMatchesRegex(String regex) {
         // as needed, delete them:
-        int delCount = 0;
         List<String> vpcIds = null;
         try {
             vpcIds = findVpcIdsNameMatchingRegex(regex);
         } catch (InterruptedException e1) {
             throw Exceptions.propagate(e1);
         }
-        for (String vpcId: vpcIds) {
-            try {
-                LOG.debug("deleting VPC "+vpcId);
-                deleteVpc(vpcId);
-                delCount++;
-            } catch (Exception e) {
-                LOG.info("not allowed to delete "+vpcId+": "+e);
-            }
-        }
-        if (delCount>0) LOG.info("deleted "+delCount+" vpc's");
+        CloudstackBulkDeletion.Report report = getBulkDeletion().deleteVpcs(vpcIds);
+        if (report.getSucceeded().size()>0) LOG.info("deleted "+report.getSucceeded().size()+" vpc's");
+        return report;
     }
 
     /** returns the count of matching items which could not be deleted */
     public int deleteVmsWhereNameMatchesRegex(String regex, boolean waitForExpunged) {
         // as needed, delete them:
-        CloudstackNew40FeaturesClient client = this;
-        int delCount = 0, nonDelCount = 0;
-        Set<VirtualMachine> vms = client.getVirtualMachineClient().listVirtualMachines();
-        List<String> jobs = new ArrayList<String>();
-        for (VirtualMachine vm: vms) {
-            try {
-                if (vm.getName().matches(regex)) {
-                    LOG.debug("deleting "+vm);
-                    String job = client.getVirtualMachineClient().destroyVirtualMachine(vm.getId());
-                    LOG.debug("deleting "+vm+" - job "+job);
-                    if (job!=null) jobs.add(job);
-                    delCount++;
-                } else {
-                    LOG.debug("skipping deletion of (non-matched) "+vm);
-                }
-            } catch (Exception e) {
-                nonDelCount++;
-                LOG.info("not allowed to delete "+vm+": "+e);
-            }
-        }
-        waitForJobs(jobs);
+        // collect all matches before deleting, so deletions don't shift the pages being read
+        List<Map<String, String>> vms = listNameMatching("listVirtualMachines", "virtualmachine", regex);
+        CloudstackBulkDeletion.Report report = getBulkDeletion().deleteVms(ids(vms));
+        int delCount = report.getSucceeded().size(), nonDelCount = report.getFailed().size();
         if (delCount>0) LOG.info("deleted "+delCount+" VM's");
         if (nonDelCount==0 && waitForExpunged) {
             int loops = 0;
             while (true) {
-                boolean match = false;
-                vms = client.getVirtualMachineClient().listVirtualMachines();
-                for (VirtualMachine vm: vms) {
-                    match |= vm.getName().matches(regex);
-                }
+                boolean match = anyNameMatching("listVirtualMachines", "virtualmachine", regex);
                 if (!match) {
                     if (loops>0)
                         LOG.info("VM's now all expunged");
@@ -561,21 +689,20 @@ public class CloudstackNew40FeaturesClient {
 
     /** returns all jobs */
     public List<AsyncJob<Object>> waitForJobsDone(Iterable<String> jobs) {
-        List<AsyncJob<Object>> result = Lists.newArrayList();
-        for (String job: jobs) {
-            AsyncJob<Object> j = waitForJob(job);
+        // tracked together, so polled concurrently rather than one after another
+        List<AsyncJob<Object>> result = jobTracker.waitFor(jobs);
+        for (AsyncJob<Object> j : result) {
+            if (!j.hasSucceed()) {
+                LOG.warn("job {} failed: {}", j.getId(), j);
+            }
             LOG.debug("job completed with status: "+j);
-            result.add(j);
         }
         return result;
     }
 
     public AsyncJob<Object> waitForJobDone(String job) {
-        do {
-            AsyncJob<Object> j = getAsyncJobClient().getAsyncJob(job);
-            if (j.getStatus() != Status.IN_PROGRESS) return j;
-            LOG.debug("cloudstack waiting on job "+job+": "+j);
-        } while (true);
+        LOG.debug("cloudstack waiting on job "+job);
+        return jobTracker.waitFor(job);
     }
 
     public AsyncJob<Object> waitForJob(String job) {
@@ -598,36 +725,15 @@ public class CloudstackNew40FeaturesClient {
     /** returns the count of matching networks which could not be deleted */
     public int deleteNetworksWhereNameMatchesRegex(String regex, boolean waitForExpunged) {
         // as needed, delete them:
-        CloudstackNew40FeaturesClient client = this;
-        int delCount = 0, nonDelCount = 0;
-        Set<Network> nws = client.getNetworkClient().listNetworks();
-        List<String> jobs = new ArrayList<String>();
-        for (Network nwi: nws) {
-            try {
-                if (nwi.getName().matches(regex)) {
-                    LOG.debug("deleting "+nwi);
-                    String job = client.getNetworkClient().deleteNetwork(nwi.getId());
-                    LOG.debug("deleting "+nwi+" - job "+job);
-                    if (job!=null) jobs.add(job);
-                    delCount++;
-                } else {
-                    LOG.debug("skipping deletion of (non-matched) "+nwi);
-                }
-            } catch (Exception e) {
-                nonDelCount++;
-                LOG.info("not allowed to delete "+nwi+" (may have un-expunged VM's): "+e);
-            }
-        }
-        waitForJobs(jobs);
+        List<Map<String, String>> nws = listNameMatching("listNetworks", "network", regex);
+        CloudstackBulkDeletion.Report report = getBulkDeletion().deleteNetworks(ids(nws));
+        if (!report.isSuccess()) LOG.info("not allowed to delete some networks (may have un-expunged VM's): "+report.getFailed());
+        int delCount = report.getSucceeded().size(), nonDelCount = report.getFailed().size();
         if (delCount>0) LOG.info("deleted "+delCount+" networks");
         if (nonDelCount==0 && waitForExpunged) {
             int loops = 0;
             while (true) {
-                boolean match = false;
-                nws = client.getNetworkClient().listNetworks();
-                for (Network nw: nws) {
-                    match |= nw.getName().matches(regex);
-                }
+                boolean match = anyNameMatching("listNetworks", "network", regex);
                 if (!match) {
                     if (loops>0)
                         LOG.info("Networks now all expunged");
@@ -644,7 +750,14 @@ public class CloudstackNew40FeaturesClient {
         return nonDelCount;
     }
 
-    public String getNetworkOfferingWithName(String name) {
+    public String getNetworkOfferingWithName(final String name) {
+        return referenceData.get("networkOffering.name:"+name, new Callable<String>() {
+            @Override public String call() {
+                return loadNetworkOfferingWithName(name);
+            }});
+    }
+
+    protected String loadNetworkOfferingWithName(String name) {
         Set<NetworkOffering> offerings = getOfferingClient().listNetworkOfferings(ListNetworkOfferingsOptions.Builder.name(name));
         // above match is _containment_ not exact, so do further filtering
         for (NetworkOffering n: offerings)
@@ -699,22 +812,9 @@ public class CloudstackNew40FeaturesClient {
         if (icmptype!=null) params.put("icmptype", ""+icmptype);
         if (traffictype!=null) params.put("traffictype", traffictype);
 
-        params.put("apiKey", this.apiKey);
-        params.put("response", "json");
-
         LOG.debug("createNetworkAcl GET "+params);
 
-        HttpRequest request = HttpRequest.builder()
-            .method("GET")
-            .endpoint(this.endpoint)
-            .addQueryParams(params)
-            .addHeader("Accept", "application/json")
-            .build();
-
-        request = getQuerySigner().filter(request);
-
-        HttpToolResponse response = HttpUtil.invoke(request);
-        // TODO does non-2xx response need to be handled separately ?
+        HttpToolResponse response = invoke(params);
 
 //        JsonElement jr = json(response);
 //        log.debug("createNetworkAcl GOT "+jr);
@@ -731,22 +831,9 @@ public class CloudstackNew40FeaturesClient {
 
         params.put("vpcid", vpcId);
 
-        params.put("apiKey", this.apiKey);
-        params.put("response", "json");
-
         LOG.debug("associateIpAddress GET "+params);
 
-        HttpRequest request = HttpRequest.builder()
-            .method("GET")
-            .endpoint(this.endpoint)
-            .addQueryParams(params)
-            .addHeader("Accept", "application/json")
-            .build();
-
-        request = getQuerySigner().filter(request);
-
-        HttpToolResponse response = HttpUtil.invoke(request);
-        // TODO does non-2xx response need to be handled separately ?
+        HttpToolResponse response = invoke(params);
 
         try {
             String result = waitForJobCompletion(response);
@@ -756,44 +843,36 @@ public class CloudstackNew40FeaturesClient {
         }
     }
 
-    protected JsonElement listPublicIpAddressesAtVpc(String vpcId) {
+    private HttpToolResponse listPublicIpAddressesAtVpcResponse(String vpcId) {
         Multimap<String, String> params = ArrayListMultimap.create();
         params.put("command", "listPublicIpAddresses");
 
         params.put("vpcid", vpcId);
 
-        params.put("apiKey", this.apiKey);
-        params.put("response", "json");
-
-        HttpRequest request = HttpRequest.builder()
-            .method("GET")
-            .endpoint(this.endpoint)
-            .addQueryParams(params)
-            .addHeader("Accept", "application/json")
-            .build();
-
-        request = getQuerySigner().filter(request);
-
-        HttpToolResponse response = HttpUtil.invoke(request);
-        JsonElement jr = json(response);
-        LOG.debug(pretty(jr));
-
-        return jr.getAsJsonObject().get("listpublicipaddressesresponse");
+        return invoke(params);
     }
 
 
-    public void deleteIpsAtVpc(String vpcId) {
-        JsonElement je = listPublicIpAddressesAtVpc(vpcId);
-        LOG.debug(pretty(je));
+    public CloudstackBulkDeletion.Report deleteIpsAtVpc(String vpcId) {
+        final List<String> ids = Lists.newArrayList();
+        CloudstackJsonStreams.visitListResponse(listPublicIpAddressesAtVpcResponse(vpcId), "publicipaddress", ImmutableSet.of("id"),
+                new CloudstackJsonStreams.ItemVisitor() {
+                    @Override public boolean visit(Map<String, String> ip) {
+                        ids.add(ip.get("id"));
+                        return true;
+                    }});
 
-        int i=0;
-        for (JsonElement jei : je.getAsJsonObject().get("publicipaddress").getAsJsonArray()) {
-            String id = jei.getAsJsonObject().get("id").getAsString();
-            LOG.debug("deleting IP "+id);
-            getCloudstackGlobalClient().getAddressApi().disassociateIPAddress(id);
-            i++;
-        }
+        CloudstackBulkDeletion.Report report = getBulkDeletion().disassociateIps(ids);
+        int i = report.getSucceeded().size();
         if (i>0) LOG.info("deleted "+i+" IP's at VPC "+vpcId);
+        return report;
+    }
+
+    /**
+     * Deletes the VPC with all its VMs, public IPs and tiers (in that order), issuing the deletions at each step in parallel.
+     */
+    public CloudstackBulkDeletion.Report deleteVpcAndContents(String vpcId) {
+        return getBulkDeletion().deleteVpcAndContents(vpcId);
     }
 
     /**
@@ -816,29 +895,14 @@ public class CloudstackNew40FeaturesClient {
         params.put("privateport", ""+privatePort);
         params.put("openfirewall", ""+false);
 
-        params.put("apiKey", this.apiKey);
-        params.put("response", "json");
-
         LOG.debug("createPortForwardingRule GET "+params);
 
-        HttpRequest request = HttpRequest.builder()
-            .method("GET")
-            .endpoint(this.endpoint)
-            .addQueryParams(params)
-            .addHeader("Accept", "application/json")
-            .build();
-
-        request = getQuerySigner().filter(request);
-
-        HttpToolResponse response = HttpUtil.invoke(request);
-        // TODO does non-2xx response need to be handled separately ?
+        HttpToolResponse response = invoke(params);
 
-        JsonElement jr = json(response);
-        LOG.debug("createPortForwardingRule GOT "+jr);
+        Map<String, String> jobfields = CloudstackJsonStreams.readTopLevelFields(response, CloudstackJsonStreams.ID_AND_JOBID);
+        LOG.debug("createPortForwardingRule GOT {}", jobfields);
 
-        JsonObject jobfields = jr.getAsJsonObject().entrySet().iterator().next().getValue().getAsJsonObject();
-        String jobId = jobfields.get("jobid").getAsString();
-        return jobId;
+        return jobfields.get("jobid");
     }
 
     /**
@@ -863,32 +927,14 @@ public class CloudstackNew40FeaturesClient {
         params.put("privateport", ""+privatePort);
         params.put("openfirewall", ""+false);
 
-        params.put("apiKey", this.apiKey);
-        params.put("response", "json");
-
         LOG.debug("createPortForwardingRule GET "+params);
 
-        HttpRequest request = HttpRequest.builder()
-            .method("GET")
-            .endpoint(this.endpoint)
-            .addQueryParams(params)
-            .addHeader("Accept", "application/json")
-            .build();
-
-        request = getQuerySigner().filter(request);
+        HttpToolResponse response = invoke(params);
 
-        request.getEndpoint().toString().replace("+",  "%2B");
-        //request = request.toBuilder().endpoint(uriBuilder(request.getEndpoint()).query(decodedParams).build()).build();
-
-        HttpToolResponse response = HttpUtil.invoke(request);
-        // TODO does non-2xx response need to be handled separately ?
-
-        JsonElement jr = json(response);
-        LOG.debug("createPortForwardingRule GOT "+jr);
+        Map<String, String> jobfields = CloudstackJsonStreams.readTopLevelFields(response, CloudstackJsonStreams.ID_AND_JOBID);
+        LOG.debug("createPortForwardingRule GOT {}", jobfields);
 
-        JsonObject jobfields = jr.getAsJsonObject().entrySet().iterator().next().getValue().getAsJsonObject();
-        String jobId = jobfields.get("jobid").getAsString();
-        return jobId;
+        return jobfields.get("jobid");
     }
 
     public void disableEgressFirewall(String networkId) {
@@ -921,25 +967,9 @@ public class CloudstackNew40FeaturesClient {
             throw new IllegalArgumentException("Protocol " + protocol + " is not known");
         }
 
-        params.put("apiKey", this.apiKey);
-        params.put("response", "json");
-
         LOG.debug("createEgressFirewallRule GET "+params);
 
-        HttpRequest request = HttpRequest.builder()
-            .method("GET")
-            .endpoint(this.endpoint)
-            .addQueryParams(params)
-            .addHeader("Accept", "application/json")
-            .build();
-
-        request = getQuerySigner().filter(request);
-
-        request.getEndpoint().toString().replace("+",  "%2B");
-        //request = request.toBuilder().endpoint(uriBuilder(request.getEndpoint()).query(decodedParams).build()).build();
-
-        HttpToolResponse response = HttpUtil.invoke(request);
-        // TODO does non-2xx response need to be handled separately ?
+        HttpToolResponse response = invoke(params);
         return response;
     }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+
+import com.google.common.annotations.Beta;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Read-through cache of CloudStack reference data (offerings, zones, domains) which rarely changes,
+ * shared by all clients of the same endpoint and account which use the same TTL.
+ * <p>
+ * Lookups which find nothing (i.e. return null, or an empty collection or map) are not cached, as what was
+ * missing may be created shortly; failures are never cached either.
+ */
+@Beta
+public class CloudstackReferenceDataCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CloudstackReferenceDataCache.class);
+
+    public static final Duration DEFAULT_TTL = Duration.minutes(10);
+
+    private static final ConcurrentMap<String, CloudstackReferenceDataCache> CACHES = Maps.newConcurrentMap();
+
+    /** returns the cache for the given endpoint, account and TTL, creating it if necessary */
+    public static CloudstackReferenceDataCache forEndpoint(String endpoint, String apiKey, Duration ttl) {
+        String key = endpoint+"#"+apiKey+"#"+ttl.toMilliseconds();
+        CloudstackReferenceDataCache result = CACHES.get(key);
+        if (result == null) {
+            CloudstackReferenceDataCache contender = new CloudstackReferenceDataCache(endpoint, ttl);
+            result = CACHES.putIfAbsent(key, contender);
+            if (result == null) result = contender;
+        }
+        return result;
+    }
+
+    /** thrown by the loader to stop the cache keeping an empty result */
+    private static class EmptyResultException extends Exception {
+        private static final long serialVersionUID = 1L;
+        private final Object result;
+        EmptyResultException(Object result) {
+            super("empty result");
+            this.result = result;
+        }
+    }
+
+    private final String endpoint;
+    private final Cache<String, Object> cache;
+
+    public CloudstackReferenceDataCache(String endpoint, Duration ttl) {
+        this.endpoint = endpoint;
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl.toMilliseconds(), TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the cached value for the key, or loads it (once, even if called concurrently) with the given loader.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(final String key, final Callable<? extends T> loader) {
+        try {
+            return (T) cache.get(key, new Callable<Object>() {
+                @Override public Object call() throws Exception {
+                    LOG.debug("Loading CloudStack reference data {} from {}", key, endpoint);
+                    Object result = loader.call();
+                    if (isEmpty(result)) throw new EmptyResultException(result);
+                    return result;
+                }});
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EmptyResultException) {
+                return (T) ((EmptyResultException) e.getCause()).result;
+            }
+            throw Exceptions.propagate(e.getCause());
+        } catch (UncheckedExecutionException e) {
+            throw Exceptions.propagate(e.getCause());
+        } finally {
+            if (LOG.isTraceEnabled()) LOG.trace("CloudStack reference data cache for {}: {}", endpoint, cache.stats());
+        }
+    }
+
+    private static boolean isEmpty(Object result) {
+        return result == null
+                || (result instanceof Collection && ((Collection<?>) result).isEmpty())
+                || (result instanceof Map && ((Map<?, ?>) result).isEmpty());
+    }
+
+    public void invalidate(String key) {
+        cache.invalidate(key);
+    }
+
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /** hit, miss and load counts since this cache was created */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    @Override
+    public String toString() {
+        return "CloudstackReferenceDataCache["+endpoint+"; "+cache.stats()+"]";
+    }
+}
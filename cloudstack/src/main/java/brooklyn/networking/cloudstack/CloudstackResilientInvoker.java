@@ -0,0 +1,310 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.jclouds.http.HttpRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.http.HttpToolResponse;
+import brooklyn.util.time.Duration;
+import brooklyn.util.time.Time;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * Issues CloudStack API requests with retries and a circuit breaker, shared by all clients of the same endpoint.
+ * <p>
+ * Failures are classified as retryable or fatal:
+ * <ul>
+ *   <li>429 and 503 responses are retryable, as the request was refused, as are 431 and 530 responses whose error
+ *       text indicates a transient condition (e.g. throttling, or a concurrent operation in progress);
+ *       502 and 504 responses are retryable only for read-only commands, as a proxy may have passed the request on;
+ *       other error responses (e.g. 401 or an invalid parameter) are fatal.
+ *   <li>failures to connect are retryable, as nothing was sent; other I/O errors (e.g. a read timeout)
+ *       are retryable only for read-only commands ({@code list*}, {@code query*}, {@code get*}; see {@link #isReadOnly(String)}),
+ *       as the request may have been acted on.
+ * </ul>
+ * Retries are delayed by exponential backoff with full jitter. After {@code failureThreshold} consecutive retryable
+ * failures the circuit opens: calls fail immediately (with {@link CircuitOpenException}) until {@code openDuration}
+ * has passed, after which a single trial call is allowed through to decide whether to close it again. A call
+ * whose failure opens the circuit (including a failed trial) is not retried, and fails with its own error.
+ */
+@Beta
+public class CloudstackResilientInvoker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CloudstackResilientInvoker.class);
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final Duration DEFAULT_BASE_DELAY = Duration.millis(500);
+    public static final Duration DEFAULT_MAX_DELAY = Duration.seconds(30);
+    public static final int DEFAULT_FAILURE_THRESHOLD = 10;
+    public static final Duration DEFAULT_OPEN_DURATION = Duration.seconds(30);
+
+    private static final Pattern TRANSIENT_ERROR_TEXT = Pattern.compile(
+            "(?i).*(throttl|too many|limit exceeded|try again|temporarily|unavailable|in progress|concurrent|timed out|timeout).*",
+            Pattern.DOTALL);
+
+    private static final ConcurrentMap<String, CloudstackResilientInvoker> INVOKERS = Maps.newConcurrentMap();
+
+    /** thrown without making a call when the circuit for the endpoint is open */
+    public static class CircuitOpenException extends CloudstackApiException {
+        private static final long serialVersionUID = 4566206236734416047L;
+        public CircuitOpenException(String command, String endpoint, Duration remaining) {
+            super(command, -1, "circuit open for "+endpoint+" after repeated failures; retry in "+Time.makeTimeStringRounded(remaining), true, null);
+        }
+    }
+
+    public enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+    /** returns the invoker for the endpoint of the given URI, creating it with default settings if necessary */
+    public static CloudstackResilientInvoker forEndpoint(URI uri) {
+        String key = HttpClientPool.endpointKey(uri);
+        CloudstackResilientInvoker result = INVOKERS.get(key);
+        if (result == null) {
+            CloudstackResilientInvoker contender = new CloudstackResilientInvoker(key, DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY,
+                    DEFAULT_MAX_DELAY, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION);
+            result = INVOKERS.putIfAbsent(key, contender);
+            if (result == null) result = contender;
+        }
+        return result;
+    }
+
+    /** counters for all the shared invokers, by endpoint */
+    public static Map<String, Map<String, Long>> getAllStats() {
+        ImmutableMap.Builder<String, Map<String, Long>> result = ImmutableMap.builder();
+        for (Map.Entry<String, CloudstackResilientInvoker> entry : INVOKERS.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return result.build();
+    }
+
+    private final String endpoint;
+    private final int maxAttempts;
+    private final Duration baseDelay;
+    private final Duration maxDelay;
+    private final int failureThreshold;
+    private final Duration openDuration;
+    private final Random random = new Random();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong retryableErrors = new AtomicLong();
+    private final AtomicLong fatalErrors = new AtomicLong();
+    private final AtomicLong circuitOpenings = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    // guarded by this
+    private CircuitState state = CircuitState.CLOSED;
+    private int consecutiveFailures;
+    private long openedTime;
+    private boolean trialInProgress;
+
+    public CloudstackResilientInvoker(String endpoint, int maxAttempts, Duration baseDelay, Duration maxDelay, int failureThreshold, Duration openDuration) {
+        this.endpoint = endpoint;
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.failureThreshold = failureThreshold;
+        this.openDuration = openDuration;
+    }
+
+    /**
+     * Issues the (signed) request, retrying transient failures, and returns the successful response.
+     *
+     * @throws CloudstackApiException if the call failed with a fatal error, or with retryable errors on every attempt
+     * @throws CircuitOpenException if the circuit for this endpoint is open
+     */
+    public HttpToolResponse invoke(String command, HttpRequest request) {
+        boolean readOnly = isReadOnly(command);
+        for (int attempt = 1; ; attempt++) {
+            beforeCall(command);
+            requests.incrementAndGet();
+            CloudstackApiException failure;
+            try {
+                HttpToolResponse response = execute(request);
+                int code = response.getResponseCode();
+                if (code >= 200 && code < 300) {
+                    onSuccess();
+                    return response;
+                }
+                String errorText = errorText(response);
+                failure = new CloudstackApiException(command, code, errorText, isRetryable(code, errorText, readOnly), null);
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                failure = new CloudstackApiException(command, -1, null, isRetryable(e, readOnly), e);
+            }
+
+            if (!failure.isRetryable()) {
+                // the endpoint is responding; the request itself is at fault
+                fatalErrors.incrementAndGet();
+                onSuccess();
+                throw failure;
+            }
+            retryableErrors.incrementAndGet();
+            if (onFailure()) {
+                // retrying would only be rejected; report what actually went wrong
+                LOG.debug("CloudStack {} at {} failed, opening circuit: {}", new Object[] {command, endpoint, failure.getMessage()});
+                throw failure;
+            }
+            if (attempt >= maxAttempts) {
+                LOG.warn("CloudStack {} at {} failed after {} attempts: {}", new Object[] {command, endpoint, attempt, failure.getMessage()});
+                throw failure;
+            }
+            Duration delay = backoff(attempt);
+            LOG.debug("CloudStack {} at {} failed (attempt {} of {}), retrying in {}: {}", new Object[] {
+                    command, endpoint, attempt, maxAttempts, Time.makeTimeStringRounded(delay), failure.getMessage()});
+            retries.incrementAndGet();
+            Time.sleep(delay);
+        }
+    }
+
+    @VisibleForTesting
+    protected HttpToolResponse execute(HttpRequest request) {
+        return HttpUtil.invoke(request);
+    }
+
+    /** exponential backoff with full jitter: a random delay up to {@code min(maxDelay, baseDelay * 2^(attempt-1))} */
+    protected Duration backoff(int attempt) {
+        long cap = Math.min(maxDelay.toMilliseconds(), baseDelay.toMilliseconds() * (1L << Math.min(attempt - 1, 20)));
+        return Duration.millis((long) (random.nextDouble() * cap));
+    }
+
+    /**
+     * Whether the command only reads state, so can safely be re-sent after an ambiguous I/O failure: commands named
+     * {@code list*} and {@code query*}, and also {@code get*} (e.g. {@code getVMPassword}, {@code getUser}), which
+     * CloudStack uses only for lookups and which are therefore treated as idempotent.
+     */
+    public static boolean isReadOnly(String command) {
+        String lower = command.toLowerCase();
+        return lower.startsWith("list") || lower.startsWith("query") || lower.startsWith("get");
+    }
+
+    public static boolean isRetryable(int statusCode, String errorText, boolean readOnly) {
+        if (ImmutableSet.of(429, 503).contains(statusCode)) return true;
+        // bad gateway or gateway timeout: cloudstack may still have acted on it
+        if (ImmutableSet.of(502, 504).contains(statusCode)) return readOnly;
+        if ((statusCode == 431 || statusCode == 530) && errorText != null) {
+            return TRANSIENT_ERROR_TEXT.matcher(errorText).matches();
+        }
+        return false;
+    }
+
+    public static boolean isRetryable(Throwable error, boolean readOnly) {
+        boolean io = false;
+        for (Throwable t : Throwables.getCausalChain(error)) {
+            // request was not sent
+            if (t instanceof ConnectException || t instanceof ConnectTimeoutException || t instanceof UnknownHostException) return true;
+            if (t instanceof IOException) io = true;
+        }
+        return readOnly && io;
+    }
+
+    private static String errorText(HttpToolResponse response) {
+        try {
+            return CloudstackJsonStreams.readTopLevelFields(response, ImmutableSet.of("errortext")).get("errortext");
+        } catch (Exception e) {
+            // not a CloudStack error response, e.g. from a proxy
+            Exceptions.propagateIfFatal(e);
+            byte[] content = response.getContent();
+            return (content == null || content.length == 0) ? null : new String(content).trim();
+        }
+    }
+
+    private synchronized void beforeCall(String command) {
+        if (state == CircuitState.CLOSED) return;
+        long remaining = openedTime + openDuration.toMilliseconds() - System.currentTimeMillis();
+        if (state == CircuitState.OPEN && remaining <= 0) {
+            state = CircuitState.HALF_OPEN;
+            LOG.info("CloudStack circuit for {} half-open; allowing trial call", endpoint);
+        }
+        if (state == CircuitState.HALF_OPEN && !trialInProgress) {
+            trialInProgress = true;
+            return;
+        }
+        rejected.incrementAndGet();
+        throw new CircuitOpenException(command, endpoint, Duration.millis(Math.max(0, remaining)));
+    }
+
+    private synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        trialInProgress = false;
+        if (state != CircuitState.CLOSED) {
+            LOG.info("CloudStack circuit for {} closed", endpoint);
+            state = CircuitState.CLOSED;
+        }
+    }
+
+    /** returns true if this failure opened the circuit */
+    private synchronized boolean onFailure() {
+        consecutiveFailures++;
+        boolean trialFailed = trialInProgress;
+        trialInProgress = false;
+        if (trialFailed || (state == CircuitState.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = CircuitState.OPEN;
+            openedTime = System.currentTimeMillis();
+            circuitOpenings.incrementAndGet();
+            LOG.warn("CloudStack circuit for {} opened after {} consecutive failures", endpoint, consecutiveFailures);
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized CircuitState getCircuitState() {
+        return state;
+    }
+
+    /** resets the circuit to closed, e.g. once the endpoint is known to have recovered */
+    public synchronized void resetCircuit() {
+        state = CircuitState.CLOSED;
+        consecutiveFailures = 0;
+        trialInProgress = false;
+    }
+
+    /** counts of requests, retries, retryable and fatal errors, circuit openings and calls rejected while open */
+    public Map<String, Long> getStats() {
+        return ImmutableMap.<String, Long>builder()
+                .put("requests", requests.get())
+                .put("retries", retries.get())
+                .put("retryableErrors", retryableErrors.get())
+                .put("fatalErrors", fatalErrors.get())
+                .put("circuitOpenings", circuitOpenings.get())
+                .put("rejected", rejected.get())
+                .build();
+    }
+
+    @Override
+    public String toString() {
+        return "CloudstackResilientInvoker["+endpoint+"; "+getCircuitState()+"; "+getStats()+"]";
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+
+import com.google.common.annotations.Beta;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * A pooling, keep-alive {@link HttpClient} shared by everything talking to the same API endpoint
+ * (scheme, host and port), so that consecutive CloudStack calls reuse connections rather than paying
+ * a TCP and TLS handshake each time.
+ * <p>
+ * Idle and expired connections are evicted periodically by a shared daemon thread.
+ */
+@Beta
+public class HttpClientPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(HttpClientPool.class);
+
+    public static final int DEFAULT_MAX_TOTAL = 20;
+    public static final int DEFAULT_MAX_PER_ROUTE = 10;
+    public static final Duration DEFAULT_KEEP_ALIVE = Duration.seconds(30);
+    public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.seconds(60);
+    public static final Duration EVICTION_PERIOD = Duration.seconds(15);
+
+    private static final ConcurrentMap<String, HttpClientPool> POOLS = Maps.newConcurrentMap();
+
+    private static final ScheduledExecutorService EVICTOR = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "brooklyn-cloudstack-http-evictor");
+            t.setDaemon(true);
+            return t;
+        }});
+
+    /**
+     * Returns the pool for the endpoint of the given URI, creating it (with default settings) if necessary.
+     */
+    public static HttpClientPool forEndpoint(URI uri) {
+        String key = endpointKey(uri);
+        HttpClientPool result = POOLS.get(key);
+        if (result == null) {
+            HttpClientPool contender = new HttpClientPool(key, DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE, DEFAULT_KEEP_ALIVE, DEFAULT_IDLE_TIMEOUT);
+            result = POOLS.putIfAbsent(key, contender);
+            if (result == null) {
+                result = contender;
+            } else {
+                contender.close();
+            }
+        }
+        return result;
+    }
+
+    /** statistics for all live pools, keyed by endpoint */
+    public static Map<String, PoolStats> getAllStats() {
+        ImmutableMap.Builder<String, PoolStats> result = ImmutableMap.builder();
+        for (Map.Entry<String, HttpClientPool> entry : POOLS.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return result.build();
+    }
+
+    /** closes and forgets the pool for the endpoint of the given URI (if any) */
+    public static void closeEndpoint(URI uri) {
+        HttpClientPool pool = POOLS.remove(endpointKey(uri));
+        if (pool != null) pool.close();
+    }
+
+    static String endpointKey(URI uri) {
+        String scheme = (uri.getScheme() == null) ? "http" : uri.getScheme().toLowerCase();
+        int port = (uri.getPort() >= 0) ? uri.getPort() : ("https".equals(scheme) ? 443 : 80);
+        return scheme+"://"+uri.getHost()+":"+port;
+    }
+
+    private final String endpoint;
+    private final PoolingClientConnectionManager connectionManager;
+    private final DefaultHttpClient httpClient;
+    private final ScheduledFuture<?> evictionTask;
+
+    public HttpClientPool(String endpoint, int maxTotal, int maxPerRoute, final Duration keepAlive, final Duration idleTimeout) {
+        this.endpoint = endpoint;
+
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+        try {
+            SSLSocketFactory socketFactory = new SSLSocketFactory(
+                    new HttpUtil.TrustAllStrategy(), SSLSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+            schemeRegistry.register(new Scheme("https", 443, socketFactory));
+        } catch (Exception e) {
+            LOG.warn("Error setting trust for HTTP connection pool to {}", endpoint);
+            throw Exceptions.propagate(e);
+        }
+
+        connectionManager = new PoolingClientConnectionManager(schemeRegistry);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+
+        httpClient = new DefaultHttpClient(connectionManager);
+        httpClient.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            @Override public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                // honour the server's keep-alive timeout if it gives one, otherwise use our default
+                HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+                while (it.hasNext()) {
+                    HeaderElement he = it.nextElement();
+                    if ("timeout".equalsIgnoreCase(he.getName()) && he.getValue() != null) {
+                        try {
+                            return Long.parseLong(he.getValue()) * 1000;
+                        } catch (NumberFormatException e) {
+                            // fall through to default
+                        }
+                    }
+                }
+                return keepAlive.toMilliseconds();
+            }});
+
+        evictionTask = EVICTOR.scheduleWithFixedDelay(new Runnable() {
+            @Override public void run() {
+                try {
+                    connectionManager.closeExpiredConnections();
+                    connectionManager.closeIdleConnections(idleTimeout.toMilliseconds(), TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                    LOG.debug("Problem evicting idle connections to "+HttpClientPool.this.endpoint+"; continuing", e);
+                }
+            }},
+            EVICTION_PERIOD.toMilliseconds(), EVICTION_PERIOD.toMilliseconds(), TimeUnit.MILLISECONDS);
+
+        LOG.debug("Created HTTP connection pool for {} (maxTotal={}, maxPerRoute={})", new Object[] {endpoint, maxTotal, maxPerRoute});
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /** leased, available, pending and max connections across all routes of this pool */
+    public PoolStats getStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    public void close() {
+        evictionTask.cancel(false);
+        connectionManager.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "HttpClientPool["+endpoint+"]";
+    }
+}
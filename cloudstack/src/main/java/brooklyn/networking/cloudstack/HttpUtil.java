@@ -80,8 +80,12 @@ public class HttpUtil {
         return httpClient;
     }
 
+    /**
+     * Invokes the request using the shared, pooled client for its endpoint (see {@link HttpClientPool}).
+     */
     public static HttpToolResponse invoke(org.jclouds.http.HttpRequest request) {
-        HttpClient client = HttpUtil.createHttpClient(request.getEndpoint(), Optional.<Credentials>absent());
+        HttpClientPool pool = HttpClientPool.forEndpoint(request.getEndpoint());
+        HttpClient client = pool.getHttpClient();
         String method = request.getMethod();
         try {
             if ("GET".equalsIgnoreCase(method)) {
@@ -94,6 +98,8 @@ public class HttpUtil {
             }
         } catch (Exception e) {
             throw Exceptions.propagate(e);
+        } finally {
+            if (LOG.isDebugEnabled()) LOG.debug("HTTP connection pool for {} after {}: {}", new Object[] {pool.getEndpoint(), method, pool.getStats()});
         }
     }
 
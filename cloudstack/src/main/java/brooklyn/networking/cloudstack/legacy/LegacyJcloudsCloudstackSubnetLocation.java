@@ -59,7 +59,11 @@ import brooklyn.location.jclouds.JcloudsLocationConfig;
 import brooklyn.location.jclouds.JcloudsSshMachineLocation;
 import brooklyn.location.jclouds.templates.PortableTemplateBuilder;
 import brooklyn.networking.NetworkMultiAddressUtils2;
+import brooklyn.networking.ReachabilityCache;
 import brooklyn.networking.cloudstack.CloudstackNew40FeaturesClient;
+import brooklyn.networking.portforwarding.subnet.JcloudsPortforwardingSubnetLocation;
+import brooklyn.networking.provisioning.ProvisioningThrottle;
+import brooklyn.networking.provisioning.ProvisioningThrottles;
 import brooklyn.util.ResourceUtils;
 import brooklyn.util.collections.MutableMap;
 import brooklyn.util.config.ConfigBag;
@@ -71,7 +75,6 @@ import brooklyn.util.ssh.BashCommands;
 import brooklyn.util.text.Strings;
 import brooklyn.util.text.TemplateProcessor;
 import brooklyn.util.time.Duration;
-import brooklyn.util.time.Time;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
@@ -98,10 +101,11 @@ public class LegacyJcloudsCloudstackSubnetLocation extends JcloudsLocation {
     public static final ConfigKey<String> CLOUDSTACK_SUBNET_NETWORK_ID = ConfigKeys.newStringConfigKey("networkId");
     public static final ConfigKey<String> CLOUDSTACK_SERVICE_NETWORK_ID = ConfigKeys.newStringConfigKey("serviceNetworkId");
 
-    // For preventing concurrent calls to obtain
-    private static final Object mutex = new Object();
-
-    private static long lastObtainTime = -1;
+    // Throttling of calls to obtain; by default at most one call per 10 seconds, per endpoint and account
+    public static final ConfigKey<Long> TIME_BETWEEN_OBTAINS = ConfigKeys.newConfigKeyWithDefault(JcloudsPortforwardingSubnetLocation.TIME_BETWEEN_OBTAINS, 10*1000L);
+    public static final ConfigKey<ProvisioningThrottle> PROVISIONING_THROTTLE = ProvisioningThrottles.PROVISIONING_THROTTLE;
+    public static final ConfigKey<Integer> PROVISIONING_BURST = ProvisioningThrottles.PROVISIONING_BURST;
+    public static final ConfigKey<Integer> PROVISIONING_MAX_IN_FLIGHT = ProvisioningThrottles.PROVISIONING_MAX_IN_FLIGHT;
 
     // Required for port forwarding. Set by location creator (e.g. SubnetTierImpl)
     public static final ConfigKey<PortForwardManager> PORT_FORWARDING_MANAGER = BrooklynAccessUtils.PORT_FORWARDING_MANAGER;
@@ -137,6 +141,10 @@ public class LegacyJcloudsCloudstackSubnetLocation extends JcloudsLocation {
         return checkNotNull(getConfig(key), key.getName());
     }
 
+    protected ProvisioningThrottle getProvisioningThrottle() {
+        return ProvisioningThrottles.forLocation(this, getProvider(), getEndpoint(), getIdentity(), TIME_BETWEEN_OBTAINS);
+    }
+
     @Override
     public JcloudsSshMachineLocation obtain(Map<?,?> flagsIn) throws NoMachinesAvailableException {
         PortableTemplateBuilder<PortableTemplateBuilder<?>> tb = new PortableTemplateBuilder<PortableTemplateBuilder<?>>();
@@ -159,7 +167,7 @@ public class LegacyJcloudsCloudstackSubnetLocation extends JcloudsLocation {
                 .blockUntilRunning(false)
                 );
 
-        Map<Object,Object> flags = MutableMap.copyOf(flagsIn)
+        final Map<Object,Object> flags = MutableMap.copyOf(flagsIn)
                 .add(TEMPLATE_BUILDER, tb);
         if (portForwardingMode)
                 flags.put(WAIT_FOR_SSHABLE, false);
@@ -172,22 +180,12 @@ public class LegacyJcloudsCloudstackSubnetLocation extends JcloudsLocation {
 //        }
 //        log.info("provision - creating machine "+Thread.currentThread());
 
-        // Throttle to ensure only one call to obtain per 10 seconds (but calls can overlap)
-        LOG.info("provision - waiting to acquire mutex ("+Thread.currentThread()+")");
-        synchronized (mutex) {
-            long now = System.currentTimeMillis();
-            if (lastObtainTime >= 0 && (now < (lastObtainTime + 10*1000))) {
-                LOG.info("provision - waiting for 10s as another obtain call executed recently "+Thread.currentThread());
-                Time.sleep(10000);
-            } else {
-                LOG.info("provision - contininuing immediately as no other recent call "+Thread.currentThread());
-            }
-
-            lastObtainTime = System.currentTimeMillis();
-        }
-
-        // And finally obtain the machine
-        JcloudsSshMachineLocation m = super.obtain(flags);
+        // Throttle calls to obtain against this endpoint and account (but calls can overlap)
+        JcloudsSshMachineLocation m = ProvisioningThrottles.callThrottled(getProvisioningThrottle(),
+                new ProvisioningThrottles.ThrottledCall<JcloudsSshMachineLocation, NoMachinesAvailableException>() {
+                    @Override public JcloudsSshMachineLocation call() throws NoMachinesAvailableException {
+                        return LegacyJcloudsCloudstackSubnetLocation.super.obtain(flags);
+                    }});
 
         // if USE_TWO_NICS -- could check they come up assigned correctly (but probably still too dangerous)
 //        String nodeId = m.getNode().getId();
@@ -203,6 +201,17 @@ public class LegacyJcloudsCloudstackSubnetLocation extends JcloudsLocation {
         return m;
     }
 
+    @Override
+    public void release(SshMachineLocation machine) {
+        try {
+            super.release(machine);
+        } finally {
+            // the forwarded ssh port on the gateway may be given to the next VM; don't let it be seen as already reachable
+            ReachabilityCache.getDefault().invalidate(machine.getConfig(SshMachineLocation.SSH_HOST));
+            if (machine.getAddress() != null) ReachabilityCache.getDefault().invalidate(machine.getAddress().getHostAddress());
+        }
+    }
+
     @Override
     protected JcloudsSshMachineLocation createJcloudsSshMachineLocation(ComputeService computeService, NodeMetadata node, String vmHostname1, Optional<HostAndPort> sshHostAndPort, ConfigBag setup) throws IOException {
         String subnetSpecificHostname = null;
@@ -413,30 +422,34 @@ public class LegacyJcloudsCloudstackSubnetLocation extends JcloudsLocation {
         try {
             String publicIpId = getRequiredConfig(CLOUDSTACK_TIER_PUBLIC_IP_ID);
             CloudstackNew40FeaturesClient client = CloudstackNew40FeaturesClient.newInstance(getEndpoint(), getIdentity(), getCredential());
-            String jobid;
-            if (!Strings.isBlank(getConfig(CLOUDSTACK_VPC_ID))) {
-                String tierId = getRequiredConfig(CLOUDSTACK_SUBNET_NETWORK_ID);
-                jobid = client.createPortForwardRuleForVpc(tierId, publicIpId, PortForwardingRule.Protocol.TCP, publicPort, node.getId(), privatePort);
-                client.waitForJobSuccess(jobid);
-                client.createVpcNetworkAcl(tierId, "TCP", cidr.toString(), publicPort, publicPort, null, null, "INGRESS");
-                // private doesn't need to be opened
-//                client.createVpcNetworkAcl(tierId, "TCP", cidr.toString(), privatePort, privatePort, null, null, "INGRESS");
-            } else {
-                jobid = client.createPortForwardRuleForVm(publicIpId, PortForwardingRule.Protocol.TCP, publicPort, node.getId(), privatePort);
-                client.waitForJobSuccess(jobid);
-
-                CreateFirewallRuleOptions options;
-                options = CreateFirewallRuleOptions.Builder.
-                        startPort(publicPort).endPort(publicPort).CIDRs(ImmutableSet.of(cidr.toString()));
-                AsyncCreateResponse job = client.getCloudstackGlobalClient().getFirewallApi().createFirewallRuleForIpAndProtocol(
-                        publicIpId, FirewallRule.Protocol.TCP, options);
-                client.waitForJobSuccess(job.getJobId());
-                // private doesn't need to be opened
-//                options = CreateFirewallRuleOptions.Builder.
-//                        startPort(privatePort).endPort(privatePort).CIDRs(ImmutableSet.of(cidr.toString()));
-//                job = client.getCloudstackGlobalClient().getFirewallClient().createFirewallRuleForIpAndProtocol(
-//                        publicIpId, FirewallRule.Protocol.TCP, options);
-//                client.waitForJob(job.getJobId());
+            try {
+                String jobid;
+                if (!Strings.isBlank(getConfig(CLOUDSTACK_VPC_ID))) {
+                    String tierId = getRequiredConfig(CLOUDSTACK_SUBNET_NETWORK_ID);
+                    jobid = client.createPortForwardRuleForVpc(tierId, publicIpId, PortForwardingRule.Protocol.TCP, publicPort, node.getId(), privatePort);
+                    client.waitForJobSuccess(jobid);
+                    client.createVpcNetworkAcl(tierId, "TCP", cidr.toString(), publicPort, publicPort, null, null, "INGRESS");
+                    // private doesn't need to be opened
+//                    client.createVpcNetworkAcl(tierId, "TCP", cidr.toString(), privatePort, privatePort, null, null, "INGRESS");
+                } else {
+                    jobid = client.createPortForwardRuleForVm(publicIpId, PortForwardingRule.Protocol.TCP, publicPort, node.getId(), privatePort);
+                    client.waitForJobSuccess(jobid);
+
+                    CreateFirewallRuleOptions options;
+                    options = CreateFirewallRuleOptions.Builder.
+                            startPort(publicPort).endPort(publicPort).CIDRs(ImmutableSet.of(cidr.toString()));
+                    AsyncCreateResponse job = client.getCloudstackGlobalClient().getFirewallApi().createFirewallRuleForIpAndProtocol(
+                            publicIpId, FirewallRule.Protocol.TCP, options);
+                    client.waitForJobSuccess(job.getJobId());
+                    // private doesn't need to be opened
+//                    options = CreateFirewallRuleOptions.Builder.
+//                            startPort(privatePort).endPort(privatePort).CIDRs(ImmutableSet.of(cidr.toString()));
+//                    job = client.getCloudstackGlobalClient().getFirewallClient().createFirewallRuleForIpAndProtocol(
+//                            publicIpId, FirewallRule.Protocol.TCP, options);
+//                    client.waitForJob(job.getJobId());
+                }
+            } finally {
+                client.close();
             }
         } catch (Exception e) {
             LOG.warn("Could not create fwd/ACL (possibly already created) to "+this+" port "+privatePort+": "+e);
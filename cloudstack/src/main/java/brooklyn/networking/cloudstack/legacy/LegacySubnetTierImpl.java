@@ -91,7 +91,7 @@ public class LegacySubnetTierImpl extends AbstractEntity implements LegacySubnet
                     if (isVpcEnabled())
                         Preconditions.checkNotNull(vpcId, "vpcId");
 
-                    cloudstackClient = CloudstackNew40FeaturesClient.newInstance(jl.getEndpoint(), jl.getIdentity(), jl.getCredential());
+                    initCloudstackClient(jl);
                     String zoneId = getZoneId(jl);
 
                     // create a private subnet, using the jclouds-cloudstack context
@@ -233,11 +233,26 @@ public class LegacySubnetTierImpl extends AbstractEntity implements LegacySubnet
         return pfw;
     }
 
+    /** creates the client (if not already created) used for all calls to the location's CloudStack */
+    protected synchronized CloudstackNew40FeaturesClient initCloudstackClient(JcloudsLocation jl) {
+        if (cloudstackClient == null) {
+            cloudstackClient = CloudstackNew40FeaturesClient.newInstance(jl.getEndpoint(), jl.getIdentity(), jl.getCredential());
+        }
+        return cloudstackClient;
+    }
+
     @Override
     public void stop() {
         setAttribute(NETWORK_ID, null);
         StartableMethods.stop(this);
 
+        synchronized (this) {
+            if (cloudstackClient != null) {
+                cloudstackClient.close();
+                cloudstackClient = null;
+            }
+        }
+
         // TODO delete network
     }
 
@@ -312,7 +327,7 @@ public class LegacySubnetTierImpl extends AbstractEntity implements LegacySubnet
             return;
         }
 
-        cloudstackClient = CloudstackNew40FeaturesClient.newInstance(jl.getEndpoint(), jl.getIdentity(), jl.getCredential());
+        initCloudstackClient(jl);
         if (isVpcEnabled()) {
             for (Cidr cidr: values) {
                 cloudstackClient.createVpcNetworkAcl(tierId, "TCP", cidr.toString(), 1, 65535, null, null, "Ingress");
@@ -53,29 +53,33 @@ public class VirtualPrivateCloud {
                 if ("cloudstack".equals(jl.getProvider())) {
                     // create a VPC, and set the ID in the entity
                     CloudstackNew40FeaturesClient cloudstackClient = CloudstackNew40FeaturesClient.newInstance(jl.getEndpoint(), jl.getIdentity(), jl.getCredential());
-
-                    // FIXME hardcoded zone
-                    String zoneId = cloudstackClient.findZoneMatchingRegex("CSB Advanced.*").getId();
+                    String zoneId;
                     String vpcId;
+                    try {
+                        // FIXME hardcoded zone
+                        zoneId = cloudstackClient.findZoneMatchingRegex("CSB Advanced.*").getId();
                     
-                    // allow re-use, for speed
-                    Tasks.setBlockingDetails("Checking VPC's");
-                    vpcId = cloudstackClient.findVpcIdWithCidr(owner.getConfig(VPC_CIDR).toString());
-                    if (vpcId!=null) {
-                        cloudstackClient.deleteIpsAtVpc(vpcId);
-                        log.info("Reusing VPC "+vpcId+" for "+owner);
-                    } else {
-                        log.info("Creating VPC on start of "+owner);
-                        Tasks.setBlockingDetails("Creating VPC");
-                        vpcId = cloudstackClient.createVpc(
-                            owner.getConfig(VPC_CIDR).toString(), 
-                            "Brooklyn VPC for "+owner.getDisplayName()+" ("+owner.getId()+")", 
-                            "brooklyn-"+owner.getId(), 
-                            cloudstackClient.getFirstVpcOfferingId(),
-                            zoneId);
-                        log.info("Created VPC "+vpcId+" on start of "+owner);
+                        // allow re-use, for speed
+                        Tasks.setBlockingDetails("Checking VPC's");
+                        vpcId = cloudstackClient.findVpcIdWithCidr(owner.getConfig(VPC_CIDR).toString());
+                        if (vpcId!=null) {
+                            cloudstackClient.deleteIpsAtVpc(vpcId);
+                            log.info("Reusing VPC "+vpcId+" for "+owner);
+                        } else {
+                            log.info("Creating VPC on start of "+owner);
+                            Tasks.setBlockingDetails("Creating VPC");
+                            vpcId = cloudstackClient.createVpc(
+                                owner.getConfig(VPC_CIDR).toString(), 
+                                "Brooklyn VPC for "+owner.getDisplayName()+" ("+owner.getId()+")", 
+                                "brooklyn-"+owner.getId(), 
+                                cloudstackClient.getFirstVpcOfferingId(),
+                                zoneId);
+                            log.info("Created VPC "+vpcId+" on start of "+owner);
+                        }
+                        Tasks.setBlockingDetails(null);
+                    } finally {
+                        cloudstackClient.close();
                     }
-                    Tasks.setBlockingDetails(null);
                     ((AbstractEntity)owner).setAttribute(VPC_ID, vpcId);
                     return jl.newSubLocation(MutableMap.of(
                             LegacyJcloudsCloudstackSubnetLocation.CLOUDSTACK_VPC_ID, vpcId,
@@ -94,10 +98,13 @@ public class VirtualPrivateCloud {
                 if ("cloudstack".equals(jl.getProvider())) {
                     // create a VPC, and set the ID in the entity
                     CloudstackNew40FeaturesClient cloudstackClient = CloudstackNew40FeaturesClient.newInstance(jl.getEndpoint(), jl.getIdentity(), jl.getCredential());
-
-                    log.info("Deleting VPC on stop of "+owner);
-                    cloudstackClient.deleteVpc(owner.getAttribute(VPC_ID));
-                    ((AbstractEntity)owner).setAttribute(VPC_ID, null);
+                    try {
+                        log.info("Deleting VPC on stop of "+owner);
+                        cloudstackClient.deleteVpc(owner.getAttribute(VPC_ID));
+                        ((AbstractEntity)owner).setAttribute(VPC_ID, null);
+                    } finally {
+                        cloudstackClient.close();
+                    }
                 }
             }
         }
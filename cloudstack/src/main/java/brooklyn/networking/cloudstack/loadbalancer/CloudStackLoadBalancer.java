@@ -15,6 +15,7 @@
  */
 package brooklyn.networking.cloudstack.loadbalancer;
 
+import java.util.Map;
 import java.util.Set;
 
 import brooklyn.config.ConfigKey;
@@ -28,6 +29,7 @@ import brooklyn.entity.proxying.ImplementedBy;
 import brooklyn.event.AttributeSensor;
 import brooklyn.event.basic.AttributeSensorAndConfigKey;
 import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.util.time.Duration;
 
 import com.google.common.reflect.TypeToken;
 
@@ -38,6 +40,12 @@ public interface CloudStackLoadBalancer extends AbstractNonProvisionedController
 
     AttributeSensor<String> LOAD_BALANCER_ID = new BasicAttributeSensor<String>(String.class, "cloudstack.loadbalancer.id", "The load balancer id within CloudStack");
 
+    AttributeSensor<Map<Integer, String>> LOAD_BALANCER_IDS = new BasicAttributeSensor<Map<Integer, String>>(
+            new TypeToken<Map<Integer, String>>() { }, "cloudstack.loadbalancer.ids", "The load balancer rule id within CloudStack for each public port");
+
+    AttributeSensor<Set<String>> UNRESOLVED_MEMBERS = new BasicAttributeSensor<Set<String>>(
+            new TypeToken<Set<String>>() { }, "cloudstack.loadbalancer.unresolvedMembers", "Ids of pool members skipped as their CloudStack VM id could not be determined");
+
     AttributeSensorAndConfigKey<String, String> LOAD_BALANCER_NAME = ConfigKeys.newSensorAndConfigKey(String.class, "cloudstack.loadbalancer.name", "The load balancer name");
 
     ConfigKey<String> ALGORITHM = ConfigKeys.newStringConfigKey("cloudstack.loadbalancer.algorithm", "Load balancing algorithm (default is ROUNDROBIN)", "ROUNDROBIN");
@@ -54,6 +62,19 @@ public interface CloudStackLoadBalancer extends AbstractNonProvisionedController
 
     ConfigKey<String> ACCOUNT_IN_DOMAIN = ConfigKeys.newStringConfigKey("cloudstack.loadbalancer.accountInDomain");
 
+    /**
+     * Public port to instance port, for each load balancer rule to create on the public IP; all rules share the same members.
+     * If not set, a single rule is created for the {@link #PROXY_HTTP_PORT} and {@link #INSTANCE_PORT}.
+     */
+    ConfigKey<Map<Integer, Integer>> LISTENERS = ConfigKeys.newConfigKey(
+            new TypeToken<Map<Integer, Integer>>() { }, "cloudstack.loadbalancer.listeners", "Map of public port to instance port, for multiple load balancer rules with the same members");
+
+    ConfigKey<Duration> RELOAD_DEBOUNCE = ConfigKeys.newConfigKey(Duration.class, "cloudstack.loadbalancer.reloadDebounce",
+            "Delay for gathering a burst of pool changes into one membership update (zero to update synchronously on each reload)", Duration.millis(500));
+
+    ConfigKey<Duration> RECONCILE_PERIOD = ConfigKeys.newConfigKey(Duration.class, "cloudstack.loadbalancer.reconcilePeriod",
+            "How often to check the members assigned in CloudStack against the local view (also done whenever an update fails)", Duration.minutes(5));
+
     /** @deprecated in CloudStack; open firewall explicitly */
     @Deprecated
     ConfigKey<Set<String>> ALLOWED_SOURCE_CIDRs = ConfigKeys.newConfigKey(
@@ -19,7 +19,18 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jclouds.cloudstack.domain.AsyncJob;
 import org.jclouds.cloudstack.domain.LoadBalancerRule;
@@ -34,23 +45,33 @@ import org.slf4j.LoggerFactory;
 import brooklyn.config.ConfigKey;
 import brooklyn.config.ConfigKey.HasConfigKey;
 import brooklyn.entity.Entity;
+import brooklyn.entity.basic.AbstractEntity;
 import brooklyn.entity.basic.Lifecycle;
 import brooklyn.entity.proxy.AbstractNonProvisionedControllerImpl;
 import brooklyn.entity.proxy.LoadBalancer;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
 import brooklyn.event.feed.ConfigToAttributes;
 import brooklyn.location.Location;
 import brooklyn.location.access.BrooklynAccessUtils;
 import brooklyn.location.cloud.CloudMachineNamer;
 import brooklyn.location.jclouds.JcloudsLocation;
 import brooklyn.location.jclouds.JcloudsSshMachineLocation;
+import brooklyn.management.SubscriptionHandle;
 import brooklyn.networking.cloudstack.CloudstackNew40FeaturesClient;
 import brooklyn.util.config.ConfigBag;
 import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.text.Strings;
+import brooklyn.util.time.Duration;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.net.HostAndPort;
 
@@ -58,9 +79,27 @@ public class CloudStackLoadBalancerImpl extends AbstractNonProvisionedController
 
     private static final Logger LOG = LoggerFactory.getLogger(CloudStackLoadBalancerImpl.class);
 
-    private JcloudsLocation loc;
-    private CloudstackNew40FeaturesClient client;
-    private LoadBalancerApi loadBalancerApi;
+    private static final Duration FAILED_SYNC_RETRY_DELAY = Duration.seconds(10);
+
+    // client and sync thread are created on demand (so also after rebind), and released on stop or unmanage
+    private final Object resourcesMutex = new Object();
+    private transient JcloudsLocation loc;
+    private transient CloudstackNew40FeaturesClient client;
+
+    // membership: the pool at the last reload, and the VMs known to be assigned to each rule in CloudStack
+    private final AtomicReference<Set<String>> desiredMembers = new AtomicReference<Set<String>>();
+    private final Object syncMutex = new Object();
+    private Map<String, Set<String>> knownMembers;
+    private boolean reconcileNeeded;
+    private long lastReconcileTime;
+    private transient ScheduledExecutorService syncExecutor;
+    private final AtomicBoolean syncScheduled = new AtomicBoolean();
+
+    // member id to CloudStack VM id, so pool updates needn't rescan each member's locations
+    private final ConcurrentMap<String, String> memberVmIds = Maps.newConcurrentMap();
+    private final Set<String> unresolvedMembers = Collections.newSetFromMap(Maps.<String, Boolean>newConcurrentMap());
+    // member id to this entity's subscriptions to its location changes
+    private final ConcurrentMap<String, List<SubscriptionHandle>> memberLocationSubscriptions = Maps.newConcurrentMap();
 
     protected String inferProtocol() {
         // TODO support other protocols?!
@@ -111,15 +150,14 @@ public class CloudStackLoadBalancerImpl extends AbstractNonProvisionedController
             loc = (JcloudsLocation) onlyloc;
             checkArgument("cloudstack".equals(loc.getProvider()), "start must have exactly one jclouds location for cloudstack, but given provider %s (%s)", loc.getProvider(), loc);
 
-            client = CloudstackNew40FeaturesClient.newInstance(loc);
-            loadBalancerApi = client.getLoadBalancerClient();
-
             startLoadBalancer();
             setAttribute(SERVICE_UP, true);
             setAttribute(SERVICE_STATE, Lifecycle.RUNNING);
             isActive = true;
+            getSyncExecutor();
         } catch (Exception e) {
             setAttribute(SERVICE_STATE, Lifecycle.ON_FIRE);
+            releaseResources();
             throw Exceptions.propagate(e);
         }
     }
@@ -127,12 +165,85 @@ public class CloudStackLoadBalancerImpl extends AbstractNonProvisionedController
     @Override
     public void stop() {
         // TODO Should we delete the load balancer?
-        loc = null;
         setAttribute(SERVICE_STATE, Lifecycle.STOPPING);
         setAttribute(SERVICE_UP, false);
+        releaseResources();
         setAttribute(SERVICE_STATE, Lifecycle.STOPPED);
     }
 
+    @Override
+    public void rebind() {
+        super.rebind();
+        // resume periodic reconciliation; the client is recreated when first used
+        if (getAttribute(SERVICE_STATE) == Lifecycle.RUNNING) getSyncExecutor();
+    }
+
+    @Override
+    public void onManagementStopped() {
+        super.onManagementStopped();
+        releaseResources();
+    }
+
+    /** the client for the load balancer's location, created on first use */
+    protected CloudstackNew40FeaturesClient getClient() {
+        synchronized (resourcesMutex) {
+            if (client == null) {
+                if (loc == null) {
+                    loc = (JcloudsLocation) Iterables.find(getLocations(), Predicates.instanceOf(JcloudsLocation.class));
+                }
+                client = CloudstackNew40FeaturesClient.newInstance(loc);
+            }
+            return client;
+        }
+    }
+
+    protected LoadBalancerApi getLoadBalancerApi() {
+        return getClient().getLoadBalancerClient();
+    }
+
+    /**
+     * The thread applying membership updates, created on first use; it also requests a full reconcile
+     * every {@link #RECONCILE_PERIOD}. Returns null once stopping or stopped.
+     */
+    protected ScheduledExecutorService getSyncExecutor() {
+        synchronized (resourcesMutex) {
+            Lifecycle state = getAttribute(SERVICE_STATE);
+            if (state == Lifecycle.STOPPING || state == Lifecycle.STOPPED) return null;
+            if (syncExecutor == null) {
+                syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "brooklyn-cloudstack-lb-sync-"+getId());
+                        t.setDaemon(true);
+                        return t;
+                    }});
+                long reconcileMillis = getRequiredConfig(RECONCILE_PERIOD).toMilliseconds();
+                syncExecutor.scheduleWithFixedDelay(new Runnable() {
+                    @Override public void run() {
+                        synchronized (syncMutex) {
+                            reconcileNeeded = true;
+                        }
+                        requestSync(Duration.ZERO);
+                    }}, reconcileMillis, reconcileMillis, TimeUnit.MILLISECONDS);
+            }
+            return syncExecutor;
+        }
+    }
+
+    /** stops the sync thread and closes the client; both are recreated if used again */
+    protected void releaseResources() {
+        synchronized (resourcesMutex) {
+            if (syncExecutor != null) {
+                syncExecutor.shutdownNow();
+                syncExecutor = null;
+            }
+            syncScheduled.set(false);
+            if (client != null) {
+                client.close();
+                client = null;
+            }
+        }
+    }
+
     @Override
     public void restart() {
         // no-op
@@ -143,42 +254,180 @@ public class CloudStackLoadBalancerImpl extends AbstractNonProvisionedController
         // see #reload(); no prep required in reconfigureService
     }
 
+    /**
+     * Records the current pool and requests a membership update, which is applied after the configured
+     * {@link #RELOAD_DEBOUNCE} so that a burst of pool changes results in a single diff (or immediately if zero).
+     */
     @Override
     public void reload() {
-        String publicIPId = getRequiredConfig(PUBLIC_IP_ID);
-        String lbId = getAttribute(LOAD_BALANCER_ID);
-        if (lbId == null) {
-            LOG.warn("Not updating load balancer {} ({} in {}), ipId {}, because id not set", new Object[] {this, lbId, loc, publicIPId});
+        desiredMembers.set(ImmutableSet.copyOf(Iterables.filter(serverPoolAddresses, Predicates.notNull())));
+        Duration debounce = getConfig(RELOAD_DEBOUNCE);
+        if (debounce == null || debounce.toMilliseconds() <= 0) {
+            syncMembership();
+        } else {
+            requestSync(debounce);
         }
+    }
 
-        LOG.debug("Updating load balancer {} ({} in {}), ipId {}", new Object[] {this, lbId, loc, publicIPId});
-
-        Set<VirtualMachine> oldVirtualMachines = loadBalancerApi.listVirtualMachinesAssignedToLoadBalancerRule(lbId);
-        Set<String> oldVirtualMachineIds = Sets.newLinkedHashSet();
-        for (VirtualMachine virtualMachine : oldVirtualMachines) {
-            oldVirtualMachineIds.add(virtualMachine.getId());
+    protected void requestSync(Duration delay) {
+        ScheduledExecutorService executor = getSyncExecutor();
+        if (executor == null || executor.isShutdown()) return;
+        if (syncScheduled.compareAndSet(false, true)) {
+            executor.schedule(new Runnable() {
+                @Override public void run() {
+                    // cleared first, so changes arriving during this sync schedule another
+                    syncScheduled.set(false);
+                    try {
+                        syncMembership();
+                    } catch (Exception e) {
+                        LOG.warn("Error updating members of load balancer "+CloudStackLoadBalancerImpl.this, e);
+                    }
+                }}, delay.toMilliseconds(), TimeUnit.MILLISECONDS);
         }
+    }
 
-        Set<String> currentVirtualMachineIds = Sets.newLinkedHashSet();
-        for (String address : serverPoolAddresses) {
-            currentVirtualMachineIds.add(address);
-        }
+    /**
+     * Applies the difference between the latest pool and the locally known membership of each rule, as concurrent
+     * assign and remove jobs. The rules normally have the same members, so the difference is computed once for each
+     * distinct membership and then fanned out to all the rules having it. The membership is (re)read from CloudStack
+     * only initially, periodically, or after a failed update.
+     */
+    protected void syncMembership() {
+        synchronized (syncMutex) {
+            Set<String> desired = desiredMembers.get();
+            Collection<String> ruleIds = getRuleIds();
+            if (desired == null || ruleIds.isEmpty()) {
+                LOG.debug("Not updating load balancer {} ({}), as not yet created", this, ruleIds);
+                return;
+            }
+            LoadBalancerApi loadBalancerApi = getLoadBalancerApi();
+
+            long now = System.currentTimeMillis();
+            if (knownMembers == null || reconcileNeeded || now - lastReconcileTime > getRequiredConfig(RECONCILE_PERIOD).toMilliseconds()) {
+                knownMembers = Maps.newLinkedHashMap();
+                for (String ruleId : ruleIds) {
+                    Set<String> members = Sets.newLinkedHashSet();
+                    for (VirtualMachine virtualMachine : loadBalancerApi.listVirtualMachinesAssignedToLoadBalancerRule(ruleId)) {
+                        members.add(virtualMachine.getId());
+                    }
+                    knownMembers.put(ruleId, members);
+                }
+                reconcileNeeded = false;
+                lastReconcileTime = now;
+                LOG.debug("Reconciled members of load balancer {}: {}", this, knownMembers);
+            }
 
-        Set<String> removedVirtualMachineIds = Sets.difference(oldVirtualMachineIds, currentVirtualMachineIds);
-        Set<String> addedVirtualMachineIds = Sets.difference(currentVirtualMachineIds, oldVirtualMachineIds);
+            Map<Set<String>, List<String>> rulesByMembers = Maps.newLinkedHashMap();
+            for (String ruleId : ruleIds) {
+                Set<String> members = knownMembers.get(ruleId);
+                if (members == null) {
+                    members = Sets.newLinkedHashSet();
+                    knownMembers.put(ruleId, members);
+                }
+                Set<String> key = ImmutableSet.copyOf(members);
+                if (!rulesByMembers.containsKey(key)) rulesByMembers.put(key, Lists.<String>newArrayList());
+                rulesByMembers.get(key).add(ruleId);
+            }
 
-        LOG.debug("Updating load balancer {} ({} in {}), ipId {}: adding {}, removing {}", new Object[] {this, lbId, loc, publicIPId, addedVirtualMachineIds, removedVirtualMachineIds});
+            List<MembershipChange> changes = Lists.newArrayList();
+            for (Map.Entry<Set<String>, List<String>> entry : rulesByMembers.entrySet()) {
+                Set<String> added = ImmutableSet.copyOf(Sets.difference(desired, entry.getKey()));
+                Set<String> removed = ImmutableSet.copyOf(Sets.difference(entry.getKey(), desired));
+                if (added.isEmpty() && removed.isEmpty()) continue;
+                LOG.debug("Updating load balancer {} ({} in {}): adding {}, removing {}", new Object[] {this, entry.getValue(), loc, added, removed});
+                for (String ruleId : entry.getValue()) {
+                    if (!added.isEmpty()) changes.add(new MembershipChange(ruleId, added, true));
+                    if (!removed.isEmpty()) changes.add(new MembershipChange(ruleId, removed, false));
+                }
+            }
+            if (changes.isEmpty()) return;
+
+            try {
+                // issue all, then wait on the jobs together
+                List<MembershipChange> issued = Lists.newArrayList();
+                List<String> jobIds = Lists.newArrayList();
+                for (MembershipChange change : changes) {
+                    try {
+                        jobIds.add(change.added
+                                ? loadBalancerApi.assignVirtualMachinesToLoadBalancerRule(change.ruleId, change.vmIds)
+                                : loadBalancerApi.removeVirtualMachinesFromLoadBalancerRule(change.ruleId, change.vmIds));
+                        issued.add(change);
+                    } catch (Exception e) {
+                        Exceptions.propagateIfFatal(e);
+                        LOG.warn("Error updating members of load balancer "+this+" ("+change.ruleId+"); will reconcile and retry", e);
+                        reconcileNeeded = true;
+                    }
+                }
+                if (!jobIds.isEmpty()) {
+                    Iterator<AsyncJob<Object>> jobs = getClient().getJobTracker().waitFor(jobIds).iterator();
+                    for (MembershipChange change : issued) {
+                        applyJobResult(change, jobs.next());
+                    }
+                }
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.warn("Error updating members of load balancer "+this+"; will reconcile and retry", e);
+                reconcileNeeded = true;
+            }
+            if (reconcileNeeded) requestSync(FAILED_SYNC_RETRY_DELAY);
+        }
+    }
 
-        if (addedVirtualMachineIds.size() > 0) {
-            loadBalancerApi.assignVirtualMachinesToLoadBalancerRule(lbId, addedVirtualMachineIds);
+    private void applyJobResult(MembershipChange change, AsyncJob<Object> job) {
+        if (job.hasSucceed()) {
+            if (change.added) {
+                knownMembers.get(change.ruleId).addAll(change.vmIds);
+            } else {
+                knownMembers.get(change.ruleId).removeAll(change.vmIds);
+            }
+        } else {
+            LOG.warn("Failed to {} {} for load balancer {} ({}); will reconcile and retry: {}", new Object[] {
+                    change.added ? "assign" : "remove", change.vmIds, this, change.ruleId, job});
+            reconcileNeeded = true;
         }
-        if (removedVirtualMachineIds.size() > 0) {
-            loadBalancerApi.removeVirtualMachinesFromLoadBalancerRule(lbId, removedVirtualMachineIds);
+    }
+
+    private static class MembershipChange {
+        final String ruleId;
+        final Set<String> vmIds;
+        final boolean added;
+
+        MembershipChange(String ruleId, Set<String> vmIds, boolean added) {
+            this.ruleId = ruleId;
+            this.vmIds = vmIds;
+            this.added = added;
         }
     }
 
+    /** the ids of all the load balancer rules, with the primary rule first */
+    protected Collection<String> getRuleIds() {
+        Map<Integer, String> ruleIds = getAttribute(LOAD_BALANCER_IDS);
+        if (ruleIds != null && !ruleIds.isEmpty()) return ImmutableList.copyOf(ruleIds.values());
+        String lbId = getAttribute(LOAD_BALANCER_ID);
+        return (lbId == null) ? ImmutableList.<String>of() : ImmutableList.of(lbId);
+    }
+
+    /**
+     * Returns the CloudStack VM id of the member, from the index if known; otherwise it is resolved from the member's
+     * locations and indexed, and the member's location changes are watched to invalidate it.
+     */
     @Override
     protected String getAddressOfEntity(Entity member) {
+        String vmId = memberVmIds.get(member.getId());
+        if (vmId != null) return vmId;
+
+        watchLocations(member);
+        vmId = resolveVmId(member);
+        if (vmId != null) {
+            memberVmIds.put(member.getId(), vmId);
+            if (unresolvedMembers.remove(member.getId())) publishUnresolvedMembers();
+        } else if (unresolvedMembers.add(member.getId())) {
+            publishUnresolvedMembers();
+        }
+        return vmId;
+    }
+
+    protected String resolveVmId(Entity member) {
         JcloudsSshMachineLocation machine = (JcloudsSshMachineLocation) Iterables.find(member.getLocations(),
                 Predicates.instanceOf(JcloudsSshMachineLocation.class), null);
 
@@ -190,6 +439,49 @@ public class CloudStackLoadBalancerImpl extends AbstractNonProvisionedController
         }
     }
 
+    @Override
+    protected synchronized void removeServerPoolMember(Entity member) {
+        super.removeServerPoolMember(member);
+        memberVmIds.remove(member.getId());
+        List<SubscriptionHandle> subscriptions = memberLocationSubscriptions.remove(member.getId());
+        if (subscriptions != null) {
+            // only these, so other subscriptions to the member are kept
+            for (SubscriptionHandle subscription : subscriptions) {
+                unsubscribe(member, subscription);
+            }
+        }
+        if (unresolvedMembers.remove(member.getId())) publishUnresolvedMembers();
+    }
+
+    private synchronized void watchLocations(Entity member) {
+        if (!memberLocationSubscriptions.containsKey(member.getId())) {
+            SensorEventListener<Location> listener = new SensorEventListener<Location>() {
+                @Override public void onEvent(SensorEvent<Location> event) {
+                    onMemberLocationChanged(event.getSource());
+                }};
+            memberLocationSubscriptions.put(member.getId(), ImmutableList.of(
+                    subscribe(member, AbstractEntity.LOCATION_ADDED, listener),
+                    subscribe(member, AbstractEntity.LOCATION_REMOVED, listener)));
+        }
+    }
+
+    /**
+     * Drops the member's indexed id, and re-adds it to the pool so its address is resolved again. Members which
+     * could not be resolved were never targets, so are retried regardless.
+     */
+    protected synchronized void onMemberLocationChanged(Entity member) {
+        if (memberVmIds.remove(member.getId()) == null && !unresolvedMembers.contains(member.getId())) return;
+        LOG.debug("Locations of {} changed; re-resolving its VM id for {}", member, this);
+        if (serverPoolTargets.containsKey(member)) {
+            super.removeServerPoolMember(member);
+        }
+        onServerPoolMemberChanged(member);
+    }
+
+    private void publishUnresolvedMembers() {
+        setAttribute(UNRESOLVED_MEMBERS, ImmutableSet.copyOf(unresolvedMembers));
+    }
+
     protected void startLoadBalancer() {
         String lbName = getAttribute(LOAD_BALANCER_NAME);
         if (Strings.isBlank(lbName)) {
@@ -202,12 +494,11 @@ public class CloudStackLoadBalancerImpl extends AbstractNonProvisionedController
 
     protected void createLoadBalancer(String lbName) {
         LOG.info("Creating load balancer {} ({}), in {}", new Object[] {lbName, this, loc});
+        LoadBalancerApi loadBalancerApi = getLoadBalancerApi();
 
-        Integer loadBalancerPort = getAttribute(PROXY_HTTP_PORT);
-        if (loadBalancerPort == null) loadBalancerPort = getRequiredConfig(PROXY_HTTP_PORT).iterator().next();
+        Map<Integer, Integer> listeners = getListeners();
         String publicIPId = getRequiredConfig(PUBLIC_IP_ID);
         Algorithm algorithm = Algorithm.fromValue(getRequiredConfig(ALGORITHM));
-        int instancePort = getRequiredConfig(INSTANCE_PORT);
 
         String description = getConfig(DESCRIPTION);
         Set<String> allowedSourceCIRDs = getConfig(ALLOWED_SOURCE_CIDRs);
@@ -215,7 +506,7 @@ public class CloudStackLoadBalancerImpl extends AbstractNonProvisionedController
         String zoneId = getConfig(ZONE_ID);
         String accountInDomain = getConfig(ACCOUNT_IN_DOMAIN);
         Boolean openFirewall = getConfig(OPEN_FIREWALL);
-        PublicIPAddress ip = client.getCloudstackGlobalClient().getAddressApi().getPublicIPAddress(publicIPId);
+        PublicIPAddress ip = getClient().getCloudstackGlobalClient().getAddressApi().getPublicIPAddress(publicIPId);
 
         CreateLoadBalancerRuleOptions options = new CreateLoadBalancerRuleOptions();
         if (description != null) options.description(description);
@@ -228,25 +519,100 @@ public class CloudStackLoadBalancerImpl extends AbstractNonProvisionedController
         }
         if (openFirewall != null) options.openFirewall(openFirewall);
 
+        // create the rules concurrently; names must be unique, so suffixed with the port when there are several
         // FIXME jclouds javadoc is wrong: it's returning the job id rather than the rule
-        String jobId = loadBalancerApi.createLoadBalancerRuleForPublicIP(publicIPId, algorithm, lbName, instancePort, loadBalancerPort, options);
-        AsyncJob<Object> job = client.waitForJobSuccess(jobId);
-        LoadBalancerRule rule = (LoadBalancerRule) job.getResult();
-        String loadBalancerId = rule.getId();
+        List<Integer> publicPorts = Lists.newArrayList(listeners.keySet());
+        List<String> jobIds = Lists.newArrayList();
+        for (Integer publicPort : publicPorts) {
+            String ruleName = (listeners.size() == 1) ? lbName : lbName+"-"+publicPort;
+            jobIds.add(loadBalancerApi.createLoadBalancerRuleForPublicIP(publicIPId, algorithm, ruleName, listeners.get(publicPort), publicPort, options));
+        }
+        List<AsyncJob<Object>> jobs = getClient().getJobTracker().waitFor(jobIds);
+
+        Map<Integer, String> ruleIds = Maps.newLinkedHashMap();
+        List<AsyncJob<Object>> failures = Lists.newArrayList();
+        for (int i = 0; i < publicPorts.size(); i++) {
+            AsyncJob<Object> job = jobs.get(i);
+            if (job.hasSucceed()) {
+                ruleIds.put(publicPorts.get(i), ((LoadBalancerRule) job.getResult()).getId());
+            } else {
+                failures.add(job);
+            }
+        }
+        if (!failures.isEmpty()) {
+            // don't leave a partial set of rules behind
+            deleteRulesQuietly(ruleIds.values());
+            throw new IllegalStateException("Failed to create load balancer "+lbName+" ("+this+"): job(s) failed: "+failures);
+        }
 
-        setAttribute(LOAD_BALANCER_ID, loadBalancerId);
+        Integer loadBalancerPort = publicPorts.get(0);
+        setAttribute(LOAD_BALANCER_ID, ruleIds.get(loadBalancerPort));
+        setAttribute(LOAD_BALANCER_IDS, ImmutableMap.copyOf(ruleIds));
         setAttribute(PROXY_HTTP_PORT, loadBalancerPort);
         setAttribute(HOSTNAME, ip.getIPAddress());
         setAttribute(PROTOCOL, inferProtocol());
         setAttribute(ROOT_URL, inferUrl());
     }
 
+    /** deletes the rules, waiting for the jobs to complete; failures are logged rather than thrown */
+    protected void deleteRulesQuietly(Collection<String> ruleIds) {
+        LoadBalancerApi loadBalancerApi = getLoadBalancerApi();
+        List<String> deleting = Lists.newArrayList();
+        List<String> jobIds = Lists.newArrayList();
+        for (String ruleId : ruleIds) {
+            try {
+                String jobId = loadBalancerApi.deleteLoadBalancerRule(ruleId);
+                if (jobId != null) {
+                    deleting.add(ruleId);
+                    jobIds.add(jobId);
+                }
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.warn("Error deleting rule "+ruleId+" of load balancer "+this+"; it may need to be deleted manually", e);
+            }
+        }
+        if (jobIds.isEmpty()) return;
+        try {
+            List<AsyncJob<Object>> jobs = getClient().getJobTracker().waitFor(jobIds);
+            for (int i = 0; i < deleting.size(); i++) {
+                if (!jobs.get(i).hasSucceed()) {
+                    LOG.warn("Failed to delete rule {} of load balancer {}; it may need to be deleted manually: {}", new Object[] {deleting.get(i), this, jobs.get(i)});
+                }
+            }
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.warn("Error waiting for deletion of rules "+deleting+" of load balancer "+this+"; they may need to be deleted manually", e);
+        }
+    }
+
+    /**
+     * Returns the public port to instance port for each rule, from {@link #LISTENERS} if set, or otherwise
+     * the {@link #PROXY_HTTP_PORT} and {@link #INSTANCE_PORT}; the first entry is the primary rule.
+     */
+    protected Map<Integer, Integer> getListeners() {
+        Map<Integer, Integer> listeners = getConfig(LISTENERS);
+        if (listeners != null && !listeners.isEmpty()) {
+            // keys and values may be strings if supplied in YAML
+            Map<Integer, Integer> result = Maps.newLinkedHashMap();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) listeners).entrySet()) {
+                result.put(Integer.valueOf(entry.getKey().toString()), Integer.valueOf(entry.getValue().toString()));
+            }
+            return result;
+        }
+        Integer loadBalancerPort = getAttribute(PROXY_HTTP_PORT);
+        if (loadBalancerPort == null) loadBalancerPort = getRequiredConfig(PROXY_HTTP_PORT).iterator().next();
+        return ImmutableMap.of(loadBalancerPort, getRequiredConfig(INSTANCE_PORT));
+    }
+
     @Override
     public void deleteLoadBalancer() {
-        String lbId = getAttribute(LOAD_BALANCER_ID);
-        LOG.info("Deleting load balancer {} ({}, in {})", new Object[] {lbId, this, loc});
+        Collection<String> ruleIds = getRuleIds();
+        LOG.info("Deleting load balancer {} ({}, in {})", new Object[] {ruleIds, this, loc});
 
-        loadBalancerApi.deleteLoadBalancerRule(lbId);
+        LoadBalancerApi loadBalancerApi = getLoadBalancerApi();
+        for (String ruleId : ruleIds) {
+            loadBalancerApi.deleteLoadBalancerRule(ruleId);
+        }
     }
 
     protected String getZoneId(JcloudsLocation loc) {
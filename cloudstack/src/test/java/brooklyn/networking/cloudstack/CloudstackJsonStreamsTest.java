@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.http.HttpToolResponse;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Multimap;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Checks the streaming parser against real (simulated) responses, comparing with what a full parse gives.
+ */
+public class CloudstackJsonStreamsTest {
+
+    private CloudstackSimulator sim;
+    private CloudstackNew40FeaturesClient client;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        sim = new CloudstackSimulator().start();
+        client = sim.newClient();
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (client != null) client.close();
+        if (sim != null) sim.stop();
+    }
+
+    @Test
+    public void testVisitsItemsOfListResponse() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            sim.addVpc("vpc-"+i, "10."+i+".0.0/16");
+        }
+        HttpToolResponse response = client.invoke(command("listVPCs"));
+        final List<Map<String, String>> items = Lists.newArrayList();
+        CloudstackJsonStreams.ListSummary summary = CloudstackJsonStreams.visitListResponse(response, "vpc", ImmutableSet.of("id", "name"),
+                new CloudstackJsonStreams.ItemVisitor() {
+                    @Override public boolean visit(Map<String, String> item) {
+                        items.add(item);
+                        return true;
+                    }});
+
+        assertEquals(summary.getCount(), 3);
+        assertEquals(summary.getItemsRead(), 3);
+        assertFalse(summary.isStoppedEarly());
+
+        JsonArray tree = CloudstackNew40FeaturesClient.json(response).getAsJsonObject()
+                .getAsJsonObject("listvpcsresponse").getAsJsonArray("vpc");
+        assertEquals(items.size(), tree.size());
+        for (int i = 0; i < tree.size(); i++) {
+            JsonObject vpc = tree.get(i).getAsJsonObject();
+            // only the requested fields are kept
+            assertEquals(items.get(i).keySet(), ImmutableSet.of("id", "name"));
+            assertEquals(items.get(i).get("id"), vpc.get("id").getAsString());
+            assertEquals(items.get(i).get("name"), vpc.get("name").getAsString());
+        }
+    }
+
+    @Test
+    public void testStopsWhenVisitorReturnsFalse() throws Exception {
+        sim.addVpc("vpc-0", "10.0.0.0/16");
+        sim.addVpc("vpc-1", "10.1.0.0/16");
+        CloudstackJsonStreams.ListSummary summary = CloudstackJsonStreams.visitListResponse(client.invoke(command("listVPCs")), "vpc", ImmutableSet.of("id"),
+                new CloudstackJsonStreams.ItemVisitor() {
+                    @Override public boolean visit(Map<String, String> item) {
+                        return false;
+                    }});
+        assertEquals(summary.getItemsRead(), 1);
+        assertTrue(summary.isStoppedEarly());
+    }
+
+    @Test
+    public void testEmptyListResponse() throws Exception {
+        CloudstackJsonStreams.ListSummary summary = CloudstackJsonStreams.visitListResponse(client.invoke(command("listVPCs")), "vpc", ImmutableSet.of("id"),
+                new CloudstackJsonStreams.ItemVisitor() {
+                    @Override public boolean visit(Map<String, String> item) {
+                        throw new AssertionError("unexpected item "+item);
+                    }});
+        assertEquals(summary.getCount(), -1);
+        assertEquals(summary.getItemsRead(), 0);
+    }
+
+    @Test
+    public void testReadsIdAndJobIdOfAsyncResponse() throws Exception {
+        Multimap<String, String> params = command("createVPC");
+        params.put("cidr", "10.0.0.0/16");
+        params.put("displayText", "test vpc");
+        params.put("name", "test-vpc");
+        params.put("vpcOfferingId", CloudstackSimulator.VPC_OFFERING_ID);
+        params.put("zoneId", CloudstackSimulator.ZONE_ID);
+        HttpToolResponse response = client.invoke(params);
+
+        Map<String, String> fields = CloudstackJsonStreams.readTopLevelFields(response, CloudstackJsonStreams.ID_AND_JOBID);
+        JsonObject tree = CloudstackNew40FeaturesClient.json(response).getAsJsonObject().getAsJsonObject("createvpcresponse");
+        assertNotNull(fields.get("jobid"));
+        assertEquals(fields.get("jobid"), tree.get("jobid").getAsString());
+        assertEquals(fields.get("id"), tree.get("id").getAsString());
+
+        client.waitForJobSuccess(fields.get("jobid"));
+        assertNotNull(sim.getResource("vpc", fields.get("id")));
+    }
+
+    private Multimap<String, String> command(String command) {
+        Multimap<String, String> result = ArrayListMultimap.create();
+        result.put("command", command);
+        return result;
+    }
+}
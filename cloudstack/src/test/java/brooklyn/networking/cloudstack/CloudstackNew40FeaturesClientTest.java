@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+
+public class CloudstackNew40FeaturesClientTest {
+
+    private CloudstackSimulator sim;
+    private CloudstackNew40FeaturesClient client;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        sim = new CloudstackSimulator().start();
+        client = sim.newClient();
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (client != null) client.close();
+        if (sim != null) sim.stop();
+    }
+
+    @Test
+    public void testKeywordFilterForLiterals() throws Exception {
+        assertEquals(CloudstackNew40FeaturesClient.keywordFilter("brooklyn-vpc"), ImmutableMultimap.of("keyword", "brooklyn-vpc"));
+        assertEquals(CloudstackNew40FeaturesClient.keywordFilter("brooklyn-.*"), ImmutableMultimap.of("keyword", "brooklyn-"));
+        assertEquals(CloudstackNew40FeaturesClient.keywordFilter("^CSB Advanced$"), ImmutableMultimap.of("keyword", "CSB Advanced"));
+        assertEquals(CloudstackNew40FeaturesClient.keywordFilter(".*-tier"), ImmutableMultimap.of("keyword", "-tier"));
+    }
+
+    @Test
+    public void testNoKeywordFilterForNonLiterals() throws Exception {
+        assertTrue(CloudstackNew40FeaturesClient.keywordFilter("vpc-a|vpc-b").isEmpty());
+        assertTrue(CloudstackNew40FeaturesClient.keywordFilter("vpc-(a|b)").isEmpty());
+        assertTrue(CloudstackNew40FeaturesClient.keywordFilter("vpc-[0-9]+").isEmpty());
+        assertTrue(CloudstackNew40FeaturesClient.keywordFilter("vpcs?").isEmpty());
+        assertTrue(CloudstackNew40FeaturesClient.keywordFilter("vpc\\.1").isEmpty());
+        assertTrue(CloudstackNew40FeaturesClient.keywordFilter(".*").isEmpty());
+    }
+
+    @Test
+    public void testFindsAllAlternativesOfRegex() throws Exception {
+        String first = sim.addVpc("first-vpc", "10.0.0.0/16");
+        String second = sim.addVpc("second-vpc", "10.1.0.0/16");
+        sim.addVpc("third-vpc", "10.2.0.0/16");
+        List<String> ids = client.findVpcIdsNameMatchingRegex("first-vpc|second-vpc");
+        assertEquals(ImmutableSet.copyOf(ids), ImmutableSet.of(first, second));
+    }
+
+    @Test
+    public void testFindsByLiteralPrefix() throws Exception {
+        String match = sim.addVpc("brooklyn-vpc", "10.0.0.0/16");
+        sim.addVpc("other-vpc", "10.1.0.0/16");
+        List<String> ids = client.findVpcIdsNameMatchingRegex("brooklyn-.*");
+        assertEquals(ids, ImmutableList.of(match));
+    }
+}
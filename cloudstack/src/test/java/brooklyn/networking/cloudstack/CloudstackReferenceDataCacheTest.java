@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableSet;
+
+public class CloudstackReferenceDataCacheTest {
+
+    private CloudstackReferenceDataCache cache;
+    private AtomicInteger loads;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        cache = new CloudstackReferenceDataCache("http://cloud.example.com/client/api", Duration.minutes(1));
+        loads = new AtomicInteger();
+    }
+
+    private <T> Callable<T> loader(final T result) {
+        return new Callable<T>() {
+            @Override public T call() {
+                loads.incrementAndGet();
+                return result;
+            }};
+    }
+
+    @Test
+    public void testLoadsOnceThenReuses() throws Exception {
+        assertEquals(cache.get("zone", loader("zone-1")), "zone-1");
+        assertEquals(cache.get("zone", loader("zone-2")), "zone-1");
+        assertEquals(loads.get(), 1);
+        assertEquals(cache.getStats().hitCount(), 1);
+    }
+
+    @Test
+    public void testDoesNotCacheEmptyResults() throws Exception {
+        assertNull(cache.get("offering", loader((String) null)));
+        assertEquals(cache.get("offering", loader("offering-1")), "offering-1");
+
+        assertTrue(cache.<Set<String>>get("zones", loader(ImmutableSet.<String>of())).isEmpty());
+        assertEquals(cache.<Set<String>>get("zones", loader(ImmutableSet.of("zone-1"))), ImmutableSet.of("zone-1"));
+        assertEquals(loads.get(), 4);
+    }
+
+    @Test
+    public void testDoesNotCacheFailures() throws Exception {
+        try {
+            cache.get("zone", new Callable<String>() {
+                @Override public String call() {
+                    throw new IllegalStateException("simulated failure");
+                }});
+            fail("expected failure");
+        } catch (IllegalStateException e) {
+            assertEquals(e.getMessage(), "simulated failure");
+        }
+        assertEquals(cache.get("zone", loader("zone-1")), "zone-1");
+    }
+
+    @Test
+    public void testExpiresAfterTtl() throws Exception {
+        cache = new CloudstackReferenceDataCache("http://cloud.example.com/client/api", Duration.millis(50));
+        cache.get("zone", loader("zone-1"));
+        Thread.sleep(100);
+        assertEquals(cache.get("zone", loader("zone-2")), "zone-2");
+    }
+
+    @Test
+    public void testSharedPerEndpointAccountAndTtl() throws Exception {
+        String endpoint = "http://cache-test.example.com/client/api";
+        CloudstackReferenceDataCache tenMinutes = CloudstackReferenceDataCache.forEndpoint(endpoint, "key", Duration.minutes(10));
+        assertSame(CloudstackReferenceDataCache.forEndpoint(endpoint, "key", Duration.minutes(10)), tenMinutes);
+        assertNotSame(CloudstackReferenceDataCache.forEndpoint(endpoint, "key", Duration.seconds(5)), tenMinutes);
+        assertNotSame(CloudstackReferenceDataCache.forEndpoint(endpoint, "other-key", Duration.minutes(10)), tenMinutes);
+    }
+}
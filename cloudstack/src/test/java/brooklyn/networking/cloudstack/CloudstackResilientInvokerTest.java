@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.http.HttpRequest;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.networking.cloudstack.CloudstackResilientInvoker.CircuitOpenException;
+import brooklyn.networking.cloudstack.CloudstackResilientInvoker.CircuitState;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.http.HttpToolResponse;
+import brooklyn.util.time.Duration;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Throwables;
+
+public class CloudstackResilientInvokerTest {
+
+    private CloudstackSimulator sim;
+    private CloudstackNew40FeaturesClient client;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        sim = new CloudstackSimulator().start();
+        client = sim.newClient();
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (client != null) client.close();
+        if (sim != null) sim.stop();
+    }
+
+    @Test
+    public void testRetriesTransientErrors() throws Exception {
+        sim.addVpc("my-vpc", "10.0.0.0/16");
+        sim.failNextRequests("listVPCs", 503, 429);
+
+        assertEquals(client.findVpcIdsNameMatchingRegex("my-vpc").size(), 1);
+        assertEquals(sim.getRequestCount("listVPCs"), 3);
+        assertEquals(client.getResilientInvoker().getStats().get("retries"), Long.valueOf(2));
+        assertEquals(client.getResilientInvoker().getCircuitState(), CircuitState.CLOSED);
+    }
+
+    @Test
+    public void testDoesNotRetryFatalErrors() throws Exception {
+        sim.failNextRequests("createVPC", 431);
+        try {
+            client.createVpc("10.0.0.0/16", "vpc", "vpc", CloudstackSimulator.VPC_OFFERING_ID, CloudstackSimulator.ZONE_ID);
+            fail("expected failure");
+        } catch (CloudstackApiException e) {
+            assertEquals(e.getStatusCode(), 431);
+            assertFalse(e.isRetryable());
+        }
+        assertEquals(sim.getRequestCount("createVPC"), 1);
+        assertEquals(client.getResilientInvoker().getStats().get("fatalErrors"), Long.valueOf(1));
+    }
+
+    @Test
+    public void testDoesNotRetryGatewayTimeoutOfCreate() throws Exception {
+        sim.failNextRequests("createVPC", 504);
+        try {
+            client.createVpc("10.0.0.0/16", "vpc", "vpc", CloudstackSimulator.VPC_OFFERING_ID, CloudstackSimulator.ZONE_ID);
+            fail("expected failure");
+        } catch (CloudstackApiException e) {
+            assertEquals(e.getStatusCode(), 504);
+            assertFalse(e.isRetryable());
+        }
+        assertEquals(sim.getRequestCount("createVPC"), 1);
+    }
+
+    @Test
+    public void testRetriesGatewayTimeoutOfList() throws Exception {
+        sim.addVpc("my-vpc", "10.0.0.0/16");
+        sim.failNextRequests("listVPCs", 504, 502);
+
+        assertEquals(client.findVpcIdsNameMatchingRegex("my-vpc").size(), 1);
+        assertEquals(sim.getRequestCount("listVPCs"), 3);
+    }
+
+    @Test
+    public void testClassification() throws Exception {
+        assertTrue(CloudstackResilientInvoker.isRetryable(503, null, false));
+        assertTrue(CloudstackResilientInvoker.isRetryable(429, null, false));
+        assertTrue(CloudstackResilientInvoker.isRetryable(504, null, true));
+        assertFalse(CloudstackResilientInvoker.isRetryable(504, null, false));
+        assertFalse(CloudstackResilientInvoker.isRetryable(502, null, false));
+        assertTrue(CloudstackResilientInvoker.isRetryable(431, "Request throttled, please try again", false));
+        assertFalse(CloudstackResilientInvoker.isRetryable(431, "Unable to execute API command due to missing parameter zoneid", true));
+        assertFalse(CloudstackResilientInvoker.isRetryable(401, null, true));
+
+        assertTrue(CloudstackResilientInvoker.isRetryable(Exceptions.propagate(new ConnectException("refused")), false));
+        assertTrue(CloudstackResilientInvoker.isRetryable(Exceptions.propagate(new SocketTimeoutException()), true));
+        assertFalse(CloudstackResilientInvoker.isRetryable(Exceptions.propagate(new SocketTimeoutException()), false));
+    }
+
+    @Test
+    public void testCircuitOpensAndRecovers() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        CloudstackResilientInvoker invoker = new CloudstackResilientInvoker("test", 2, Duration.millis(1), Duration.millis(1), 2, Duration.millis(500)) {
+            @Override protected HttpToolResponse execute(HttpRequest request) {
+                calls.incrementAndGet();
+                throw Exceptions.propagate(new ConnectException("refused"));
+            }
+        };
+        HttpRequest request = HttpRequest.builder().method("GET").endpoint(URI.create(sim.getEndpoint())).build();
+
+        try {
+            invoker.invoke("listZones", request);
+            fail("expected failure");
+        } catch (CloudstackApiException e) {
+            assertTrue(e.isRetryable());
+        }
+        assertEquals(invoker.getCircuitState(), CircuitState.OPEN);
+
+        try {
+            invoker.invoke("listZones", request);
+            fail("expected circuit open");
+        } catch (CircuitOpenException e) {
+            // expected
+        }
+        assertEquals(calls.get(), 2);
+        assertEquals(invoker.getStats().get("rejected"), Long.valueOf(1));
+
+        // trial call after the open period fails, so re-opens; its own error is reported, without retrying
+        Time.sleep(Duration.millis(600));
+        try {
+            invoker.invoke("listZones", request);
+            fail("expected failure");
+        } catch (CloudstackApiException e) {
+            assertFalse(e instanceof CircuitOpenException, "e="+e);
+            assertTrue(Throwables.getRootCause(e) instanceof ConnectException, "e="+e);
+        }
+        assertEquals(invoker.getCircuitState(), CircuitState.OPEN);
+        assertEquals(calls.get(), 3);
+        assertEquals(invoker.getStats().get("circuitOpenings"), Long.valueOf(2));
+
+        invoker.resetCircuit();
+        assertEquals(invoker.getCircuitState(), CircuitState.CLOSED);
+    }
+}
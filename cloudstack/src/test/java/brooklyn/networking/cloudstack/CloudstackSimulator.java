@@ -0,0 +1,979 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+import brooklyn.util.time.Time;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process simulator of the subset of the CloudStack API used by {@link CloudstackNew40FeaturesClient}
+ * (both its hand-rolled requests and the jclouds APIs it calls), for tests and benchmarks that cannot use a real cloud.
+ * <p>
+ * Requests must be signed with the simulator's {@link #getApiKey() API key} and {@link #getSecretKey() secret key}.
+ * Resources (VPCs, tiers, public IPs, VMs, port-forwarding, load balancer and ACL rules) are held in memory; async commands
+ * return a job which completes after the configured {@link #setJobLatency(Duration) job latency}, and only then
+ * is the change applied. Failures can be injected either into jobs or as HTTP errors.
+ * <p>
+ * As in CloudStack, a VM destroyed without {@code expunge=true} stays (in state Destroyed, and still in its
+ * network) until the {@link #setExpungeDelay(Duration) expunge delay} has passed, then is Expunging for
+ * the job latency, and only then goes.
+ * <p>
+ * Usage:
+ * <pre>
+ * {@code
+ * CloudstackSimulator sim = new CloudstackSimulator().start();
+ * CloudstackNew40FeaturesClient client = sim.newClient();
+ * ...
+ * client.close();
+ * sim.stop();
+ * }
+ * </pre>
+ */
+public class CloudstackSimulator {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CloudstackSimulator.class);
+
+    public static final String ZONE_ID = "sim-zone-1";
+    public static final String DOMAIN_ID = "sim-domain-1";
+    public static final String ACCOUNT_NAME = "sim-account";
+    public static final String VPC_OFFERING_ID = "sim-vpc-offering-1";
+    public static final String VPC_TIER_OFFERING_NAME = "DefaultIsolatedNetworkOfferingForVpcNetworks";
+    public static final String ISOLATED_OFFERING_NAME = "DefaultIsolatedNetworkOfferingWithSourceNatService";
+
+    private static final int ERROR_PARAM = 431;
+    private static final int ERROR_UNAUTHORIZED = 401;
+    private static final int ERROR_UNSUPPORTED = 432;
+    private static final int ERROR_INTERNAL = 530;
+
+    /** thrown by handlers to give a CloudStack error response (or, from a job, a failed job) */
+    protected static class CloudstackError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final int code;
+        public CloudstackError(int code, String text) {
+            super(text);
+            this.code = code;
+        }
+        public int getCode() {
+            return code;
+        }
+    }
+
+    protected interface Handler {
+        /** returns the content of the {@code <command>response} object */
+        public Map<String, Object> handle(Map<String, String> params);
+    }
+
+    protected interface JobAction {
+        /** applies the change, returning the job result (e.g. the created resource, keyed by its type) */
+        public Map<String, Object> apply();
+    }
+
+    protected class Job {
+        final String id = newId("job");
+        final String command;
+        final String instanceId;
+        final long dueTime;
+        final JobAction action;
+        final boolean injectFailure;
+        int status = 0;
+        Map<String, Object> result;
+
+        Job(String command, String instanceId, JobAction action, boolean injectFailure) {
+            this.command = command;
+            this.instanceId = instanceId;
+            this.action = action;
+            this.injectFailure = injectFailure;
+            this.dueTime = System.currentTimeMillis() + jobLatency.toMilliseconds();
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> result = Maps.newLinkedHashMap();
+            result.put("jobid", id);
+            result.put("accountid", ACCOUNT_NAME);
+            result.put("cmd", command);
+            result.put("jobstatus", status);
+            result.put("jobprocstatus", 0);
+            result.put("jobresultcode", (status == 2) ? ERROR_INTERNAL : 0);
+            if (instanceId != null) result.put("jobinstanceid", instanceId);
+            if (this.result != null) {
+                result.put("jobresulttype", "object");
+                result.put("jobresult", this.result);
+            }
+            return result;
+        }
+    }
+
+    private final String apiKey;
+    private final String secretKey;
+    private final Gson gson = new Gson();
+    private final Random random = new Random(0);
+    private final AtomicLong nextId = new AtomicLong();
+
+    private final Map<String, Handler> handlers = Maps.newLinkedHashMap();
+    private final ConcurrentMap<String, AtomicInteger> requestCounts = Maps.newConcurrentMap();
+    private final AtomicInteger signatureFailures = new AtomicInteger();
+
+    // guarded by this
+    private final Map<String, Map<String, Map<String, Object>>> resources = Maps.newLinkedHashMap();
+    private final Map<String, Job> jobs = Maps.newLinkedHashMap();
+    private final Map<String, Integer> jobFailuresToInject = Maps.newLinkedHashMap();
+    private final Map<String, List<Integer>> httpErrorsToInject = Maps.newLinkedHashMap();
+    // load balancer rule id to the ids of the VMs assigned to it
+    private final Map<String, Set<String>> loadBalancerMembers = Maps.newLinkedHashMap();
+    // VM id to when it moves to its next state (Expunging, then gone)
+    private final Map<String, Long> expungeDueTimes = Maps.newLinkedHashMap();
+
+    private volatile Duration jobLatency = Duration.ZERO;
+    private volatile Duration requestLatency = Duration.ZERO;
+    private volatile double jobFailureRate = 0;
+    private volatile Duration expungeDelay = Duration.minutes(60);
+    private volatile boolean expungeAllowed = true;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public CloudstackSimulator() {
+        this("sim-api-key", "sim-secret-key");
+    }
+
+    public CloudstackSimulator(String apiKey, String secretKey) {
+        this.apiKey = apiKey;
+        this.secretKey = secretKey;
+        registerHandlers();
+        seedReferenceData();
+    }
+
+    public CloudstackSimulator start() {
+        try {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "cloudstack-simulator-"+threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }});
+        server.setExecutor(executor);
+        server.createContext("/client/api", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                CloudstackSimulator.this.handle(exchange);
+            }});
+        server.start();
+        LOG.info("CloudStack simulator started at {}", getEndpoint());
+        return this;
+    }
+
+    public void stop() {
+        if (server != null) server.stop(0);
+        if (executor != null) executor.shutdownNow();
+        HttpClientPool.closeEndpoint(URI.create(getEndpoint()));
+    }
+
+    public String getEndpoint() {
+        return "http://127.0.0.1:"+server.getAddress().getPort()+"/client/api";
+    }
+
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    public String getSecretKey() {
+        return secretKey;
+    }
+
+    /** a new client for this simulator; callers should close it */
+    public CloudstackNew40FeaturesClient newClient() {
+        return CloudstackNew40FeaturesClient.newInstance(getEndpoint(), apiKey, secretKey);
+    }
+
+    /** how long async jobs take to complete */
+    public CloudstackSimulator setJobLatency(Duration val) {
+        this.jobLatency = val;
+        return this;
+    }
+
+    /** how long every request takes to be answered */
+    public CloudstackSimulator setRequestLatency(Duration val) {
+        this.requestLatency = val;
+        return this;
+    }
+
+    /** how long a VM destroyed without expunging remains before being expunged (by default much longer than any test) */
+    public CloudstackSimulator setExpungeDelay(Duration val) {
+        this.expungeDelay = val;
+        return this;
+    }
+
+    /** whether {@code destroyVirtualMachine} accepts {@code expunge=true} (as for admin accounts) */
+    public CloudstackSimulator setExpungeAllowed(boolean val) {
+        this.expungeAllowed = val;
+        return this;
+    }
+
+    /** the probability (0 to 1) that any async job fails */
+    public CloudstackSimulator setJobFailureRate(double val) {
+        this.jobFailureRate = val;
+        return this;
+    }
+
+    /** makes the next {@code count} jobs of the given command fail */
+    public synchronized CloudstackSimulator failNextJobs(String command, int count) {
+        jobFailuresToInject.put(command.toLowerCase(), count);
+        return this;
+    }
+
+    /** makes the next requests for the given command fail with the given HTTP status codes, in order */
+    public synchronized CloudstackSimulator failNextRequests(String command, Integer... statusCodes) {
+        List<Integer> codes = httpErrorsToInject.get(command.toLowerCase());
+        if (codes == null) httpErrorsToInject.put(command.toLowerCase(), codes = Lists.newArrayList());
+        codes.addAll(ImmutableList.copyOf(statusCodes));
+        return this;
+    }
+
+    /** number of requests received for the command (including rejected ones) */
+    public int getRequestCount(String command) {
+        AtomicInteger result = requestCounts.get(command.toLowerCase());
+        return (result == null) ? 0 : result.get();
+    }
+
+    public int getTotalRequestCount() {
+        int result = 0;
+        for (AtomicInteger count : requestCounts.values()) result += count.get();
+        return result;
+    }
+
+    public int getSignatureFailureCount() {
+        return signatureFailures.get();
+    }
+
+    public void resetRequestCounts() {
+        requestCounts.clear();
+    }
+
+    /** the current state of the resources of the given type, e.g. {@code vpc}, {@code network} */
+    public synchronized List<Map<String, Object>> getResources(String type) {
+        completeDueJobs();
+        List<Map<String, Object>> result = Lists.newArrayList();
+        for (Map<String, Object> resource : resourcesOfType(type).values()) {
+            result.add(ImmutableMap.copyOf(resource));
+        }
+        return result;
+    }
+
+    public synchronized Map<String, Object> getResource(String type, String id) {
+        completeDueJobs();
+        Map<String, Object> result = resourcesOfType(type).get(id);
+        return (result == null) ? null : ImmutableMap.copyOf(result);
+    }
+
+    /** the ids of the VMs assigned to the load balancer rule, or null if there is no such rule */
+    public synchronized Set<String> getLoadBalancerMembers(String ruleId) {
+        completeDueJobs();
+        Set<String> result = loadBalancerMembers.get(ruleId);
+        return (result == null) ? null : ImmutableSet.copyOf(result);
+    }
+
+    /** adds a VM directly (the client does not deploy VMs itself), returning its id */
+    public synchronized String addVirtualMachine(String name, String networkId) {
+        Map<String, Object> network = resourcesOfType("network").get(networkId);
+        if (network == null) throw new IllegalArgumentException("No network "+networkId);
+        Map<String, Object> vm = newResource("virtualmachine", "vm", name);
+        vm.put("networkid", networkId);
+        if (network.containsKey("vpcid")) vm.put("vpcid", network.get("vpcid"));
+        vm.put("state", "Running");
+        return (String) vm.get("id");
+    }
+
+    /** adds a VPC directly, with its source NAT IP, returning its id */
+    public synchronized String addVpc(String name, String cidr) {
+        Map<String, Object> vpc = newResource("vpc", "vpc", name);
+        vpc.put("cidr", cidr);
+        vpc.put("zoneid", ZONE_ID);
+        vpc.put("vpcofferingid", VPC_OFFERING_ID);
+        vpc.put("state", "Enabled");
+        addIp((String) vpc.get("id"), true);
+        return (String) vpc.get("id");
+    }
+
+    /** adds a VPC tier directly, returning its id */
+    public synchronized String addVpcTier(String name, String vpcId) {
+        return (String) newNetwork(name, vpcId, "10.0."+nextId.get() % 256+".1", "255.255.255.0").get("id");
+    }
+
+    // ---- request handling ----
+
+    protected void handle(HttpExchange exchange) throws IOException {
+        String command = null;
+        int status = 200;
+        String body;
+        try {
+            List<String[]> rawParams = parseQuery(exchange.getRequestURI().getRawQuery());
+            Map<String, String> params = Maps.newLinkedHashMap();
+            for (String[] param : rawParams) {
+                params.put(param[0].toLowerCase(), param[1]);
+            }
+            command = params.get("command");
+            if (command == null) throw new CloudstackError(ERROR_PARAM, "no command specified");
+            incrementCount(command);
+
+            if (requestLatency.toMilliseconds() > 0) Time.sleep(requestLatency);
+
+            Integer injected = nextInjectedHttpError(command);
+            if (injected != null) {
+                status = injected;
+                body = errorBody(command, injected, "injected failure");
+            } else if (!isSignatureValid(rawParams)) {
+                signatureFailures.incrementAndGet();
+                status = ERROR_UNAUTHORIZED;
+                body = errorBody(command, ERROR_UNAUTHORIZED, "unable to verify user credentials and/or request signature");
+            } else {
+                Handler handler = handlers.get(command.toLowerCase());
+                if (handler == null) throw new CloudstackError(ERROR_UNSUPPORTED, "The given command does not exist or it is not available for user: "+command);
+                Map<String, Object> result;
+                synchronized (this) {
+                    completeDueJobs();
+                    result = handler.handle(params);
+                }
+                body = gson.toJson(ImmutableMap.of(command.toLowerCase()+"response", result));
+            }
+        } catch (CloudstackError e) {
+            status = e.getCode();
+            body = errorBody(command, e.getCode(), e.getMessage());
+        } catch (Exception e) {
+            LOG.warn("CloudStack simulator failed handling "+command, e);
+            status = ERROR_INTERNAL;
+            body = errorBody(command, ERROR_INTERNAL, e.toString());
+        }
+        if (LOG.isTraceEnabled()) LOG.trace("CloudStack simulator {} -> {}: {}", new Object[] {exchange.getRequestURI(), status, body});
+
+        byte[] bytes = body.getBytes(Charsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    private String errorBody(String command, int code, String text) {
+        Map<String, Object> error = Maps.newLinkedHashMap();
+        error.put("uuidList", ImmutableList.of());
+        error.put("errorcode", code);
+        error.put("errortext", text);
+        return gson.toJson(ImmutableMap.of((command == null ? "error" : command.toLowerCase())+"response", error));
+    }
+
+    private void incrementCount(String command) {
+        String key = command.toLowerCase();
+        AtomicInteger count = requestCounts.get(key);
+        if (count == null) {
+            AtomicInteger contender = new AtomicInteger();
+            count = requestCounts.putIfAbsent(key, contender);
+            if (count == null) count = contender;
+        }
+        count.incrementAndGet();
+    }
+
+    private synchronized Integer nextInjectedHttpError(String command) {
+        List<Integer> codes = httpErrorsToInject.get(command.toLowerCase());
+        return (codes == null || codes.isEmpty()) ? null : codes.remove(0);
+    }
+
+    private static List<String[]> parseQuery(String rawQuery) {
+        List<String[]> result = Lists.newArrayList();
+        if (rawQuery == null) return result;
+        for (String pair : rawQuery.split("&")) {
+            if (pair.isEmpty()) continue;
+            int i = pair.indexOf('=');
+            String key = (i >= 0) ? pair.substring(0, i) : pair;
+            String value = (i >= 0) ? pair.substring(i+1) : "";
+            result.add(new String[] {urlDecode(key), urlDecode(value)});
+        }
+        return result;
+    }
+
+    /**
+     * Checks the signature as CloudStack does: HMAC-SHA1 of the lower-cased, sorted, url-encoded query
+     * (excluding the signature). Both sorting by lower-cased key (as CloudStack documents) and by the
+     * encoded parameter (as jclouds' {@code QuerySigner} does) are accepted; they differ only for mixed-case keys.
+     */
+    protected boolean isSignatureValid(List<String[]> params) {
+        String signature = null;
+        String suppliedApiKey = null;
+        final List<String[]> toSign = Lists.newArrayList();
+        for (String[] param : params) {
+            if ("signature".equalsIgnoreCase(param[0])) {
+                signature = param[1];
+            } else {
+                if ("apikey".equalsIgnoreCase(param[0])) suppliedApiKey = param[1];
+                toSign.add(param);
+            }
+        }
+        if (signature == null || !apiKey.equals(suppliedApiKey)) return false;
+
+        List<String> encoded = Lists.newArrayList();
+        for (String[] param : toSign) {
+            encoded.add(param[0]+"="+urlEncode(param[1]));
+        }
+        List<String> byEntry = Lists.newArrayList(ImmutableSet.copyOf(encoded));
+        Collections.sort(byEntry);
+        if (signature.equals(sign(Joiner.on('&').join(byEntry).toLowerCase()))) return true;
+
+        List<String> byKey = Lists.newArrayList(encoded);
+        Collections.sort(byKey, new Comparator<String>() {
+            @Override public int compare(String o1, String o2) {
+                return o1.substring(0, o1.indexOf('=')).toLowerCase().compareTo(o2.substring(0, o2.indexOf('=')).toLowerCase());
+            }});
+        return signature.equals(sign(Joiner.on('&').join(byKey).toLowerCase()));
+    }
+
+    private String sign(String stringToSign) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(secretKey.getBytes(Charsets.UTF_8), "HmacSHA1"));
+            return BaseEncoding.base64().encode(mac.doFinal(stringToSign.getBytes(Charsets.UTF_8)));
+        } catch (Exception e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    private static String urlEncode(String val) {
+        try {
+            return URLEncoder.encode(val, "UTF-8").replace("+", "%20").replace("*", "%2A").replace("%7E", "~");
+        } catch (UnsupportedEncodingException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    private static String urlDecode(String val) {
+        try {
+            return URLDecoder.decode(val, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    // ---- state ----
+
+    private String newId(String prefix) {
+        return prefix+"-"+nextId.incrementAndGet();
+    }
+
+    private Map<String, Map<String, Object>> resourcesOfType(String type) {
+        Map<String, Map<String, Object>> result = resources.get(type);
+        if (result == null) resources.put(type, result = Maps.newLinkedHashMap());
+        return result;
+    }
+
+    private Map<String, Object> newResource(String type, String idPrefix, String name) {
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        result.put("id", newId(idPrefix));
+        if (name != null) result.put("name", name);
+        resourcesOfType(type).put((String) result.get("id"), result);
+        return result;
+    }
+
+    private Map<String, Object> newNetwork(String name, String vpcId, String gateway, String netmask) {
+        Map<String, Object> network = newResource("network", "network", name);
+        network.put("displaytext", name);
+        network.put("zoneid", ZONE_ID);
+        network.put("account", ACCOUNT_NAME);
+        network.put("domainid", DOMAIN_ID);
+        if (vpcId != null) network.put("vpcid", vpcId);
+        if (gateway != null) network.put("gateway", gateway);
+        if (netmask != null) network.put("netmask", netmask);
+        network.put("state", "Implemented");
+        return network;
+    }
+
+    private Map<String, Object> addIp(String vpcId, boolean sourceNat) {
+        Map<String, Object> ip = newResource("publicipaddress", "ip", null);
+        ip.put("ipaddress", "192.0.2."+(nextId.get() % 254 + 1));
+        ip.put("vpcid", vpcId);
+        ip.put("zoneid", ZONE_ID);
+        ip.put("issourcenat", sourceNat);
+        ip.put("state", "Allocated");
+        return ip;
+    }
+
+    private void seedReferenceData() {
+        Map<String, Object> zone = Maps.newLinkedHashMap();
+        zone.put("id", ZONE_ID);
+        zone.put("name", "sim-zone");
+        zone.put("networktype", "Advanced");
+        resourcesOfType("zone").put(ZONE_ID, zone);
+
+        Map<String, Object> account = Maps.newLinkedHashMap();
+        account.put("id", "sim-account-1");
+        account.put("name", ACCOUNT_NAME);
+        account.put("domainid", DOMAIN_ID);
+        account.put("domain", "ROOT");
+        resourcesOfType("account").put("sim-account-1", account);
+
+        Map<String, Object> vpcOffering = Maps.newLinkedHashMap();
+        vpcOffering.put("id", VPC_OFFERING_ID);
+        vpcOffering.put("name", "Default VPC offering");
+        resourcesOfType("vpcoffering").put(VPC_OFFERING_ID, vpcOffering);
+
+        for (String name : ImmutableList.of(VPC_TIER_OFFERING_NAME, ISOLATED_OFFERING_NAME)) {
+            Map<String, Object> offering = newResource("networkoffering", "networkoffering", name);
+            offering.put("displaytext", name);
+        }
+    }
+
+    /** completes the jobs whose latency has elapsed, applying their changes */
+    protected synchronized void completeDueJobs() {
+        long now = System.currentTimeMillis();
+        for (Job job : jobs.values()) {
+            if (job.status == 0 && job.dueTime <= now) {
+                try {
+                    if (job.injectFailure) throw new CloudstackError(ERROR_INTERNAL, "injected failure of "+job.command);
+                    job.result = job.action.apply();
+                    job.status = 1;
+                } catch (CloudstackError e) {
+                    job.status = 2;
+                    job.result = ImmutableMap.<String, Object>of("errorcode", e.getCode(), "errortext", e.getMessage());
+                }
+            }
+        }
+        for (Iterator<Map.Entry<String, Long>> iter = expungeDueTimes.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry<String, Long> entry = iter.next();
+            if (entry.getValue() > now) continue;
+            Map<String, Object> vm = resourcesOfType("virtualmachine").get(entry.getKey());
+            if (vm != null && "Destroyed".equals(vm.get("state"))) {
+                vm.put("state", "Expunging");
+                entry.setValue(now + jobLatency.toMilliseconds());
+            } else {
+                resourcesOfType("virtualmachine").remove(entry.getKey());
+                iter.remove();
+            }
+        }
+    }
+
+    private boolean shouldInjectJobFailure(String command) {
+        Integer remaining = jobFailuresToInject.get(command.toLowerCase());
+        if (remaining != null && remaining > 0) {
+            jobFailuresToInject.put(command.toLowerCase(), remaining - 1);
+            return true;
+        }
+        return jobFailureRate > 0 && random.nextDouble() < jobFailureRate;
+    }
+
+    /** starts an async job, returning the response giving the job id (and the id of the resource affected) */
+    private Map<String, Object> async(String command, String instanceId, JobAction action) {
+        Job job = new Job(command, instanceId, action, shouldInjectJobFailure(command));
+        jobs.put(job.id, job);
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        if (instanceId != null) result.put("id", instanceId);
+        result.put("jobid", job.id);
+        return result;
+    }
+
+    private static final JobAction SUCCESS = new JobAction() {
+        @Override public Map<String, Object> apply() {
+            return ImmutableMap.<String, Object>of("success", true);
+        }};
+
+    private static String required(Map<String, String> params, String name) {
+        String result = params.get(name.toLowerCase());
+        if (result == null) throw new CloudstackError(ERROR_PARAM, "Unable to execute API command due to missing parameter "+name.toLowerCase());
+        return result;
+    }
+
+    private Map<String, Object> requiredResource(String type, String id) {
+        Map<String, Object> result = resourcesOfType(type).get(id);
+        if (result == null) throw new CloudstackError(ERROR_PARAM, "Unable to find "+type+" with id "+id);
+        return result;
+    }
+
+    private static boolean anyMatching(Collection<Map<String, Object>> resources, String key, Object value) {
+        for (Map<String, Object> resource : resources) {
+            if (value.equals(resource.get(key))) return true;
+        }
+        return false;
+    }
+
+    /** a list response, filtered by any parameters naming fields of the resources, then paged */
+    private Map<String, Object> list(String type, Map<String, String> params) {
+        List<Map<String, Object>> matches = Lists.newArrayList();
+        String keyword = params.get("keyword");
+        for (Map<String, Object> resource : resourcesOfType(type).values()) {
+            if (keyword != null && !(resource.get("name") != null && ((String) resource.get("name")).contains(keyword))) continue;
+            boolean match = true;
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                Object actual = resource.get(param.getKey());
+                if (actual == null || "command".equals(param.getKey())) continue;
+                if ("name".equals(param.getKey())) {
+                    // CloudStack matches names by containment
+                    match = actual.toString().contains(param.getValue());
+                } else {
+                    match = actual.toString().equals(param.getValue());
+                }
+                if (!match) break;
+            }
+            if (match) matches.add(resource);
+        }
+
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        if (matches.isEmpty()) return result;
+        result.put("count", matches.size());
+        if (params.containsKey("pagesize")) {
+            int page = params.containsKey("page") ? Integer.parseInt(params.get("page")) : 1;
+            int pageSize = Integer.parseInt(params.get("pagesize"));
+            int from = Math.min(matches.size(), (page - 1) * pageSize);
+            matches = matches.subList(from, Math.min(matches.size(), from + pageSize));
+        }
+        result.put(type, matches);
+        return result;
+    }
+
+    private void registerList(String command, final String type) {
+        handlers.put(command.toLowerCase(), new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                return list(type, params);
+            }});
+    }
+
+    private void registerHandlers() {
+        registerList("listZones", "zone");
+        registerList("listAccounts", "account");
+        registerList("listVPCOfferings", "vpcoffering");
+        registerList("listNetworkOfferings", "networkoffering");
+        registerList("listVPCs", "vpc");
+        registerList("listNetworks", "network");
+        registerList("listPublicIpAddresses", "publicipaddress");
+        registerList("listVirtualMachines", "virtualmachine");
+        registerList("listPortForwardingRules", "portforwardingrule");
+        registerList("listNetworkACLs", "networkacl");
+        registerList("listEgressFirewallRules", "firewallrule");
+        registerList("listLoadBalancerRules", "loadbalancerrule");
+
+        handlers.put("queryasyncjobresult", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                Job job = jobs.get(required(params, "jobid"));
+                if (job == null) throw new CloudstackError(ERROR_PARAM, "Unable to find job "+params.get("jobid"));
+                return job.toMap();
+            }});
+        handlers.put("listasyncjobs", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                List<Map<String, Object>> result = Lists.newArrayList();
+                for (Job job : jobs.values()) result.add(job.toMap());
+                return ImmutableMap.<String, Object>of("count", result.size(), "asyncjobs", result);
+            }});
+
+        handlers.put("createvpc", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                final String name = required(params, "name");
+                final String cidr = required(params, "cidr");
+                final String zoneId = required(params, "zoneId");
+                required(params, "vpcOfferingId");
+                final String id = newId("vpc");
+                return async("createVPC", id, new JobAction() {
+                    @Override public Map<String, Object> apply() {
+                        Map<String, Object> vpc = Maps.newLinkedHashMap();
+                        vpc.put("id", id);
+                        vpc.put("name", name);
+                        vpc.put("cidr", cidr);
+                        vpc.put("zoneid", zoneId);
+                        vpc.put("state", "Enabled");
+                        resourcesOfType("vpc").put(id, vpc);
+                        addIp(id, true);
+                        return ImmutableMap.<String, Object>of("vpc", vpc);
+                    }});
+            }});
+        handlers.put("deletevpc", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                final String id = required(params, "id");
+                requiredResource("vpc", id);
+                return async("deleteVPC", id, new JobAction() {
+                    @Override public Map<String, Object> apply() {
+                        if (anyMatching(resourcesOfType("network").values(), "vpcid", id)) {
+                            throw new CloudstackError(ERROR_INTERNAL, "VPC "+id+" still has tiers");
+                        }
+                        resourcesOfType("vpc").remove(id);
+                        for (Map<String, Object> ip : ImmutableList.copyOf(resourcesOfType("publicipaddress").values())) {
+                            if (id.equals(ip.get("vpcid"))) resourcesOfType("publicipaddress").remove(ip.get("id"));
+                        }
+                        return SUCCESS.apply();
+                    }});
+            }});
+        handlers.put("createnetwork", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                String vpcId = params.get("vpcid");
+                if (vpcId != null) requiredResource("vpc", vpcId);
+                required(params, "zoneid");
+                required(params, "networkofferingid");
+                Map<String, Object> network = newNetwork(required(params, "name"), vpcId, params.get("gateway"), params.get("netmask"));
+                network.put("networkofferingid", params.get("networkofferingid"));
+                return ImmutableMap.<String, Object>of("network", network);
+            }});
+        handlers.put("deletenetwork", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                final String id = required(params, "id");
+                requiredResource("network", id);
+                return async("deleteNetwork", id, new JobAction() {
+                    @Override public Map<String, Object> apply() {
+                        if (anyMatching(resourcesOfType("virtualmachine").values(), "networkid", id)) {
+                            throw new CloudstackError(ERROR_INTERNAL, "Network "+id+" still has VMs");
+                        }
+                        resourcesOfType("network").remove(id);
+                        return SUCCESS.apply();
+                    }});
+            }});
+        handlers.put("associateipaddress", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                final String vpcId = required(params, "vpcid");
+                requiredResource("vpc", vpcId);
+                final String id = newId("ip");
+                return async("associateIpAddress", id, new JobAction() {
+                    @Override public Map<String, Object> apply() {
+                        Map<String, Object> ip = addIp(vpcId, false);
+                        // keep the id promised in the response
+                        resourcesOfType("publicipaddress").remove(ip.get("id"));
+                        ip.put("id", id);
+                        resourcesOfType("publicipaddress").put(id, ip);
+                        return ImmutableMap.<String, Object>of("ipaddress", ip);
+                    }});
+            }});
+        handlers.put("disassociateipaddress", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                final String id = required(params, "id");
+                Map<String, Object> ip = requiredResource("publicipaddress", id);
+                if (Boolean.TRUE.equals(ip.get("issourcenat"))) {
+                    throw new CloudstackError(ERROR_PARAM, "Can't release source NAT IP address "+id);
+                }
+                return async("disassociateIpAddress", id, new JobAction() {
+                    @Override public Map<String, Object> apply() {
+                        resourcesOfType("publicipaddress").remove(id);
+                        return SUCCESS.apply();
+                    }});
+            }});
+        handlers.put("destroyvirtualmachine", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                final String id = required(params, "id");
+                final boolean expunge = "true".equalsIgnoreCase(params.get("expunge"));
+                Map<String, Object> existing = requiredResource("virtualmachine", id);
+                if (!"Running".equals(existing.get("state")) && !"Stopped".equals(existing.get("state"))) {
+                    throw new CloudstackError(ERROR_PARAM, "VM "+id+" is already "+existing.get("state"));
+                }
+                if (expunge && !expungeAllowed) {
+                    throw new CloudstackError(ERROR_PARAM, "Parameter expunge can be passed by Admin only");
+                }
+                return async("destroyVirtualMachine", id, new JobAction() {
+                    @Override public Map<String, Object> apply() {
+                        Map<String, Object> vm;
+                        if (expunge) {
+                            vm = resourcesOfType("virtualmachine").remove(id);
+                        } else {
+                            vm = requiredResource("virtualmachine", id);
+                            vm.put("state", "Destroyed");
+                            expungeDueTimes.put(id, System.currentTimeMillis() + expungeDelay.toMilliseconds());
+                        }
+                        for (Map<String, Object> rule : ImmutableList.copyOf(resourcesOfType("portforwardingrule").values())) {
+                            if (id.equals(rule.get("virtualmachineid"))) resourcesOfType("portforwardingrule").remove(rule.get("id"));
+                        }
+                        return ImmutableMap.<String, Object>of("virtualmachine", vm);
+                    }});
+            }});
+        handlers.put("createportforwardingrule", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                final String ipId = required(params, "ipaddressid");
+                final String vmId = required(params, "virtualmachineid");
+                final String protocol = required(params, "protocol");
+                final String publicPort = required(params, "publicport");
+                final String privatePort = required(params, "privateport");
+                final String networkId = params.get("networkid");
+                requiredResource("publicipaddress", ipId);
+                requiredResource("virtualmachine", vmId);
+                final String id = newId("pfrule");
+                return async("createPortForwardingRule", id, new JobAction() {
+                    @Override public Map<String, Object> apply() {
+                        for (Map<String, Object> rule : resourcesOfType("portforwardingrule").values()) {
+                            if (ipId.equals(rule.get("ipaddressid")) && publicPort.equals(rule.get("publicport")) && protocol.equalsIgnoreCase((String) rule.get("protocol"))) {
+                                throw new CloudstackError(ERROR_PARAM, "The range specified, "+publicPort+"-"+publicPort+", conflicts with rule "+rule.get("id"));
+                            }
+                        }
+                        Map<String, Object> rule = Maps.newLinkedHashMap();
+                        rule.put("id", id);
+                        rule.put("ipaddressid", ipId);
+                        rule.put("virtualmachineid", vmId);
+                        rule.put("protocol", protocol.toLowerCase());
+                        rule.put("publicport", publicPort);
+                        rule.put("privateport", privatePort);
+                        if (networkId != null) rule.put("networkid", networkId);
+                        rule.put("state", "Active");
+                        resourcesOfType("portforwardingrule").put(id, rule);
+                        return ImmutableMap.<String, Object>of("portforwardingrule", rule);
+                    }});
+            }});
+        handlers.put("createloadbalancerrule", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                final String ipId = required(params, "publicipid");
+                final String name = required(params, "name");
+                final String algorithm = required(params, "algorithm");
+                final String publicPort = required(params, "publicport");
+                final String privatePort = required(params, "privateport");
+                final Map<String, Object> ip = requiredResource("publicipaddress", ipId);
+                final String id = newId("lbrule");
+                return async("createLoadBalancerRule", id, new JobAction() {
+                    @Override public Map<String, Object> apply() {
+                        for (Map<String, Object> rule : resourcesOfType("loadbalancerrule").values()) {
+                            if (ipId.equals(rule.get("publicipid")) && publicPort.equals(rule.get("publicport"))) {
+                                throw new CloudstackError(ERROR_PARAM, "The range specified, "+publicPort+"-"+publicPort+", conflicts with rule "+rule.get("id"));
+                            }
+                        }
+                        Map<String, Object> rule = Maps.newLinkedHashMap();
+                        rule.put("id", id);
+                        rule.put("name", name);
+                        rule.put("publicipid", ipId);
+                        rule.put("publicip", ip.get("ipaddress"));
+                        rule.put("publicport", publicPort);
+                        rule.put("privateport", privatePort);
+                        rule.put("algorithm", algorithm);
+                        rule.put("zoneid", ZONE_ID);
+                        rule.put("state", "Active");
+                        resourcesOfType("loadbalancerrule").put(id, rule);
+                        loadBalancerMembers.put(id, Sets.<String>newLinkedHashSet());
+                        return ImmutableMap.<String, Object>of("loadbalancer", rule);
+                    }});
+            }});
+        handlers.put("deleteloadbalancerrule", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                final String id = required(params, "id");
+                requiredResource("loadbalancerrule", id);
+                return async("deleteLoadBalancerRule", id, new JobAction() {
+                    @Override public Map<String, Object> apply() {
+                        resourcesOfType("loadbalancerrule").remove(id);
+                        loadBalancerMembers.remove(id);
+                        return SUCCESS.apply();
+                    }});
+            }});
+        handlers.put("assigntoloadbalancerrule", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                return updateLoadBalancerMembers("assignToLoadBalancerRule", params, true);
+            }});
+        handlers.put("removefromloadbalancerrule", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                return updateLoadBalancerMembers("removeFromLoadBalancerRule", params, false);
+            }});
+        handlers.put("listloadbalancerruleinstances", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                String id = required(params, "id");
+                requiredResource("loadbalancerrule", id);
+                List<Map<String, Object>> vms = Lists.newArrayList();
+                for (String vmId : loadBalancerMembers.get(id)) {
+                    Map<String, Object> vm = resourcesOfType("virtualmachine").get(vmId);
+                    if (vm != null) vms.add(vm);
+                }
+                if (vms.isEmpty()) return ImmutableMap.<String, Object>of();
+                return ImmutableMap.<String, Object>of("count", vms.size(), "loadbalancerruleinstance", vms);
+            }});
+        handlers.put("createnetworkacl", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                return createRule("createNetworkACL", "networkacl", params);
+            }});
+        handlers.put("createegressfirewallrule", new Handler() {
+            @Override public Map<String, Object> handle(Map<String, String> params) {
+                return createRule("createEgressFirewallRule", "firewallrule", params);
+            }});
+    }
+
+    private Map<String, Object> updateLoadBalancerMembers(String command, Map<String, String> params, final boolean add) {
+        final String id = required(params, "id");
+        requiredResource("loadbalancerrule", id);
+        final List<String> vmIds = ImmutableList.copyOf(required(params, "virtualmachineids").split(","));
+        for (String vmId : vmIds) {
+            requiredResource("virtualmachine", vmId);
+        }
+        return async(command, id, new JobAction() {
+            @Override public Map<String, Object> apply() {
+                Set<String> members = loadBalancerMembers.get(id);
+                if (members == null) throw new CloudstackError(ERROR_PARAM, "Unable to find load balancer rule "+id);
+                if (add) {
+                    members.addAll(vmIds);
+                } else {
+                    members.removeAll(vmIds);
+                }
+                return SUCCESS.apply();
+            }});
+    }
+
+    private Map<String, Object> createRule(String command, final String type, Map<String, String> params) {
+        final String networkId = required(params, "networkid");
+        required(params, "protocol");
+        requiredResource("network", networkId);
+        final String id = newId(type);
+        final Map<String, Object> rule = Maps.newLinkedHashMap();
+        rule.put("id", id);
+        for (String key : ImmutableList.of("networkid", "protocol", "cidrlist", "startport", "endport", "icmpcode", "icmptype", "traffictype")) {
+            if (params.containsKey(key)) rule.put(key, params.get(key));
+        }
+        rule.put("state", "Active");
+        return async(command, id, new JobAction() {
+            @Override public Map<String, Object> apply() {
+                resourcesOfType(type).put(id, rule);
+                return ImmutableMap.<String, Object>of(type, rule);
+            }});
+    }
+}
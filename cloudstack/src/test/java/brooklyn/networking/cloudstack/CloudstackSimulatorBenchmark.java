@@ -0,0 +1,141 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Throughput and latency of {@link CloudstackNew40FeaturesClient} operations against the {@link CloudstackSimulator},
+ * with simulated request and job latencies. Results are logged; assertions only check the operations completed.
+ */
+public class CloudstackSimulatorBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CloudstackSimulatorBenchmark.class);
+
+    private CloudstackSimulator sim;
+    private CloudstackNew40FeaturesClient client;
+    private ExecutorService executor;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        sim = new CloudstackSimulator().start();
+        client = sim.newClient();
+        executor = Executors.newCachedThreadPool();
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (executor != null) executor.shutdownNow();
+        if (client != null) client.close();
+        if (sim != null) sim.stop();
+    }
+
+    @Test(groups="Integration")
+    public void testListThroughput() throws Exception {
+        for (int i = 0; i < 2000; i++) {
+            sim.addVpc("bench-vpc-"+i, "10."+(i/256)+"."+(i%256)+".0/24");
+        }
+        sim.setRequestLatency(Duration.millis(5));
+
+        int iterations = 50;
+        List<Long> latencies = Lists.newArrayList();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            assertEquals(client.findVpcIdsNameMatchingRegex("bench-vpc-1.*").size(), 1111);
+            latencies.add((System.nanoTime() - start) / 1000);
+        }
+        report("list+filter 2000 VPCs", latencies);
+    }
+
+    @Test(groups="Integration")
+    public void testConcurrentCreateLatency() throws Exception {
+        sim.setRequestLatency(Duration.millis(10)).setJobLatency(Duration.millis(500));
+        final String zoneId = CloudstackSimulator.ZONE_ID;
+        final String offeringId = client.getFirstVpcOfferingId();
+
+        int count = 40;
+        List<Future<Long>> futures = Lists.newArrayList();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override public Long call() {
+                    long opStart = System.nanoTime();
+                    client.createVpc("10."+index+".0.0/16", "bench", "bench-create-"+index, offeringId, zoneId);
+                    return (System.nanoTime() - opStart) / 1000;
+                }}));
+        }
+        List<Long> latencies = Lists.newArrayList();
+        for (Future<Long> future : futures) {
+            latencies.add(future.get());
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        report("concurrent createVpc", latencies);
+        LOG.info("concurrent createVpc: {} in {}ms ({} jobs polled with {} queries)", new Object[] {
+                count, elapsedMillis, count, sim.getRequestCount("listAsyncJobs") + sim.getRequestCount("queryAsyncJobResult")});
+        assertEquals(sim.getResources("vpc").size(), count);
+    }
+
+    @Test(groups="Integration")
+    public void testBulkDeletionThroughput() throws Exception {
+        sim.setRequestLatency(Duration.millis(10)).setJobLatency(Duration.millis(300));
+        String vpcId = sim.addVpc("bench-vpc", "10.0.0.0/16");
+        for (int t = 0; t < 5; t++) {
+            String tierId = sim.addVpcTier("bench-tier-"+t, vpcId);
+            for (int v = 0; v < 20; v++) {
+                sim.addVirtualMachine("bench-vm-"+t+"-"+v, tierId);
+            }
+        }
+
+        long start = System.nanoTime();
+        CloudstackBulkDeletion.Report report = client.deleteVpcAndContents(vpcId);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        LOG.info("deleteVpcAndContents of 100 VMs, 5 tiers: {}ms; {} requests; {}", new Object[] {
+                elapsedMillis, sim.getTotalRequestCount(), report});
+        assertTrue(report.isSuccess(), "report="+report);
+    }
+
+    private void report(String name, List<Long> latenciesMicros) {
+        List<Long> sorted = Lists.newArrayList(latenciesMicros);
+        Collections.sort(sorted);
+        long total = 0;
+        for (Long l : sorted) total += l;
+        LOG.info("{}: n={}; mean={}ms; p50={}ms; p95={}ms; max={}ms", new Object[] {
+                name, sorted.size(),
+                total / sorted.size() / 1000.0,
+                sorted.get(sorted.size() / 2) / 1000.0,
+                sorted.get((int) (sorted.size() * 0.95)) / 1000.0,
+                sorted.get(sorted.size() - 1) / 1000.0});
+    }
+}
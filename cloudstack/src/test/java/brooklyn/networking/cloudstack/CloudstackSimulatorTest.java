@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+
+import org.jclouds.cloudstack.domain.PortForwardingRule.Protocol;
+import org.jclouds.cloudstack.domain.PublicIPAddress;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+public class CloudstackSimulatorTest {
+
+    private CloudstackSimulator sim;
+    private CloudstackNew40FeaturesClient client;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        sim = new CloudstackSimulator().start();
+        client = sim.newClient();
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (client != null) client.close();
+        if (sim != null) sim.stop();
+    }
+
+    @Test
+    public void testCreateVpcWithTierIpAndRule() throws Exception {
+        sim.setJobLatency(Duration.millis(100));
+        String zoneId = client.findZoneMatchingName("sim-zone").getId();
+        String vpcId = client.createVpc("10.0.0.0/16", "test vpc", "test-vpc", client.getFirstVpcOfferingId(), zoneId);
+        assertNotNull(sim.getResource("vpc", vpcId));
+        assertEquals(client.findVpcIdWithCidr("10.0.0.0/16"), vpcId);
+
+        String offeringId = client.getNetworkOfferingWithName(CloudstackSimulator.VPC_TIER_OFFERING_NAME);
+        String tierId = client.createVpcTier("test-tier", "test tier", offeringId, zoneId, vpcId, "10.0.1.1", "255.255.255.0");
+        assertEquals(sim.getResource("network", tierId).get("vpcid"), vpcId);
+
+        PublicIPAddress ip = client.createIpAddressForVpc(vpcId);
+        assertNotNull(ip);
+
+        String vmId = sim.addVirtualMachine("test-vm", tierId);
+        String jobId = client.createPortForwardRuleForVpc(tierId, ip.getId(), Protocol.TCP, 8080, vmId, 80);
+        client.waitForJobSuccess(jobId);
+        assertEquals(sim.getResources("portforwardingrule").size(), 1);
+    }
+
+    @Test
+    public void testDeleteVpcAndContents() throws Exception {
+        String vpcId = sim.addVpc("test-vpc", "10.0.0.0/16");
+        String tierId = sim.addVpcTier("test-tier", vpcId);
+        sim.addVirtualMachine("test-vm-1", tierId);
+        sim.addVirtualMachine("test-vm-2", tierId);
+        client.createIpAddressForVpc(vpcId);
+
+        CloudstackBulkDeletion.Report report = client.deleteVpcAndContents(vpcId);
+        assertTrue(report.isSuccess(), "report="+report);
+        assertTrue(sim.getResources("vpc").isEmpty());
+        assertTrue(sim.getResources("network").isEmpty());
+        assertTrue(sim.getResources("virtualmachine").isEmpty());
+        assertTrue(sim.getResources("publicipaddress").isEmpty());
+    }
+
+    @Test
+    public void testDeleteVpcAndContentsExpungesVms() throws Exception {
+        String vpcId = sim.addVpc("test-vpc", "10.0.0.0/16");
+        String tierId = sim.addVpcTier("test-tier", vpcId);
+        sim.addVirtualMachine("test-vm", tierId);
+
+        CloudstackBulkDeletion.Report report = client.deleteVpcAndContents(vpcId);
+        assertTrue(report.isSuccess(), "report="+report);
+        assertEquals(sim.getRequestCount("destroyVirtualMachine"), 1);
+        assertTrue(sim.getResources("network").isEmpty());
+    }
+
+    @Test
+    public void testDeleteVpcAndContentsWaitsForExpungeWhenNotAllowedToExpunge() throws Exception {
+        sim.setExpungeAllowed(false).setExpungeDelay(Duration.millis(500));
+        String vpcId = sim.addVpc("test-vpc", "10.0.0.0/16");
+        String tierId = sim.addVpcTier("test-tier", vpcId);
+        String vmId = sim.addVirtualMachine("test-vm", tierId);
+        // already destroyed, e.g. by an earlier attempt
+        String destroyedVmId = sim.addVirtualMachine("destroyed-vm", tierId);
+        client.waitForJobSuccess(client.startDestroyVirtualMachine(destroyedVmId, false));
+        assertEquals(sim.getResource("virtualmachine", destroyedVmId).get("state"), "Destroyed");
+
+        CloudstackBulkDeletion.Report report = client.deleteVpcAndContents(vpcId);
+        assertTrue(report.isSuccess(), "report="+report);
+        assertNull(sim.getResource("virtualmachine", vmId));
+        assertNull(sim.getResource("virtualmachine", destroyedVmId));
+        assertTrue(sim.getResources("network").isEmpty());
+        assertTrue(sim.getResources("vpc").isEmpty());
+    }
+
+    @Test
+    public void testDeleteVmsOnlyFallsBackWhenNotAllowedToExpunge() throws Exception {
+        String tierId = sim.addVpcTier("test-tier", sim.addVpc("test-vpc", "10.0.0.0/16"));
+        String vmId = sim.addVirtualMachine("test-vm", tierId);
+        client.waitForJobSuccess(client.startDestroyVirtualMachine(vmId, false));
+
+        // fails for another reason (already destroyed), so is reported rather than retried without expunging
+        CloudstackBulkDeletion.Report report = client.getBulkDeletion().deleteVms(ImmutableSet.of(vmId));
+        assertEquals(report.getFailed().keySet(), ImmutableSet.of(vmId));
+        assertEquals(sim.getRequestCount("destroyVirtualMachine"), 2);
+
+        assertTrue(CloudstackBulkDeletion.isExpungeNotPermitted(new CloudstackApiException("destroyVirtualMachine", 431,
+                "Parameter expunge can be passed by Admin only", false, null)));
+        assertFalse(CloudstackBulkDeletion.isExpungeNotPermitted(new CloudstackApiException("destroyVirtualMachine", 431,
+                "Unable to find virtual machine with specified id", false, null)));
+    }
+
+    @Test
+    public void testDestroyedVmHoldsNetworkUntilExpunged() throws Exception {
+        sim.setExpungeDelay(Duration.millis(200));
+        String vpcId = sim.addVpc("test-vpc", "10.0.0.0/16");
+        String tierId = sim.addVpcTier("test-tier", vpcId);
+        String vmId = sim.addVirtualMachine("test-vm", tierId);
+        client.waitForJobSuccess(client.startDestroyVirtualMachine(vmId, false));
+
+        CloudstackBulkDeletion.Report report = client.getBulkDeletion().deleteNetworks(ImmutableSet.of(tierId));
+        assertEquals(report.getFailed().keySet(), ImmutableSet.of(tierId));
+
+        Thread.sleep(300);
+        assertEquals(sim.getResource("virtualmachine", vmId).get("state"), "Expunging");
+        assertNull(sim.getResource("virtualmachine", vmId));
+        assertTrue(client.getBulkDeletion().deleteNetworks(ImmutableSet.of(tierId)).isSuccess());
+    }
+
+    @Test
+    public void testListPagedFetchesPagesLazily() throws Exception {
+        for (int i = 0; i < 25; i++) {
+            sim.addVpc("paged-vpc-"+i, "10."+i+".0.0/16");
+        }
+        List<String> names = Lists.newArrayList();
+        for (Map<String, String> vpc : client.listPaged("listVPCs", "vpc", ImmutableMultimap.<String, String>of(), ImmutableSet.of("name"), 10)) {
+            names.add(vpc.get("name"));
+        }
+        assertEquals(names.size(), 25);
+        assertEquals(sim.getRequestCount("listVPCs"), 3);
+
+        sim.resetRequestCounts();
+        assertEquals(client.findVpcIdsNameMatchingRegex("paged-vpc-1.*").size(), 11);
+        assertEquals(sim.getRequestCount("listVPCs"), 1);
+    }
+
+    @Test
+    public void testRejectsBadSignature() throws Exception {
+        CloudstackNew40FeaturesClient badClient = CloudstackNew40FeaturesClient.newInstance(sim.getEndpoint(), sim.getApiKey(), "wrong-secret");
+        try {
+            badClient.createVpc("10.0.0.0/16", "bad", "bad", CloudstackSimulator.VPC_OFFERING_ID, CloudstackSimulator.ZONE_ID);
+            fail("expected failure due to bad signature");
+        } catch (RuntimeException e) {
+            // expected
+        } finally {
+            badClient.close();
+        }
+        assertEquals(sim.getSignatureFailureCount(), 1);
+        assertTrue(sim.getResources("vpc").isEmpty());
+    }
+
+    @Test
+    public void testInjectedJobFailure() throws Exception {
+        sim.failNextJobs("createVPC", 1);
+        try {
+            client.createVpc("10.0.0.0/16", "failing", "failing", CloudstackSimulator.VPC_OFFERING_ID, CloudstackSimulator.ZONE_ID);
+            fail("expected injected job failure");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertTrue(sim.getResources("vpc").isEmpty());
+
+        String vpcId = client.createVpc("10.0.0.0/16", "second", "second", CloudstackSimulator.VPC_OFFERING_ID, CloudstackSimulator.ZONE_ID);
+        assertNotNull(sim.getResource("vpc", vpcId));
+    }
+
+    @Test
+    public void testDeleteVpcWithTiersFailsJob() throws Exception {
+        String vpcId = sim.addVpc("test-vpc", "10.0.0.0/16");
+        sim.addVpcTier("test-tier", vpcId);
+
+        CloudstackBulkDeletion.Report report = client.getBulkDeletion().deleteVpcs(ImmutableSet.of(vpcId));
+        assertEquals(report.getFailed().keySet(), ImmutableSet.of(vpcId));
+        assertNotNull(sim.getResource("vpc", vpcId));
+        assertNull(sim.getResource("vpc", "no-such-vpc"));
+    }
+
+    @Test
+    public void testJobTrackersShareOnePollingThread() throws Exception {
+        sim.setJobLatency(Duration.millis(50));
+        List<CloudstackNew40FeaturesClient> clients = Lists.newArrayList();
+        try {
+            for (int i = 0; i < 5; i++) {
+                CloudstackNew40FeaturesClient other = sim.newClient();
+                clients.add(other);
+                other.createVpc("10."+i+".0.0/16", "vpc-"+i, "vpc-"+i, CloudstackSimulator.VPC_OFFERING_ID, CloudstackSimulator.ZONE_ID);
+            }
+        } finally {
+            for (CloudstackNew40FeaturesClient other : clients) other.close();
+        }
+        int trackerThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if ("brooklyn-cloudstack-job-tracker".equals(thread.getName())) trackerThreads++;
+        }
+        assertEquals(trackerThreads, 1);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Set;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.util.EntityUtils;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.time.Duration;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class HttpClientPoolTest {
+
+    private HttpServer server;
+    private Set<Integer> clientPorts;
+    private HttpClientPool pool;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        clientPorts = Sets.newConcurrentHashSet();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override public void handle(HttpExchange exchange) throws IOException {
+                clientPorts.add(exchange.getRemoteAddress().getPort());
+                byte[] bytes = "ok".getBytes(Charsets.UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(bytes);
+                } finally {
+                    out.close();
+                }
+            }});
+        server.start();
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (pool != null) pool.close();
+        if (server != null) server.stop(0);
+        HttpClientPool.closeEndpoint(URI.create(getUrl()));
+    }
+
+    private String getUrl() {
+        return "http://127.0.0.1:"+server.getAddress().getPort()+"/client/api";
+    }
+
+    private String get() throws Exception {
+        HttpResponse response = pool.getHttpClient().execute(new HttpGet(getUrl()));
+        return EntityUtils.toString(response.getEntity());
+    }
+
+    @Test
+    public void testReusesConnectionForConsecutiveRequests() throws Exception {
+        pool = new HttpClientPool("test", 5, 5, Duration.seconds(30), Duration.seconds(60));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(get(), "ok");
+        }
+        assertEquals(clientPorts.size(), 1, "ports="+clientPorts);
+    }
+
+    @Test
+    public void testStatsReportIdleConnectionAfterResponseConsumed() throws Exception {
+        pool = new HttpClientPool("test", 5, 3, Duration.seconds(30), Duration.seconds(60));
+        get();
+        PoolStats stats = pool.getStats();
+        assertEquals(stats.getLeased(), 0);
+        assertEquals(stats.getAvailable(), 1);
+        assertEquals(stats.getMax(), 5);
+    }
+
+    @Test
+    public void testCloseReleasesConnections() throws Exception {
+        pool = new HttpClientPool("test", 5, 5, Duration.seconds(30), Duration.seconds(60));
+        get();
+        pool.close();
+        assertEquals(pool.getStats().getAvailable(), 0);
+        pool = null;
+    }
+
+    @Test
+    public void testForEndpointSharesPoolPerEndpoint() throws Exception {
+        URI uri = URI.create(getUrl());
+        HttpClientPool first = HttpClientPool.forEndpoint(uri);
+        assertSame(HttpClientPool.forEndpoint(URI.create(getUrl()+"?command=listVPCs")), first);
+        assertTrue(HttpClientPool.getAllStats().containsKey(first.getEndpoint()));
+
+        HttpClientPool.closeEndpoint(uri);
+        assertFalse(HttpClientPool.getAllStats().containsKey(first.getEndpoint()));
+        HttpClientPool second = HttpClientPool.forEndpoint(uri);
+        assertNotSame(second, first);
+    }
+
+    @Test
+    public void testEndpointKeyDefaultsPortFromScheme() throws Exception {
+        assertEquals(HttpClientPool.endpointKey(URI.create("https://Cloud.example.com/client/api")), "https://Cloud.example.com:443");
+        assertEquals(HttpClientPool.endpointKey(URI.create("HTTP://cloud.example.com/client/api")), "http://cloud.example.com:80");
+        assertEquals(HttpClientPool.endpointKey(URI.create("http://cloud.example.com:8080/client/api")), "http://cloud.example.com:8080");
+    }
+}
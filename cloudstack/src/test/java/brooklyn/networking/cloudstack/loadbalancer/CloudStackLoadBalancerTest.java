@@ -0,0 +1,375 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.cloudstack.loadbalancer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.ApplicationBuilder;
+import brooklyn.entity.basic.BasicGroup;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.entity.basic.Lifecycle;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.entity.trait.Startable;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
+import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.location.Location;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.basic.PortRanges;
+import brooklyn.location.basic.SimulatedLocation;
+import brooklyn.location.jclouds.JcloudsLocation;
+import brooklyn.networking.cloudstack.CloudstackNew40FeaturesClient;
+import brooklyn.networking.cloudstack.CloudstackSimulator;
+import brooklyn.test.Asserts;
+import brooklyn.test.EntityTestUtils;
+import brooklyn.test.entity.TestApplication;
+import brooklyn.test.entity.TestEntity;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+/**
+ * Runs the load balancer against the {@link CloudstackSimulator}; members give their VM id in a sensor
+ * rather than through a jclouds machine location.
+ */
+public class CloudStackLoadBalancerTest {
+
+    public static final AttributeSensor<String> VM_ID = new BasicAttributeSensor<String>(String.class, "test.cloudstack.vmId");
+
+    public static class VmIdSensorLoadBalancerImpl extends CloudStackLoadBalancerImpl {
+        @Override
+        protected String resolveVmId(Entity member) {
+            return member.getAttribute(VM_ID);
+        }
+    }
+
+    private CloudstackSimulator sim;
+    private CloudstackNew40FeaturesClient client;
+    private TestApplication app;
+    private JcloudsLocation loc;
+    private BasicGroup pool;
+    private String tierId;
+    private String publicIpId;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        sim = new CloudstackSimulator().start();
+        client = sim.newClient();
+        String vpcId = sim.addVpc("lb-vpc", "10.0.0.0/16");
+        tierId = sim.addVpcTier("lb-tier", vpcId);
+        publicIpId = (String) Iterables.getOnlyElement(sim.getResources("publicipaddress")).get("id");
+
+        app = ApplicationBuilder.newManagedApp(TestApplication.class);
+        loc = (JcloudsLocation) app.getManagementContext().getLocationRegistry().resolve("jclouds:cloudstack:"+sim.getEndpoint(),
+                ImmutableMap.of("identity", sim.getApiKey(), "credential", sim.getSecretKey()));
+        pool = app.createAndManageChild(EntitySpec.create(BasicGroup.class));
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        try {
+            if (app != null) Entities.destroyAll(app.getManagementContext());
+        } finally {
+            if (client != null) client.close();
+            if (sim != null) sim.stop();
+        }
+    }
+
+    protected EntitySpec<CloudStackLoadBalancer> loadBalancerSpec(Duration reloadDebounce, Duration reconcilePeriod) {
+        return EntitySpec.create(CloudStackLoadBalancer.class)
+                .impl(VmIdSensorLoadBalancerImpl.class)
+                .configure(CloudStackLoadBalancer.SERVER_POOL, pool)
+                .configure(CloudStackLoadBalancer.PUBLIC_IP_ID, publicIpId)
+                .configure(CloudStackLoadBalancer.PROXY_HTTP_PORT, PortRanges.fromInteger(80))
+                .configure(CloudStackLoadBalancer.INSTANCE_PORT, 8080)
+                .configure(CloudStackLoadBalancer.RELOAD_DEBOUNCE, reloadDebounce)
+                .configure(CloudStackLoadBalancer.RECONCILE_PERIOD, reconcilePeriod);
+    }
+
+    protected CloudStackLoadBalancer newLoadBalancer(Duration reloadDebounce, Duration reconcilePeriod) {
+        return app.createAndManageChild(loadBalancerSpec(reloadDebounce, reconcilePeriod));
+    }
+
+    protected CloudStackLoadBalancer newLoadBalancer(Map<Integer, Integer> listeners) {
+        return app.createAndManageChild(loadBalancerSpec(Duration.ZERO, Duration.minutes(5))
+                .configure(CloudStackLoadBalancer.LISTENERS, listeners));
+    }
+
+    /** adds a VM to the simulator, and a member for it to the pool */
+    protected TestEntity addMember(String name) {
+        TestEntity member = app.createAndManageChild(EntitySpec.create(TestEntity.class));
+        member.setAttribute(VM_ID, sim.addVirtualMachine(name, tierId));
+        member.setAttribute(Startable.SERVICE_UP, true);
+        pool.addMember(member);
+        return member;
+    }
+
+    protected void assertMembersEventually(final String ruleId, final Set<String> expected) {
+        Asserts.succeedsEventually(new Runnable() {
+            @Override public void run() {
+                assertEquals(sim.getLoadBalancerMembers(ruleId), expected);
+            }});
+    }
+
+    protected static boolean hasSyncThread(Entity lb) {
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().equals("brooklyn-cloudstack-lb-sync-"+lb.getId())) return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void testCoalescesBurstOfPoolChanges() throws Exception {
+        CloudStackLoadBalancer lb = newLoadBalancer(Duration.seconds(2), Duration.minutes(5));
+        app.start(ImmutableList.<Location>of(loc));
+        String ruleId = lb.getAttribute(CloudStackLoadBalancer.LOAD_BALANCER_ID);
+
+        ImmutableSet.Builder<String> vmIds = ImmutableSet.builder();
+        for (int i = 0; i < 3; i++) {
+            vmIds.add(addMember("vm-"+i).getAttribute(VM_ID));
+        }
+        assertMembersEventually(ruleId, vmIds.build());
+        assertEquals(sim.getRequestCount("assignToLoadBalancerRule"), 1);
+    }
+
+    @Test
+    public void testReconcilesMembersChangedOutsideBrooklyn() throws Exception {
+        CloudStackLoadBalancer lb = newLoadBalancer(Duration.ZERO, Duration.millis(250));
+        app.start(ImmutableList.<Location>of(loc));
+        String ruleId = lb.getAttribute(CloudStackLoadBalancer.LOAD_BALANCER_ID);
+        String first = addMember("vm-0").getAttribute(VM_ID);
+        String second = addMember("vm-1").getAttribute(VM_ID);
+        assertMembersEventually(ruleId, ImmutableSet.of(first, second));
+
+        // e.g. removed by hand in the CloudStack UI
+        String jobId = client.getLoadBalancerClient().removeVirtualMachinesFromLoadBalancerRule(ruleId, ImmutableList.of(second));
+        client.waitForJobSuccess(jobId);
+
+        // (possibly already re-added, as the reconcile period is short)
+        assertMembersEventually(ruleId, ImmutableSet.of(first, second));
+    }
+
+    @Test
+    public void testStopReleasesSyncThread() throws Exception {
+        final CloudStackLoadBalancer lb = newLoadBalancer(Duration.millis(100), Duration.minutes(5));
+        app.start(ImmutableList.<Location>of(loc));
+        addMember("vm-0");
+        Asserts.succeedsEventually(new Runnable() {
+            @Override public void run() {
+                assertEquals(sim.getRequestCount("assignToLoadBalancerRule"), 1);
+            }});
+
+        lb.stop();
+        Asserts.succeedsEventually(new Runnable() {
+            @Override public void run() {
+                assertFalse(hasSyncThread(lb));
+            }});
+
+        // pool changes after stopping do not restart it
+        addMember("vm-1");
+        assertFalse(hasSyncThread(lb));
+    }
+
+    @Test
+    public void testUnmanageReleasesSyncThread() throws Exception {
+        final CloudStackLoadBalancer lb = newLoadBalancer(Duration.millis(100), Duration.minutes(5));
+        app.start(ImmutableList.<Location>of(loc));
+        Asserts.succeedsEventually(new Runnable() {
+            @Override public void run() {
+                assertTrue(hasSyncThread(lb));
+            }});
+
+        Entities.unmanage(lb);
+        Asserts.succeedsEventually(new Runnable() {
+            @Override public void run() {
+                assertFalse(hasSyncThread(lb));
+            }});
+    }
+
+    @Test
+    public void testFailedStartReleasesSyncThread() throws Exception {
+        sim.failNextJobs("createLoadBalancerRule", 1);
+        final CloudStackLoadBalancer lb = newLoadBalancer(Duration.millis(100), Duration.minutes(5));
+        try {
+            app.start(ImmutableList.<Location>of(loc));
+        } catch (Exception e) {
+            // expected
+        }
+        assertNull(lb.getAttribute(CloudStackLoadBalancer.LOAD_BALANCER_ID));
+        assertFalse(hasSyncThread(lb));
+    }
+
+    @Test
+    public void testCreatesRuleForEachListener() throws Exception {
+        CloudStackLoadBalancer lb = newLoadBalancer(ImmutableMap.of(80, 8080, 443, 8443));
+        app.start(ImmutableList.<Location>of(loc));
+
+        Map<Integer, String> ruleIds = lb.getAttribute(CloudStackLoadBalancer.LOAD_BALANCER_IDS);
+        assertEquals(ruleIds.keySet(), ImmutableSet.of(80, 443));
+        assertEquals(lb.getAttribute(CloudStackLoadBalancer.LOAD_BALANCER_ID), ruleIds.get(80));
+        assertEquals(lb.getAttribute(CloudStackLoadBalancer.PROXY_HTTP_PORT), (Integer) 80);
+
+        String lbName = lb.getAttribute(CloudStackLoadBalancer.LOAD_BALANCER_NAME);
+        Map<String, Object> http = sim.getResource("loadbalancerrule", ruleIds.get(80));
+        Map<String, Object> https = sim.getResource("loadbalancerrule", ruleIds.get(443));
+        assertEquals(http.get("name"), lbName+"-80");
+        assertEquals(http.get("privateport"), "8080");
+        assertEquals(https.get("name"), lbName+"-443");
+        assertEquals(https.get("privateport"), "8443");
+    }
+
+    @Test
+    public void testRollsBackRulesWhenOneFails() throws Exception {
+        sim.failNextJobs("createLoadBalancerRule", 1);
+        CloudStackLoadBalancer lb = newLoadBalancer(ImmutableMap.of(80, 8080, 443, 8443));
+        try {
+            app.start(ImmutableList.<Location>of(loc));
+            fail("expected start to fail");
+        } catch (Exception e) {
+            assertNotNull(Exceptions.getFirstThrowableOfType(e, IllegalStateException.class), "e="+e);
+        }
+
+        // the rule that was created has been deleted by the time start fails
+        assertEquals(sim.getRequestCount("deleteLoadBalancerRule"), 1);
+        assertEquals(sim.getResources("loadbalancerrule"), ImmutableList.of());
+        assertEquals(lb.getAttribute(CloudStackLoadBalancer.SERVICE_STATE), Lifecycle.ON_FIRE);
+    }
+
+    @Test
+    public void testRollbackFailureDoesNotMaskCreateFailure() throws Exception {
+        sim.failNextJobs("createLoadBalancerRule", 1);
+        sim.failNextJobs("deleteLoadBalancerRule", 1);
+        newLoadBalancer(ImmutableMap.of(80, 8080, 443, 8443));
+        try {
+            app.start(ImmutableList.<Location>of(loc));
+            fail("expected start to fail");
+        } catch (Exception e) {
+            IllegalStateException cause = Exceptions.getFirstThrowableOfType(e, IllegalStateException.class);
+            assertNotNull(cause, "e="+e);
+            assertTrue(cause.getMessage().contains("Failed to create load balancer"), "e="+e);
+        }
+
+        // the rule which could not be deleted is left (and logged)
+        assertEquals(sim.getResources("loadbalancerrule").size(), 1);
+    }
+
+    @Test
+    public void testAssignsMembersToAllRules() throws Exception {
+        CloudStackLoadBalancer lb = newLoadBalancer(ImmutableMap.of(80, 8080, 443, 8443, 8000, 8000));
+        app.start(ImmutableList.<Location>of(loc));
+        Map<Integer, String> ruleIds = lb.getAttribute(CloudStackLoadBalancer.LOAD_BALANCER_IDS);
+
+        String first = addMember("vm-0").getAttribute(VM_ID);
+        String second = addMember("vm-1").getAttribute(VM_ID);
+        for (String ruleId : ruleIds.values()) {
+            assertMembersEventually(ruleId, ImmutableSet.of(first, second));
+        }
+
+        // and removals likewise go to every rule
+        TestEntity third = addMember("vm-2");
+        for (String ruleId : ruleIds.values()) {
+            assertMembersEventually(ruleId, ImmutableSet.of(first, second, third.getAttribute(VM_ID)));
+        }
+        pool.removeMember(third);
+        for (String ruleId : ruleIds.values()) {
+            assertMembersEventually(ruleId, ImmutableSet.of(first, second));
+        }
+    }
+
+    @Test
+    public void testResolvesUnresolvedMemberWhenLocationAdded() throws Exception {
+        CloudStackLoadBalancer lb = newLoadBalancer(Duration.ZERO, Duration.minutes(5));
+        app.start(ImmutableList.<Location>of(loc));
+        String ruleId = lb.getAttribute(CloudStackLoadBalancer.LOAD_BALANCER_ID);
+
+        // no VM id yet, e.g. still provisioning
+        TestEntity member = app.createAndManageChild(EntitySpec.create(TestEntity.class));
+        member.setAttribute(Startable.SERVICE_UP, true);
+        pool.addMember(member);
+        EntityTestUtils.assertAttributeEqualsEventually(lb, CloudStackLoadBalancer.UNRESOLVED_MEMBERS, ImmutableSet.of(member.getId()));
+
+        String vmId = sim.addVirtualMachine("vm-0", tierId);
+        member.setAttribute(VM_ID, vmId);
+        member.addLocations(ImmutableList.of(newLocation()));
+
+        assertMembersEventually(ruleId, ImmutableSet.of(vmId));
+        EntityTestUtils.assertAttributeEqualsEventually(lb, CloudStackLoadBalancer.UNRESOLVED_MEMBERS, ImmutableSet.<String>of());
+    }
+
+    @Test
+    public void testResolvesMemberAgainWhenLocationChanged() throws Exception {
+        CloudStackLoadBalancer lb = newLoadBalancer(Duration.ZERO, Duration.minutes(5));
+        app.start(ImmutableList.<Location>of(loc));
+        String ruleId = lb.getAttribute(CloudStackLoadBalancer.LOAD_BALANCER_ID);
+        TestEntity member = addMember("vm-0");
+        assertMembersEventually(ruleId, ImmutableSet.of(member.getAttribute(VM_ID)));
+
+        // e.g. replaced
+        String replacement = sim.addVirtualMachine("vm-1", tierId);
+        member.setAttribute(VM_ID, replacement);
+        member.addLocations(ImmutableList.of(newLocation()));
+
+        assertMembersEventually(ruleId, ImmutableSet.of(replacement));
+    }
+
+    @Test
+    public void testRemovingMemberKeepsOtherSubscriptionsToIt() throws Exception {
+        CloudStackLoadBalancer lb = newLoadBalancer(Duration.ZERO, Duration.minutes(5));
+        app.start(ImmutableList.<Location>of(loc));
+        String ruleId = lb.getAttribute(CloudStackLoadBalancer.LOAD_BALANCER_ID);
+        TestEntity member = addMember("vm-0");
+        assertMembersEventually(ruleId, ImmutableSet.of(member.getAttribute(VM_ID)));
+
+        final List<String> names = Lists.newCopyOnWriteArrayList();
+        ((EntityLocal) lb).subscribe(member, TestEntity.NAME, new SensorEventListener<String>() {
+            @Override public void onEvent(SensorEvent<String> event) {
+                names.add(event.getValue());
+            }});
+        pool.removeMember(member);
+        assertMembersEventually(ruleId, ImmutableSet.<String>of());
+
+        member.setAttribute(TestEntity.NAME, "after-removal");
+        Asserts.succeedsEventually(new Runnable() {
+            @Override public void run() {
+                assertEquals(names, ImmutableList.of("after-removal"));
+            }});
+    }
+
+    private Location newLocation() {
+        return app.getManagementContext().getLocationManager().createLocation(LocationSpec.create(SimulatedLocation.class));
+    }
+}
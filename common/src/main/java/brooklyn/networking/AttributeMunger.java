@@ -37,10 +37,19 @@ public class AttributeMunger {
 
     private static final Logger log = LoggerFactory.getLogger(AttributeMunger.class);
 
-    private final EntityLocal adjunctEntity;
+    private final SubscriptionRegistry subscriptions;
 
     public AttributeMunger(EntityLocal adjunctEntity) {
-        this.adjunctEntity = adjunctEntity;
+        this(adjunctEntity, new SubscriptionRegistry(adjunctEntity));
+    }
+
+    /**
+     * @param subscriptions registry through which to subscribe (typically shared with other helpers of the same
+     *                      adjunct entity), so that repeated transforms of the same target replace rather than
+     *                      accumulate listeners
+     */
+    public AttributeMunger(EntityLocal adjunctEntity, SubscriptionRegistry subscriptions) {
+        this.subscriptions = subscriptions;
     }
 
     public void transformSensorStringReplacingWithPublicAddressAndPort(
@@ -48,6 +57,21 @@ public class AttributeMunger {
             final Optional<EntityAndAttribute<Integer>> optionalTargetPort,
             final Iterable<? extends AttributeSensor<String>> targetsToMatch,
             final EntityAndAttribute<String> replacementSource) {
+        transformSensorStringReplacingWithPublicAddressAndPort(targetToUpdate, optionalTargetPort, targetsToMatch, replacementSource,
+                Optional.<EntityAndAttribute<String>>absent());
+    }
+
+    /**
+     * As {@link #transformSensorStringReplacingWithPublicAddressAndPort(EntityAndAttribute, Optional, Iterable, EntityAndAttribute)},
+     * but if {@code optionalWhereToAdvertisePrivate} is present then the untransformed value is also published there
+     * whenever a private address is replaced (so that it is not lost when {@code targetToUpdate} is rewritten).
+     */
+    public void transformSensorStringReplacingWithPublicAddressAndPort(
+            final EntityAndAttribute<String> targetToUpdate,
+            final Optional<EntityAndAttribute<Integer>> optionalTargetPort,
+            final Iterable<? extends AttributeSensor<String>> targetsToMatch,
+            final EntityAndAttribute<String> replacementSource,
+            final Optional<EntityAndAttribute<String>> optionalWhereToAdvertisePrivate) {
         SensorPropagaterWithReplacement mapper = new SensorPropagaterWithReplacement(targetToUpdate, false, new Function<String,String>() {
             @Override
             public String apply(String sensorVal) {
@@ -73,6 +97,10 @@ public class AttributeMunger {
                 for (String targetValToMatch : targetValsToMatch.values()) {
                     output = replaceIfNotNull(output, targetValToMatch+suffix, replacementText);
                 }
+                if (optionalWhereToAdvertisePrivate.isPresent() && !Objects.equal(input, output)) {
+                    // input contained a private address, so it is the endpoint for peers inside the subnet
+                    setAttributeIfChanged(optionalWhereToAdvertisePrivate.get(), input);
+                }
 
                 log.debug("sensor mapper transforming address in "+targetToUpdate+": "+
                         "input="+input+"; output="+output+"; suffix="+suffix+
@@ -85,11 +113,14 @@ public class AttributeMunger {
 
         // TODO Should we subscribe to each of targetsToMatch?
         // And should we subscribe to optionalTargetPort?
+        // Keyed on the target, so re-transforming it (e.g. when a member restarts) replaces the old listeners
+        String key = "transform:"+targetToUpdate.getEntity().getId()+":"+targetToUpdate.getAttribute().getName();
+        subscriptions.release(key);
         for (AttributeSensor<String> targetToMatch : targetsToMatch) {
-            subscribe(targetToUpdate.getEntity(), targetToMatch, mapper);
+            subscribe(key, targetToUpdate.getEntity(), targetToMatch, mapper);
         }
-        subscribe(targetToUpdate.getEntity(), targetToUpdate.getAttribute(), mapper);
-        subscribe(replacementSource.getEntity(), replacementSource.getAttribute(), mapper);
+        subscribe(key, targetToUpdate.getEntity(), targetToUpdate.getAttribute(), mapper);
+        subscribe(key, replacementSource.getEntity(), replacementSource.getAttribute(), mapper);
         // assume hostname and port are set before the above subscription
         String newval = mapper.apply(targetToUpdate.get());
         if (newval != null) {
@@ -139,7 +170,7 @@ public class AttributeMunger {
         }
     }
 
-    private <T> void subscribe(Entity target, AttributeSensor<T> sensor, SensorEventListener<? super T> listener) {
-        adjunctEntity.subscribe(target, sensor, listener);
+    private <T> void subscribe(Object key, Entity target, AttributeSensor<T> sensor, SensorEventListener<? super T> listener) {
+        subscriptions.subscribe(key, target, sensor, listener);
     }
 }
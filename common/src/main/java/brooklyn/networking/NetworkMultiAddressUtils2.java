@@ -15,14 +15,10 @@
  */
 package brooklyn.networking;
 
-import brooklyn.util.net.Networking;
+import brooklyn.util.time.Duration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
-
 /**
  * Given several strings, determines which have the longest, and shorted, initial matching prefix.
  * Particularly useful as a poor-man's way to determine which IP's are likely to be the same subnet.
@@ -31,54 +27,29 @@ public class NetworkMultiAddressUtils2 {
 
     private static final Logger log = LoggerFactory.getLogger(NetworkMultiAddressUtils2.class);
     
+    /** how long {@link #getFirstAccessibleOnPort(int, Iterable)} keeps trying */
+    public static final Duration FIRST_ACCESSIBLE_DEADLINE = Duration.seconds(6);
+
+    /**
+     * Whether the port accepts connections within the timeout (at least one second is allowed;
+     * negative means wait indefinitely). A refused connection is retried after a backing-off
+     * pause rather than immediately. Recent results are reused, see {@link ReachabilityCache}.
+     */
     public static boolean isAccessible(String host, int port, long timeoutMillis) {
-        // from jclouds SocketOpen used by OpenSocketFinder
-        long startTime = System.currentTimeMillis();
-        long endTime = startTime + timeoutMillis;
-        while (startTime <= endTime || timeoutMillis < 0) {
-            startTime = System.currentTimeMillis();
-            InetSocketAddress socketAddress = new InetSocketAddress(host, port);
-            Socket socket = null;
-            try {
-                log.trace("testing socket {}", socketAddress);
-                socket = new Socket();
-                socket.setReuseAddress(false);
-                socket.setSoLinger(false, 1);
-                int runTimeout = (int)(endTime - startTime);
-                if (runTimeout < 1000) runTimeout = 1000;
-                if (runTimeout > 60000) runTimeout = 60000;
-                socket.setSoTimeout(runTimeout);
-                socket.connect(socketAddress, runTimeout);
-                return true;
-            } catch (IOException e) {
-                // Ignore
-            } finally {
-                if (socket != null) {
-                    try {
-                        socket.close();
-                    } catch (IOException ioe) {
-                        // Ignore
-                    }
-                }
-            }
-        }
-        return false;
+        return ReachabilityCache.getDefault().isReachable(host, port, timeoutMillis);
     }
 
+    /**
+     * Returns whichever of the addresses is first found to accept connections on the port,
+     * probing all of them concurrently, or null if none does within {@link #FIRST_ACCESSIBLE_DEADLINE}.
+     */
     public static String getFirstAccessibleOnPort(int port, Iterable<String> addresses) {
-        for (String addr: addresses) {
-            if (isAccessible(addr, port, 500))
-                return addr;
-        }
-        for (String addr: addresses) {
-            if (isAccessible(addr, port, 5000))
-                return addr;
-        }
-        return null;
+        return ReachabilityProber.defaults().findFirstReachable(addresses, port, FIRST_ACCESSIBLE_DEADLINE);
     }
 
+    /** whether the hostname resolves; recent results are reused, see {@link ReachabilityCache} */
     public static boolean isResolveable(String vmHostname) {
-        return Networking.resolve(vmHostname)!=null;
+        return ReachabilityCache.getDefault().isResolvable(vmHostname);
     }
 
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking;
+
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.net.Networking;
+import brooklyn.util.time.Duration;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Remembers recent results of checking whether a host accepts connections on a port, and of resolving hostnames,
+ * so that the same addresses are not probed over and over (e.g. the gateway, when provisioning many machines).
+ * <p>
+ * Positive results are kept for {@code positiveTtl}, negative ones for the (shorter) {@code negativeTtl}; a negative
+ * reachability result only answers a check whose timeout is no longer than that of the probe which produced it.
+ * At most {@code maxSize} entries of each kind are kept, evicting the least recently used. Callers should
+ * {@link #invalidate(String) invalidate} a host when what is at that address changes, e.g. when a machine is released.
+ */
+@Beta
+public class ReachabilityCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ReachabilityCache.class);
+
+    public static final int DEFAULT_MAX_SIZE = 1000;
+    public static final Duration DEFAULT_POSITIVE_TTL = Duration.seconds(30);
+    public static final Duration DEFAULT_NEGATIVE_TTL = Duration.seconds(5);
+
+    private static final ReachabilityCache DEFAULT = new ReachabilityCache(DEFAULT_MAX_SIZE, DEFAULT_POSITIVE_TTL, DEFAULT_NEGATIVE_TTL);
+
+    /** the cache shared by {@link NetworkMultiAddressUtils2} and the subnet locations */
+    public static ReachabilityCache getDefault() {
+        return DEFAULT;
+    }
+
+    private static class Entry<T> {
+        final T value;
+        final long expiresAt;
+        final long probeTimeoutMillis;
+
+        Entry(T value, long expiresAt, long probeTimeoutMillis) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.probeTimeoutMillis = probeTimeoutMillis;
+        }
+    }
+
+    private final int maxSize;
+    private final long positiveTtlMillis;
+    private final long negativeTtlMillis;
+    // keyed by host:port, and by hostname, respectively; guarded by this
+    private final Map<String, Entry<Boolean>> reachability;
+    private final Map<String, Entry<InetAddress>> resolutions;
+
+    private final AtomicLong reachabilityHits = new AtomicLong();
+    private final AtomicLong reachabilityMisses = new AtomicLong();
+    private final AtomicLong resolutionHits = new AtomicLong();
+    private final AtomicLong resolutionMisses = new AtomicLong();
+
+    public ReachabilityCache(int maxSize, Duration positiveTtl, Duration negativeTtl) {
+        this.maxSize = maxSize;
+        this.positiveTtlMillis = positiveTtl.toMilliseconds();
+        this.negativeTtlMillis = negativeTtl.toMilliseconds();
+        this.reachability = newLruMap();
+        this.resolutions = newLruMap();
+    }
+
+    private <T> Map<String, Entry<T>> newLruMap() {
+        return new LinkedHashMap<String, Entry<T>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry<T>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Whether the host accepts connections on the port, probing for up to the given time (negative for indefinitely)
+     * unless there is a recent enough result.
+     */
+    public boolean isReachable(String host, int port, long timeoutMillis) {
+        String key = host+":"+port;
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry<Boolean> entry = reachability.get(key);
+            if (entry != null && now < entry.expiresAt
+                    && (entry.value || (entry.probeTimeoutMillis < 0 || (timeoutMillis >= 0 && timeoutMillis <= entry.probeTimeoutMillis)))) {
+                reachabilityHits.incrementAndGet();
+                return entry.value;
+            }
+        }
+        reachabilityMisses.incrementAndGet();
+        boolean result = probe(host, port, timeoutMillis);
+        synchronized (this) {
+            reachability.put(key, new Entry<Boolean>(result, System.currentTimeMillis() + (result ? positiveTtlMillis : negativeTtlMillis), timeoutMillis));
+        }
+        return result;
+    }
+
+    /** the address of the hostname, or null if it does not resolve, looking it up unless there is a recent result */
+    @Nullable
+    public InetAddress resolve(String hostname) {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Entry<InetAddress> entry = resolutions.get(hostname);
+            if (entry != null && now < entry.expiresAt) {
+                resolutionHits.incrementAndGet();
+                return entry.value;
+            }
+        }
+        resolutionMisses.incrementAndGet();
+        InetAddress result = lookup(hostname);
+        synchronized (this) {
+            resolutions.put(hostname, new Entry<InetAddress>(result, System.currentTimeMillis() + (result != null ? positiveTtlMillis : negativeTtlMillis), 0));
+        }
+        return result;
+    }
+
+    public boolean isResolvable(String hostname) {
+        return resolve(hostname) != null;
+    }
+
+    /** forgets everything known about the host (on any port) */
+    public synchronized void invalidate(String host) {
+        if (host == null) return;
+        resolutions.remove(host);
+        String prefix = host+":";
+        for (Iterator<String> keys = reachability.keySet().iterator(); keys.hasNext();) {
+            if (keys.next().startsWith(prefix)) keys.remove();
+        }
+        log.trace("Invalidated cached reachability of {}", host);
+    }
+
+    public synchronized void invalidateAll() {
+        reachability.clear();
+        resolutions.clear();
+    }
+
+    /** hits, misses and hit rates, for reachability and for resolution, and current sizes */
+    public Map<String, Object> getStats() {
+        int reachabilitySize, resolutionsSize;
+        synchronized (this) {
+            reachabilitySize = reachability.size();
+            resolutionsSize = resolutions.size();
+        }
+        return ImmutableMap.<String, Object>builder()
+                .put("reachabilityHits", reachabilityHits.get())
+                .put("reachabilityMisses", reachabilityMisses.get())
+                .put("reachabilityHitRate", hitRate(reachabilityHits.get(), reachabilityMisses.get()))
+                .put("reachabilitySize", reachabilitySize)
+                .put("resolutionHits", resolutionHits.get())
+                .put("resolutionMisses", resolutionMisses.get())
+                .put("resolutionHitRate", hitRate(resolutionHits.get(), resolutionMisses.get()))
+                .put("resolutionSize", resolutionsSize)
+                .build();
+    }
+
+    private static double hitRate(long hits, long misses) {
+        return (hits + misses == 0) ? 0 : ((double) hits) / (hits + misses);
+    }
+
+    @VisibleForTesting
+    protected boolean probe(String host, int port, long timeoutMillis) {
+        Duration deadline = (timeoutMillis < 0) ? null : Duration.millis(Math.max(timeoutMillis, 1000));
+        return ReachabilityProber.defaults().isReachable(host, port, deadline);
+    }
+
+    @VisibleForTesting
+    protected InetAddress lookup(String hostname) {
+        return Networking.resolve(hostname);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName()+getStats();
+    }
+}
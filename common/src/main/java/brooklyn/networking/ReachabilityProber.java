@@ -0,0 +1,201 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+
+import com.google.common.annotations.Beta;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+/**
+ * Determines which of several addresses accepts TCP connections on a port, by starting non-blocking connects
+ * to all of them at once and waiting on a {@link Selector} for the first to succeed; the other attempts are
+ * then abandoned.
+ * <p>
+ * An address whose connect fails (e.g. is refused, as when a VM is booting) is tried again after a delay, which
+ * doubles on each failure from {@code minRetryDelay} up to {@code maxRetryDelay}; a connect not completed within
+ * {@code attemptTimeout} is abandoned and tried again. Probing stops at the overall deadline.
+ */
+@Beta
+public class ReachabilityProber {
+
+    private static final Logger log = LoggerFactory.getLogger(ReachabilityProber.class);
+
+    public static final Duration DEFAULT_ATTEMPT_TIMEOUT = Duration.seconds(5);
+    public static final Duration DEFAULT_MIN_RETRY_DELAY = Duration.millis(100);
+    public static final Duration DEFAULT_MAX_RETRY_DELAY = Duration.seconds(5);
+
+    private static final ReachabilityProber DEFAULT = new ReachabilityProber(DEFAULT_ATTEMPT_TIMEOUT, DEFAULT_MIN_RETRY_DELAY, DEFAULT_MAX_RETRY_DELAY);
+
+    public static ReachabilityProber defaults() {
+        return DEFAULT;
+    }
+
+    private final long attemptTimeoutMillis;
+    private final long minRetryDelayMillis;
+    private final long maxRetryDelayMillis;
+
+    public ReachabilityProber(Duration attemptTimeout, Duration minRetryDelay, Duration maxRetryDelay) {
+        this.attemptTimeoutMillis = attemptTimeout.toMilliseconds();
+        this.minRetryDelayMillis = Math.max(1, minRetryDelay.toMilliseconds());
+        this.maxRetryDelayMillis = Math.max(minRetryDelayMillis, maxRetryDelay.toMilliseconds());
+    }
+
+    public boolean isReachable(String host, int port, Duration deadline) {
+        return findFirstReachable(ImmutableList.of(host), port, deadline) != null;
+    }
+
+    /**
+     * Returns the first of the hosts found to accept connections on the port, or null if none did before the deadline
+     * (measured from now; null for no deadline).
+     */
+    @Nullable
+    public String findFirstReachable(Iterable<String> hosts, int port, @Nullable Duration deadline) {
+        long startTime = System.currentTimeMillis();
+        long endTime = (deadline == null) ? Long.MAX_VALUE : startTime + deadline.toMilliseconds();
+        List<Candidate> candidates = Lists.newArrayList();
+        for (String host : hosts) {
+            candidates.add(new Candidate(host, port));
+        }
+        if (candidates.isEmpty()) return null;
+
+        Selector selector = null;
+        try {
+            selector = Selector.open();
+            while (true) {
+                long now = System.currentTimeMillis();
+                if (now >= endTime) break;
+
+                long nextWakeup = endTime;
+                for (Candidate candidate : candidates) {
+                    if (candidate.channel == null && now >= candidate.nextAttemptTime) {
+                        if (candidate.connect(selector, now)) return succeeded(candidate, startTime);
+                    }
+                    if (candidate.channel != null && now - candidate.attemptStartTime >= attemptTimeoutMillis) {
+                        // too slow; abandon and try again straight away
+                        candidate.close();
+                        candidate.nextAttemptTime = now;
+                        if (candidate.connect(selector, now)) return succeeded(candidate, startTime);
+                    }
+                    nextWakeup = Math.min(nextWakeup, (candidate.channel != null)
+                            ? candidate.attemptStartTime + attemptTimeoutMillis
+                            : candidate.nextAttemptTime);
+                }
+
+                selector.select(Math.max(1, Math.min(nextWakeup, endTime) - System.currentTimeMillis()));
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    Candidate candidate = (Candidate) key.attachment();
+                    try {
+                        if (candidate.channel != null && candidate.channel.finishConnect()) {
+                            return succeeded(candidate, startTime);
+                        }
+                    } catch (IOException e) {
+                        candidate.failed(System.currentTimeMillis(), e);
+                    }
+                }
+            }
+            log.debug("None of {} reachable on port {} within {}ms", new Object[] {hosts, port, System.currentTimeMillis() - startTime});
+            return null;
+        } catch (IOException e) {
+            throw Exceptions.propagate(e);
+        } finally {
+            for (Candidate candidate : candidates) {
+                candidate.close();
+            }
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    private String succeeded(Candidate candidate, long startTime) {
+        if (log.isTraceEnabled()) log.trace("{}:{} reachable after {}ms ({} attempts)", new Object[] {
+                candidate.host, candidate.port, System.currentTimeMillis() - startTime, candidate.attempts});
+        return candidate.host;
+    }
+
+    private class Candidate {
+        final String host;
+        final int port;
+        SocketChannel channel;
+        long attemptStartTime;
+        long nextAttemptTime;
+        long retryDelay = minRetryDelayMillis;
+        int attempts;
+
+        Candidate(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /** starts a connect; returns true if it completed immediately */
+        boolean connect(Selector selector, long now) {
+            attempts++;
+            attemptStartTime = now;
+            try {
+                InetSocketAddress address = new InetSocketAddress(host, port);
+                if (address.isUnresolved()) throw new IOException("Cannot resolve "+host);
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                if (channel.connect(address)) return true;
+                channel.register(selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                failed(now, e);
+            }
+            return false;
+        }
+
+        void failed(long now, IOException e) {
+            log.trace("{}:{} not reachable (attempt {}): {}", new Object[] {host, port, attempts, e});
+            close();
+            nextAttemptTime = now + retryDelay;
+            retryDelay = Math.min(maxRetryDelayMillis, retryDelay * 2);
+        }
+
+        void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                channel = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.Entity;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
+import brooklyn.management.SubscriptionHandle;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+
+/**
+ * Shares subscriptions made on behalf of an adjunct entity (e.g. a subnet tier).
+ * <p>
+ * There is at most one real subscription per producer+sensor; listeners registered against it are
+ * keyed by the caller, so subscribing again with the same key replaces the previous listener rather
+ * than adding another one. The real subscription is removed when its last listener is released, and
+ * listeners on producers which have been unmanaged are released by {@link #releaseUnmanaged()}; producers
+ * which are not yet managed (e.g. whose listeners wait for them to start) are kept.
+ * <p>
+ * If a {@code listenerCountSensor} is supplied, the number of live listeners is published on the
+ * adjunct entity whenever it changes.
+ */
+@Beta
+public class SubscriptionRegistry {
+
+    private static final Logger log = LoggerFactory.getLogger(SubscriptionRegistry.class);
+
+    /** a single listener registration, as returned by {@link SubscriptionRegistry#subscribe(Object, Entity, AttributeSensor, SensorEventListener)} */
+    public interface Handle {
+        /** removes this listener (and the underlying subscription, if it was the last one); idempotent */
+        public void release();
+    }
+
+    private final EntityLocal adjunctEntity;
+    private final AttributeSensor<Integer> listenerCountSensor;
+    private final Map<ProducerAndSensor, SharedSubscription> subscriptions = Maps.newLinkedHashMap();
+
+    public SubscriptionRegistry(EntityLocal adjunctEntity) {
+        this(adjunctEntity, null);
+    }
+
+    public SubscriptionRegistry(EntityLocal adjunctEntity, AttributeSensor<Integer> listenerCountSensor) {
+        this.adjunctEntity = adjunctEntity;
+        this.listenerCountSensor = listenerCountSensor;
+    }
+
+    /**
+     * Registers the listener for the given producer's sensor, under the given key.
+     * Any listener previously registered for the same key, producer and sensor is replaced.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public <T> Handle subscribe(Object key, Entity producer, AttributeSensor<T> sensor, SensorEventListener<? super T> listener) {
+        final ProducerAndSensor id = new ProducerAndSensor(producer.getId(), sensor.getName());
+        synchronized (subscriptions) {
+            releaseUnmanagedInternal();
+            SharedSubscription subscription = subscriptions.get(id);
+            if (subscription == null) {
+                subscription = new SharedSubscription(producer);
+                subscription.handle = adjunctEntity.subscribe(producer, sensor, (SensorEventListener) subscription);
+                subscriptions.put(id, subscription);
+            }
+            SensorEventListener<?> old = subscription.listeners.put(key, listener);
+            if (old != null && log.isDebugEnabled()) {
+                log.debug("Replaced listener for {} on {}->{} (on behalf of {})", new Object[] {key, producer, sensor.getName(), adjunctEntity});
+            }
+        }
+        publishListenerCount();
+        return new ListenerHandle(id, key);
+    }
+
+    /** releases all listeners registered under the given key, for any producer or sensor */
+    public void release(Object key) {
+        synchronized (subscriptions) {
+            for (Iterator<Map.Entry<ProducerAndSensor, SharedSubscription>> iter = subscriptions.entrySet().iterator(); iter.hasNext();) {
+                SharedSubscription subscription = iter.next().getValue();
+                if (subscription.listeners.remove(key) != null && subscription.listeners.isEmpty()) {
+                    unsubscribe(subscription);
+                    iter.remove();
+                }
+            }
+        }
+        publishListenerCount();
+    }
+
+    /** releases all listeners whose producer has been unmanaged */
+    public void releaseUnmanaged() {
+        synchronized (subscriptions) {
+            releaseUnmanagedInternal();
+        }
+        publishListenerCount();
+    }
+
+    /** releases everything; typically called when the adjunct entity is being unmanaged */
+    public void releaseAll() {
+        synchronized (subscriptions) {
+            for (SharedSubscription subscription : subscriptions.values()) {
+                unsubscribe(subscription);
+            }
+            subscriptions.clear();
+        }
+        publishListenerCount();
+    }
+
+    /** the number of listeners currently registered, across all producers and sensors */
+    public int getListenerCount() {
+        synchronized (subscriptions) {
+            int result = 0;
+            for (SharedSubscription subscription : subscriptions.values()) {
+                result += subscription.listeners.size();
+            }
+            return result;
+        }
+    }
+
+    /** the number of real subscriptions currently held on the adjunct entity */
+    public int getSubscriptionCount() {
+        synchronized (subscriptions) {
+            return subscriptions.size();
+        }
+    }
+
+    private void releaseUnmanagedInternal() {
+        for (Iterator<SharedSubscription> iter = subscriptions.values().iterator(); iter.hasNext();) {
+            SharedSubscription subscription = iter.next();
+            // not Entities.isManaged: a producer not yet managed is one being waited for
+            if (Entities.isNoLongerManaged(subscription.producer)) {
+                log.debug("Releasing {} listener(s) on unmanaged entity {} (on behalf of {})",
+                        new Object[] {subscription.listeners.size(), subscription.producer, adjunctEntity});
+                unsubscribe(subscription);
+                iter.remove();
+            }
+        }
+    }
+
+    private void unsubscribe(SharedSubscription subscription) {
+        subscription.listeners.clear();
+        try {
+            adjunctEntity.unsubscribe(subscription.producer, subscription.handle);
+        } catch (Exception e) {
+            // e.g. if adjunct entity is itself being unmanaged
+            log.debug("Problem unsubscribing from "+subscription.producer+" (on behalf of "+adjunctEntity+"); continuing", e);
+        }
+    }
+
+    private void publishListenerCount() {
+        if (listenerCountSensor != null) {
+            AttributeMunger.setAttributeIfChanged(adjunctEntity, listenerCountSensor, getListenerCount());
+        }
+    }
+
+    private class ListenerHandle implements Handle {
+        private final ProducerAndSensor id;
+        private final Object key;
+
+        ListenerHandle(ProducerAndSensor id, Object key) {
+            this.id = id;
+            this.key = key;
+        }
+
+        @Override
+        public void release() {
+            synchronized (subscriptions) {
+                SharedSubscription subscription = subscriptions.get(id);
+                if (subscription != null && subscription.listeners.remove(key) != null && subscription.listeners.isEmpty()) {
+                    unsubscribe(subscription);
+                    subscriptions.remove(id);
+                }
+            }
+            publishListenerCount();
+        }
+    }
+
+    private class SharedSubscription implements SensorEventListener<Object> {
+        private final Entity producer;
+        private final Map<Object, SensorEventListener<?>> listeners = Maps.newLinkedHashMap();
+        private SubscriptionHandle handle;
+
+        SharedSubscription(Entity producer) {
+            this.producer = producer;
+        }
+
+        @Override
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        public void onEvent(SensorEvent<Object> event) {
+            List<SensorEventListener<?>> snapshot;
+            synchronized (subscriptions) {
+                snapshot = ImmutableList.copyOf(listeners.values());
+            }
+            for (SensorEventListener listener : snapshot) {
+                try {
+                    listener.onEvent(event);
+                } catch (Exception e) {
+                    log.warn("Problem in listener "+listener+" for "+event+" (on behalf of "+adjunctEntity+"); continuing", e);
+                }
+            }
+        }
+    }
+
+    private static class ProducerAndSensor {
+        private final String producerId;
+        private final String sensorName;
+
+        ProducerAndSensor(String producerId, String sensorName) {
+            this.producerId = producerId;
+            this.sensorName = sensorName;
+        }
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof ProducerAndSensor)) return false;
+            ProducerAndSensor o = (ProducerAndSensor) obj;
+            return Objects.equal(producerId, o.producerId) && Objects.equal(sensorName, o.sensorName);
+        }
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(producerId, sensorName);
+        }
+        @Override
+        public String toString() {
+            return producerId+"->"+sensorName;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.provisioning;
+
+import com.google.common.annotations.Beta;
+
+/**
+ * Limits the rate and concurrency of calls to a cloud's provisioning API (e.g. a location's {@code obtain}).
+ * <p>
+ * Callers {@link #acquire()} a permit before calling the API, and report the outcome on that permit
+ * when done, so that implementations can slow down when the cloud reports it is being throttled.
+ *
+ * @see TokenBucketProvisioningThrottle
+ * @see ProvisioningThrottles
+ */
+@Beta
+public interface ProvisioningThrottle {
+
+    public interface Permit {
+        /** releases the permit, the call having succeeded */
+        public void succeeded();
+
+        /** releases the permit, the call having failed with the given error */
+        public void failed(Throwable error);
+    }
+
+    /** blocks until the call is allowed to proceed */
+    public Permit acquire();
+
+    /** statistics about use of this throttle, e.g. time spent waiting */
+    public ProvisioningThrottleStats getStats();
+}
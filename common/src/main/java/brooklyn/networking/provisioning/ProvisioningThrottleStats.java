@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.provisioning;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Objects;
+
+/** Snapshot of the statistics of a {@link ProvisioningThrottle}. */
+@Beta
+public class ProvisioningThrottleStats {
+
+    private final long acquired;
+    private final long totalWaitMillis;
+    private final long maxWaitMillis;
+    private final int inFlight;
+    private final long throttledCount;
+    private final double slowdownFactor;
+
+    public ProvisioningThrottleStats(long acquired, long totalWaitMillis, long maxWaitMillis, int inFlight, long throttledCount, double slowdownFactor) {
+        this.acquired = acquired;
+        this.totalWaitMillis = totalWaitMillis;
+        this.maxWaitMillis = maxWaitMillis;
+        this.inFlight = inFlight;
+        this.throttledCount = throttledCount;
+        this.slowdownFactor = slowdownFactor;
+    }
+
+    /** number of permits acquired */
+    public long getAcquired() {
+        return acquired;
+    }
+
+    /** total time callers spent queued waiting for a permit */
+    public long getTotalWaitMillis() {
+        return totalWaitMillis;
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public long getMeanWaitMillis() {
+        return (acquired == 0) ? 0 : totalWaitMillis / acquired;
+    }
+
+    /** number of permits currently held */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /** number of calls reported as failed because the cloud was throttling requests */
+    public long getThrottledCount() {
+        return throttledCount;
+    }
+
+    /** how much the configured rate is currently being slowed down by (1 if not at all) */
+    public double getSlowdownFactor() {
+        return slowdownFactor;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("acquired", acquired)
+                .add("meanWaitMillis", getMeanWaitMillis())
+                .add("maxWaitMillis", maxWaitMillis)
+                .add("inFlight", inFlight)
+                .add("throttled", throttledCount)
+                .add("slowdown", slowdownFactor)
+                .toString();
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.provisioning;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import brooklyn.config.ConfigKey;
+import brooklyn.entity.basic.ConfigKeys;
+import brooklyn.location.Location;
+import brooklyn.util.time.Duration;
+
+import com.google.common.annotations.Beta;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+/**
+ * Config keys and a registry of {@link ProvisioningThrottle}s, shared by all locations which talk to the
+ * same cloud endpoint as the same account (so that provisioning in one cloud does not hold up another).
+ */
+@Beta
+public class ProvisioningThrottles {
+
+    public static final ConfigKey<ProvisioningThrottle> PROVISIONING_THROTTLE = ConfigKeys.newConfigKey(ProvisioningThrottle.class,
+            "provisioning.throttle", "Throttle to use for calls to obtain; if not set, a token-bucket throttle is shared per endpoint and account");
+
+    public static final ConfigKey<Integer> PROVISIONING_BURST = ConfigKeys.newIntegerConfigKey(
+            "provisioning.throttle.burst", "Number of calls to obtain which may be made together before being rate-limited", 1);
+
+    public static final ConfigKey<Integer> PROVISIONING_MAX_IN_FLIGHT = ConfigKeys.newIntegerConfigKey(
+            "provisioning.throttle.maxInFlight", "Maximum number of concurrent calls to obtain (or 0 for no limit)", 0);
+
+    private static final ConcurrentMap<String, ProvisioningThrottle> THROTTLES = Maps.newConcurrentMap();
+
+    private ProvisioningThrottles() {}
+
+    /** a call made while holding a {@link ProvisioningThrottle.Permit}; see {@link ProvisioningThrottles#callThrottled(ProvisioningThrottle, ThrottledCall)} */
+    public interface ThrottledCall<T, E extends Exception> {
+        public T call() throws E;
+    }
+
+    public static String keyFor(String provider, String endpoint, String identity) {
+        return provider+"|"+endpoint+"|"+identity;
+    }
+
+    /**
+     * Returns the throttle for the given key (see {@link #keyFor(String, String, String)}), creating a
+     * {@link TokenBucketProvisioningThrottle} with the given settings if there is not one already.
+     * The settings of whichever location first uses the key therefore apply.
+     */
+    public static ProvisioningThrottle forKey(String key, Duration interval, int burst, int maxInFlight) {
+        ProvisioningThrottle result = THROTTLES.get(key);
+        if (result == null) {
+            ProvisioningThrottle contender = new TokenBucketProvisioningThrottle(key, interval, burst, maxInFlight);
+            result = THROTTLES.putIfAbsent(key, contender);
+            if (result == null) result = contender;
+        }
+        return result;
+    }
+
+    /**
+     * The throttle configured on the location (with {@link #PROVISIONING_THROTTLE}), or else the one shared by
+     * all locations using the same provider, endpoint and identity, allowing one call per {@code timeBetweenObtains}
+     * (in bursts of {@link #PROVISIONING_BURST}).
+     */
+    public static ProvisioningThrottle forLocation(Location location, String provider, String endpoint, String identity,
+            ConfigKey<Long> timeBetweenObtains) {
+        ProvisioningThrottle result = location.getConfig(PROVISIONING_THROTTLE);
+        if (result != null) return result;
+        return forKey(keyFor(provider, endpoint, identity), Duration.millis(location.getConfig(timeBetweenObtains)),
+                location.getConfig(PROVISIONING_BURST), location.getConfig(PROVISIONING_MAX_IN_FLIGHT));
+    }
+
+    /**
+     * Makes the call holding a permit of the throttle, reporting to the throttle whether it succeeded or failed.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T, E extends Exception> T callThrottled(ProvisioningThrottle throttle, ThrottledCall<T, E> call) throws E {
+        ProvisioningThrottle.Permit permit = throttle.acquire();
+        T result;
+        try {
+            result = call.call();
+        } catch (RuntimeException e) {
+            permit.failed(e);
+            throw e;
+        } catch (Error e) {
+            permit.failed(e);
+            throw e;
+        } catch (Exception e) {
+            // can only be an E
+            permit.failed(e);
+            throw (E) e;
+        }
+        permit.succeeded();
+        return result;
+    }
+
+    /** stats of all the shared throttles, by key */
+    public static Map<String, ProvisioningThrottleStats> getAllStats() {
+        ImmutableMap.Builder<String, ProvisioningThrottleStats> result = ImmutableMap.builder();
+        for (Map.Entry<String, ProvisioningThrottle> entry : THROTTLES.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getStats());
+        }
+        return result.build();
+    }
+}
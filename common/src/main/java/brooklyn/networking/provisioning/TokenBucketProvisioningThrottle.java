@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.provisioning;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.time.Duration;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Throwables;
+
+/**
+ * A {@link ProvisioningThrottle} using a token bucket: one token is added every {@code interval} (up to
+ * {@code burst} tokens), and each call takes a token, waiting if there are none. Independently, at most
+ * {@code maxInFlight} calls may hold a permit at once.
+ * <p>
+ * When a call fails with an error that looks like the cloud throttling API requests (see
+ * {@link #isThrottlingError(Throwable)}), the interval is doubled (up to {@link #MAX_SLOWDOWN_FACTOR} times);
+ * each subsequent success halves it again, back down to the configured interval.
+ * <p>
+ * An interval of zero means calls are not rate-limited (unless the cloud has been throttling us),
+ * and a {@code maxInFlight} of zero means concurrency is not limited.
+ */
+@Beta
+public class TokenBucketProvisioningThrottle implements ProvisioningThrottle {
+
+    private static final Logger log = LoggerFactory.getLogger(TokenBucketProvisioningThrottle.class);
+
+    public static final double MAX_SLOWDOWN_FACTOR = 32;
+
+    /** interval used as the basis for slowing down if the configured interval is zero */
+    public static final Duration MIN_ADAPTIVE_INTERVAL = Duration.ONE_SECOND;
+
+    private final String name;
+    private final long intervalMillis;
+    private final int burst;
+    private final Semaphore inFlightPermits;
+    private final int maxInFlight;
+
+    // guarded by this
+    private double tokens;
+    // set on first refill, not in the constructor, so that a subclass's clock is not called before it is initialised
+    private long lastRefillTime = -1;
+    private double slowdownFactor = 1;
+    private long acquired;
+    private long totalWaitMillis;
+    private long maxWaitMillis;
+    private long throttledCount;
+    private int inFlight;
+
+    public TokenBucketProvisioningThrottle(String name, Duration interval, int burst, int maxInFlight) {
+        checkArgument(burst >= 1, "burst must be at least 1");
+        checkArgument(maxInFlight >= 0, "maxInFlight must not be negative");
+        this.name = name;
+        this.intervalMillis = interval.toMilliseconds();
+        this.burst = burst;
+        this.maxInFlight = maxInFlight;
+        this.inFlightPermits = (maxInFlight > 0) ? new Semaphore(maxInFlight, true) : null;
+        this.tokens = burst;
+    }
+
+    @Override
+    public Permit acquire() {
+        long startTime = currentTimeMillis();
+        try {
+            if (inFlightPermits != null) inFlightPermits.acquire();
+            try {
+                takeToken();
+            } catch (InterruptedException e) {
+                if (inFlightPermits != null) inFlightPermits.release();
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            throw Exceptions.propagate(e);
+        }
+
+        long waited = currentTimeMillis() - startTime;
+        synchronized (this) {
+            acquired++;
+            inFlight++;
+            totalWaitMillis += waited;
+            maxWaitMillis = Math.max(maxWaitMillis, waited);
+        }
+        if (waited > 0 && log.isDebugEnabled()) log.debug("Provisioning throttle {} delayed call by {}ms", name, waited);
+        return new PermitImpl();
+    }
+
+    private synchronized void takeToken() throws InterruptedException {
+        while (true) {
+            long interval = effectiveIntervalMillis();
+            if (interval <= 0) return;
+            refill(interval);
+            if (tokens >= 1) {
+                tokens -= 1;
+                return;
+            }
+            long waitTime = (long) Math.ceil((1 - tokens) * interval);
+            wait(Math.max(1, waitTime));
+        }
+    }
+
+    private void refill(long interval) {
+        long now = currentTimeMillis();
+        // the bucket starts full, so there is nothing to add before the first refill
+        if (lastRefillTime >= 0) tokens = Math.min(burst, tokens + ((double) (now - lastRefillTime)) / interval);
+        lastRefillTime = now;
+    }
+
+    private long effectiveIntervalMillis() {
+        if (slowdownFactor <= 1) return intervalMillis;
+        return (long) (Math.max(intervalMillis, MIN_ADAPTIVE_INTERVAL.toMilliseconds()) * slowdownFactor);
+    }
+
+    private void onReleased(Throwable error) {
+        if (inFlightPermits != null) inFlightPermits.release();
+        synchronized (this) {
+            inFlight--;
+            if (error != null && isThrottlingError(error)) {
+                throttledCount++;
+                // settle tokens earned at the old rate before changing it
+                refill(Math.max(1, effectiveIntervalMillis()));
+                slowdownFactor = Math.min(MAX_SLOWDOWN_FACTOR, slowdownFactor * 2);
+                log.info("Provisioning throttle {} slowing down (factor {}) after throttling error: {}", new Object[] {name, slowdownFactor, error.toString()});
+            } else if (error == null && slowdownFactor > 1) {
+                slowdownFactor = Math.max(1, slowdownFactor / 2);
+                if (slowdownFactor == 1) log.info("Provisioning throttle {} back to configured rate", name);
+            }
+            notifyAll();
+        }
+    }
+
+    /**
+     * Whether the error (or any of its causes) indicates the cloud rejected the request because of API rate limits,
+     * e.g. HTTP 429, CloudStack's 431, or AWS's {@code RequestLimitExceeded}.
+     */
+    public static boolean isThrottlingError(Throwable error) {
+        for (Throwable t : Throwables.getCausalChain(error)) {
+            String msg = t.toString();
+            if (msg == null) continue;
+            String lower = msg.toLowerCase();
+            if (lower.contains("throttl") || lower.contains("requestlimitexceeded") || lower.contains("rate exceeded")
+                    || lower.contains("too many requests") || msg.matches("(?s).*\\b(429|431)\\b.*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized ProvisioningThrottleStats getStats() {
+        return new ProvisioningThrottleStats(acquired, totalWaitMillis, maxWaitMillis, inFlight, throttledCount, slowdownFactor);
+    }
+
+    @VisibleForTesting
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    @Override
+    public String toString() {
+        return "TokenBucketProvisioningThrottle["+name+"; interval="+intervalMillis+"ms; burst="+burst
+                +(maxInFlight > 0 ? "; maxInFlight="+maxInFlight : "")+"]";
+    }
+
+    private class PermitImpl implements Permit {
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        @Override
+        public void succeeded() {
+            if (released.compareAndSet(false, true)) onReleased(null);
+        }
+
+        @Override
+        public void failed(Throwable error) {
+            if (released.compareAndSet(false, true)) onReleased(error);
+        }
+    }
+}
@@ -28,6 +28,7 @@ import brooklyn.location.MachineLocation;
 import brooklyn.location.PortRange;
 import brooklyn.location.basic.PortRanges;
 import brooklyn.networking.AttributeMunger;
+import brooklyn.networking.SubscriptionRegistry;
 import brooklyn.util.net.Cidr;
 import brooklyn.util.net.Protocol;
 
@@ -41,26 +42,36 @@ public class PortForwarderAsyncImpl implements PortForwarderAsync {
 
     private static final Logger log = LoggerFactory.getLogger(PortForwarderAsyncImpl.class);
 
-    private final EntityLocal adjunctEntity;
     private final PortForwarder portForwarder;
+    private final SubscriptionRegistry subscriptions;
 
     public PortForwarderAsyncImpl(EntityLocal adjunctEntity, PortForwarder portForwarder) {
-        this.adjunctEntity = adjunctEntity;
+        this(adjunctEntity, portForwarder, new SubscriptionRegistry(adjunctEntity));
+    }
+
+    public PortForwarderAsyncImpl(EntityLocal adjunctEntity, PortForwarder portForwarder, SubscriptionRegistry subscriptions) {
         this.portForwarder = portForwarder;
+        this.subscriptions = subscriptions;
     }
 
     @Override
-    public void openGatewayAsync(EntityAndAttribute<String> whereToAdvertiseHostname) {
-        // IP of port-forwarder already exists; can call synchronously
-        String gateway = portForwarder.openGateway();
-        AttributeMunger.setAttributeIfChanged(whereToAdvertiseHostname, gateway);
+    public void openGatewayAsync(final EntityAndAttribute<String> whereToAdvertiseHostname) {
+        // IP of port-forwarder already exists; can call synchronously once ready
+        runWhenReady("open-gateway", new Runnable() {
+            public void run() {
+                String gateway = portForwarder.openGateway();
+                AttributeMunger.setAttributeIfChanged(whereToAdvertiseHostname, gateway);
+            }});
     }
 
     @Override
-    public void openStaticNatAsync(Entity serviceToOpen, EntityAndAttribute<String> whereToAdvertiseHostname) {
+    public void openStaticNatAsync(final Entity serviceToOpen, final EntityAndAttribute<String> whereToAdvertiseHostname) {
         // FIXME Do in deferred block; what do we wait for?
-        String staticNat = portForwarder.openStaticNat(serviceToOpen);
-        whereToAdvertiseHostname.setValue(staticNat);
+        runWhenReady("open-static-nat", new Runnable() {
+            public void run() {
+                String staticNat = portForwarder.openStaticNat(serviceToOpen);
+                whereToAdvertiseHostname.setValue(staticNat);
+            }});
     }
 
     @Override
@@ -74,7 +85,8 @@ public class PortForwarderAsyncImpl implements PortForwarderAsync {
             public void run() {
                 portForwarder.openFirewallPortRange(publicIp.getEntity(), portRange, protocol, accessingCidr);
             }});
-        subscribe(publicIp.getEntity(), publicIp.getAttribute(), updater);
+        String key = "open-firewall:"+publicIp.getEntity().getId()+":"+publicIp.getAttribute().getName()+":"+portRange+":"+protocol+":"+accessingCidr;
+        subscribe(key, publicIp.getEntity(), publicIp.getAttribute(), updater);
         updater.apply(publicIp.getEntity(), publicIp.getValue());
     }
 
@@ -88,12 +100,23 @@ public class PortForwarderAsyncImpl implements PortForwarderAsync {
                 HostAndPort publicEndpoint = portForwarder.openPortForwarding(machine, privatePort.getValue(), optionalPublicPort, protocol, accessingCidr);
                 whereToAdvertiseEndpoint.setValue(publicEndpoint.getHostText()+":"+publicEndpoint.getPort());
             }});
-        subscribe(privatePort.getEntity(), privatePort.getAttribute(), updater);
+        String key = "open-port-forwarding:"+privatePort.getEntity().getId()+":"+privatePort.getAttribute().getName()+":"+optionalPublicPort+":"+protocol+":"+accessingCidr
+                +":"+whereToAdvertiseEndpoint.getEntity().getId()+":"+whereToAdvertiseEndpoint.getAttribute().getName();
+        subscribe(key, privatePort.getEntity(), privatePort.getAttribute(), updater);
         updater.apply(privatePort.getEntity(), privatePort.getValue());
     }
 
-    protected <T> void subscribe(Entity entity, AttributeSensor<T> attribute, SensorEventListener<? super T> listener) {
-        adjunctEntity.subscribe(entity, attribute, listener);
+    /**
+     * Runs each use of the port forwarder, once it can be used (e.g. once the gateway has been opened);
+     * runs the task immediately by default. Must not block waiting for readiness, as it is called from
+     * subscription callbacks: defer the task instead.
+     */
+    protected void runWhenReady(String description, Runnable task) {
+        task.run();
+    }
+
+    protected <T> void subscribe(Object key, Entity entity, AttributeSensor<T> attribute, SensorEventListener<? super T> listener) {
+        subscriptions.subscribe(key, entity, attribute, listener);
     }
 
     protected class DeferredExecutor<T> implements SensorEventListener<Object> {
@@ -125,7 +148,7 @@ public class PortForwarderAsyncImpl implements PortForwarderAsync {
                 return;
             }
 
-            task.run();
+            runWhenReady(description, task);
         }
     }
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.subnet;
+
+import java.util.Collection;
+
+import com.google.common.annotations.Beta;
+import com.google.common.net.HostAndPort;
+
+/**
+ * A {@link PortForwarder} which can check that the forwarding it has set up is still in place,
+ * e.g. so that a subnet can be restarted without re-creating every rule.
+ */
+@Beta
+public interface VerifiablePortForwarder extends PortForwarder {
+
+    /**
+     * Checks, in one batch, that the forwarding rules opened by this forwarder are still in place,
+     * re-creating any which are missing.
+     *
+     * @return the public endpoints whose rules had to be re-created
+     * @throws IllegalStateException if the rules could not be checked or re-created
+     */
+    public Collection<HostAndPort> verifyPortForwarding();
+}
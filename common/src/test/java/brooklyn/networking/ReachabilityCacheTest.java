@@ -0,0 +1,132 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+public class ReachabilityCacheTest {
+
+    private Set<String> reachable;
+    private List<String> probes;
+    private List<String> lookups;
+    private ReachabilityCache cache;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        reachable = Sets.newConcurrentHashSet();
+        probes = Lists.newCopyOnWriteArrayList();
+        lookups = Lists.newCopyOnWriteArrayList();
+        cache = newCache(2, Duration.minutes(1), Duration.millis(100));
+    }
+
+    private ReachabilityCache newCache(int maxSize, Duration positiveTtl, Duration negativeTtl) {
+        return new ReachabilityCache(maxSize, positiveTtl, negativeTtl) {
+            @Override protected boolean probe(String host, int port, long timeoutMillis) {
+                probes.add(host+":"+port);
+                return reachable.contains(host+":"+port);
+            }
+            @Override protected InetAddress lookup(String hostname) {
+                lookups.add(hostname);
+                return hostname.startsWith("unknown") ? null : InetAddress.getLoopbackAddress();
+            }
+        };
+    }
+
+    @Test
+    public void testPositiveResultReused() throws Exception {
+        reachable.add("1.2.3.4:22");
+        assertTrue(cache.isReachable("1.2.3.4", 22, 1000));
+        assertTrue(cache.isReachable("1.2.3.4", 22, 1000));
+        assertEquals(probes.size(), 1);
+        assertEquals(cache.getStats().get("reachabilityHits"), 1L);
+        assertEquals(cache.getStats().get("reachabilityHitRate"), 0.5d);
+    }
+
+    @Test
+    public void testNegativeResultExpiresSooner() throws Exception {
+        assertFalse(cache.isReachable("1.2.3.4", 22, 1000));
+        assertFalse(cache.isReachable("1.2.3.4", 22, 1000));
+        assertEquals(probes.size(), 1);
+
+        reachable.add("1.2.3.4:22");
+        Thread.sleep(200);
+        assertTrue(cache.isReachable("1.2.3.4", 22, 1000));
+        assertEquals(probes.size(), 2);
+    }
+
+    @Test
+    public void testNegativeResultNotReusedForLongerTimeout() throws Exception {
+        assertFalse(cache.isReachable("1.2.3.4", 22, 1000));
+        assertFalse(cache.isReachable("1.2.3.4", 22, 60000));
+        assertEquals(probes.size(), 2);
+    }
+
+    @Test
+    public void testInvalidateForgetsAllPortsOfHost() throws Exception {
+        reachable.add("1.2.3.4:22");
+        reachable.add("1.2.3.4:80");
+        cache.isReachable("1.2.3.4", 22, 1000);
+        cache.isReachable("1.2.3.4", 80, 1000);
+        cache.invalidate("1.2.3.4");
+        cache.isReachable("1.2.3.4", 22, 1000);
+        cache.isReachable("1.2.3.4", 80, 1000);
+        assertEquals(probes.size(), 4);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        reachable.add("a:22");
+        reachable.add("b:22");
+        reachable.add("c:22");
+        cache.isReachable("a", 22, 1000);
+        cache.isReachable("b", 22, 1000);
+        cache.isReachable("a", 22, 1000);
+        cache.isReachable("c", 22, 1000);
+        probes.clear();
+        cache.isReachable("a", 22, 1000);
+        cache.isReachable("b", 22, 1000);
+        assertEquals(probes, Lists.newArrayList("b:22"));
+    }
+
+    @Test
+    public void testResolutionCachedIncludingFailures() throws Exception {
+        assertTrue(cache.isResolvable("myhost"));
+        assertTrue(cache.isResolvable("myhost"));
+        assertNull(cache.resolve("unknown.example"));
+        assertNull(cache.resolve("unknown.example"));
+        assertEquals(lookups, Lists.newArrayList("myhost", "unknown.example"));
+        assertEquals(cache.getStats().get("resolutionHitRate"), 0.5d);
+
+        cache.invalidate("myhost");
+        cache.isResolvable("myhost");
+        assertEquals(lookups.size(), 3);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableList;
+
+public class ReachabilityProberTest {
+
+    private ReachabilityProber prober;
+    private ServerSocket server;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        prober = new ReachabilityProber(Duration.seconds(5), Duration.millis(50), Duration.millis(500));
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (server != null) server.close();
+    }
+
+    @Test
+    public void testReturnsReachableAddressWithoutWaitingForUnreachableOne() throws Exception {
+        server = new ServerSocket(0);
+        long start = System.currentTimeMillis();
+        // 192.0.2.0/24 is reserved for documentation, so connects there hang (or fail)
+        String result = prober.findFirstReachable(ImmutableList.of("192.0.2.1", "127.0.0.1"), server.getLocalPort(), Duration.seconds(10));
+        assertEquals(result, "127.0.0.1");
+        assertTrue(System.currentTimeMillis() - start < 4000, "took "+(System.currentTimeMillis() - start)+"ms");
+    }
+
+    @Test
+    public void testReturnsNullAtDeadlineWhenRefused() throws Exception {
+        int port = closedPort();
+        long start = System.currentTimeMillis();
+        assertNull(prober.findFirstReachable(ImmutableList.of("127.0.0.1"), port, Duration.millis(500)));
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 500 && elapsed < 3000, "took "+elapsed+"ms");
+    }
+
+    @Test
+    public void testRetriesUntilPortOpens() throws Exception {
+        final int port = closedPort();
+        Thread opener = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    Thread.sleep(300);
+                    ServerSocket socket = new ServerSocket();
+                    socket.setReuseAddress(true);
+                    socket.bind(new InetSocketAddress("127.0.0.1", port));
+                    server = socket;
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }});
+        opener.start();
+        assertTrue(prober.isReachable("127.0.0.1", port, Duration.seconds(10)));
+        opener.join();
+    }
+
+    @Test
+    public void testEmptyAddressesReturnsNull() throws Exception {
+        assertNull(prober.findFirstReachable(ImmutableList.<String>of(), 22, Duration.seconds(1)));
+    }
+
+    private int closedPort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
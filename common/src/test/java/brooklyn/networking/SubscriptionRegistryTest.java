@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking;
+
+import static org.testng.Assert.assertEquals;
+
+import java.util.List;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.basic.ApplicationBuilder;
+import brooklyn.entity.basic.Entities;
+import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
+import brooklyn.event.basic.BasicAttributeSensor;
+import brooklyn.test.Asserts;
+import brooklyn.test.EntityTestUtils;
+import brooklyn.test.entity.TestApplication;
+import brooklyn.test.entity.TestEntity;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class SubscriptionRegistryTest {
+
+    private static final AttributeSensor<Integer> LISTENER_COUNT = new BasicAttributeSensor<Integer>(Integer.class, "test.listenerCount");
+
+    private TestApplication app;
+    private TestEntity entity;
+    private SubscriptionRegistry registry;
+    private List<String> events;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        events = Lists.newCopyOnWriteArrayList();
+        app = ApplicationBuilder.newManagedApp(TestApplication.class);
+        entity = app.createAndManageChild(EntitySpec.create(TestEntity.class));
+        registry = new SubscriptionRegistry(app, LISTENER_COUNT);
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (app != null) Entities.destroyAll(app.getManagementContext());
+    }
+
+    @Test
+    public void testSameKeyReplacesListener() throws Exception {
+        registry.subscribe("a", entity, TestEntity.NAME, new RecordingListener("first"));
+        registry.subscribe("a", entity, TestEntity.NAME, new RecordingListener("second"));
+
+        assertEquals(registry.getListenerCount(), 1);
+        assertEquals(registry.getSubscriptionCount(), 1);
+        assertEquals(app.getAttribute(LISTENER_COUNT), (Integer)1);
+
+        entity.setAttribute(TestEntity.NAME, "val");
+        assertEventsEventually(ImmutableList.of("second:val"));
+    }
+
+    @Test
+    public void testDifferentKeysShareSubscription() throws Exception {
+        registry.subscribe("a", entity, TestEntity.NAME, new RecordingListener("a"));
+        SubscriptionRegistry.Handle handle = registry.subscribe("b", entity, TestEntity.NAME, new RecordingListener("b"));
+
+        assertEquals(registry.getListenerCount(), 2);
+        assertEquals(registry.getSubscriptionCount(), 1);
+
+        handle.release();
+        handle.release();
+        assertEquals(registry.getListenerCount(), 1);
+        assertEquals(app.getAttribute(LISTENER_COUNT), (Integer)1);
+
+        registry.release("a");
+        assertEquals(registry.getListenerCount(), 0);
+        assertEquals(registry.getSubscriptionCount(), 0);
+        EntityTestUtils.assertAttributeEqualsEventually(app, LISTENER_COUNT, 0);
+    }
+
+    @Test
+    public void testReleasesListenersOnUnmanagedEntity() throws Exception {
+        registry.subscribe("a", entity, TestEntity.NAME, new RecordingListener("a"));
+        registry.subscribe("a", app, TestApplication.MY_ATTRIBUTE, new RecordingListener("b"));
+        assertEquals(registry.getListenerCount(), 2);
+
+        Entities.unmanage(entity);
+        registry.releaseUnmanaged();
+
+        assertEquals(registry.getListenerCount(), 1);
+        assertEquals(app.getAttribute(LISTENER_COUNT), (Integer)1);
+    }
+
+    @Test
+    public void testKeepsListenersOnEntityNotYetManaged() throws Exception {
+        TestEntity pending = app.addChild(EntitySpec.create(TestEntity.class));
+        registry.subscribe("a", pending, TestEntity.NAME, new RecordingListener("a"));
+        registry.subscribe("b", entity, TestEntity.NAME, new RecordingListener("b"));
+        registry.releaseUnmanaged();
+        assertEquals(registry.getListenerCount(), 2);
+
+        Entities.manage(pending);
+        pending.setAttribute(TestEntity.NAME, "val");
+        assertEventsEventually(ImmutableList.of("a:val"));
+    }
+
+    private void assertEventsEventually(final List<String> expected) {
+        Asserts.succeedsEventually(new Runnable() {
+            @Override public void run() {
+                assertEquals(events, expected);
+            }});
+    }
+
+    private class RecordingListener implements SensorEventListener<String> {
+        private final String name;
+
+        RecordingListener(String name) {
+            this.name = name;
+        }
+        @Override
+        public void onEvent(SensorEvent<String> event) {
+            events.add(name+":"+event.getValue());
+        }
+    }
+}
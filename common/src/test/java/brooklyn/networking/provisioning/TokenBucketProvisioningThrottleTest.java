@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.provisioning;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+import brooklyn.util.time.Duration;
+
+public class TokenBucketProvisioningThrottleTest {
+
+    @Test
+    public void testZeroIntervalDoesNotWait() throws Exception {
+        TokenBucketProvisioningThrottle throttle = new TokenBucketProvisioningThrottle("test", Duration.ZERO, 1, 0);
+        for (int i = 0; i < 10; i++) {
+            throttle.acquire().succeeded();
+        }
+        assertEquals(throttle.getStats().getAcquired(), 10);
+        assertEquals(throttle.getStats().getInFlight(), 0);
+        assertTrue(throttle.getStats().getMaxWaitMillis() < 100, "stats="+throttle.getStats());
+    }
+
+    @Test
+    public void testBurstThenRateLimited() throws Exception {
+        TokenBucketProvisioningThrottle throttle = new TokenBucketProvisioningThrottle("test", Duration.millis(200), 2, 0);
+        long start = System.currentTimeMillis();
+        throttle.acquire().succeeded();
+        throttle.acquire().succeeded();
+        assertTrue(System.currentTimeMillis() - start < 150, "burst should not have waited");
+
+        throttle.acquire().succeeded();
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed >= 150, "elapsed="+elapsed);
+        assertTrue(throttle.getStats().getTotalWaitMillis() >= 150, "stats="+throttle.getStats());
+    }
+
+    @Test
+    public void testRefillsFromSubclassClock() throws Exception {
+        final AtomicLong now = new AtomicLong(1000);
+        TokenBucketProvisioningThrottle throttle = new TokenBucketProvisioningThrottle("test", Duration.millis(200), 1, 0) {
+            // a field of the subclass, so not yet set while the superclass is being constructed
+            final AtomicLong clock = now;
+            @Override protected long currentTimeMillis() {
+                return clock.get();
+            }};
+        throttle.acquire().succeeded();
+        now.addAndGet(200);
+        throttle.acquire().succeeded();
+        assertEquals(throttle.getStats().getAcquired(), 2);
+        assertEquals(throttle.getStats().getTotalWaitMillis(), 0);
+    }
+
+    @Test
+    public void testMaxInFlightBlocksUntilReleased() throws Exception {
+        final TokenBucketProvisioningThrottle throttle = new TokenBucketProvisioningThrottle("test", Duration.ZERO, 1, 1);
+        ProvisioningThrottle.Permit first = throttle.acquire();
+
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Thread t = new Thread(new Runnable() {
+            @Override public void run() {
+                throttle.acquire().succeeded();
+                acquired.countDown();
+            }});
+        t.start();
+        try {
+            assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+            assertEquals(throttle.getStats().getInFlight(), 1);
+
+            first.succeeded();
+            assertTrue(acquired.await(10, TimeUnit.SECONDS));
+        } finally {
+            t.interrupt();
+        }
+    }
+
+    @Test
+    public void testSlowsDownOnThrottlingErrorsAndRecovers() throws Exception {
+        TokenBucketProvisioningThrottle throttle = new TokenBucketProvisioningThrottle("test", Duration.ZERO, 5, 0);
+        throttle.acquire().failed(new IllegalStateException("HTTP/1.1 431 request throttled"));
+        assertEquals(throttle.getStats().getSlowdownFactor(), 2.0);
+        assertEquals(throttle.getStats().getThrottledCount(), 1);
+
+        throttle.acquire().failed(new IllegalStateException("no capacity"));
+        assertEquals(throttle.getStats().getSlowdownFactor(), 2.0);
+
+        throttle.acquire().succeeded();
+        assertEquals(throttle.getStats().getSlowdownFactor(), 1.0);
+    }
+
+    @Test
+    public void testPermitReleasedOnlyOnce() throws Exception {
+        TokenBucketProvisioningThrottle throttle = new TokenBucketProvisioningThrottle("test", Duration.ZERO, 1, 2);
+        ProvisioningThrottle.Permit permit = throttle.acquire();
+        permit.succeeded();
+        permit.succeeded();
+        assertEquals(throttle.getStats().getInFlight(), 0);
+    }
+
+    @Test
+    public void testIsThrottlingError() throws Exception {
+        assertTrue(TokenBucketProvisioningThrottle.isThrottlingError(new RuntimeException(new IllegalStateException("RequestLimitExceeded: Request limit exceeded."))));
+        assertTrue(TokenBucketProvisioningThrottle.isThrottlingError(new RuntimeException("HTTP/1.1 429 Too Many Requests")));
+        assertTrue(TokenBucketProvisioningThrottle.isThrottlingError(new RuntimeException("errorcode 431")));
+        assertFalse(TokenBucketProvisioningThrottle.isThrottlingError(new RuntimeException("port 4290 in use")));
+        assertFalse(TokenBucketProvisioningThrottle.isThrottlingError(new RuntimeException("Insufficient capacity")));
+    }
+
+    @Test
+    public void testCallThrottledReportsOutcome() throws Exception {
+        TokenBucketProvisioningThrottle throttle = new TokenBucketProvisioningThrottle("test", Duration.ZERO, 5, 1);
+        String result = ProvisioningThrottles.callThrottled(throttle, new ProvisioningThrottles.ThrottledCall<String, Exception>() {
+            @Override public String call() {
+                return "done";
+            }});
+        assertEquals(result, "done");
+        assertEquals(throttle.getStats().getInFlight(), 0);
+
+        try {
+            ProvisioningThrottles.callThrottled(throttle, new ProvisioningThrottles.ThrottledCall<String, IOException>() {
+                @Override public String call() throws IOException {
+                    throw new IOException("HTTP/1.1 429 Too Many Requests");
+                }});
+            fail("expected failure");
+        } catch (IOException e) {
+            // expected; the checked exception is passed through as is
+        }
+        assertEquals(throttle.getStats().getInFlight(), 0);
+        assertEquals(throttle.getStats().getThrottledCount(), 1);
+        assertEquals(throttle.getStats().getAcquired(), 2);
+    }
+}
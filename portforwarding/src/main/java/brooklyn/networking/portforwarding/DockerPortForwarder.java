@@ -15,6 +15,9 @@
  */
 package brooklyn.networking.portforwarding;
 
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
 import java.net.URI;
 import java.util.List;
 import java.util.Map;
@@ -28,10 +31,9 @@ import org.jclouds.sshj.config.SshjSshClientModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Predicates;
-import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
@@ -44,13 +46,26 @@ import brooklyn.location.MachineLocation;
 import brooklyn.location.PortRange;
 import brooklyn.location.access.PortForwardManager;
 import brooklyn.location.access.PortForwardManagerAuthority;
+import brooklyn.location.access.PortMapping;
+import brooklyn.location.basic.SshMachineLocation;
 import brooklyn.location.jclouds.JcloudsLocation;
 import brooklyn.location.jclouds.JcloudsSshMachineLocation;
 import brooklyn.networking.subnet.PortForwarder;
+import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.net.Cidr;
 import brooklyn.util.net.Protocol;
 
-public class DockerPortForwarder implements PortForwarder {
+/**
+ * Port forwarder for containers on a Docker host, whose ports are mapped by Docker itself.
+ * <p>
+ * The jclouds Docker API context is expensive to build, so it is created on first use and shared by all calls
+ * (it is thread-safe) until {@link #close()}, or until re-initialised with a different endpoint.
+ * <p>
+ * Alternatively, with {@link #enableDirectDnat(SshMachineLocation)}, ports are forwarded by iptables DNAT rules on
+ * the Docker host straight to the container's bridge IP, bypassing Docker's published ports (and any userland
+ * {@code docker-proxy}), so forwarded traffic stays in the kernel.
+ */
+public class DockerPortForwarder implements PortForwarder, Closeable {
 
     private static final Logger log = LoggerFactory.getLogger(DockerPortForwarder.class);
 
@@ -59,6 +74,11 @@ public class DockerPortForwarder implements PortForwarder {
     private String dockerHostname;
     private String dockerIdentity;
     private String dockerCredential;
+    private SshMachineLocation dnatHostMachine;
+
+    // guarded by this
+    private transient ComputeServiceContext context;
+    private transient DockerPortMappingIndex portMappingIndex;
 
     public DockerPortForwarder() {
         this(new PortForwardManagerAuthority());
@@ -69,6 +89,7 @@ public class DockerPortForwarder implements PortForwarder {
     }
 
     public void init(String dockerHostIp, int dockerHostPort) {
+        closeContext();
         this.dockerEndpoint = URI.create("http://" + dockerHostIp + ":" + dockerHostPort).toASCIIString();
         this.dockerHostname = dockerHostIp;
         this.dockerIdentity = "notused";
@@ -80,6 +101,7 @@ public class DockerPortForwarder implements PortForwarder {
     }
 
     public void init(URI endpoint, String identity, String credential) {
+        closeContext();
         this.dockerEndpoint = endpoint.toASCIIString();
         this.dockerHostname = endpoint.getHost();
         this.dockerIdentity = identity;
@@ -99,6 +121,18 @@ public class DockerPortForwarder implements PortForwarder {
         }
     }
 
+    /**
+     * Forwards ports by iptables DNAT rules on the docker host (reached through the given machine, which needs sudo),
+     * rather than using the ports published by docker.
+     */
+    public void enableDirectDnat(SshMachineLocation dockerHostMachine) {
+        this.dnatHostMachine = checkNotNull(dockerHostMachine, "dockerHostMachine");
+    }
+
+    public boolean isDirectDnat() {
+        return dnatHostMachine != null;
+    }
+
     public PortForwardManager getPortForwardManager() {
         return portForwardManager;
     }
@@ -135,15 +169,32 @@ public class DockerPortForwarder implements PortForwarder {
             throw new IllegalStateException("Failed to open port-forwarding for machine "+targetMachine+" because its" +
                     " location has no target ip: "+targetMachine);
         }
-        HostAndPort targetSide = HostAndPort.fromParts(targetIp, targetPort);
-        HostAndPort newFrontEndpoint = openPortForwarding(targetSide, optionalPublicPort, protocol, accessingCidr);
+        HostAndPort newFrontEndpoint = null;
+        if (isDirectDnat()) {
+            targetIp = getContainerIp(targetMachine);
+        } else if (targetMachine instanceof JcloudsSshMachineLocation && !optionalPublicPort.isPresent()) {
+            // the port is published by docker when the container is created, so use the real host port if there is one
+            Integer hostPort = getPublishedHostPort(((JcloudsSshMachineLocation) targetMachine).getJcloudsId(), targetPort, protocol);
+            if (hostPort != null) {
+                PortForwardManager pfw = getPortForwardManager();
+                pfw.acquirePublicPortExplicit(dockerHostname, hostPort);
+                pfw.associate(dockerHostname, hostPort, targetMachine, targetPort);
+                newFrontEndpoint = HostAndPort.fromParts(dockerHostname, hostPort);
+            }
+        }
+        if (newFrontEndpoint == null) {
+            HostAndPort targetSide = HostAndPort.fromParts(targetIp, targetPort);
+            newFrontEndpoint = openPortForwarding(targetSide, optionalPublicPort, protocol, accessingCidr);
+            // so it can be found to close
+            getPortForwardManager().associate(dockerHostname, newFrontEndpoint.getPort(), targetMachine, targetPort);
+        }
         log.debug("Enabled port-forwarding for {} port {} (VM {}), via {}", new Object[] {targetMachine, targetPort, targetMachine, newFrontEndpoint});
         return newFrontEndpoint;
     }
 
     @Override
     public HostAndPort openPortForwarding(HostAndPort targetSide, Optional<Integer> optionalPublicPort, Protocol protocol, Cidr accessingCidr) {
-        // FIXME Does this actually open the port forwarding? Or just record that the port is supposed to be open?
+        // FIXME Unless in direct DNAT mode, does this actually open the port forwarding? Or just record that the port is supposed to be open?
         PortForwardManager pfw = getPortForwardManager();
         int publicPort;
         if (optionalPublicPort.isPresent()) {
@@ -152,34 +203,140 @@ public class DockerPortForwarder implements PortForwarder {
         } else {
             publicPort = pfw.acquirePublicPort(dockerHostname);
         }
+        if (isDirectDnat()) {
+            systemCreateDnat(publicPort, targetSide, protocol);
+        }
         return HostAndPort.fromParts(dockerHostname, publicPort);
     }
 
-    public Map<Integer, Integer> getPortMappings(MachineLocation targetMachine) {
-        ComputeServiceContext context = ContextBuilder.newBuilder("docker")
-                .endpoint(dockerEndpoint)
-                .credentials(dockerIdentity, dockerCredential)
-                .modules(ImmutableSet.<Module>of(new SLF4JLoggingModule(), new SshjSshClientModule()))
-                .build(ComputeServiceContext.class);
+    /**
+     * Closes the port-forwarding opened for the machine's port: in direct DNAT mode its iptables rules are deleted,
+     * and the port mapping is forgotten. Does nothing if there is no such port-forwarding.
+     */
+    public void closePortForwarding(MachineLocation targetMachine, int targetPort, Protocol protocol) {
+        PortMapping mapping = getPortForwardManager().getPortMappingWithPrivateSide(targetMachine, targetPort);
+        if (mapping == null) {
+            log.debug("No port-forwarding to close in {} for {} port {}", new Object[] {this, targetMachine, targetPort});
+            return;
+        }
+        if (isDirectDnat()) {
+            systemDeleteDnat(mapping.getPublicPort(), HostAndPort.fromParts(getContainerIp(targetMachine), targetPort), protocol);
+        }
+        getPortForwardManager().forgetPortMapping(mapping);
+        log.debug("Closed port-forwarding for {} port {}, via {}:{}", new Object[] {targetMachine, targetPort, dockerHostname, mapping.getPublicPort()});
+    }
+
+    /**
+     * The host port docker published for the container's port, or null; TCP ports are looked up in the
+     * {@link #getPortMappingIndex() index}, falling back to inspecting the container if that fails.
+     */
+    protected Integer getPublishedHostPort(String containerId, int containerPort, Protocol protocol) {
+        if (protocol == Protocol.TCP) {
+            try {
+                return getPortMappingIndex().getHostPort(containerId, containerPort);
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                log.warn("Error looking up published port "+containerPort+" of container "+containerId+" in "+this
+                        +"; inspecting container instead", e);
+            }
+        }
+        Container container = getDockerApi().getRemoteApi().inspectContainer(containerId);
+        return DockerPortMappingIndex.portMappingsOf(container, protocol).get(containerPort);
+    }
 
-        DockerApi api = context.unwrapApi(DockerApi.class);
+    protected void systemCreateDnat(int publicPort, HostAndPort targetSide, Protocol protocol) {
+        List<String> commands = ImmutableList.of(
+                IptablesPortForwardingCommands.dnat(publicPort, targetSide, protocol),
+                IptablesPortForwardingCommands.dnatLocal(publicPort, targetSide, protocol),
+                IptablesPortForwardingCommands.acceptForwarded(targetSide, protocol),
+                IptablesPortForwardingCommands.saveRules());
+        int result = dnatHostMachine.execScript("port-forwarding "+dockerHostname+":"+publicPort+"->"+targetSide, commands);
+        if (result != 0) {
+            throw new IllegalStateException("Failed creating DNAT rule on "+dnatHostMachine+" for "+this+": "
+                    +publicPort+" -> "+targetSide+" (exit code "+result+")");
+        }
+        log.debug("Created DNAT rule on {} for {}: {} -> {}", new Object[] {dnatHostMachine, this, publicPort, targetSide});
+    }
+
+    protected void systemDeleteDnat(int publicPort, HostAndPort targetSide, Protocol protocol) {
+        List<String> commands = ImmutableList.of(
+                IptablesPortForwardingCommands.deleteDnat(publicPort, targetSide, protocol),
+                IptablesPortForwardingCommands.deleteDnatLocal(publicPort, targetSide, protocol),
+                IptablesPortForwardingCommands.deleteAcceptForwarded(targetSide, protocol),
+                IptablesPortForwardingCommands.saveRules());
+        int result = dnatHostMachine.execScript("close port-forwarding "+dockerHostname+":"+publicPort+"->"+targetSide, commands);
+        if (result != 0) {
+            throw new IllegalStateException("Failed deleting DNAT rule on "+dnatHostMachine+" for "+this+": "
+                    +publicPort+" -> "+targetSide+" (exit code "+result+")");
+        }
+        log.debug("Deleted DNAT rule on {} for {}: {} -> {}", new Object[] {dnatHostMachine, this, publicPort, targetSide});
+    }
+
+    /** the container's IP on the docker bridge */
+    protected String getContainerIp(MachineLocation targetMachine) {
+        if (targetMachine instanceof JcloudsSshMachineLocation) {
+            JcloudsSshMachineLocation machine = (JcloudsSshMachineLocation) targetMachine;
+            String result = Iterables.getFirst(machine.getNode().getPrivateAddresses(), null);
+            if (result == null) {
+                Container container = getDockerApi().getRemoteApi().inspectContainer(machine.getJcloudsId());
+                if (container != null && container.getNetworkSettings() != null) result = container.getNetworkSettings().getIpAddress();
+            }
+            if (result != null) return result;
+        }
+        throw new IllegalStateException("Failed to open port-forwarding for machine "+targetMachine+" because its container ip is not known");
+    }
+
+    /** the Docker API for the endpoint, creating the shared context if necessary */
+    protected synchronized DockerApi getDockerApi() {
+        if (dockerEndpoint == null) throw new IllegalStateException("Docker endpoint not initialised for "+this);
+        if (context == null) {
+            log.debug("Creating docker context for {} in {}", dockerEndpoint, this);
+            context = ContextBuilder.newBuilder("docker")
+                    .endpoint(dockerEndpoint)
+                    .credentials(dockerIdentity, dockerCredential)
+                    .modules(ImmutableSet.<Module>of(new SLF4JLoggingModule(), new SshjSshClientModule()))
+                    .build(ComputeServiceContext.class);
+        }
+        return context.unwrapApi(DockerApi.class);
+    }
+
+    /** closes the shared docker context, if created; it is re-created if the forwarder is used again */
+    @Override
+    public void close() {
+        closeContext();
+    }
+
+    /** the index of published ports on the docker host, loading it if necessary */
+    public synchronized DockerPortMappingIndex getPortMappingIndex() {
+        if (portMappingIndex == null) {
+            DockerApi api = getDockerApi();
+            DockerPortMappingIndex index = new DockerPortMappingIndex(api, context.utils().http(), dockerEndpoint);
+            index.start();
+            portMappingIndex = index;
+        }
+        return portMappingIndex;
+    }
+
+    private synchronized void closeContext() {
+        if (portMappingIndex != null) {
+            portMappingIndex.close();
+            portMappingIndex = null;
+        }
+        if (context != null) {
+            log.debug("Closing docker context for {} in {}", dockerEndpoint, this);
+            try {
+                context.close();
+            } catch (Exception e) {
+                log.warn("Error closing docker context for "+dockerEndpoint+" in "+this+" (continuing)", e);
+            }
+            context = null;
+        }
+    }
+
+    /** container port to host port for the published ports of the container */
+    public Map<Integer, Integer> getPortMappings(MachineLocation targetMachine) {
         String containerId = ((JcloudsSshMachineLocation) targetMachine).getJcloudsId();
-        Container container = api.getRemoteApi().inspectContainer(containerId);
-        context.close();
-        Map<Integer, Integer> portMappings = Maps.newLinkedHashMap();
-        if(container.getNetworkSettings() == null) return portMappings;
-        for(Map.Entry<String, List<Map<String, String>>> entrySet : container.getNetworkSettings().getPorts().entrySet()) {
-            String containerPort = Iterables.get(Splitter.on("/").split(entrySet.getKey()), 0);
-            String hostPort = Iterables.getOnlyElement(Iterables.transform(entrySet.getValue(),
-                    new Function<Map<String, String>, String>() {
-                        @Override
-                        public String apply(Map<String, String> hostIpAndPort) {
-                            return hostIpAndPort.get("HostPort");
-                        }
-                    }));
-            portMappings.put(Integer.parseInt(containerPort), Integer.parseInt(hostPort));
-        }
-        return portMappings;
+        return Maps.newLinkedHashMap(getPortMappingIndex().getPortMappings(containerId));
     }
 
     @Override
@@ -187,4 +344,9 @@ public class DockerPortForwarder implements PortForwarder {
         return false;
     }
 
+    @Override
+    public String toString() {
+        return "DockerPortForwarder["+dockerEndpoint+"]";
+    }
+
 }
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.portforwarding;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+import org.jclouds.docker.DockerApi;
+import org.jclouds.docker.domain.Container;
+import org.jclouds.docker.domain.Port;
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.io.Payload;
+import org.jclouds.rest.HttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.net.Protocol;
+import brooklyn.util.time.Duration;
+import brooklyn.util.time.Time;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonStreamParser;
+
+/**
+ * Index of the published ports of all the running containers on a Docker host (container id to
+ * container port to host port), so lookups need no API round trip.
+ * <p>
+ * The index is loaded with a single list call, and then kept current by consuming the host's
+ * {@code /events} stream: a container's ports are (re-)read when it starts, and dropped when it dies or is
+ * destroyed. If the stream is interrupted it is re-opened (with backoff) and the index re-loaded, replaying
+ * events since the last load. Lookups of containers not (yet) in the index fall back to inspecting the container.
+ * If the stream cannot be re-opened after {@value #MAX_CONSECUTIVE_FAILURES} attempts, the index is dropped and
+ * all lookups inspect the container.
+ * <p>
+ * Only TCP ports are indexed; see {@link #portMappingsOf(Container, Protocol)} for others.
+ * <p>
+ * The jclouds Docker API does not expose the events stream, so it is read with the HTTP client of the same jclouds
+ * context, so with its TLS configuration and credentials.
+ */
+@Beta
+public class DockerPortMappingIndex implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(DockerPortMappingIndex.class);
+
+    public static final int MAX_CONSECUTIVE_FAILURES = 10;
+
+    private static final Set<String> STOP_EVENTS = ImmutableSet.of("die", "stop", "kill", "destroy");
+
+    private final DockerApi api;
+    private final HttpClient http;
+    private final String endpoint;
+    private final ConcurrentMap<String, Map<Integer, Integer>> portMappings = Maps.newConcurrentMap();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong events = new AtomicLong();
+
+    private volatile Duration minReconnectDelay = Duration.ONE_SECOND;
+    private volatile Duration maxReconnectDelay = Duration.minutes(1);
+    private volatile boolean closed;
+    private volatile boolean eventsFailed;
+    private volatile Thread eventsThread;
+    private volatile Payload eventsPayload;
+
+    /**
+     * @param api    for listing and inspecting containers
+     * @param http   the HTTP client of the same jclouds context, for reading the events stream
+     */
+    public DockerPortMappingIndex(DockerApi api, HttpClient http, String endpoint) {
+        this.api = api;
+        this.http = http;
+        this.endpoint = endpoint;
+    }
+
+    /** sets the backoff between attempts to re-open the events stream */
+    @VisibleForTesting
+    public void setReconnectDelays(Duration min, Duration max) {
+        this.minReconnectDelay = min;
+        this.maxReconnectDelay = max;
+    }
+
+    /** loads the index, and starts consuming events in the background */
+    public synchronized void start() {
+        if (eventsThread != null) return;
+        final long since = reload();
+        eventsThread = new Thread(new Runnable() {
+            @Override public void run() {
+                consumeEvents(since);
+            }}, "brooklyn-docker-events-"+endpoint);
+        eventsThread.setDaemon(true);
+        eventsThread.start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Payload payload = eventsPayload;
+        if (payload != null) payload.release();
+        Thread thread = eventsThread;
+        if (thread != null) thread.interrupt();
+    }
+
+    /**
+     * Returns the container port to host port mappings of the container, or an empty map if it has no published ports.
+     */
+    public Map<Integer, Integer> getPortMappings(String containerId) {
+        if (eventsFailed) {
+            // the index can no longer be kept current
+            misses.incrementAndGet();
+            return inspect(containerId);
+        }
+        Map<Integer, Integer> result = portMappings.get(containerId);
+        if (result != null) {
+            hits.incrementAndGet();
+            return result;
+        }
+        misses.incrementAndGet();
+        result = inspect(containerId);
+        portMappings.put(containerId, result);
+        return result;
+    }
+
+    /** the host port published for the container port, or null if it is not published */
+    @Nullable
+    public Integer getHostPort(String containerId, int containerPort) {
+        return getPortMappings(containerId).get(containerPort);
+    }
+
+    /** counts of lookups answered from the index ("hits") or by inspecting the container ("misses"), and events consumed */
+    public Map<String, Long> getStats() {
+        return ImmutableMap.of("hits", hits.get(), "misses", misses.get(), "events", events.get());
+    }
+
+    /** re-loads all running containers; returns the time (in seconds, for the events stream) from which changes may be missing */
+    public long reload() {
+        long since = System.currentTimeMillis() / 1000 - 1;
+        Map<String, Map<Integer, Integer>> loaded = listContainers();
+        portMappings.keySet().retainAll(loaded.keySet());
+        portMappings.putAll(loaded);
+        log.debug("Loaded port mappings of {} container(s) on docker host {}", loaded.size(), endpoint);
+        return since;
+    }
+
+    @VisibleForTesting
+    protected Map<String, Map<Integer, Integer>> listContainers() {
+        Map<String, Map<Integer, Integer>> result = Maps.newLinkedHashMap();
+        for (Container container : api.getRemoteApi().listContainers()) {
+            Map<Integer, Integer> mappings = Maps.newLinkedHashMap();
+            if (container.getPorts() != null) {
+                for (Port port : container.getPorts()) {
+                    if (port.getPublicPort() > 0 && !"udp".equalsIgnoreCase(port.getType())) {
+                        mappings.put(port.getPrivatePort(), port.getPublicPort());
+                    }
+                }
+            }
+            result.put(container.getId(), ImmutableMap.copyOf(mappings));
+        }
+        return result;
+    }
+
+    @VisibleForTesting
+    protected Map<Integer, Integer> inspect(String containerId) {
+        return portMappingsOf(api.getRemoteApi().inspectContainer(containerId));
+    }
+
+    /** whether events could not be read (so the index was dropped, and every lookup inspects the container) */
+    public boolean isEventsFailed() {
+        return eventsFailed;
+    }
+
+    /** extracts the published TCP ports from the network settings of an inspected container */
+    public static Map<Integer, Integer> portMappingsOf(@Nullable Container container) {
+        return portMappingsOf(container, Protocol.TCP);
+    }
+
+    /** extracts the published ports of the given protocol from the network settings of an inspected container */
+    public static Map<Integer, Integer> portMappingsOf(@Nullable Container container, Protocol protocol) {
+        Map<Integer, Integer> result = Maps.newLinkedHashMap();
+        if (container == null || container.getNetworkSettings() == null || container.getNetworkSettings().getPorts() == null) {
+            return ImmutableMap.copyOf(result);
+        }
+        for (Map.Entry<String, List<Map<String, String>>> entry : container.getNetworkSettings().getPorts().entrySet()) {
+            List<String> portAndType = Splitter.on("/").splitToList(entry.getKey());
+            String type = (portAndType.size() > 1) ? portAndType.get(1) : "tcp";
+            if (!protocol.name().equalsIgnoreCase(type)) continue;
+            // exposed but not published
+            if (entry.getValue() == null || entry.getValue().isEmpty()) continue;
+            String hostPort = Iterables.getFirst(entry.getValue(), null).get("HostPort");
+            if (hostPort == null || hostPort.isEmpty()) continue;
+            result.put(Integer.parseInt(portAndType.get(0)), Integer.parseInt(hostPort));
+        }
+        return ImmutableMap.copyOf(result);
+    }
+
+    private void consumeEvents(long since) {
+        Duration delay = minReconnectDelay;
+        int failures = 0;
+        while (!closed) {
+            try {
+                Reader reader = new InputStreamReader(openEvents(since).openStream(), Charsets.UTF_8);
+                try {
+                    delay = minReconnectDelay;
+                    failures = 0;
+                    consume(reader);
+                } finally {
+                    reader.close();
+                }
+                if (!closed) log.debug("Docker events stream for {} ended; re-opening", endpoint);
+            } catch (Exception e) {
+                if (closed) break;
+                Exceptions.propagateIfFatal(e);
+                if (++failures >= MAX_CONSECUTIVE_FAILURES) {
+                    log.warn("Failed to read docker events from "+endpoint+" "+failures+" times in succession; "
+                            + "no longer indexing port mappings (each lookup will inspect the container)", e);
+                    eventsFailed = true;
+                    portMappings.clear();
+                    break;
+                }
+                log.warn("Error reading docker events from {}; will retry in {}: {}", new Object[] {endpoint, Time.makeTimeStringRounded(delay), e});
+                if (!sleep(delay)) break;
+                delay = Duration.millis(Math.min(maxReconnectDelay.toMilliseconds(), delay.toMilliseconds() * 2));
+            }
+            if (closed) break;
+            try {
+                // events may have been missed while disconnected
+                since = reload();
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                log.warn("Error re-loading docker port mappings from "+endpoint+" (continuing)", e);
+            }
+        }
+        log.debug("Stopped consuming docker events from {}", endpoint);
+    }
+
+    /** opens the events stream from the given time (in seconds) */
+    @VisibleForTesting
+    protected Payload openEvents(long since) {
+        HttpResponse response = http.invoke(HttpRequest.builder()
+                .method("GET")
+                .endpoint(URI.create(endpoint+"/events?since="+since))
+                .build());
+        Payload payload = response.getPayload();
+        if (response.getStatusCode() != 200 || payload == null) {
+            if (payload != null) payload.release();
+            throw new IllegalStateException("Failed to open docker events stream from "+endpoint+": "+response.getStatusLine());
+        }
+        eventsPayload = payload;
+        return payload;
+    }
+
+    private boolean sleep(Duration delay) {
+        try {
+            Thread.sleep(delay.toMilliseconds());
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /** applies each of the stream of JSON event objects read from the reader, until it ends */
+    @VisibleForTesting
+    protected void consume(Reader reader) throws IOException {
+        JsonStreamParser parser = new JsonStreamParser(reader);
+        while (!closed && parser.hasNext()) {
+            JsonElement element = parser.next();
+            if (element.isJsonObject()) onEvent(element.getAsJsonObject());
+        }
+    }
+
+    protected void onEvent(JsonObject event) {
+        events.incrementAndGet();
+        // newer daemons also report events for other object types, e.g. networks and volumes
+        if (event.has("Type") && !"container".equals(event.get("Type").getAsString())) return;
+        if (!event.has("status") || !event.has("id")) return;
+        String status = event.get("status").getAsString();
+        String containerId = event.get("id").getAsString();
+        if ("start".equals(status)) {
+            try {
+                portMappings.put(containerId, inspect(containerId));
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                // will be inspected on next lookup
+                log.debug("Error inspecting started container "+containerId+" on "+endpoint, e);
+                portMappings.remove(containerId);
+            }
+        } else if (STOP_EVENTS.contains(status)) {
+            portMappings.remove(containerId);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DockerPortMappingIndex["+endpoint+"]";
+    }
+}
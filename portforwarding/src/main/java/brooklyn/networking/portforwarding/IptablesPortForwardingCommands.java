@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.portforwarding;
+
+import static brooklyn.util.ssh.BashCommands.sudo;
+
+import java.util.List;
+
+import brooklyn.util.net.Protocol;
+import brooklyn.util.ssh.IptablesCommands;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.HostAndPort;
+
+/**
+ * Builds the iptables commands for forwarding a port on a host to a target address, as used by
+ * {@link PortForwarderIptables} on a dedicated forwarder and by {@link DockerPortForwarder} in direct DNAT mode.
+ * Each command (apart from {@link #saveRules()}, which is already wrapped) is run with {@code sudo}.
+ * <p>
+ * Rules are only inserted if not already present (checked with {@code iptables -C}), so repeating a command
+ * does not add duplicates; the corresponding delete commands remove every copy of the rule.
+ */
+@Beta
+public class IptablesPortForwardingCommands {
+
+    public static final String IPTABLES = "/sbin/iptables";
+
+    private IptablesPortForwardingCommands() {}
+
+    /** DNAT of traffic arriving for the public port, to the target */
+    public static String dnat(int publicPort, HostAndPort targetSide, Protocol protocol) {
+        return insertRule("nat", "PREROUTING", dnatRule(publicPort, targetSide, protocol));
+    }
+
+    /** removes the rule added by {@link #dnat(int, HostAndPort, Protocol)} */
+    public static String deleteDnat(int publicPort, HostAndPort targetSide, Protocol protocol) {
+        return deleteRule("nat", "PREROUTING", dnatRule(publicPort, targetSide, protocol));
+    }
+
+    /**
+     * DNAT of traffic originating on the host itself and addressed to the public port on one of its (non-loopback)
+     * addresses; such traffic does not pass through PREROUTING.
+     */
+    public static String dnatLocal(int publicPort, HostAndPort targetSide, Protocol protocol) {
+        return insertRule("nat", "OUTPUT", dnatLocalRule(publicPort, targetSide, protocol));
+    }
+
+    /** removes the rule added by {@link #dnatLocal(int, HostAndPort, Protocol)} */
+    public static String deleteDnatLocal(int publicPort, HostAndPort targetSide, Protocol protocol) {
+        return deleteRule("nat", "OUTPUT", dnatLocalRule(publicPort, targetSide, protocol));
+    }
+
+    /** accepts forwarded traffic to the target, e.g. where the FORWARD policy is to drop (as set by Docker) */
+    public static String acceptForwarded(HostAndPort targetSide, Protocol protocol) {
+        return insertRule("filter", "FORWARD", acceptForwardedRule(targetSide, protocol));
+    }
+
+    /** removes the rule added by {@link #acceptForwarded(HostAndPort, Protocol)} */
+    public static String deleteAcceptForwarded(HostAndPort targetSide, Protocol protocol) {
+        return deleteRule("filter", "FORWARD", acceptForwardedRule(targetSide, protocol));
+    }
+
+    /** masquerades all forwarded traffic, so replies from targets which do not route via this host return through it */
+    public static String masquerade() {
+        return insertRule("nat", "POSTROUTING", "-j MASQUERADE");
+    }
+
+    private static String dnatRule(int publicPort, HostAndPort targetSide, Protocol protocol) {
+        return String.format("-p %s --dport %s -j DNAT --to-destination %s:%s",
+                protocolName(protocol), publicPort, targetSide.getHostText(), targetSide.getPort());
+    }
+
+    private static String dnatLocalRule(int publicPort, HostAndPort targetSide, Protocol protocol) {
+        return String.format("-p %s ! -d 127.0.0.0/8 -m addrtype --dst-type LOCAL --dport %s -j DNAT --to-destination %s:%s",
+                protocolName(protocol), publicPort, targetSide.getHostText(), targetSide.getPort());
+    }
+
+    private static String acceptForwardedRule(HostAndPort targetSide, Protocol protocol) {
+        return String.format("-p %s -d %s --dport %s -j ACCEPT", protocolName(protocol), targetSide.getHostText(), targetSide.getPort());
+    }
+
+    /** inserts the rule at the head of the chain, unless the chain already has it */
+    private static String insertRule(String table, String chain, String rule) {
+        return sudo(String.format("%s -t %s -C %s %s", IPTABLES, table, chain, rule))+" 2> /dev/null || "
+                + sudo(String.format("%s -t %s -I %s %s", IPTABLES, table, chain, rule));
+    }
+
+    /** deletes every copy of the rule from the chain; succeeds if there are none */
+    private static String deleteRule(String table, String chain, String rule) {
+        return "while "+sudo(String.format("%s -t %s -D %s %s", IPTABLES, table, chain, rule))+" 2> /dev/null; do true; done";
+    }
+
+    /** lists the rules of the nat table, in the form they would be added (as {@code -A CHAIN ...}) */
+    public static String listNatRules() {
+        return sudo(String.format("%s -t nat -S", IPTABLES));
+    }
+
+    /** whether the output of {@link #listNatRules()} includes DNAT of the public port to the target */
+    public static boolean hasDnat(String natRules, int publicPort, HostAndPort targetSide, Protocol protocol) {
+        String destination = "--to-destination "+targetSide.getHostText()+":"+targetSide.getPort();
+        for (String rule : Splitter.on('\n').trimResults().split(natRules)) {
+            List<String> words = ImmutableList.copyOf(Splitter.on(' ').omitEmptyStrings().split(rule));
+            if (words.size() >= 2 && words.get(0).equals("-A") && words.get(1).equals("PREROUTING")
+                    && containsPair(words, "-p", protocolName(protocol))
+                    && containsPair(words, "--dport", Integer.toString(publicPort))
+                    && (rule.endsWith(destination) || rule.contains(destination+" "))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** whether the output of {@link #listNatRules()} includes the rule added by {@link #masquerade()} */
+    public static boolean hasMasquerade(String natRules) {
+        for (String rule : Splitter.on('\n').trimResults().split(natRules)) {
+            if (rule.equals("-A POSTROUTING -j MASQUERADE")) return true;
+        }
+        return false;
+    }
+
+    private static boolean containsPair(List<String> words, String flag, String value) {
+        for (int i = 0; i < words.size() - 1; i++) {
+            if (words.get(i).equals(flag) && words.get(i+1).equals(value)) return true;
+        }
+        return false;
+    }
+
+    public static String saveRules() {
+        // note save already wrapped in sudo
+        return IptablesCommands.saveIptablesRules();
+    }
+
+    public static String protocolName(Protocol protocol) {
+        return protocol.name().toLowerCase();
+    }
+}
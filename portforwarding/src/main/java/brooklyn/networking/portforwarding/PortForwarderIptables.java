@@ -15,11 +15,13 @@
  */
 package brooklyn.networking.portforwarding;
 
-import static brooklyn.util.ssh.BashCommands.sudo;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.ByteArrayOutputStream;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,21 +32,25 @@ import brooklyn.location.MachineLocation;
 import brooklyn.location.PortRange;
 import brooklyn.location.access.PortForwardManager;
 import brooklyn.location.access.PortForwardManagerAuthority;
+import brooklyn.location.access.PortMapping;
 import brooklyn.location.basic.PortRanges;
 import brooklyn.location.basic.SshMachineLocation;
-import brooklyn.networking.subnet.PortForwarder;
+import brooklyn.networking.subnet.VerifiablePortForwarder;
 import brooklyn.util.net.Cidr;
 import brooklyn.util.net.Protocol;
 import brooklyn.util.ssh.IptablesCommands;
 import brooklyn.util.ssh.IptablesCommands.Chain;
 import brooklyn.util.ssh.IptablesCommands.Policy;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.net.HostAndPort;
 
-public class PortForwarderIptables implements PortForwarder {
+public class PortForwarderIptables implements VerifiablePortForwarder {
 
     // FIXME Currently ignores the protocol passed in, and always does TCP (without checking!)
 
@@ -53,6 +59,25 @@ public class PortForwarderIptables implements PortForwarder {
     private final PortForwardManager portForwardManager;
     private final String forwarderIp;
     private final SshMachineLocation forwarderMachine;
+    // public port -> forward, of the rules created by this instance; mappings of machines are also recorded
+    // in the PortForwardManager, which is what survives rebind
+    private final Map<Integer, Forward> forwards = Maps.newConcurrentMap();
+
+    private static class Forward {
+        final HostAndPort targetSide;
+        final Protocol protocol;
+        final Cidr accessingCidr;
+
+        Forward(HostAndPort targetSide, Protocol protocol, Cidr accessingCidr) {
+            this.targetSide = targetSide;
+            this.protocol = protocol;
+            this.accessingCidr = accessingCidr;
+        }
+
+        boolean matches(HostAndPort targetSide, Protocol protocol, Cidr accessingCidr) {
+            return this.targetSide.equals(targetSide) && Objects.equal(this.protocol, protocol) && Objects.equal(this.accessingCidr, accessingCidr);
+        }
+    }
 
     public PortForwarderIptables(String forwarderIp, SshMachineLocation forwarderMachine) {
         this(new PortForwardManagerAuthority(), forwarderIp, forwarderMachine);
@@ -102,7 +127,20 @@ public class PortForwarderIptables implements PortForwarder {
         }
 
         HostAndPort targetSide = HostAndPort.fromParts(targetIp, targetPort);
+        PortForwardManager pfw = getPortForwardManager();
+        PortMapping recorded = pfw.getPortMappingWithPrivateSide(targetMachine, targetPort);
+        if (recorded != null && !forwards.containsKey(recorded.getPublicPort()) && Protocol.TCP.equals(protocol)
+                && (!optionalPublicPort.isPresent() || optionalPublicPort.get() == recorded.getPublicPort())) {
+            // mapped before a rebind (the only tcp forwards of which this instance has no record); its cidr is not known
+            log.debug("Re-using recorded port-forwarding for {} via {}:{}", new Object[] {targetSide, forwarderIp, recorded.getPublicPort()});
+            forwards.put(recorded.getPublicPort(), new Forward(targetSide, protocol, accessingCidr));
+            return HostAndPort.fromParts(forwarderIp, recorded.getPublicPort());
+        }
+
         HostAndPort newFrontEndpoint = openPortForwarding(targetSide, optionalPublicPort, protocol, accessingCidr);
+        if (recorded == null || recorded.getPublicPort() != newFrontEndpoint.getPort()) {
+            pfw.associate(forwarderIp, newFrontEndpoint.getPort(), targetMachine, targetPort);
+        }
 
         log.debug("Enabled port-forwarding for {} port {} (VM {}), via {}", new Object[] {targetMachine, targetPort, targetMachine, newFrontEndpoint});
         return newFrontEndpoint;
@@ -110,7 +148,12 @@ public class PortForwarderIptables implements PortForwarder {
 
     @Override
     public HostAndPort openPortForwarding(HostAndPort targetSide, Optional<Integer> optionalPublicPort, Protocol protocol, Cidr accessingCidr) {
-        // TODO Could check old mapping, and re-use that public port
+        Optional<Integer> existing = getForwardedPort(targetSide, protocol, accessingCidr);
+        if (existing.isPresent() && (!optionalPublicPort.isPresent() || optionalPublicPort.equals(existing))) {
+            // e.g. the target's entity restarted; re-use the rule rather than adding another
+            log.debug("Re-using port-forwarding for {} via {}:{}", new Object[] {targetSide, forwarderIp, existing.get()});
+            return HostAndPort.fromParts(forwarderIp, existing.get());
+        }
         PortForwardManager pfw = getPortForwardManager();
 
         int publicPort;
@@ -121,11 +164,81 @@ public class PortForwarderIptables implements PortForwarder {
             publicPort = pfw.acquirePublicPort(forwarderIp);
         }
 
-        systemCreatePortForwarding(HostAndPort.fromParts(forwarderIp, publicPort), targetSide, accessingCidr);
+        if (systemCreatePortForwarding(HostAndPort.fromParts(forwarderIp, publicPort), targetSide, accessingCidr)) {
+            forwards.put(publicPort, new Forward(targetSide, protocol, accessingCidr));
+        }
 
         return HostAndPort.fromParts(forwarderIp, publicPort);
     }
 
+    private Optional<Integer> getForwardedPort(HostAndPort targetSide, Protocol protocol, Cidr accessingCidr) {
+        for (Map.Entry<Integer, Forward> entry : forwards.entrySet()) {
+            if (entry.getValue().matches(targetSide, protocol, accessingCidr)) return Optional.of(entry.getKey());
+        }
+        return Optional.absent();
+    }
+
+    /**
+     * The rules which should exist on the forwarder, by public port: those recorded in the PortForwardManager
+     * for machines (which survive rebind), and those created by this instance.
+     */
+    protected Map<Integer, HostAndPort> getExpectedForwards() {
+        Map<Integer, HostAndPort> result = Maps.newLinkedHashMap();
+        for (PortMapping mapping : getPortForwardManager().getPortMappingWithPublicIpId(forwarderIp)) {
+            Location target = mapping.getTarget();
+            if (target instanceof MachineLocation && ((MachineLocation) target).getAddress() != null && mapping.getPrivatePort() > 0) {
+                String targetIp = ((MachineLocation) target).getAddress().getHostAddress();
+                result.put(mapping.getPublicPort(), HostAndPort.fromParts(targetIp, mapping.getPrivatePort()));
+            }
+        }
+        for (Map.Entry<Integer, Forward> entry : forwards.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().targetSide);
+        }
+        return result;
+    }
+
+    /**
+     * Lists the nat rules on the forwarder in one session, and re-creates (in another) the DNAT rules
+     * of any {@link #getExpectedForwards() expected forwards} which are missing.
+     */
+    @Override
+    public Collection<HostAndPort> verifyPortForwarding() {
+        Map<Integer, HostAndPort> expected = getExpectedForwards();
+        if (expected.isEmpty()) return ImmutableList.of();
+
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        int result = forwarderMachine.execScript(ImmutableMap.of("out", stdout), "verify port-forwarding",
+                ImmutableList.of(IptablesPortForwardingCommands.listNatRules()));
+        if (result != 0) {
+            throw new IllegalStateException("Failed listing port forwarding rules on "+this+" (exit code "+result+")");
+        }
+        String natRules = new String(stdout.toByteArray());
+
+        List<String> commands = Lists.newArrayList();
+        List<HostAndPort> missing = Lists.newArrayList();
+        for (Map.Entry<Integer, HostAndPort> entry : expected.entrySet()) {
+            if (!IptablesPortForwardingCommands.hasDnat(natRules, entry.getKey(), entry.getValue(), Protocol.TCP)) {
+                commands.add(IptablesPortForwardingCommands.dnat(entry.getKey(), entry.getValue(), Protocol.TCP));
+                missing.add(HostAndPort.fromParts(forwarderIp, entry.getKey()));
+            }
+        }
+        if (missing.isEmpty()) {
+            log.debug("Verified {} port-forwarding rule(s) on {}", expected.size(), this);
+            return ImmutableList.of();
+        }
+
+        if (!IptablesPortForwardingCommands.hasMasquerade(natRules)) {
+            commands.add(IptablesPortForwardingCommands.masquerade());
+        }
+        commands.add(IptablesPortForwardingCommands.saveRules());
+        result = forwarderMachine.execScript("restore port-forwarding", commands);
+        if (result != 0) {
+            throw new IllegalStateException("Failed re-creating port forwarding rules on "+this+" for "+missing+" (exit code "+result+")");
+        }
+        log.info("Re-created {} of {} port-forwarding rule(s) on {}: {}", new Object[] {missing.size(), expected.size(), this, missing});
+        return missing;
+    }
+
     protected boolean systemCreatePortForwarding(HostAndPort publicSide, Location targetVm, int targetPort, Cidr cidr) {
         String targetIp = ((MachineLocation)targetVm).getAddress().getHostAddress();
         if (targetIp==null) {
@@ -144,9 +257,9 @@ public class PortForwarderIptables implements PortForwarder {
 
         try {
             List<String> commands = ImmutableList.of(
-                    sudo(String.format("/sbin/iptables -t nat -I PREROUTING -p tcp --dport %s -j DNAT --to-destination %s:%s", publicSide.getPort(), targetSide.getHostText(), targetSide.getPort())),
-                    sudo("/sbin/iptables -t nat -I POSTROUTING -j MASQUERADE"),
-                    IptablesCommands.saveIptablesRules()); // note save already wrapped in sudo
+                    IptablesPortForwardingCommands.dnat(publicSide.getPort(), targetSide, Protocol.TCP),
+                    IptablesPortForwardingCommands.masquerade(),
+                    IptablesPortForwardingCommands.saveRules());
 
             int result = forwarderMachine.execScript("port-forwarding "+publicSide+"->"+targetSide, commands);
 
@@ -19,6 +19,10 @@ import static com.google.common.base.Preconditions.checkNotNull;
 
 import java.io.IOException;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jclouds.compute.ComputeService;
 import org.jclouds.compute.domain.NodeMetadata;
@@ -26,24 +30,32 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.net.HostAndPort;
 
 import brooklyn.config.ConfigKey;
 import brooklyn.entity.basic.ConfigKeys;
 import brooklyn.entity.basic.Entities;
+import brooklyn.location.Location;
 import brooklyn.location.LocationSpec;
 import brooklyn.location.NoMachinesAvailableException;
 import brooklyn.location.access.BrooklynAccessUtils;
 import brooklyn.location.access.PortForwardManager;
+import brooklyn.location.access.PortMapping;
+import brooklyn.location.basic.SshMachineLocation;
 import brooklyn.location.jclouds.JcloudsLocation;
 import brooklyn.location.jclouds.JcloudsSshMachineLocation;
 import brooklyn.location.jclouds.JcloudsUtil;
+import brooklyn.networking.ReachabilityCache;
+import brooklyn.networking.provisioning.ProvisioningThrottle;
+import brooklyn.networking.provisioning.ProvisioningThrottles;
 import brooklyn.networking.subnet.PortForwarder;
 import brooklyn.util.collections.MutableMap;
 import brooklyn.util.config.ConfigBag;
 import brooklyn.util.exceptions.Exceptions;
-import brooklyn.util.net.Networking;
-import brooklyn.util.time.Time;
 
 /** requires zone id and tier id to be specified; shared_network_id optional (but needed if you want to connect!) */
 public class JcloudsPortforwardingSubnetLocation extends JcloudsLocation {
@@ -57,15 +69,59 @@ public class JcloudsPortforwardingSubnetLocation extends JcloudsLocation {
 
     public static final ConfigKey<PortForwarder> PORT_FORWARDER = ConfigKeys.newConfigKey(PortForwarder.class, "portForwarder");
 
-    /** For preventing concurrent calls to obtain */
-    private static final Object mutex = new Object();
-    private static long lastObtainTime = -1;
+    public static final ConfigKey<ProvisioningThrottle> PROVISIONING_THROTTLE = ProvisioningThrottles.PROVISIONING_THROTTLE;
+    public static final ConfigKey<Integer> PROVISIONING_BURST = ProvisioningThrottles.PROVISIONING_BURST;
+    public static final ConfigKey<Integer> PROVISIONING_MAX_IN_FLIGHT = ProvisioningThrottles.PROVISIONING_MAX_IN_FLIGHT;
+
+    /**
+     * Number of machines to keep provisioned (with their ssh port forwarded) ready to be handed out by obtain;
+     * the pool is filled in the background, starting at the first call to obtain or {@link #topUpWarmPool()}.
+     * Only calls to obtain whose flags match {@link #WARM_POOL_FLAGS} are given warm machines.
+     */
+    public static final ConfigKey<Integer> WARM_POOL_SIZE = ConfigKeys.newIntegerConfigKey("warmPool.size",
+            "number of provisioned machines to keep ready for obtain (0 for none)", 0);
+
+    /**
+     * Flags with which warm machines are obtained. A call to obtain is given a warm machine only if its flags are the
+     * same, apart from {@link #CALLER_CONTEXT} and {@code inboundPorts}, whose ports need only be among those here.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public static final ConfigKey<Map<String, Object>> WARM_POOL_FLAGS = (ConfigKey) ConfigKeys.newConfigKey(Map.class, "warmPool.flags",
+            "flags with which warm machines are obtained", ImmutableMap.of());
+
+    /** set on machines while they are in the warm pool, so that the pool can be recovered on rebind */
+    public static final ConfigKey<Boolean> WARM_POOL_MEMBER = ConfigKeys.newBooleanConfigKey("warmPool.member",
+            "whether the machine is waiting in the warm pool", false);
+
+    /**
+     * set on machines obtained with {@link #WARM_POOL_FLAGS} (i.e. for the pool), which are the only ones
+     * that may be recycled into it
+     */
+    public static final ConfigKey<Boolean> WARM_POOL_TEMPLATE = ConfigKeys.newBooleanConfigKey("warmPool.template",
+            "whether the machine was obtained with the warm pool flags", false);
+
+    public enum ReleasePolicy {
+        /** the machine is destroyed */
+        DESTROY,
+        /**
+         * the machine is returned, as it is, to the warm pool if it was obtained for the pool and that is not full;
+         * otherwise destroyed
+         */
+        RECYCLE
+    }
+
+    public static final ConfigKey<ReleasePolicy> RELEASE_POLICY = ConfigKeys.newConfigKey(ReleasePolicy.class, "warmPool.releasePolicy",
+            "what to do with released machines", ReleasePolicy.DESTROY);
 
     public interface SubnetAccessMode {}
 
     // required for port forwarding -- set by location creator (e.g. SubnetTierImpl)
     public static final ConfigKey<PortForwardManager> PORT_FORWARDING_MANAGER = BrooklynAccessUtils.PORT_FORWARDING_MANAGER;
 
+    // rebuilt on first use after rebind from the children marked as WARM_POOL_MEMBER; guarded by itself for changes to its size
+    private transient volatile BlockingDeque<JcloudsSshMachineLocation> warmPool;
+    private final transient AtomicInteger warmPoolPending = new AtomicInteger();
+
     public JcloudsPortforwardingSubnetLocation() {
     }
 
@@ -84,33 +140,273 @@ public class JcloudsPortforwardingSubnetLocation extends JcloudsLocation {
 
     @Override
     public JcloudsSshMachineLocation obtain(Map<?,?> flagsIn) throws NoMachinesAvailableException {
-        MutableMap<Object, Object> flags2 = MutableMap.builder()
+        if (getWarmPoolSize() > 0 && isWarmPoolCompatible(flagsIn)) {
+            JcloudsSshMachineLocation m = pollLiveWarmMachine();
+            topUpWarmPool();
+            if (m != null) {
+                Object callerContext = flagsIn.containsKey(CALLER_CONTEXT) ? flagsIn.get(CALLER_CONTEXT) : flagsIn.get(CALLER_CONTEXT.getName());
+                if (callerContext != null) m.setConfig(CALLER_CONTEXT, callerContext);
+                log.debug("provision - obtained warm machine {} in {}", m, this);
+                return m;
+            }
+        }
+        return obtainNew(flagsIn);
+    }
+
+    protected JcloudsSshMachineLocation obtainNew(Map<?,?> flagsIn) throws NoMachinesAvailableException {
+        final MutableMap<Object, Object> flags2 = MutableMap.builder()
                 .putAll(flagsIn)
                 .put(JcloudsLocation.USE_PORT_FORWARDING, "true")
                 .put(JcloudsPortforwardingSubnetLocation.PORT_FORWARDER, getRequiredConfig(PORT_FORWARDER))
                 .build();
 
-        // Throttle to ensure only one call to obtain per X seconds (but calls can overlap)
-        log.info("provision - waiting to acquire mutex ("+Thread.currentThread()+")");
-        synchronized (mutex) {
-            long timeBetweenObtains = getConfig(TIME_BETWEEN_OBTAINS);
-            long now = System.currentTimeMillis();
-            if (timeBetweenObtains <= 0) {
-                // ignore; not constraints on time-between-calls
-            } else if (lastObtainTime >= 0 && (now < (lastObtainTime + timeBetweenObtains))) {
-                long wait = lastObtainTime + timeBetweenObtains - now;
-                log.info("provision - waiting for "+wait+"ms as another obtain call executed recently "+Thread.currentThread());
-                Time.sleep(wait);
-            } else {
-                log.info("provision - contininuing immediately as no other recent call "+Thread.currentThread());
+        // Throttle calls to obtain against this endpoint and account (but calls can overlap)
+        ProvisioningThrottle throttle = getProvisioningThrottle();
+        JcloudsSshMachineLocation m = ProvisioningThrottles.callThrottled(throttle,
+                new ProvisioningThrottles.ThrottledCall<JcloudsSshMachineLocation, NoMachinesAvailableException>() {
+                    @Override public JcloudsSshMachineLocation call() throws NoMachinesAvailableException {
+                        return JcloudsPortforwardingSubnetLocation.super.obtain(flags2);
+                    }});
+        if (log.isDebugEnabled()) log.debug("provision - obtained {} in {}; throttle {}", new Object[] {m, this, throttle.getStats()});
+
+        return m;
+    }
+
+    protected int getWarmPoolSize() {
+        Integer result = getConfig(WARM_POOL_SIZE);
+        return (result == null) ? 0 : result;
+    }
+
+    protected Map<String, Object> getWarmPoolFlags() {
+        Map<String, Object> result = getConfig(WARM_POOL_FLAGS);
+        return (result == null) ? ImmutableMap.<String, Object>of() : result;
+    }
+
+    /**
+     * Whether a warm machine would do for these flags: they must be the same as {@link #WARM_POOL_FLAGS}, ignoring
+     * the caller context, except that the requested {@code inboundPorts} need only be among those of the pool.
+     */
+    protected boolean isWarmPoolCompatible(Map<?,?> flags) {
+        Map<String, Object> requested = normalizeFlags(flags);
+        Map<String, Object> template = normalizeFlags(getWarmPoolFlags());
+        requested.remove(CALLER_CONTEXT.getName());
+        template.remove(CALLER_CONTEXT.getName());
+
+        String inboundPorts = INBOUND_PORTS.getName();
+        if (requested.containsKey(inboundPorts) || template.containsKey(inboundPorts)) {
+            Set<String> requestedPorts = toPortNames(requested.remove(inboundPorts));
+            Set<String> templatePorts = toPortNames(template.remove(inboundPorts));
+            if (!templatePorts.containsAll(requestedPorts)) return false;
+        }
+        return requested.equals(template);
+    }
+
+    private static Map<String, Object> normalizeFlags(Map<?,?> flags) {
+        Map<String, Object> result = Maps.newLinkedHashMap();
+        for (Map.Entry<?,?> entry : flags.entrySet()) {
+            Object key = entry.getKey();
+            String name = (key instanceof ConfigKey) ? ((ConfigKey<?>) key).getName() : String.valueOf(key);
+            // a flag given with no value is the same as no flag
+            if (entry.getValue() != null) result.put(name, entry.getValue());
+        }
+        return result;
+    }
+
+    private static Set<String> toPortNames(Object ports) {
+        Set<String> result = Sets.newLinkedHashSet();
+        if (ports instanceof Iterable) {
+            for (Object port : (Iterable<?>) ports) result.add(String.valueOf(port));
+        } else if (ports instanceof int[]) {
+            for (int port : (int[]) ports) result.add(String.valueOf(port));
+        } else if (ports != null) {
+            result.add(String.valueOf(ports));
+        }
+        return result;
+    }
+
+    private BlockingDeque<JcloudsSshMachineLocation> getWarmPool() {
+        if (warmPool == null) {
+            synchronized (warmPoolPending) {
+                if (warmPool == null) {
+                    BlockingDeque<JcloudsSshMachineLocation> pool = new LinkedBlockingDeque<JcloudsSshMachineLocation>();
+                    // e.g. after rebind: recover the machines which were waiting in the pool, rather than leaking them
+                    for (Location child : getChildren()) {
+                        if (child instanceof JcloudsSshMachineLocation && Boolean.TRUE.equals(child.getConfig(WARM_POOL_MEMBER))) {
+                            pool.offerLast((JcloudsSshMachineLocation) child);
+                        }
+                    }
+                    if (!pool.isEmpty()) log.info("Recovered {} warm machine(s) in pool of {}", pool.size(), this);
+                    warmPool = pool;
+                }
             }
-            lastObtainTime = now;
         }
+        return warmPool;
+    }
 
-        // And finally obtain the machine
-        JcloudsSshMachineLocation m = super.obtain(flags2);
+    /** the next machine in the pool which is still alive, destroying any found not to be; or null if none */
+    private JcloudsSshMachineLocation pollLiveWarmMachine() {
+        JcloudsSshMachineLocation m;
+        while ((m = pollWarmMachine()) != null) {
+            if (isAlive(m)) return m;
+            log.warn("Discarding warm machine {} in pool of {}: no longer accessible", m, this);
+            destroyQuietly(m);
+        }
+        return null;
+    }
 
-        return m;
+    private JcloudsSshMachineLocation pollWarmMachine() {
+        BlockingDeque<JcloudsSshMachineLocation> pool = getWarmPool();
+        synchronized (pool) {
+            JcloudsSshMachineLocation m = pool.pollFirst();
+            if (m != null) m.setConfig(WARM_POOL_MEMBER, false);
+            return m;
+        }
+    }
+
+    /** adds the machine to the pool if there is room, returning whether it was added */
+    private boolean offerWarmMachine(JcloudsSshMachineLocation m) {
+        BlockingDeque<JcloudsSshMachineLocation> pool = getWarmPool();
+        synchronized (pool) {
+            if (pool.size() >= getWarmPoolSize()) return false;
+            // as a child (with the flag set) the machine is persisted with this location
+            if (!getChildren().contains(m)) addChild(m);
+            m.setConfig(WARM_POOL_MEMBER, true);
+            pool.offerLast(m);
+            return true;
+        }
+    }
+
+    /** whether a machine waiting in the pool can still be handed out; checks it is sshable */
+    protected boolean isAlive(JcloudsSshMachineLocation machine) {
+        return machine.isSshable();
+    }
+
+    /** starts provisioning (in the background) as many machines as the warm pool is short of */
+    public void topUpWarmPool() {
+        int size = getWarmPoolSize();
+        while (true) {
+            int pending = warmPoolPending.get();
+            if (getWarmPool().size() + pending >= size) return;
+            if (!warmPoolPending.compareAndSet(pending, pending+1)) continue;
+            getManagementContext().getExecutionManager().submit(MutableMap.of("displayName", "Provisioning warm machine in "+this), new Runnable() {
+                @Override public void run() {
+                    try {
+                        JcloudsSshMachineLocation m = obtainNew(getWarmPoolFlags());
+                        m.setConfig(WARM_POOL_TEMPLATE, true);
+                        if (offerWarmMachine(m)) {
+                            log.debug("Added warm machine {} to pool of {} (now {})", new Object[] {m, JcloudsPortforwardingSubnetLocation.this, getWarmPool().size()});
+                        } else {
+                            // filled meanwhile, e.g. by recycled machines
+                            log.debug("Destroying surplus warm machine {} of {}", m, JcloudsPortforwardingSubnetLocation.this);
+                            destroyQuietly(m);
+                        }
+                    } catch (Exception e) {
+                        // topped up again on the next obtain
+                        log.warn("Failed to provision warm machine in "+JcloudsPortforwardingSubnetLocation.this+": "+e, e);
+                    } finally {
+                        warmPoolPending.decrementAndGet();
+                    }
+                }});
+        }
+    }
+
+    /** destroys all machines in the warm pool, e.g. when the subnet tier stops or the location is discarded */
+    public void drainWarmPool() {
+        JcloudsSshMachineLocation m;
+        int count = 0;
+        while ((m = pollWarmMachine()) != null) {
+            destroyQuietly(m);
+            count++;
+        }
+        if (count > 0) log.info("Drained {} warm machine(s) from pool of {}", count, this);
+    }
+
+    /** the number of machines ready in the warm pool, and the number being provisioned for it */
+    public Map<String, Integer> getWarmPoolStats() {
+        return ImmutableMap.of("ready", getWarmPool().size(), "pending", warmPoolPending.get(), "target", getWarmPoolSize());
+    }
+
+    @Override
+    public void onManagementStopped() {
+        // unmanaged while brooklyn keeps running, so nothing will use the pool again; on shutdown, the
+        // pool is kept, for rebind
+        if (getWarmPoolSize() > 0 && getManagementContext().isRunning()) {
+            drainWarmPool();
+        }
+        super.onManagementStopped();
+    }
+
+    /**
+     * The throttle for calls to obtain, either as configured or else shared by all locations using the
+     * same provider, endpoint and identity; at most one call is started per {@link #TIME_BETWEEN_OBTAINS}
+     * (in bursts of {@link #PROVISIONING_BURST}).
+     */
+    protected ProvisioningThrottle getProvisioningThrottle() {
+        return ProvisioningThrottles.forLocation(this, getProvider(), getEndpoint(), getIdentity(), TIME_BETWEEN_OBTAINS);
+    }
+
+    /**
+     * Returns the machine to the warm pool, if {@link #RELEASE_POLICY} is {@link ReleasePolicy#RECYCLE}, the machine
+     * was obtained for the pool (so matches its template), and the pool is not full; otherwise destroys it. A recycled machine keeps its ssh forwarding, but the other port mappings
+     * made for its previous user are forgotten.
+     */
+    @Override
+    public void release(SshMachineLocation machine) {
+        // e.g. a pooled machine being unmanaged: it must not be handed out (or destroyed) again
+        if (getWarmPool().remove(machine)) machine.setConfig(WARM_POOL_MEMBER, false);
+
+        if (getConfig(RELEASE_POLICY) == ReleasePolicy.RECYCLE && machine instanceof JcloudsSshMachineLocation
+                && Boolean.TRUE.equals(machine.getConfig(WARM_POOL_TEMPLATE))) {
+            JcloudsSshMachineLocation m = (JcloudsSshMachineLocation) machine;
+            m.setConfig(CALLER_CONTEXT, null);
+            if (offerWarmMachine(m)) {
+                forgetPortMappingsExceptLogin(m);
+                log.debug("Recycled released machine {} into warm pool of {}", machine, this);
+                return;
+            }
+        }
+        destroy(machine);
+    }
+
+    /** forgets the port mappings of the machine, in the port forward manager, other than for its login port */
+    protected void forgetPortMappingsExceptLogin(JcloudsSshMachineLocation machine) {
+        PortForwardManager pfm = getConfig(PORT_FORWARDING_MANAGER);
+        if (pfm == null) return;
+        int loginPort = (machine.getNode() != null) ? machine.getNode().getLoginPort() : 22;
+        for (PortMapping mapping : ImmutableList.copyOf(pfm.getLocationPublicIpIds(machine))) {
+            if (mapping.getPrivatePort() != loginPort) {
+                pfm.forgetPortMapping(mapping);
+                log.debug("Forgot port mapping {} of recycled machine {}", mapping, machine);
+            }
+        }
+    }
+
+    private void destroyQuietly(SshMachineLocation machine) {
+        try {
+            destroy(machine);
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            log.warn("Failed to destroy machine "+machine+" of "+this+" (continuing)", e);
+        }
+    }
+
+    /** releases the machine to jclouds, destroying it */
+    protected void destroy(SshMachineLocation machine) {
+        try {
+            try {
+                super.release(machine);
+            } catch (IllegalArgumentException e) {
+                // not known to super, e.g. a pooled machine recovered after rebind
+                if (!(machine instanceof JcloudsSshMachineLocation) || ((JcloudsSshMachineLocation) machine).getNode() == null) throw e;
+                log.debug("Releasing node of {} directly, as not known to {}: {}", new Object[] {machine, this, e.getMessage()});
+                releaseNode(((JcloudsSshMachineLocation) machine).getNode().getId());
+            }
+        } finally {
+            // whatever was at that address has gone; a later machine may be given the same one
+            // (may have no address, e.g. if recovered after rebind; must not mask the release failure)
+            if (machine.getAddress() != null) ReachabilityCache.getDefault().invalidate(machine.getAddress().getHostAddress());
+            ReachabilityCache.getDefault().invalidate(machine.getDisplayName());
+        }
     }
 
     // TODO Remove duplication from super's JcloudsLocation.createJcloudsSshMachineLocation
@@ -126,16 +422,12 @@ public class JcloudsPortforwardingSubnetLocation extends JcloudsLocation {
         }
 
         String address = sshHostAndPort.isPresent() ? sshHostAndPort.get().getHostText() : vmHostname;
-        try {
-            Networking.getInetAddressWithFixedName(address);
-            // fine, it resolves
-        } catch (Exception e) {
+        if (!ReachabilityCache.getDefault().isResolvable(address)) {
             // occurs if an unresolvable hostname is given as vmHostname, and the machine only has private IP addresses but they are reachable
             // TODO cleanup use of getPublicHostname so its semantics are clearer, returning reachable hostname or ip, and
             // do this check/fix there instead of here!
-            Exceptions.propagateIfFatal(e);
             LOG.debug("Could not resolve reported address '"+address+"' for "+vmHostname+" ("+setup.getDescription()+"/"+node+"), requesting reachable address");
-            if (computeService==null) throw Exceptions.propagate(e);
+            if (computeService==null) throw new IllegalStateException("Could not resolve reported address '"+address+"' for "+vmHostname);
             // this has sometimes already been done in waitForReachable (unless skipped) but easy enough to do again
             address = JcloudsUtil.getFirstReachableAddress(computeService.getContext(), node);
         }
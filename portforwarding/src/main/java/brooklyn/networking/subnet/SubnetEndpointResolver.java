@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.subnet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.Entity;
+import brooklyn.event.AttributeSensor;
+import brooklyn.util.guava.Maybe;
+
+import com.google.common.annotations.Beta;
+import com.google.common.base.Objects;
+
+/**
+ * Chooses between the private and the public endpoint advertised for a service,
+ * depending on where the consumer sits relative to the {@link SubnetTier}.
+ * <p>
+ * Used with the locality-aware variants of the subnet enrichers (e.g.
+ * {@link SubnetTier#hostAndPortTransformingEnricher(brooklyn.entity.basic.EntityAndAttribute, AttributeSensor, AttributeSensor)}),
+ * which publish both endpoints. A consumer in the same subnet tier as the producer is given
+ * the private endpoint, so its traffic does not hairpin through the port-forwarder; any other
+ * consumer is given the public endpoint.
+ */
+@Beta
+public class SubnetEndpointResolver {
+
+    private static final Logger log = LoggerFactory.getLogger(SubnetEndpointResolver.class);
+
+    private SubnetEndpointResolver() {}
+
+    /** returns the closest {@link SubnetTier} ancestor of the given entity (or the entity itself, if it is one) */
+    public static Maybe<SubnetTier> findSubnetTier(Entity entity) {
+        Entity contender = entity;
+        while (contender != null) {
+            if (contender instanceof SubnetTier) return Maybe.of((SubnetTier) contender);
+            contender = contender.getParent();
+        }
+        return Maybe.absent("No subnet tier found for "+entity);
+    }
+
+    /** true if both entities are members of the same {@link SubnetTier} */
+    public static boolean isSameSubnet(Entity consumer, Entity producer) {
+        Maybe<SubnetTier> consumerTier = findSubnetTier(consumer);
+        Maybe<SubnetTier> producerTier = findSubnetTier(producer);
+        if (consumerTier.isAbsent() || producerTier.isAbsent()) return false;
+        return Objects.equal(consumerTier.get().getId(), producerTier.get().getId());
+    }
+
+    /**
+     * Returns the endpoint the {@code consumer} should use to reach the {@code producer}: the value of
+     * {@code privateEndpoint} if both are in the same subnet tier (and it has been published), otherwise
+     * the value of {@code publicEndpoint}.
+     */
+    public static String resolve(Entity consumer, Entity producer, AttributeSensor<String> privateEndpoint, AttributeSensor<String> publicEndpoint) {
+        if (isSameSubnet(consumer, producer)) {
+            String result = producer.getAttribute(privateEndpoint);
+            if (result != null) {
+                if (log.isTraceEnabled()) log.trace("Resolved {} for {} as private endpoint {}", new Object[] {producer, consumer, result});
+                return result;
+            }
+        }
+        String result = producer.getAttribute(publicEndpoint);
+        if (log.isTraceEnabled()) log.trace("Resolved {} for {} as public endpoint {}", new Object[] {producer, consumer, result});
+        return result;
+    }
+}
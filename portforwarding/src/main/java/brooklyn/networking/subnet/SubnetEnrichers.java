@@ -37,6 +37,7 @@ import brooklyn.util.guava.Maybe;
 
 import com.google.common.base.Function;
 import com.google.common.net.HostAndPort;
+import com.google.common.reflect.TypeToken;
 
 public class SubnetEnrichers {
 
@@ -57,6 +58,11 @@ public class SubnetEnrichers {
                 .configure(UriTransformerEnricher.TARGET_SENSOR, target);
     }
 
+    public static EnricherSpec<?> uriTransformingEnricher(SubnetTier subnetTier, EntityAndAttribute<String> original, AttributeSensor<String> privateTarget, AttributeSensor<String> publicTarget) {
+        return uriTransformingEnricher(subnetTier, original, publicTarget)
+                .configure(UriTransformerEnricher.PRIVATE_TARGET_SENSOR, privateTarget);
+    }
+
     public static EnricherSpec<?> hostAndPortTransformingEnricher(SubnetTier subnetTier, AttributeSensor<Integer> originalPort, AttributeSensor<String> target) {
         return EnricherSpec.create(HostAndPortTransformingEnricher.class)
                 .configure(HostAndPortTransformingEnricher.SUBNET_TIER, subnetTier)
@@ -72,18 +78,35 @@ public class SubnetEnrichers {
                 .configure(HostAndPortTransformingEnricher.TARGET_SENSOR, target);
     }
 
+    public static EnricherSpec<?> hostAndPortTransformingEnricher(SubnetTier subnetTier, EntityAndAttribute<Integer> originalPort, AttributeSensor<String> privateTarget, AttributeSensor<String> publicTarget) {
+        return hostAndPortTransformingEnricher(subnetTier, originalPort, publicTarget)
+                .configure(HostAndPortTransformingEnricher.PRIVATE_TARGET_SENSOR, privateTarget);
+    }
+
+    /** optional sensor at which to also publish the untransformed (private) endpoint, for locality-aware advertisement */
+    public static final ConfigKey<AttributeSensor<String>> PRIVATE_TARGET_SENSOR = ConfigKeys.newConfigKey(
+            new TypeToken<AttributeSensor<String>>() {}, "enricher.privateTargetSensor");
+
     public static class UriTransformerEnricher extends Transformer<Object, String> {
         @SetFromFlag("subnetTier")
         public static final ConfigKey<SubnetTier> SUBNET_TIER = ConfigKeys.newConfigKey(SubnetTier.class, "enricher.uriTransformer.subnetTier");
 
+        @SetFromFlag("privateTargetSensor")
+        public static final ConfigKey<AttributeSensor<String>> PRIVATE_TARGET_SENSOR = SubnetEnrichers.PRIVATE_TARGET_SENSOR;
+
         @Override
         public void init() {
             final SubnetTier subnetTier = getConfig(SUBNET_TIER);
+            final AttributeSensor<String> privateTarget = getConfig(PRIVATE_TARGET_SENSOR);
 
             setConfig(TRANSFORMATION_FROM_EVENT, new Function<SensorEvent<String>,String>() {
                     @Override public String apply(SensorEvent<String> event) {
                         String sensorVal = event.getValue();
                         Entity source = event.getSource();
+                        if (privateTarget != null) {
+                            // the original URI is what peers in the same subnet should use
+                            entity.setAttribute(privateTarget, sensorVal);
+                        }
                         Maybe<MachineLocation> machine = Machines.findUniqueMachineLocation(source.getLocations());
                         if (sensorVal != null && machine.isPresent()) {
                             URI uri = URI.create(sensorVal);
@@ -106,21 +129,29 @@ public class SubnetEnrichers {
                         } else {
                             return sensorVal;
                         }
-                    }});        }
+                    }});
+        }
     }
 
     public static class HostAndPortTransformingEnricher extends Transformer<Object, String> {
         @SetFromFlag("subnetTier")
         public static final ConfigKey<SubnetTier> SUBNET_TIER = ConfigKeys.newConfigKey(SubnetTier.class, "enricher.uriTransformer.subnetTier");
 
+        @SetFromFlag("privateTargetSensor")
+        public static final ConfigKey<AttributeSensor<String>> PRIVATE_TARGET_SENSOR = SubnetEnrichers.PRIVATE_TARGET_SENSOR;
+
         public void init() {
             final SubnetTier subnetTier = getConfig(SUBNET_TIER);
+            final AttributeSensor<String> privateTarget = getConfig(PRIVATE_TARGET_SENSOR);
 
             setConfig(TRANSFORMATION_FROM_EVENT, new Function<SensorEvent<Integer>,String>() {
                     @Override public String apply(SensorEvent<Integer> event) {
                         Integer sensorVal = event.getValue();
                         Entity source = event.getSource();
                         Maybe<MachineLocation> machine = Machines.findUniqueMachineLocation(source.getLocations());
+                        if (privateTarget != null) {
+                            entity.setAttribute(privateTarget, privateHostAndPort(source, machine, sensorVal));
+                        }
                         if (sensorVal != null && machine.isPresent()) {
                             HostAndPort publicTarget = subnetTier.getPortForwardManager().lookup(machine.get(), sensorVal);
 
@@ -137,4 +168,17 @@ public class SubnetEnrichers {
                     }});
         }
     }
+
+    /**
+     * The endpoint for reaching {@code port} on the given entity from within its subnet; prefers the
+     * entity's {@link SubnetTier#PRIVATE_HOSTNAME} (if set), falling back to the machine's address.
+     */
+    static String privateHostAndPort(Entity source, Maybe<MachineLocation> machine, Integer port) {
+        if (port == null) return null;
+        String host = source.getAttribute(SubnetTier.PRIVATE_HOSTNAME);
+        if (host == null && machine.isPresent() && machine.get().getAddress() != null) {
+            host = machine.get().getAddress().getHostAddress();
+        }
+        return (host == null) ? null : host+":"+port;
+    }
 }
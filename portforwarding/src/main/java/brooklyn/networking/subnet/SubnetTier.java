@@ -17,8 +17,10 @@ package brooklyn.networking.subnet;
 
 import brooklyn.config.ConfigKey;
 import brooklyn.entity.Entity;
+import brooklyn.entity.basic.Attributes;
 import brooklyn.entity.basic.ConfigKeys;
 import brooklyn.entity.basic.EntityAndAttribute;
+import brooklyn.entity.basic.Lifecycle;
 import brooklyn.entity.proxying.ImplementedBy;
 import brooklyn.entity.trait.Startable;
 import brooklyn.event.AttributeSensor;
@@ -35,6 +37,7 @@ import brooklyn.policy.EnricherSpec;
 import brooklyn.util.flags.SetFromFlag;
 import brooklyn.util.net.Cidr;
 import brooklyn.util.net.Protocol;
+import brooklyn.util.time.Duration;
 
 import com.google.common.annotations.Beta;
 import com.google.common.base.Optional;
@@ -43,6 +46,8 @@ import com.google.common.base.Optional;
 @ImplementedBy(SubnetTierImpl.class)
 public interface SubnetTier extends Entity, Startable {
 
+    public static final AttributeSensor<Lifecycle> SERVICE_STATE = Attributes.SERVICE_STATE;
+
     public static final ConfigKey<Cidr> SUBNET_CIDR = new BasicConfigKey<Cidr>(Cidr.class,
             "subnet.cidr", "CIDR to use for this subnet", null);
 
@@ -55,6 +60,38 @@ public interface SubnetTier extends Entity, Startable {
     @SetFromFlag("portForwardManager")
     public static final ConfigKey<PortForwardManager> PORT_FORWARDING_MANAGER = BrooklynAccessUtils.PORT_FORWARDING_MANAGER;
 
+    @SetFromFlag("startGatewayInParallel")
+    public static final ConfigKey<Boolean> START_GATEWAY_IN_PARALLEL = ConfigKeys.newBooleanConfigKey(
+            "subnet.start.gatewayInParallel", "Whether to start the children while the gateway is being opened "
+                    + "(their port-forwarding waits for the gateway); if false the gateway is opened first", true);
+
+    public static final ConfigKey<Duration> GATEWAY_READY_TIMEOUT = ConfigKeys.newConfigKey(Duration.class,
+            "subnet.start.gatewayReadyTimeout", "How long port-forwarding waits for the gateway to be opened", Duration.minutes(15));
+
+    @SetFromFlag("restartPreservesForwarding")
+    public static final ConfigKey<Boolean> RESTART_PRESERVES_FORWARDING = ConfigKeys.newBooleanConfigKey(
+            "subnet.restart.preserveForwarding", "Whether restart keeps the gateway, port mappings and forwarding rules, "
+                    + "verifying the rules (if the port forwarder supports it) and restarting just the children; "
+                    + "if false restart is stop then start", true);
+
+    public static final AttributeSensor<Long> LOCATION_CUSTOMIZATION_DURATION = new BasicAttributeSensor<Long>(Long.class, "subnet.start.customizeLocation.duration",
+            "Time (in milliseconds) taken to customize the location, on last start");
+
+    public static final AttributeSensor<Long> GATEWAY_OPEN_DURATION = new BasicAttributeSensor<Long>(Long.class, "subnet.start.gateway.duration",
+            "Time (in milliseconds) taken to open and register the gateway, on last start");
+
+    public static final AttributeSensor<Long> CHILDREN_START_DURATION = new BasicAttributeSensor<Long>(Long.class, "subnet.start.children.duration",
+            "Time (in milliseconds) taken to start the children, on last start");
+
+    public static final AttributeSensor<Long> START_DURATION = new BasicAttributeSensor<Long>(Long.class, "subnet.start.duration",
+            "Time (in milliseconds) taken to start the subnet tier, on last start");
+
+    public static final AttributeSensor<Long> RESTART_DURATION = new BasicAttributeSensor<Long>(Long.class, "subnet.restart.duration",
+            "Time (in milliseconds) taken to restart the subnet tier, on last restart");
+
+    public static final AttributeSensor<Integer> FORWARDING_RULES_REPAIRED = new BasicAttributeSensor<Integer>(Integer.class, "subnet.restart.rulesRepaired",
+            "Number of forwarding rules found missing and re-created, on last restart");
+
     public static final AttributeSensor<String> SUBNET_HOSTNAME_SENSOR = new BasicAttributeSensor<String>(String.class, "host.name.subnet", "Subnet-accessible IP/Hostname (for VM's in a subnet)");
 
     public static final AttributeSensor<String> PUBLIC_HOSTNAME = new BasicAttributeSensor<String>(String.class, "host.service.default.hostname",
@@ -63,6 +100,9 @@ public interface SubnetTier extends Entity, Startable {
     public static final AttributeSensor<String> DEFAULT_PUBLIC_HOSTNAME_AND_PORT = new BasicAttributeSensor<String>(String.class, "host.service.default.hostnameAndPort",
             "Provides a publicly accessible hostname:port combo for a service");
 
+    public static final AttributeSensor<Integer> SUBSCRIPTION_LISTENER_COUNT = new BasicAttributeSensor<Integer>(Integer.class, "subnet.subscriptions.listenerCount",
+            "Number of live sensor listeners registered by this subnet tier (for transforming and port-forwarding its members)");
+
     // TODO This isn't really a sensor on SubnetTier; we just need to define it somewhere so other things
     // in the subnet can reference/set it on the entities within the subnet. Where is best place to define
     // this? Should we create a constants interface?
@@ -90,6 +130,19 @@ public interface SubnetTier extends Entity, Startable {
             final Optional<EntityAndAttribute<Integer>> optionalTargetPort,
             final EntityAndAttribute<String> replacementSource);
 
+    /**
+     * Locality-aware variant of {@link #transformSensorStringReplacingWithPublicAddressAndPort(EntityAndAttribute, Optional, EntityAndAttribute)}.
+     * <p>
+     * Before {@code targetToUpdate} is rewritten with the public address, its original value is published
+     * at {@code whereToAdvertisePrivate}. Consumers should use {@link SubnetEndpointResolver} to pick between
+     * the two, so that peers in this subnet do not hairpin through the port-forwarder.
+     */
+    public void transformSensorStringReplacingWithPublicAddressAndPort(
+            final EntityAndAttribute<String> targetToUpdate,
+            final Optional<EntityAndAttribute<Integer>> optionalTargetPort,
+            final EntityAndAttribute<String> replacementSource,
+            final EntityAndAttribute<String> whereToAdvertisePrivate);
+
     /**
      * Builds an enricher that takes the given {@code original} sensor, interprets it as a URI, and
      * transforms it to be published at the {@code target} sensor. Transformation involves replacing
@@ -117,6 +170,17 @@ public interface SubnetTier extends Entity, Startable {
             AttributeSensor<String> original,
             AttributeSensor<String> target);
 
+    /**
+     * Locality-aware variant of {@link #uriTransformingEnricher(EntityAndAttribute, AttributeSensor)}, which
+     * publishes the untransformed URI at {@code privateTarget} as well as the transformed one at {@code publicTarget}.
+     *
+     * @see SubnetEndpointResolver
+     */
+    public EnricherSpec<?> uriTransformingEnricher(
+            EntityAndAttribute<String> original,
+            AttributeSensor<String> privateTarget,
+            AttributeSensor<String> publicTarget);
+
     /**
      * Builds an enricher that takes the given {@code originalPort} sensor port, and transforms it to be
      * published at the {@code target} sensor as hostname:port. Transformation involves replacing
@@ -142,6 +206,18 @@ public interface SubnetTier extends Entity, Startable {
      */
     public EnricherSpec<?> hostAndPortTransformingEnricher(AttributeSensor<Integer> originalPort, AttributeSensor<String> target);
 
+    /**
+     * Locality-aware variant of {@link #hostAndPortTransformingEnricher(EntityAndAttribute, AttributeSensor)}, which
+     * publishes the private hostname:port (within the subnet) at {@code privateTarget} as well as the public
+     * hostname:port at {@code publicTarget}.
+     *
+     * @see SubnetEndpointResolver
+     */
+    public EnricherSpec<?> hostAndPortTransformingEnricher(
+            EntityAndAttribute<Integer> originalPort,
+            AttributeSensor<String> privateTarget,
+            AttributeSensor<String> publicTarget);
+
     /**
      * Advertises the address of the forwarding-machine at the given entity->attribute.
      *
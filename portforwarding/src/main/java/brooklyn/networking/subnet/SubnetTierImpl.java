@@ -17,19 +17,28 @@ package brooklyn.networking.subnet;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import java.io.Closeable;
 import java.util.Collection;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.jclouds.compute.domain.NodeMetadata;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import brooklyn.entity.Entity;
 import brooklyn.entity.annotation.Effector;
 import brooklyn.entity.basic.AbstractEntity;
 import brooklyn.entity.basic.EntityAndAttribute;
+import brooklyn.entity.basic.Lifecycle;
 import brooklyn.entity.basic.SoftwareProcess;
 import brooklyn.entity.trait.StartableMethods;
 import brooklyn.event.AttributeSensor;
+import brooklyn.event.SensorEvent;
+import brooklyn.event.SensorEventListener;
 import brooklyn.event.basic.Sensors;
 import brooklyn.location.Location;
 import brooklyn.location.access.PortForwardManager;
@@ -38,33 +47,46 @@ import brooklyn.location.access.PortForwardManagerClient;
 import brooklyn.location.basic.PortRanges;
 import brooklyn.location.jclouds.JcloudsLocation;
 import brooklyn.location.jclouds.networking.JcloudsPortForwarderExtension;
+import brooklyn.management.Task;
 import brooklyn.networking.AttributeMunger;
+import brooklyn.networking.SubscriptionRegistry;
 import brooklyn.networking.portforwarding.subnet.JcloudsPortforwardingSubnetLocation;
 import brooklyn.networking.subnet.PortForwarder;
 import brooklyn.networking.subnet.PortForwarderAsync;
 import brooklyn.networking.subnet.PortForwarderAsyncImpl;
 import brooklyn.networking.subnet.PortForwarderClient;
+import brooklyn.networking.subnet.VerifiablePortForwarder;
 import brooklyn.policy.EnricherSpec;
+import brooklyn.util.collections.MutableMap;
 import brooklyn.util.config.ConfigBag;
+import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.net.Cidr;
 import brooklyn.util.net.Protocol;
+import brooklyn.util.stream.Streams;
+import brooklyn.util.time.Duration;
 
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
 import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.SettableFuture;
 
 public class SubnetTierImpl extends AbstractEntity implements SubnetTier {
 
     public static AttributeSensor<PortForwardManager> PORT_FORWARD_MANAGER_LIVE = Sensors.newSensor(PortForwardManager.class, "subnet.portForwardManager.live");
     public static AttributeSensor<PortForwarder> PORT_FORWARDER_LIVE = Sensors.newSensor(PortForwarder.class, "subnet.portForwarder.live");
 
-    @SuppressWarnings("unused")
     private static final Logger log = LoggerFactory.getLogger(SubnetTierImpl.class);
 
     protected AttributeMunger attributeMunger;
+    protected transient SubscriptionRegistry _subscriptionRegistry;
     protected transient PortForwarderAsync _portForwarderAsync;
     protected transient JcloudsPortForwarderExtension _portForwarderExtension;
+    // set when the gateway has been opened (or failed to); null until start
+    protected transient volatile SettableFuture<Void> _gatewayReady;
 
     @Override
     public void init() {
@@ -91,11 +113,39 @@ public class SubnetTierImpl extends AbstractEntity implements SubnetTier {
         }
         setAttribute(PORT_FORWARDER_LIVE, pf);
 
-        attributeMunger = new AttributeMunger(this);
+        attributeMunger = new AttributeMunger(this, getSubscriptionRegistry());
+
+        subscribe(this, AbstractEntity.CHILD_REMOVED, new SensorEventListener<Entity>() {
+            @Override public void onEvent(SensorEvent<Entity> event) {
+                getSubscriptionRegistry().releaseUnmanaged();
+            }});
+    }
+
+    @Override
+    public void onManagementStopped() {
+        super.onManagementStopped();
+        if (_subscriptionRegistry != null) _subscriptionRegistry.releaseAll();
+        PortForwarder pf = getAttribute(PORT_FORWARDER_LIVE);
+        if (pf instanceof Closeable) {
+            // e.g. a long-lived API context held by the forwarder
+            Streams.closeQuietly((Closeable) pf);
+        }
+    }
+
+    /** registry shared by the helpers subscribing on behalf of this tier, so their listeners are de-duplicated and released */
+    protected synchronized SubscriptionRegistry getSubscriptionRegistry() {
+        if (_subscriptionRegistry==null) {
+            _subscriptionRegistry = new SubscriptionRegistry(this, SUBSCRIPTION_LISTENER_COUNT);
+        }
+        return _subscriptionRegistry;
     }
 
     protected JcloudsPortForwarderExtension newJcloudsPortForwarderExtension() {
-        return new SubnetTierJcloudsPortForwarderExtension(PortForwarderClient.fromMethodOnEntity(this, "getPortForwarder"));
+        return new SubnetTierJcloudsPortForwarderExtension(PortForwarderClient.fromMethodOnEntity(this, "getPortForwarder")) {
+            @Override protected void awaitReady() {
+                awaitGatewayReady();
+            }
+        };
     }
 
     public static class SubnetTierJcloudsPortForwarderExtension implements JcloudsPortForwarderExtension {
@@ -106,8 +156,13 @@ public class SubnetTierImpl extends AbstractEntity implements SubnetTier {
             this.pf = pf;
         }
 
+        /** called before forwarding, blocking until the port forwarder can be used; does nothing by default */
+        protected void awaitReady() {
+        }
+
         @Override
         public HostAndPort openPortForwarding(NodeMetadata node, int targetPort, Optional<Integer> optionalPublicPort, Protocol protocol, Cidr accessingCidr) {
+            awaitReady();
             String vmIp = Iterables.get(Iterables.concat(node.getPrivateAddresses(), node.getPublicAddresses()), 0);
             HostAndPort targetSide = HostAndPort.fromParts(vmIp, node.getLoginPort());
             return pf.openPortForwarding(
@@ -142,15 +197,113 @@ public class SubnetTierImpl extends AbstractEntity implements SubnetTier {
         pfw.recordPublicIpHostname(gatewayIp, gatewayIp);
     }
 
+    /**
+     * Blocks until the gateway has been opened by {@link #start(Collection)}, throwing if that failed or took longer
+     * than {@link #GATEWAY_READY_TIMEOUT}; returns immediately if not starting.
+     */
+    protected void awaitGatewayReady() {
+        SettableFuture<Void> gatewayReady = _gatewayReady;
+        if (gatewayReady == null) return;
+        Duration timeout = getConfig(GATEWAY_READY_TIMEOUT);
+        try {
+            gatewayReady.get(timeout.toMilliseconds(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Gateway of "+this+" not opened within "+timeout);
+        } catch (Exception e) {
+            throw new IllegalStateException("Gateway of "+this+" failed to open", Exceptions.propagate(e));
+        }
+    }
+
+    /**
+     * Runs the task now if the gateway is open (or if not starting), otherwise in a task once it has been opened by
+     * {@link #start(Collection)}; never blocks the caller, which may be delivering a subscription event.
+     * The task is skipped, with a warning, if the gateway failed to open.
+     */
+    protected void runWhenGatewayReady(final String description, final Runnable task) {
+        SettableFuture<Void> gatewayReady = _gatewayReady;
+        if (gatewayReady == null || (gatewayReady.isDone() && !isFailed(gatewayReady))) {
+            task.run();
+            return;
+        }
+        Futures.addCallback(gatewayReady, new FutureCallback<Void>() {
+            @Override public void onSuccess(Void result) {
+                getExecutionContext().submit(MutableMap.of("displayName", description+" of "+SubnetTierImpl.this), task);
+            }
+            @Override public void onFailure(Throwable t) {
+                log.warn("Skipping {} for {}: gateway failed to open ({})", new Object[] {description, SubnetTierImpl.this, t.toString()});
+            }});
+    }
+
+    private static boolean isFailed(SettableFuture<Void> future) {
+        try {
+            future.get();
+            return false;
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
     public void start(Collection<? extends Location> locations) {
-        addLocations(locations);
-        Location origLoc = Iterables.getOnlyElement(locations);
-        Location customizedLoc = customizeLocation(origLoc);
+        setAttribute(SERVICE_STATE, Lifecycle.STARTING);
+        try {
+            long startTime = System.currentTimeMillis();
+            addLocations(locations);
+            Location origLoc = Iterables.getOnlyElement(locations);
+            Location customizedLoc = customizeLocation(origLoc);
+            setAttribute(LOCATION_CUSTOMIZATION_DURATION, System.currentTimeMillis() - startTime);
+
+            Collection<Location> customizedLocations = ImmutableList.of(customizedLoc);
+            final SettableFuture<Void> gatewayReady = SettableFuture.create();
+            _gatewayReady = gatewayReady;
+
+            if (Boolean.TRUE.equals(getConfig(START_GATEWAY_IN_PARALLEL))) {
+                // children (and their VMs) start meanwhile; anything needing the gateway waits in awaitGatewayReady
+                Task<Void> gateway = getExecutionContext().submit(MutableMap.of("displayName", "Opening gateway of "+this), new Callable<Void>() {
+                    @Override public Void call() {
+                        openAndRegisterGateway(gatewayReady);
+                        return null;
+                    }});
+                try {
+                    startChildren(customizedLocations);
+                } catch (RuntimeException e) {
+                    // a failed gateway is the more useful cause to report
+                    if (gateway.isDone()) gateway.getUnchecked();
+                    throw e;
+                }
+                gateway.getUnchecked();
+            } else {
+                openAndRegisterGateway(gatewayReady);
+                startChildren(customizedLocations);
+            }
+            setAttribute(START_DURATION, System.currentTimeMillis() - startTime);
+            setAttribute(SERVICE_UP, true);
+            setAttribute(SERVICE_STATE, Lifecycle.RUNNING);
+        } catch (RuntimeException e) {
+            setAttribute(SERVICE_STATE, Lifecycle.ON_FIRE);
+            throw e;
+        }
+    }
 
-        Collection<Location> customizedLocations = ImmutableList.of(customizedLoc);
-        openAndRegisterGateway();
+    private void openAndRegisterGateway(SettableFuture<Void> gatewayReady) {
+        long startTime = System.currentTimeMillis();
+        try {
+            openAndRegisterGateway();
+            gatewayReady.set(null);
+        } catch (RuntimeException e) {
+            gatewayReady.setException(e);
+            throw e;
+        } finally {
+            setAttribute(GATEWAY_OPEN_DURATION, System.currentTimeMillis() - startTime);
+        }
+    }
 
-        StartableMethods.start(this, customizedLocations);
+    private void startChildren(Collection<Location> locations) {
+        long startTime = System.currentTimeMillis();
+        try {
+            StartableMethods.start(this, locations);
+        } finally {
+            setAttribute(CHILDREN_START_DURATION, System.currentTimeMillis() - startTime);
+        }
     }
 
     @Override
@@ -170,7 +323,11 @@ public class SubnetTierImpl extends AbstractEntity implements SubnetTier {
     @Override
     public synchronized PortForwarderAsync getPortForwarderAsync() {
         if (_portForwarderAsync==null) {
-            _portForwarderAsync = new PortForwarderAsyncImpl(this, getPortForwarder());
+            _portForwarderAsync = new PortForwarderAsyncImpl(this, getPortForwarder(), getSubscriptionRegistry()) {
+                @Override protected void runWhenReady(String description, Runnable task) {
+                    runWhenGatewayReady(description, task);
+                }
+            };
         }
         return _portForwarderAsync;
     }
@@ -187,16 +344,68 @@ public class SubnetTierImpl extends AbstractEntity implements SubnetTier {
     @Override
     @Effector(description = "Stop the process/service represented by an entity")
     public void stop() {
+        setAttribute(SERVICE_STATE, Lifecycle.STOPPING);
+        setAttribute(SERVICE_UP, false);
         StartableMethods.stop(this);
+        drainWarmPools();
+        setAttribute(SERVICE_STATE, Lifecycle.STOPPED);
 
         // TODO delete network
     }
 
+    /** destroys the warm machines of the subnet locations our children were started in (after they released theirs) */
+    protected void drainWarmPools() {
+        Set<JcloudsPortforwardingSubnetLocation> subnetLocations = Sets.newLinkedHashSet();
+        for (Entity child : getChildren()) {
+            Iterables.addAll(subnetLocations, Iterables.filter(child.getLocations(), JcloudsPortforwardingSubnetLocation.class));
+        }
+        for (JcloudsPortforwardingSubnetLocation subnetLocation : subnetLocations) {
+            try {
+                subnetLocation.drainWarmPool();
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                log.warn("Failed to drain warm pool of "+subnetLocation+" when stopping "+this+" (continuing)", e);
+            }
+        }
+    }
+
+    /**
+     * If {@link #RESTART_PRESERVES_FORWARDING} and running, leaves the gateway and port mappings as they are,
+     * verifies the forwarding rules in one batch (re-creating any missing), then restarts the children;
+     * otherwise stops and starts.
+     */
     @Override
     @Effector(description = "Restart the process/service represented by an entity")
     public void restart() {
-        stop();
-        start(getLocations());
+        if (Boolean.TRUE.equals(getConfig(RESTART_PRESERVES_FORWARDING)) && getAttribute(SERVICE_STATE) == Lifecycle.RUNNING
+                && Boolean.TRUE.equals(getAttribute(SERVICE_UP))) {
+            long startTime = System.currentTimeMillis();
+            setAttribute(SERVICE_STATE, Lifecycle.STARTING);
+            try {
+                verifyPortForwarding();
+                StartableMethods.restart(this);
+                setAttribute(SERVICE_STATE, Lifecycle.RUNNING);
+            } catch (RuntimeException e) {
+                setAttribute(SERVICE_STATE, Lifecycle.ON_FIRE);
+                throw e;
+            }
+            setAttribute(RESTART_DURATION, System.currentTimeMillis() - startTime);
+        } else {
+            stop();
+            start(getLocations());
+        }
+    }
+
+    /** re-creates any missing forwarding rules, if the port forwarder supports checking them */
+    protected void verifyPortForwarding() {
+        PortForwarder pf = getPortForwarder();
+        if (pf instanceof VerifiablePortForwarder) {
+            Collection<HostAndPort> repaired = ((VerifiablePortForwarder) pf).verifyPortForwarding();
+            setAttribute(FORWARDING_RULES_REPAIRED, repaired.size());
+            if (!repaired.isEmpty()) log.info("Re-created port forwarding of {} on restart of {}", repaired, this);
+        } else {
+            log.debug("Not verifying port forwarding on restart of {}: {} cannot verify", this, pf);
+        }
     }
 
     @Override
@@ -204,12 +413,25 @@ public class SubnetTierImpl extends AbstractEntity implements SubnetTier {
             final EntityAndAttribute<String> targetToUpdate,
             final Optional<EntityAndAttribute<Integer>> optionalTargetPort,
             final EntityAndAttribute<String> replacementSource) {
-        List<AttributeSensor<String>> targetsToMatch = ImmutableList.of(
+        attributeMunger.transformSensorStringReplacingWithPublicAddressAndPort(targetToUpdate, optionalTargetPort, getAddressSensorsToMatch(), replacementSource);
+    }
+
+    @Override
+    public void transformSensorStringReplacingWithPublicAddressAndPort(
+            final EntityAndAttribute<String> targetToUpdate,
+            final Optional<EntityAndAttribute<Integer>> optionalTargetPort,
+            final EntityAndAttribute<String> replacementSource,
+            final EntityAndAttribute<String> whereToAdvertisePrivate) {
+        attributeMunger.transformSensorStringReplacingWithPublicAddressAndPort(targetToUpdate, optionalTargetPort, getAddressSensorsToMatch(), replacementSource,
+                Optional.of(whereToAdvertisePrivate));
+    }
+
+    protected List<AttributeSensor<String>> getAddressSensorsToMatch() {
+        return ImmutableList.of(
                 SoftwareProcess.HOSTNAME,
                 SoftwareProcess.ADDRESS,
                 SubnetTier.PRIVATE_HOSTNAME,
                 SUBNET_HOSTNAME_SENSOR);
-        attributeMunger.transformSensorStringReplacingWithPublicAddressAndPort(targetToUpdate, optionalTargetPort, targetsToMatch, replacementSource);
     }
 
     @Override
@@ -222,6 +444,11 @@ public class SubnetTierImpl extends AbstractEntity implements SubnetTier {
         return SubnetEnrichers.uriTransformingEnricher(this, original, target);
     }
 
+    @Override
+    public EnricherSpec<?> uriTransformingEnricher(EntityAndAttribute<String> original, AttributeSensor<String> privateTarget, AttributeSensor<String> publicTarget) {
+        return SubnetEnrichers.uriTransformingEnricher(this, original, privateTarget, publicTarget);
+    }
+
     @Override
     public EnricherSpec<?> hostAndPortTransformingEnricher(AttributeSensor<Integer> originalPort, AttributeSensor<String> target) {
         return SubnetEnrichers.hostAndPortTransformingEnricher(this, originalPort, target);
@@ -232,6 +459,11 @@ public class SubnetTierImpl extends AbstractEntity implements SubnetTier {
         return SubnetEnrichers.hostAndPortTransformingEnricher(this, originalPort, target);
     }
 
+    @Override
+    public EnricherSpec<?> hostAndPortTransformingEnricher(EntityAndAttribute<Integer> originalPort, AttributeSensor<String> privateTarget, AttributeSensor<String> publicTarget) {
+        return SubnetEnrichers.hostAndPortTransformingEnricher(this, originalPort, privateTarget, publicTarget);
+    }
+
     @Override
     public void openPublicIp(EntityAndAttribute<String> whereToAdvertiseHostname) {
         getPortForwarderAsync().openGatewayAsync(whereToAdvertiseHostname);
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.tunnelling;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.util.exceptions.Exceptions;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+/**
+ * Distributes the ssh public keys of initiating machines to the machines they will tunnel to, for setting up
+ * a mesh of tunnels. Each machine's public key is fetched (generating it if necessary) once and cached, and all
+ * keys for a target are installed with a single idempotent update of its {@code authorized_keys}
+ * (see {@link SshTunnelling#authorizePublicKeys(SshMachineLocation, Iterable)}). Keys are fetched in parallel,
+ * and then installed on all targets in parallel.
+ */
+@Beta
+public class SshKeyDistributor implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SshKeyDistributor.class);
+
+    public static final String DEFAULT_PRIVATE_KEY_FILE = "~/.ssh/id_rsa";
+
+    private final ListeningExecutorService executor;
+    private final boolean ownExecutor;
+    private final String privateKeyFile;
+    private final String authorizedKeysFile;
+    // by machine id
+    private final ConcurrentMap<String, ListenableFuture<String>> publicKeys = Maps.newConcurrentMap();
+
+    public SshKeyDistributor() {
+        this(MoreExecutors.listeningDecorator(Executors.newCachedThreadPool()), true, DEFAULT_PRIVATE_KEY_FILE, SshTunnelling.DEFAULT_AUTHORIZED_KEYS_FILE);
+    }
+
+    public SshKeyDistributor(ListeningExecutorService executor, String privateKeyFile) {
+        this(executor, false, privateKeyFile, SshTunnelling.DEFAULT_AUTHORIZED_KEYS_FILE);
+    }
+
+    public SshKeyDistributor(ListeningExecutorService executor, String privateKeyFile, String authorizedKeysFile) {
+        this(executor, false, privateKeyFile, authorizedKeysFile);
+    }
+
+    private SshKeyDistributor(ListeningExecutorService executor, boolean ownExecutor, String privateKeyFile, String authorizedKeysFile) {
+        this.executor = executor;
+        this.ownExecutor = ownExecutor;
+        this.privateKeyFile = privateKeyFile;
+        this.authorizedKeysFile = authorizedKeysFile;
+    }
+
+    /** the machine's public key, fetched (and generated if necessary) on first request */
+    public String getPublicKey(SshMachineLocation machine) {
+        return getUnchecked(getPublicKeyAsync(machine), machine);
+    }
+
+    protected ListenableFuture<String> getPublicKeyAsync(final SshMachineLocation machine) {
+        ListenableFuture<String> result = publicKeys.get(machine.getId());
+        if (result == null) {
+            ListenableFuture<String> contender = executor.submit(new Callable<String>() {
+                @Override public String call() {
+                    return fetchPublicKey(machine);
+                }});
+            result = publicKeys.putIfAbsent(machine.getId(), contender);
+            if (result == null) result = contender;
+        }
+        return result;
+    }
+
+    /** generates the key if necessary, and returns the public key, in a single ssh session */
+    @VisibleForTesting
+    protected String fetchPublicKey(SshMachineLocation machine) {
+        String publicKeyFile = privateKeyFile + ".pub";
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        int result = machine.execScript(ImmutableMap.of("out", stdout), "ensuring has ssh public key", ImmutableList.of(
+                "if [ ! -f "+privateKeyFile+" ] ; then ssh-keygen -t rsa -N \"\" -f "+privateKeyFile+" > /dev/null ; fi",
+                "cat "+publicKeyFile));
+        String key = new String(stdout.toByteArray()).trim();
+        if (result != 0 || key.isEmpty()) {
+            throw new IllegalStateException("Failed to get public key of "+machine+" (exit code "+result+")");
+        }
+        return key;
+    }
+
+    /** installs the keys on the target, in a single update */
+    @VisibleForTesting
+    protected void authorizePublicKeys(SshMachineLocation target, Collection<String> keys) {
+        SshTunnelling.authorizePublicKeys(target, keys, authorizedKeysFile);
+    }
+
+    /** forgets the cached key of the machine, e.g. if its key has been replaced */
+    public void invalidate(SshMachineLocation machine) {
+        publicKeys.remove(machine.getId());
+    }
+
+    /**
+     * Authorizes each initiator's key on each of its targets; blocks until done,
+     * throwing if any key could not be fetched or installed.
+     */
+    public void distribute(Multimap<SshMachineLocation, SshMachineLocation> initiatorToTargets) {
+        // fetch all keys concurrently
+        Map<SshMachineLocation, ListenableFuture<String>> keys = Maps.newLinkedHashMap();
+        for (SshMachineLocation initiator : initiatorToTargets.keySet()) {
+            keys.put(initiator, getPublicKeyAsync(initiator));
+        }
+
+        // then, for each target, install all keys it needs in one update, targets concurrently
+        final Multimap<SshMachineLocation, String> keysByTarget = LinkedHashMultimap.create();
+        for (Map.Entry<SshMachineLocation, SshMachineLocation> entry : initiatorToTargets.entries()) {
+            keysByTarget.put(entry.getValue(), getUnchecked(keys.get(entry.getKey()), entry.getKey()));
+        }
+        List<ListenableFuture<?>> installs = Lists.newArrayList();
+        for (final Map.Entry<SshMachineLocation, Collection<String>> entry : keysByTarget.asMap().entrySet()) {
+            installs.add(executor.submit(new Runnable() {
+                @Override public void run() {
+                    authorizePublicKeys(entry.getKey(), entry.getValue());
+                }}));
+        }
+        try {
+            Futures.allAsList(installs).get();
+        } catch (Exception e) {
+            throw Exceptions.propagate(e);
+        }
+        LOG.debug("Distributed keys of {} machine(s) to {} target(s)", keys.size(), keysByTarget.keySet().size());
+    }
+
+    /** authorizes each machine's key on all the others */
+    public void distributeFullMesh(Iterable<SshMachineLocation> machines) {
+        Multimap<SshMachineLocation, SshMachineLocation> pairs = LinkedHashMultimap.create();
+        for (SshMachineLocation initiator : machines) {
+            for (SshMachineLocation target : machines) {
+                if (initiator != target) pairs.put(initiator, target);
+            }
+        }
+        distribute(pairs);
+    }
+
+    private String getUnchecked(ListenableFuture<String> future, SshMachineLocation machine) {
+        try {
+            return future.get();
+        } catch (Exception e) {
+            // so that it is retried next time
+            publicKeys.remove(machine.getId(), future);
+            throw new IllegalStateException("Failed to get public key of "+machine, Exceptions.propagate(e));
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownExecutor) executor.shutdownNow();
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.tunnelling;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.schmizz.sshj.SSHClient;
+import net.schmizz.sshj.connection.channel.Channel;
+import net.schmizz.sshj.connection.channel.OpenFailException;
+import net.schmizz.sshj.connection.channel.direct.LocalPortForwarder;
+import net.schmizz.sshj.connection.channel.forwarded.ConnectListener;
+import net.schmizz.sshj.connection.channel.forwarded.RemotePortForwarder;
+import net.schmizz.sshj.transport.verification.PromiscuousVerifier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.internal.ssh.SshTool;
+import brooklyn.util.os.Os;
+import brooklyn.util.text.Strings;
+
+import com.google.common.annotations.Beta;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Opens ssh port forwards from this (Brooklyn) process, multiplexing all the forwards to a given host over one
+ * persistent ssh connection (using sshj), rather than running a separate {@code ssh -N} process for each.
+ * <p>
+ * Each forward is returned as a {@link Tunnel}, which reports the bytes carried and the number of connections
+ * currently open through it, and which is closed with {@link Tunnel#close()}; the connection to the host is
+ * closed once its last tunnel is closed.
+ * <p>
+ * For tunnels initiated from another machine, see {@link SshTunnelling}.
+ */
+@Beta
+public class SshTunnelManager implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SshTunnelManager.class);
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    public static class Tunnel implements Closeable {
+        private final String description;
+        private final HostAndPort endpoint;
+        private final Connection connection;
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong channelsOpened = new AtomicLong();
+        private final AtomicInteger activeChannels = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile Closeable closer;
+
+        Tunnel(String description, HostAndPort endpoint, Connection connection) {
+            this.description = description;
+            this.endpoint = endpoint;
+            this.connection = connection;
+        }
+
+        /** the end of the tunnel which accepts connections: local for a local forward, on the remote host for a remote forward */
+        public HostAndPort getEndpoint() {
+            return endpoint;
+        }
+
+        public boolean isOpen() {
+            return !closed.get() && connection.isConnected();
+        }
+
+        /** bytes received from the connecting side ("bytesIn") and sent back to it ("bytesOut"), connections accepted in total ("channelsOpened") and currently open ("activeChannels") */
+        public Map<String, Long> getStats() {
+            return ImmutableMap.of(
+                    "bytesIn", bytesIn.get(),
+                    "bytesOut", bytesOut.get(),
+                    "channelsOpened", channelsOpened.get(),
+                    "activeChannels", (long) activeChannels.get());
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                try {
+                    if (closer != null) closer.close();
+                } catch (Exception e) {
+                    Exceptions.propagateIfFatal(e);
+                    LOG.debug("Error closing tunnel "+this+" (continuing)", e);
+                }
+                connection.release(this);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Tunnel["+description+"]";
+        }
+    }
+
+    private final Map<String, Connection> connections = Maps.newLinkedHashMap();
+    private final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+        @Override public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "brooklyn-ssh-tunnel-"+count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }});
+
+    /**
+     * Forwards connections to {@code localBind} on this host, through {@code otherEnd}, to {@code target}
+     * (as resolved from {@code otherEnd}); the equivalent of {@code ssh -L}.
+     * A local port of 0 picks a free port; see {@link Tunnel#getEndpoint()}.
+     */
+    public Tunnel openLocalForward(SshMachineLocation otherEnd, HostAndPort localBind, HostAndPort target) {
+        Connection connection = acquire(otherEnd);
+        Tunnel tunnel = null;
+        CountingServerSocket boundSocket = null;
+        try {
+            final CountingServerSocket serverSocket = new CountingServerSocket();
+            boundSocket = serverSocket;
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress(localBind.getHostText(), localBind.getPortOrDefault(0)));
+            HostAndPort endpoint = HostAndPort.fromParts(localBind.getHostText(), serverSocket.getLocalPort());
+            tunnel = new Tunnel("-L "+endpoint+":"+target+" via "+connection.key, endpoint, connection);
+            serverSocket.tunnel = tunnel;
+            connection.register(tunnel);
+
+            final LocalPortForwarder forwarder = connection.getClient().newLocalPortForwarder(
+                    new LocalPortForwarder.Parameters(endpoint.getHostText(), endpoint.getPort(), target.getHostText(), target.getPort()),
+                    serverSocket);
+            tunnel.closer = serverSocket;
+            final Tunnel listening = tunnel;
+            executor.submit(new Runnable() {
+                @Override public void run() {
+                    try {
+                        forwarder.listen();
+                    } catch (Exception e) {
+                        if (!serverSocket.isClosed()) LOG.warn("Tunnel "+listening+" stopped listening", e);
+                    }
+                }});
+            LOG.debug("Opened tunnel {}", tunnel);
+            return tunnel;
+        } catch (Exception e) {
+            closeQuietly(boundSocket);
+            if (tunnel != null) {
+                tunnel.close();
+            } else {
+                connection.release(null);
+            }
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    /**
+     * Forwards connections to {@code remoteBind} on {@code otherEnd}, back through this host, to {@code target}
+     * (as resolved from this host); the equivalent of {@code ssh -R}.
+     */
+    public Tunnel openRemoteForward(SshMachineLocation otherEnd, HostAndPort remoteBind, final HostAndPort target) {
+        Connection connection = acquire(otherEnd);
+        Tunnel tunnel = null;
+        try {
+            final RemotePortForwarder forwarder = connection.getClient().getRemotePortForwarder();
+            // the tunnel's endpoint is only known once bound (the server picks the port if 0 was asked for)
+            final AtomicReference<Tunnel> accepting = new AtomicReference<Tunnel>();
+            final RemotePortForwarder.Forward forward = forwarder.bind(
+                    new RemotePortForwarder.Forward(remoteBind.getHostText(), remoteBind.getPortOrDefault(0)),
+                    new ConnectListener() {
+                        @Override public void gotConnect(Channel.Forwarded channel) throws IOException {
+                            Tunnel t = accepting.get();
+                            if (t == null) {
+                                channel.reject(OpenFailException.Reason.CONNECT_FAILED, "tunnel not yet open");
+                                return;
+                            }
+                            forwardToTarget(t, channel, target);
+                        }});
+            HostAndPort endpoint = HostAndPort.fromParts(remoteBind.getHostText(), forward.getPort());
+            tunnel = new Tunnel("-R "+endpoint+":"+target+" via "+connection.key, endpoint, connection);
+            connection.register(tunnel);
+            accepting.set(tunnel);
+            tunnel.closer = new Closeable() {
+                @Override public void close() throws IOException {
+                    try {
+                        forwarder.cancel(forward);
+                    } catch (Exception e) {
+                        throw new IOException("Failed to cancel "+forward, e);
+                    }
+                }};
+            LOG.debug("Opened tunnel {}", tunnel);
+            return tunnel;
+        } catch (Exception e) {
+            if (tunnel != null) {
+                tunnel.close();
+            } else {
+                connection.release(null);
+            }
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    private void forwardToTarget(final Tunnel tunnel, final Channel.Forwarded channel, HostAndPort target) throws IOException {
+        final Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(target.getHostText(), target.getPort()));
+        } catch (IOException e) {
+            channel.reject(OpenFailException.Reason.CONNECT_FAILED, e.toString());
+            socket.close();
+            return;
+        }
+        channel.confirm();
+        tunnel.channelsOpened.incrementAndGet();
+        tunnel.activeChannels.incrementAndGet();
+        final AtomicBoolean closed = new AtomicBoolean();
+        final Closeable closeBoth = new Closeable() {
+            @Override public void close() {
+                if (closed.compareAndSet(false, true)) {
+                    tunnel.activeChannels.decrementAndGet();
+                    closeQuietly(socket);
+                    closeQuietly(channel);
+                }
+            }};
+        executor.submit(new Pump(channel.getInputStream(), socket.getOutputStream(), tunnel.bytesIn, closeBoth));
+        executor.submit(new Pump(socket.getInputStream(), channel.getOutputStream(), tunnel.bytesOut, closeBoth));
+    }
+
+    /** all tunnels currently open, through all connections */
+    public synchronized List<Tunnel> getTunnels() {
+        List<Tunnel> result = Lists.newArrayList();
+        for (Connection connection : connections.values()) {
+            result.addAll(connection.tunnels);
+        }
+        return ImmutableList.copyOf(result);
+    }
+
+    /** the number of ssh connections currently open */
+    public synchronized int getConnectionCount() {
+        return connections.size();
+    }
+
+    /** closes all tunnels and connections */
+    @Override
+    public void close() {
+        for (Tunnel tunnel : getTunnels()) {
+            tunnel.close();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the connection to the given machine, connecting if necessary. Only the registration is done while
+     * holding the lock: the first caller for a host connects, and concurrent callers for the same host wait on
+     * its outcome, without blocking callers for other hosts.
+     */
+    private Connection acquire(SshMachineLocation otherEnd) {
+        String key = otherEnd.getUser()+"@"+otherEnd.getAddress().getHostAddress()+":"+otherEnd.getPort();
+        Connection result;
+        boolean connecting = false;
+        synchronized (this) {
+            result = connections.get(key);
+            if (result != null && result.client.isDone() && !result.isConnected()) {
+                LOG.info("Ssh connection {} for tunnels lost; reconnecting", key);
+                connections.remove(key);
+                result.disconnect();
+                result = null;
+            }
+            if (result == null) {
+                result = new Connection(key);
+                connections.put(key, result);
+                connecting = true;
+            }
+            result.pending++;
+        }
+        if (connecting) {
+            try {
+                result.client.set(connect(otherEnd));
+            } catch (Exception e) {
+                result.client.setException(e);
+            }
+        }
+        try {
+            result.getClient();
+            return result;
+        } catch (Exception e) {
+            synchronized (this) {
+                if (connections.get(key) == result) connections.remove(key);
+            }
+            result.release(null);
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    protected SSHClient connect(SshMachineLocation machine) {
+        SSHClient client = new SSHClient();
+        try {
+            // as with the ssh commands used for tunnelling, don't check host keys
+            client.addHostKeyVerifier(new PromiscuousVerifier());
+            client.connect(machine.getAddress(), machine.getPort());
+            String user = checkNotNull(machine.getUser(), "user");
+            String password = machine.getConfig(SshTool.PROP_PASSWORD);
+            String privateKeyData = machine.getConfig(SshTool.PROP_PRIVATE_KEY_DATA);
+            String privateKeyFile = machine.getConfig(SshTool.PROP_PRIVATE_KEY_FILE);
+            if (Strings.isNonBlank(privateKeyData)) {
+                client.authPublickey(user, client.loadKeys(privateKeyData, null, null));
+            } else if (Strings.isNonBlank(privateKeyFile)) {
+                client.authPublickey(user, client.loadKeys(Os.tidyPath(privateKeyFile)));
+            } else if (Strings.isNonBlank(password)) {
+                client.authPassword(user, password);
+            } else {
+                client.authPublickey(user);
+            }
+            LOG.debug("Opened ssh connection for tunnels to {}", machine);
+            return client;
+        } catch (Exception e) {
+            closeQuietly(client);
+            throw Exceptions.propagate(e);
+        }
+    }
+
+    private class Connection {
+        final String key;
+        // completed by the thread which connects; others opening tunnels to the same host wait on it
+        final SettableFuture<SSHClient> client = SettableFuture.create();
+        final List<Tunnel> tunnels = Lists.newArrayList();
+        // guarded by SshTunnelManager.this; tunnels being opened, which keep the connection open
+        int pending;
+
+        Connection(String key) {
+            this.key = key;
+        }
+
+        /** waits for the connection to be established, throwing if it failed */
+        SSHClient getClient() {
+            try {
+                return Uninterruptibles.getUninterruptibly(client);
+            } catch (ExecutionException e) {
+                throw Exceptions.propagate(e.getCause());
+            }
+        }
+
+        boolean isConnected() {
+            if (!client.isDone()) return false;
+            try {
+                SSHClient connected = getClient();
+                return connected.isConnected() && connected.isAuthenticated();
+            } catch (Exception e) {
+                return false;
+            }
+        }
+
+        void register(Tunnel tunnel) {
+            synchronized (SshTunnelManager.this) {
+                pending--;
+                tunnels.add(tunnel);
+            }
+        }
+
+        void release(Tunnel tunnel) {
+            synchronized (SshTunnelManager.this) {
+                if (tunnel == null) {
+                    pending--;
+                } else {
+                    tunnels.remove(tunnel);
+                }
+                if (tunnels.isEmpty() && pending <= 0 && connections.get(key) == this) {
+                    connections.remove(key);
+                    disconnect();
+                }
+            }
+        }
+
+        void disconnect() {
+            LOG.debug("Closing ssh connection for tunnels to {}", key);
+            if (!client.isDone()) return;
+            try {
+                closeQuietly(getClient());
+            } catch (Exception e) {
+                // never connected; nothing to close
+            }
+        }
+    }
+
+    /** copies until end of stream or error, counting the bytes, then closes both sides */
+    private static class Pump implements Runnable {
+        private final InputStream in;
+        private final OutputStream out;
+        private final AtomicLong counter;
+        private final Closeable closer;
+
+        Pump(InputStream in, OutputStream out, AtomicLong counter, Closeable closer) {
+            this.in = in;
+            this.out = out;
+            this.counter = counter;
+            this.closer = closer;
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try {
+                int read;
+                while ((read = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, read);
+                    out.flush();
+                    counter.addAndGet(read);
+                }
+            } catch (IOException e) {
+                LOG.trace("Tunnel channel closed: {}", e.toString());
+            } finally {
+                closeQuietly(closer);
+            }
+        }
+    }
+
+    /** server socket whose accepted sockets count the bytes through them, and the connections open, for the tunnel */
+    private static class CountingServerSocket extends ServerSocket {
+        volatile Tunnel tunnel;
+
+        CountingServerSocket() throws IOException {
+            super();
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            Socket result = new CountingSocket(tunnel);
+            implAccept(result);
+            tunnel.channelsOpened.incrementAndGet();
+            tunnel.activeChannels.incrementAndGet();
+            return result;
+        }
+    }
+
+    private static class CountingSocket extends Socket {
+        private final Tunnel tunnel;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private InputStream countingIn;
+        private OutputStream countingOut;
+
+        CountingSocket(Tunnel tunnel) {
+            this.tunnel = tunnel;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (countingIn == null) {
+                countingIn = new FilterInputStream(super.getInputStream()) {
+                    @Override public int read() throws IOException {
+                        int result = super.read();
+                        if (result >= 0) tunnel.bytesIn.incrementAndGet();
+                        return result;
+                    }
+                    @Override public int read(byte[] b, int off, int len) throws IOException {
+                        int result = super.read(b, off, len);
+                        if (result > 0) tunnel.bytesIn.addAndGet(result);
+                        return result;
+                    }};
+            }
+            return countingIn;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if (countingOut == null) {
+                countingOut = new FilterOutputStream(super.getOutputStream()) {
+                    @Override public void write(int b) throws IOException {
+                        out.write(b);
+                        tunnel.bytesOut.incrementAndGet();
+                    }
+                    @Override public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        tunnel.bytesOut.addAndGet(len);
+                    }};
+            }
+            return countingOut;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed.compareAndSet(false, true)) tunnel.activeChannels.decrementAndGet();
+            super.close();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) closeable.close();
+        } catch (Exception e) {
+            Exceptions.propagateIfFatal(e);
+            LOG.trace("Error closing {} (continuing): {}", closeable, e.toString());
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.tunnelling;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import brooklyn.entity.basic.EntityLocal;
+import brooklyn.event.AttributeSensor;
+import brooklyn.event.basic.Sensors;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.networking.ReachabilityProber;
+import brooklyn.networking.tunnelling.SshTunnelManager.Tunnel;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.text.Strings;
+import brooklyn.util.time.Duration;
+import brooklyn.util.time.Time;
+
+import com.google.common.annotations.Beta;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.net.HostAndPort;
+
+/**
+ * Periodically probes the accessible end of each supervised tunnel (with a {@link ReachabilityProber}, bypassing the
+ * {@link brooklyn.networking.ReachabilityCache} so that each probe is fresh),
+ * and re-opens tunnels found to be dead, backing off exponentially while re-opening keeps failing.
+ * <p>
+ * For each tunnel, sensors are published on the owning entity: {@code tunnel.<name>.up}, {@code tunnel.<name>.reconnects}
+ * and {@code tunnel.<name>.probeLatency} (in milliseconds, of the last successful probe).
+ */
+@Beta
+public class SshTunnelSupervisor implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SshTunnelSupervisor.class);
+
+    public static final Duration DEFAULT_PROBE_PERIOD = Duration.seconds(30);
+    public static final Duration DEFAULT_PROBE_TIMEOUT = Duration.ONE_SECOND;
+    public static final Duration MIN_RECONNECT_DELAY = Duration.ONE_SECOND;
+    public static final Duration MAX_RECONNECT_DELAY = Duration.minutes(5);
+
+    public static AttributeSensor<Boolean> upSensor(String tunnelName) {
+        return Sensors.newSensor(Boolean.class, "tunnel."+tunnelName+".up", "Whether the tunnel "+tunnelName+" is accessible");
+    }
+
+    public static AttributeSensor<Integer> reconnectsSensor(String tunnelName) {
+        return Sensors.newSensor(Integer.class, "tunnel."+tunnelName+".reconnects", "Number of times the tunnel "+tunnelName+" has been re-opened");
+    }
+
+    public static AttributeSensor<Long> probeLatencySensor(String tunnelName) {
+        return Sensors.newSensor(Long.class, "tunnel."+tunnelName+".probeLatency", "Time (in milliseconds) to connect to the tunnel "+tunnelName+" when last probed");
+    }
+
+    private final EntityLocal owner;
+    private final Duration probePeriod;
+    private final Duration probeTimeout;
+    private final ConcurrentMap<String, SupervisedTunnel> tunnels = Maps.newConcurrentMap();
+    private final ScheduledExecutorService executor;
+
+    public SshTunnelSupervisor(EntityLocal owner) {
+        this(owner, DEFAULT_PROBE_PERIOD, DEFAULT_PROBE_TIMEOUT);
+    }
+
+    public SshTunnelSupervisor(EntityLocal owner, Duration probePeriod, Duration probeTimeout) {
+        this.owner = checkNotNull(owner, "owner");
+        this.probePeriod = checkNotNull(probePeriod, "probePeriod");
+        this.probeTimeout = checkNotNull(probeTimeout, "probeTimeout");
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "brooklyn-tunnel-supervisor-"+SshTunnelSupervisor.this.owner.getId());
+                t.setDaemon(true);
+                return t;
+            }});
+    }
+
+    /**
+     * Supervises a tunnel which is already open, whose accessible end is {@code probeEndpoint};
+     * if found to be dead, it is re-opened by calling {@code reopener}.
+     */
+    public void supervise(String name, HostAndPort probeEndpoint, Callable<?> reopener) {
+        SupervisedTunnel tunnel = new SupervisedTunnel(name, probeEndpoint, reopener);
+        SupervisedTunnel old = tunnels.put(name, tunnel);
+        if (old != null) old.cancel();
+        owner.setAttribute(reconnectsSensor(name), 0);
+        tunnel.schedule(Duration.ZERO);
+    }
+
+    /**
+     * Opens a local forward using the manager, and supervises it; if it dies, it is closed and opened again on the same port.
+     */
+    public Tunnel superviseLocalForward(String name, final SshTunnelManager manager, final SshMachineLocation otherEnd,
+            HostAndPort localBind, final HostAndPort target) {
+        final AtomicReference<Tunnel> current = new AtomicReference<Tunnel>(manager.openLocalForward(otherEnd, localBind, target));
+        // re-use the port actually bound, if it was to be chosen
+        final HostAndPort endpoint = current.get().getEndpoint();
+        supervise(name, probeEndpointFor(endpoint), new Callable<Void>() {
+            @Override public Void call() {
+                current.get().close();
+                current.set(manager.openLocalForward(otherEnd, endpoint, target));
+                return null;
+            }});
+        return current.get();
+    }
+
+    /**
+     * Opens a tunnel from the initiator with {@link SshTunnelling#openLocalForwardingTunnel(SshMachineLocation, SshMachineLocation, String, int, String, int)},
+     * and supervises it, probing the tunnel's port on the initiator at {@code initiatorProbeHost}
+     * (which must be accessible from here, so the tunnel must bind to an accessible NIC).
+     * On re-opening, the previous {@code ssh} process for the tunnel is killed before a new one is started.
+     */
+    public void superviseLocalForwardingTunnel(String name, final SshMachineLocation initiator, final SshMachineLocation otherEnd,
+            final String initiatorNicNameToEnable, final int initiatorPortToEnable,
+            final String otherEndNicName, final int otherEndPortToExpose, String initiatorProbeHost) {
+        SshTunnelling.openLocalForwardingTunnel(initiator, otherEnd, initiatorNicNameToEnable, initiatorPortToEnable, otherEndNicName, otherEndPortToExpose);
+        supervise(name, HostAndPort.fromParts(initiatorProbeHost, initiatorPortToEnable), new Callable<Void>() {
+            @Override public Void call() {
+                SshTunnelling.openLocalForwardingTunnel(initiator, otherEnd, initiatorNicNameToEnable, initiatorPortToEnable, otherEndNicName, otherEndPortToExpose);
+                return null;
+            }});
+    }
+
+    /** stops supervising the tunnel (without closing it), and clears its sensors */
+    public void unsupervise(String name) {
+        SupervisedTunnel tunnel = tunnels.remove(name);
+        if (tunnel != null) {
+            tunnel.cancel();
+            owner.setAttribute(upSensor(name), null);
+            owner.setAttribute(reconnectsSensor(name), null);
+            owner.setAttribute(probeLatencySensor(name), null);
+        }
+    }
+
+    /** for each supervised tunnel: whether up, the reconnect count, and the consecutive failed probes */
+    public Map<String, Map<String, Object>> getStatus() {
+        ImmutableMap.Builder<String, Map<String, Object>> result = ImmutableMap.builder();
+        for (SupervisedTunnel tunnel : tunnels.values()) {
+            result.put(tunnel.name, tunnel.getStatus());
+        }
+        return result.build();
+    }
+
+    @Override
+    public void close() {
+        for (SupervisedTunnel tunnel : tunnels.values()) {
+            tunnel.cancel();
+        }
+        tunnels.clear();
+        executor.shutdownNow();
+    }
+
+    /** probes the endpoint, returning the time taken to connect in milliseconds, or -1 if not accessible */
+    @VisibleForTesting
+    protected long probe(HostAndPort endpoint) {
+        long start = System.nanoTime();
+        if (ReachabilityProber.defaults().isReachable(endpoint.getHostText(), endpoint.getPort(), probeTimeout)) {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        }
+        return -1;
+    }
+
+    /** the clock used to back off re-opening */
+    @VisibleForTesting
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static HostAndPort probeEndpointFor(HostAndPort endpoint) {
+        String host = endpoint.getHostText();
+        // a wildcard bind is accessible on loopback
+        if (Strings.isBlank(host) || "0.0.0.0".equals(host) || "*".equals(host)) host = "127.0.0.1";
+        return HostAndPort.fromParts(host, endpoint.getPort());
+    }
+
+    private class SupervisedTunnel implements Runnable {
+        final String name;
+        final HostAndPort probeEndpoint;
+        final Callable<?> reopener;
+        volatile boolean cancelled;
+        // accessed only by the executor thread, after construction
+        int reconnects;
+        int failedProbes;
+        Duration reconnectDelay = MIN_RECONNECT_DELAY;
+        long nextReconnectTime;
+
+        SupervisedTunnel(String name, HostAndPort probeEndpoint, Callable<?> reopener) {
+            this.name = name;
+            this.probeEndpoint = probeEndpoint;
+            this.reopener = reopener;
+        }
+
+        void schedule(Duration delay) {
+            if (!cancelled && !executor.isShutdown()) {
+                executor.schedule(this, delay.toMilliseconds(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        synchronized Map<String, Object> getStatus() {
+            return ImmutableMap.<String, Object>of("endpoint", probeEndpoint.toString(), "up", failedProbes == 0,
+                    "reconnects", reconnects, "failedProbes", failedProbes);
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) return;
+            Duration nextProbe = probePeriod;
+            try {
+                long latency = probe(probeEndpoint);
+                if (cancelled) return;
+                synchronized (this) {
+                    if (latency >= 0) {
+                        if (failedProbes > 0) LOG.info("Tunnel {} for {} at {} is up", new Object[] {name, owner, probeEndpoint});
+                        failedProbes = 0;
+                        reconnectDelay = MIN_RECONNECT_DELAY;
+                    } else {
+                        failedProbes++;
+                    }
+                }
+                if (latency >= 0) {
+                    owner.setAttribute(upSensor(name), true);
+                    owner.setAttribute(probeLatencySensor(name), latency);
+                } else {
+                    owner.setAttribute(upSensor(name), false);
+                    nextProbe = reconnect();
+                }
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.warn("Error supervising tunnel "+name+" for "+owner+" (continuing)", e);
+            } finally {
+                schedule(nextProbe);
+            }
+        }
+
+        /** re-opens the tunnel unless backing off; returns the delay until it should next be probed */
+        private Duration reconnect() {
+            long now = currentTimeMillis();
+            if (now < nextReconnectTime) {
+                return Duration.millis(Math.min(probePeriod.toMilliseconds(), nextReconnectTime - now));
+            }
+            LOG.warn("Tunnel {} for {} at {} is not accessible; re-opening (attempt {}, next in {} if it fails)", new Object[] {
+                    name, owner, probeEndpoint, reconnects + 1, Time.makeTimeStringRounded(reconnectDelay)});
+            synchronized (this) {
+                reconnects++;
+            }
+            owner.setAttribute(reconnectsSensor(name), reconnects);
+            try {
+                reopener.call();
+            } catch (Exception e) {
+                Exceptions.propagateIfFatal(e);
+                LOG.warn("Failed to re-open tunnel "+name+" for "+owner+": "+e);
+            }
+            nextReconnectTime = now + reconnectDelay.toMilliseconds();
+            Duration result = reconnectDelay;
+            reconnectDelay = Duration.millis(Math.min(MAX_RECONNECT_DELAY.toMilliseconds(), reconnectDelay.toMilliseconds() * 2));
+            // probe again soon, to confirm the tunnel is back
+            return Duration.millis(Math.min(result.toMilliseconds(), probePeriod.toMilliseconds()));
+        }
+    }
+}
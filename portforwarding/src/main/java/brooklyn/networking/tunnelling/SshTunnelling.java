@@ -18,6 +18,7 @@ package brooklyn.networking.tunnelling;
 import java.io.File;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -26,12 +27,17 @@ import brooklyn.location.basic.SshMachineLocation;
 import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.text.Strings;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
 import com.google.common.io.Files;
 
 public class SshTunnelling {
 
     private static final Logger LOG = LoggerFactory.getLogger(SshTunnelling.class);
 
+    public static final String DEFAULT_AUTHORIZED_KEYS_FILE = "~/.ssh/authorized_keys";
+
     public static String generateRsaKey(SshMachineLocation machine) {
         return generateRsaKey(machine, "~/.ssh/id_rsa");
     }
@@ -42,50 +48,109 @@ public class SshTunnelling {
             machine.execCommands("ensuring has ssh public key",
                     Arrays.asList("if [ ! -f "+privateKeyFile+" ] ; then ssh-keygen -t rsa -N \"\" -f "+privateKeyFile+" ; fi"));
             File kf = File.createTempFile("brooklyn", "machine.id_rsa.pub");
-            machine.copyFrom(publicKeyFile, kf.getAbsolutePath());
-            return Files.toString(kf, Charset.defaultCharset());
+            try {
+                machine.copyFrom(publicKeyFile, kf.getAbsolutePath());
+                return Files.toString(kf, Charset.defaultCharset());
+            } finally {
+                kf.delete();
+            }
         } catch (Exception e) {
             throw Exceptions.propagate(e);
         }
     }
 
+    /**
+     * Starts a detached {@code ssh -N -R} process on the initiator. For tunnels initiated from this (Brooklyn)
+     * process, prefer {@link SshTunnelManager}, which shares one connection per host and can close and report on each tunnel.
+     */
     public static void openRemoteForwardingTunnel(SshMachineLocation initiator, SshMachineLocation otherEnd,
             String initiatorNicNameToExpose, int initiatorPortToExpose,
             String optionalOtherEndNicName, int otherEndPortToEnable) {
-        // create the ssh forwarder
-        initiator.execScript("starting forwarding tunnel", Arrays.asList(
-                "nohup bash -c 'ssh -N -o StrictHostKeyChecking=no -R " +
-                        (Strings.isBlank(optionalOtherEndNicName) ? "" : optionalOtherEndNicName+":") +
-                        otherEndPortToEnable + ":" +
-                        initiatorNicNameToExpose + ":" +
-                        initiatorPortToExpose + " " +
-                        otherEnd.getUser() + "@" + otherEnd.getAddress().getHostAddress() + " " +
-                                "1> /dev/null 2> /dev/null < /dev/null &'" // redirects needed to ensure termination
-            ));
+        initiator.execScript("starting forwarding tunnel", forwardingTunnelCommands("-R",
+                (Strings.isBlank(optionalOtherEndNicName) ? "" : optionalOtherEndNicName+":") +
+                        otherEndPortToEnable + ":" + initiatorNicNameToExpose + ":" + initiatorPortToExpose,
+                otherEnd));
     }
 
+    /**
+     * Starts a detached {@code ssh -N -L} process on the initiator. For tunnels initiated from this (Brooklyn)
+     * process, prefer {@link SshTunnelManager}.
+     */
     public static void openLocalForwardingTunnel(SshMachineLocation initiator, SshMachineLocation otherEnd,
             String optionalInitiatorNicNameToEnable, int initiatorPortToEnable,
             String otherEndNicName, int otherEndPortToExpose) {
-        // create the ssh forwarder
-        initiator.execScript("starting forwarding tunnel", Arrays.asList(
-                "nohup bash -c 'ssh -N -o StrictHostKeyChecking=no -L " +
-                        (Strings.isBlank(optionalInitiatorNicNameToEnable) ? "" : optionalInitiatorNicNameToEnable + ":") +
-                        initiatorPortToEnable + ":" +
-                        otherEndNicName + ":" +
-                        otherEndPortToExpose + " " +
-                        otherEnd.getUser() + "@" + otherEnd.getAddress().getHostAddress() + " " +
-                                "1> /dev/null 2> /dev/null < /dev/null &'" // redirects needed to ensure termination
-            ));
+        initiator.execScript("starting forwarding tunnel", forwardingTunnelCommands("-L",
+                (Strings.isBlank(optionalInitiatorNicNameToEnable) ? "" : optionalInitiatorNicNameToEnable + ":") +
+                        initiatorPortToEnable + ":" + otherEndNicName + ":" + otherEndPortToExpose,
+                otherEnd));
+    }
+
+    /**
+     * Commands to start a detached {@code ssh -N} process with the given forward, recording its pid in a file named
+     * for the forward; any process previously started for the same forward (e.g. which has hung) is killed first,
+     * so re-opening a tunnel does not leave the old one holding the port.
+     */
+    @VisibleForTesting
+    static List<String> forwardingTunnelCommands(String forwardFlag, String forwardSpec, SshMachineLocation otherEnd) {
+        String destination = otherEnd.getUser() + "@" + otherEnd.getAddress().getHostAddress();
+        String sshArgs = forwardFlag + " " + forwardSpec + " " + destination;
+        String pidFile = "~/.brooklyn-ssh-tunnel" + (forwardFlag + forwardSpec + "-" + destination).replaceAll("[^A-Za-z0-9.-]", "_") + ".pid";
+        return ImmutableList.of(
+                "if [ -f "+pidFile+" ] ; then "
+                        + "pid=$(cat "+pidFile+") ; "
+                        // only kill it if the pid has not since been re-used by another process
+                        + "if ps -p $pid -o args= 2> /dev/null | grep -qF -- \"" + sshArgs + "\" ; then kill $pid ; "
+                        // and wait for it to release the port, for up to 5s
+                        + "for i in $(seq 50) ; do kill -0 $pid 2> /dev/null || break ; sleep 0.1 ; done ; fi ; "
+                        + "rm -f "+pidFile+" ; fi",
+                "nohup bash -c 'ssh -N -o StrictHostKeyChecking=no " + sshArgs + " " +
+                        "1> /dev/null 2> /dev/null < /dev/null & echo $! > " + pidFile + "'"); // redirects needed to ensure termination
     }
 
     public static void authorizePublicKey(SshMachineLocation target, String originPublicKeyData) {
-        target.execScript("installing public key", Arrays.asList(
-                "cp ~/.ssh/authorized_keys x",
-                "cat >> x << __END_OF_AUTH_KEY_DATA__\n" + originPublicKeyData+"\n" + "__END_OF_AUTH_KEY_DATA__",
-                "mv x ~/.ssh/authorized_keys",
-                "chmod 600 ~/.ssh/authorized_keys"
-                ));
+        authorizePublicKeys(target, ImmutableList.of(originPublicKeyData));
+    }
+
+    /**
+     * Adds the keys to the target's {@code authorized_keys}, skipping any already present. The file is rewritten
+     * via a private temp file and an atomic rename (under {@code flock} where available), so concurrent updates
+     * neither see a partial file nor clobber one another.
+     */
+    public static void authorizePublicKeys(SshMachineLocation target, Iterable<String> publicKeysData) {
+        authorizePublicKeys(target, publicKeysData, DEFAULT_AUTHORIZED_KEYS_FILE);
+    }
+
+    /** as {@link #authorizePublicKeys(SshMachineLocation, Iterable)}, but updating the given file */
+    public static void authorizePublicKeys(SshMachineLocation target, Iterable<String> publicKeysData, String authorizedKeysFile) {
+        StringBuilder keys = new StringBuilder();
+        for (String key : publicKeysData) {
+            for (String line : Splitter.on('\n').trimResults().omitEmptyStrings().split(key)) {
+                keys.append(line).append("\n");
+            }
+        }
+        if (keys.length() == 0) return;
+        int result = target.execScript("installing public key(s)", authorizePublicKeysCommands(keys.toString(), authorizedKeysFile));
+        if (result != 0) {
+            throw new IllegalStateException("Failed to install public key(s) on "+target+" (exit code "+result+")");
+        }
+    }
+
+    private static List<String> authorizePublicKeysCommands(String keys, String authorizedKeysFile) {
+        // temp files are created alongside the file, so that the rename is atomic
+        return ImmutableList.of(
+                "file="+authorizedKeysFile,
+                "dir=$(dirname $file)",
+                "mkdir -p $dir && chmod 700 $dir && touch $file",
+                "keys=$(mktemp $dir/.brooklyn-keys.XXXXXX)",
+                "cat > $keys << '__END_OF_AUTH_KEY_DATA__'\n" + keys + "__END_OF_AUTH_KEY_DATA__",
+                "update() { "
+                        + "tmp=$(mktemp $dir/.authorized_keys.XXXXXX) && cat $file > $tmp && "
+                        + "while read -r key ; do grep -qxF \"$key\" $tmp || echo \"$key\" >> $tmp ; done < $keys && "
+                        + "chmod 600 $tmp && mv -f $tmp $file ; }",
+                "if which flock > /dev/null 2>&1 ; then ( flock 9 && update ) 9> $dir/.$(basename $file).lock ; else update ; fi",
+                "result=$?",
+                "rm -f $keys",
+                "exit $result");
     }
 
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.portforwarding;
+
+import static brooklyn.util.ssh.BashCommands.sudo;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+
+import java.io.ByteArrayOutputStream;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.location.LocationSpec;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.util.net.Cidr;
+import brooklyn.util.net.Networking;
+import brooklyn.util.net.Protocol;
+import brooklyn.util.text.Identifiers;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.net.HostAndPort;
+
+/**
+ * Tests direct DNAT mode against a local Docker daemon (see {@link AbstractDockerPortForwarderTest}),
+ * programming iptables on this machine; requires ssh to localhost with passwordless sudo.
+ * The iptables rules are restored afterwards.
+ */
+public class DockerDirectDnatIntegrationTest extends AbstractDockerPortForwarderTest {
+
+    private SshMachineLocation localMachine;
+    private String savedRulesFile;
+
+    @BeforeMethod(alwaysRun=true)
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        localMachine = managementContext.getLocationManager().createLocation(LocationSpec.create(SshMachineLocation.class)
+                .configure("address", Networking.getLocalHost()));
+        savedRulesFile = "/tmp/iptables-"+Identifiers.makeRandomId(8);
+        assertEquals(localMachine.execCommands("save iptables", ImmutableList.of(sudo("/sbin/iptables-save")+" > "+savedRulesFile)), 0);
+        portForwarder.enableDirectDnat(localMachine);
+    }
+
+    @AfterMethod(alwaysRun=true)
+    @Override
+    public void tearDown() throws Exception {
+        try {
+            if (localMachine != null && savedRulesFile != null) {
+                localMachine.execCommands("restore iptables", ImmutableList.of(
+                        sudo("/sbin/iptables-restore < "+savedRulesFile),
+                        IptablesPortForwardingCommands.saveRules(),
+                        "rm -f "+savedRulesFile));
+            }
+            if (localMachine != null) managementContext.getLocationManager().unmanage(localMachine);
+        } finally {
+            super.tearDown();
+        }
+    }
+
+    @Test(groups="Integration")
+    public void testForwardsStraightToContainerIp() throws Exception {
+        HostAndPort endpoint = portForwarder.openPortForwarding(privateMachine, 22, Optional.<Integer>absent(), Protocol.TCP, Cidr.UNIVERSAL);
+
+        // rule targets the container's bridge ip, rather than going through a docker-published port
+        String dnatTarget = "--to-destination "+privateIp+":22";
+        assertEquals(localMachine.execCommands("check rule", ImmutableList.of(
+                sudo("/sbin/iptables -t nat -S PREROUTING")+" | grep -e '--dport "+endpoint.getPort()+" ' | grep -e '"+dnatTarget+"'")), 0);
+        assertFalse(Integer.valueOf(endpoint.getPort()).equals(portForwarder.getPortMappings(privateMachine).get(22)), "endpoint="+endpoint);
+
+        // traffic from this host takes the OUTPUT chain, which only matches non-loopback addresses
+        assertTargetSshableVia(HostAndPort.fromParts(Networking.getLocalHost().getHostAddress(), endpoint.getPort()));
+    }
+
+    @Test(groups="Integration")
+    public void testRepeatedForwardingAddsNoDuplicateRules() throws Exception {
+        HostAndPort endpoint = portForwarder.openPortForwarding(privateMachine, 22, Optional.<Integer>absent(), Protocol.TCP, Cidr.UNIVERSAL);
+        portForwarder.systemCreateDnat(endpoint.getPort(), HostAndPort.fromParts(privateIp, 22), Protocol.TCP);
+
+        assertEquals(countRules("nat", "PREROUTING", endpoint.getPort()), 1);
+        assertEquals(countRules("nat", "OUTPUT", endpoint.getPort()), 1);
+    }
+
+    @Test(groups="Integration")
+    public void testClosePortForwardingDeletesRules() throws Exception {
+        HostAndPort endpoint = portForwarder.openPortForwarding(privateMachine, 22, Optional.<Integer>absent(), Protocol.TCP, Cidr.UNIVERSAL);
+        assertEquals(countRules("nat", "PREROUTING", endpoint.getPort()), 1);
+
+        portForwarder.closePortForwarding(privateMachine, 22, Protocol.TCP);
+        assertEquals(countRules("nat", "PREROUTING", endpoint.getPort()), 0);
+        assertEquals(countRules("nat", "OUTPUT", endpoint.getPort()), 0);
+        assertNull(portForwarder.getPortForwardManager().getPortMappingWithPrivateSide(privateMachine, 22));
+    }
+
+    /** the number of rules in the chain for the public port */
+    private int countRules(String table, String chain, int publicPort) {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        assertEquals(localMachine.execCommands(ImmutableMap.of("out", stdout), "count rules", ImmutableList.of(
+                sudo("/sbin/iptables -t "+table+" -S "+chain)+" | grep -c -e '--dport "+publicPort+" ' || true")), 0);
+        String out = new String(stdout.toByteArray()).trim();
+        return Integer.parseInt(out.substring(out.lastIndexOf('\n') + 1).trim());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.portforwarding;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.io.Payload;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.test.Asserts;
+import brooklyn.util.time.Duration;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+public class DockerPortMappingIndexTest {
+
+    private Map<String, Map<Integer, Integer>> containers;
+    private List<String> inspected;
+    private DockerPortMappingIndex index;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        containers = Maps.newLinkedHashMap();
+        inspected = Lists.newArrayList();
+        index = new DockerPortMappingIndex(null, null, "http://127.0.0.1:1") {
+            @Override protected Map<String, Map<Integer, Integer>> listContainers() {
+                return ImmutableMap.copyOf(containers);
+            }
+            @Override protected Map<Integer, Integer> inspect(String containerId) {
+                inspected.add(containerId);
+                Map<Integer, Integer> result = containers.get(containerId);
+                return (result == null) ? ImmutableMap.<Integer, Integer>of() : result;
+            }
+        };
+    }
+
+    @Test
+    public void testLookupsAnsweredFromLoadedIndex() throws Exception {
+        containers.put("c1", ImmutableMap.of(22, 49153, 8080, 49154));
+        index.reload();
+
+        assertEquals(index.getHostPort("c1", 22), (Integer) 49153);
+        assertEquals(index.getHostPort("c1", 8080), (Integer) 49154);
+        assertNull(index.getHostPort("c1", 443));
+        assertTrue(inspected.isEmpty(), "inspected="+inspected);
+        assertEquals(index.getStats().get("hits"), (Long) 3L);
+    }
+
+    @Test
+    public void testUnknownContainerIsInspectedOnce() throws Exception {
+        index.reload();
+        containers.put("c2", ImmutableMap.of(22, 49160));
+
+        assertEquals(index.getHostPort("c2", 22), (Integer) 49160);
+        assertEquals(index.getHostPort("c2", 22), (Integer) 49160);
+        assertEquals(inspected, Lists.newArrayList("c2"));
+        assertEquals(index.getStats().get("misses"), (Long) 1L);
+    }
+
+    @Test
+    public void testEventsUpdateIndex() throws Exception {
+        containers.put("c1", ImmutableMap.of(22, 49153));
+        index.reload();
+        containers.put("c2", ImmutableMap.of(22, 49155));
+
+        index.consume(new StringReader(
+                "{\"status\":\"start\",\"id\":\"c2\",\"from\":\"ubuntu\",\"time\":1}"
+                + "{\"status\":\"die\",\"id\":\"c1\",\"from\":\"ubuntu\",\"time\":2}\n"
+                + "{\"Type\":\"network\",\"status\":\"destroy\",\"id\":\"c2\",\"time\":3}"));
+
+        assertEquals(inspected, Lists.newArrayList("c2"));
+        assertEquals(index.getHostPort("c2", 22), (Integer) 49155);
+        assertEquals(index.getStats().get("events"), (Long) 3L);
+
+        // c1 is no longer indexed, so is inspected on lookup
+        containers.remove("c1");
+        assertNull(index.getHostPort("c1", 22));
+        assertEquals(inspected, Lists.newArrayList("c2", "c1"));
+    }
+
+    @Test
+    public void testReloadDropsRemovedContainers() throws Exception {
+        containers.put("c1", ImmutableMap.of(22, 49153));
+        index.reload();
+        containers.clear();
+        index.reload();
+
+        assertNull(index.getHostPort("c1", 22));
+        assertEquals(inspected, Lists.newArrayList("c1"));
+    }
+
+    @Test
+    public void testStopsIndexingAfterRepeatedEventsFailures() throws Exception {
+        containers.put("c1", ImmutableMap.of(22, 49153));
+        final AtomicInteger attempts = new AtomicInteger();
+        index = new DockerPortMappingIndex(null, null, "http://127.0.0.1:1") {
+            @Override protected Map<String, Map<Integer, Integer>> listContainers() {
+                return ImmutableMap.copyOf(containers);
+            }
+            @Override protected Map<Integer, Integer> inspect(String containerId) {
+                inspected.add(containerId);
+                Map<Integer, Integer> result = containers.get(containerId);
+                return (result == null) ? ImmutableMap.<Integer, Integer>of() : result;
+            }
+            @Override protected Payload openEvents(long since) {
+                attempts.incrementAndGet();
+                throw new IllegalStateException("simulated failure");
+            }
+        };
+        index.setReconnectDelays(Duration.millis(1), Duration.millis(1));
+        try {
+            index.start();
+            Asserts.succeedsEventually(new Runnable() {
+                @Override public void run() {
+                    assertTrue(index.isEventsFailed());
+                }});
+            assertEquals(attempts.get(), DockerPortMappingIndex.MAX_CONSECUTIVE_FAILURES);
+
+            // no longer trusted, so every lookup inspects the container
+            containers.put("c1", ImmutableMap.of(22, 49999));
+            assertEquals(index.getHostPort("c1", 22), (Integer) 49999);
+            assertEquals(index.getHostPort("c1", 22), (Integer) 49999);
+            assertEquals(inspected, Lists.newArrayList("c1", "c1"));
+        } finally {
+            index.close();
+        }
+    }
+}
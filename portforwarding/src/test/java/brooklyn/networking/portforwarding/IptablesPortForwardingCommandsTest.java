@@ -0,0 +1,82 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.portforwarding;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import org.testng.annotations.Test;
+
+import brooklyn.util.net.Protocol;
+
+import com.google.common.net.HostAndPort;
+
+public class IptablesPortForwardingCommandsTest {
+
+    private static final String NAT_RULES =
+            "-P PREROUTING ACCEPT\n" +
+            "-P POSTROUTING ACCEPT\n" +
+            "-A PREROUTING -p tcp -m tcp --dport 11001 -j DNAT --to-destination 10.0.0.5:22\n" +
+            "-A PREROUTING -p tcp -m tcp --dport 11002 -j DNAT --to-destination 10.0.0.50:8080\n" +
+            "-A OUTPUT -p tcp -m tcp --dport 11003 -j DNAT --to-destination 10.0.0.6:22\n" +
+            "-A POSTROUTING -j MASQUERADE\n";
+
+    @Test
+    public void testHasDnat() throws Exception {
+        assertTrue(IptablesPortForwardingCommands.hasDnat(NAT_RULES, 11001, HostAndPort.fromParts("10.0.0.5", 22), Protocol.TCP));
+        assertTrue(IptablesPortForwardingCommands.hasDnat(NAT_RULES, 11002, HostAndPort.fromParts("10.0.0.50", 8080), Protocol.TCP));
+    }
+
+    @Test
+    public void testHasDnatRequiresExactMatch() throws Exception {
+        // different target address, port prefix, public port, chain and protocol respectively
+        assertFalse(IptablesPortForwardingCommands.hasDnat(NAT_RULES, 11002, HostAndPort.fromParts("10.0.0.5", 8080), Protocol.TCP));
+        assertFalse(IptablesPortForwardingCommands.hasDnat(NAT_RULES, 11001, HostAndPort.fromParts("10.0.0.5", 2), Protocol.TCP));
+        assertFalse(IptablesPortForwardingCommands.hasDnat(NAT_RULES, 1100, HostAndPort.fromParts("10.0.0.5", 22), Protocol.TCP));
+        assertFalse(IptablesPortForwardingCommands.hasDnat(NAT_RULES, 11003, HostAndPort.fromParts("10.0.0.6", 22), Protocol.TCP));
+        assertFalse(IptablesPortForwardingCommands.hasDnat(NAT_RULES, 11001, HostAndPort.fromParts("10.0.0.5", 22), Protocol.UDP));
+    }
+
+    @Test
+    public void testHasMasquerade() throws Exception {
+        assertTrue(IptablesPortForwardingCommands.hasMasquerade(NAT_RULES));
+        assertFalse(IptablesPortForwardingCommands.hasMasquerade("-P POSTROUTING ACCEPT\n"));
+    }
+
+    @Test
+    public void testDnatOnlyInsertsIfAbsent() throws Exception {
+        String command = IptablesPortForwardingCommands.dnat(11001, HostAndPort.fromParts("10.0.0.5", 22), Protocol.TCP);
+        String rule = "PREROUTING -p tcp --dport 11001 -j DNAT --to-destination 10.0.0.5:22";
+        int check = command.indexOf("-t nat -C "+rule);
+        int insert = command.indexOf("-t nat -I "+rule);
+        assertTrue(check >= 0 && insert > check, command);
+        assertTrue(command.substring(check, insert).contains("||"), command);
+    }
+
+    @Test
+    public void testDeleteDnatRemovesEveryCopy() throws Exception {
+        String command = IptablesPortForwardingCommands.deleteDnat(11001, HostAndPort.fromParts("10.0.0.5", 22), Protocol.TCP);
+        assertTrue(command.startsWith("while "), command);
+        assertTrue(command.contains("-t nat -D PREROUTING -p tcp --dport 11001 -j DNAT --to-destination 10.0.0.5:22"), command);
+    }
+
+    @Test
+    public void testMasqueradeOnlyInsertsIfAbsent() throws Exception {
+        String command = IptablesPortForwardingCommands.masquerade();
+        assertTrue(command.contains("-t nat -C POSTROUTING -j MASQUERADE"), command);
+        assertTrue(command.contains("-t nat -I POSTROUTING -j MASQUERADE"), command);
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.portforwarding;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.basic.ApplicationBuilder;
+import brooklyn.entity.basic.Entities;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.access.PortForwardManager;
+import brooklyn.location.access.PortForwardManagerAuthority;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.management.ManagementContext;
+import brooklyn.test.entity.TestApplication;
+import brooklyn.util.exceptions.Exceptions;
+import brooklyn.util.net.Cidr;
+import brooklyn.util.net.Networking;
+import brooklyn.util.net.Protocol;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.net.HostAndPort;
+
+public class PortForwarderIptablesTest {
+
+    private static final String FORWARDER_IP = "5.6.7.8";
+
+    private TestApplication app;
+    private ManagementContext managementContext;
+    private PortForwardManager portForwardManager;
+    private RecordingMachine forwarderMachine;
+    private SshMachineLocation targetMachine;
+    private List<HostAndPort> created;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        app = ApplicationBuilder.newManagedApp(TestApplication.class);
+        managementContext = app.getManagementContext();
+        portForwardManager = new PortForwardManagerAuthority();
+        forwarderMachine = managementContext.getLocationManager().createLocation(LocationSpec.create(RecordingMachine.class)
+                .configure("address", Networking.getInetAddressWithFixedName(FORWARDER_IP)));
+        targetMachine = managementContext.getLocationManager().createLocation(LocationSpec.create(SshMachineLocation.class)
+                .configure("address", Networking.getInetAddressWithFixedName("10.0.0.5")));
+        created = Lists.newArrayList();
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (managementContext != null) Entities.destroyAll(managementContext);
+    }
+
+    /** a forwarder which records the rules it would create, rather than running the commands */
+    private PortForwarderIptables newPortForwarder() {
+        return new PortForwarderIptables(portForwardManager, FORWARDER_IP, forwarderMachine) {
+            @Override protected boolean systemCreatePortForwarding(HostAndPort publicSide, HostAndPort targetSide, Cidr cidr) {
+                created.add(publicSide);
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void testReusesForwardOnlyForSameProtocolAndCidr() throws Exception {
+        PortForwarderIptables portForwarder = newPortForwarder();
+        HostAndPort targetSide = HostAndPort.fromParts("10.0.0.5", 80);
+        HostAndPort endpoint = portForwarder.openPortForwarding(targetSide, Optional.<Integer>absent(), Protocol.TCP, Cidr.UNIVERSAL);
+
+        assertEquals(portForwarder.openPortForwarding(targetSide, Optional.<Integer>absent(), Protocol.TCP, Cidr.UNIVERSAL), endpoint);
+        assertFalse(portForwarder.openPortForwarding(targetSide, Optional.<Integer>absent(), Protocol.TCP, new Cidr("10.0.0.0/8")).equals(endpoint));
+        assertFalse(portForwarder.openPortForwarding(targetSide, Optional.<Integer>absent(), Protocol.UDP, Cidr.UNIVERSAL).equals(endpoint));
+        assertEquals(created.size(), 3);
+    }
+
+    @Test
+    public void testRecordsMachineForwardInPortForwardManager() throws Exception {
+        HostAndPort endpoint = newPortForwarder().openPortForwarding(targetMachine, 80, Optional.<Integer>absent(), Protocol.TCP, Cidr.UNIVERSAL);
+        assertEquals(portForwardManager.getPortMappingWithPrivateSide(targetMachine, 80).getPublicPort(), endpoint.getPort());
+    }
+
+    @Test
+    public void testReusesRecordedForwardAfterRebind() throws Exception {
+        HostAndPort endpoint = newPortForwarder().openPortForwarding(targetMachine, 80, Optional.<Integer>absent(), Protocol.TCP, Cidr.UNIVERSAL);
+
+        // a new instance, as after rebind, knows the forward only from the port forward manager
+        PortForwarderIptables rebound = newPortForwarder();
+        assertEquals(rebound.openPortForwarding(targetMachine, 80, Optional.<Integer>absent(), Protocol.TCP, Cidr.UNIVERSAL), endpoint);
+        assertEquals(created.size(), 1);
+    }
+
+    @Test
+    public void testVerifyRecreatesRecordedForwardsAfterRebind() throws Exception {
+        HostAndPort endpoint = newPortForwarder().openPortForwarding(targetMachine, 80, Optional.<Integer>absent(), Protocol.TCP, Cidr.UNIVERSAL);
+        forwarderMachine.natRules = "-P PREROUTING ACCEPT\n";
+
+        Collection<HostAndPort> repaired = newPortForwarder().verifyPortForwarding();
+
+        assertEquals(repaired, ImmutableList.of(endpoint));
+        List<String> restore = Iterables.getLast(forwarderMachine.scripts);
+        assertTrue(restore.contains(IptablesPortForwardingCommands.dnat(endpoint.getPort(), HostAndPort.fromParts("10.0.0.5", 80), Protocol.TCP)), "commands="+restore);
+    }
+
+    @Test
+    public void testVerifyLeavesExistingRules() throws Exception {
+        HostAndPort endpoint = newPortForwarder().openPortForwarding(targetMachine, 80, Optional.<Integer>absent(), Protocol.TCP, Cidr.UNIVERSAL);
+        forwarderMachine.natRules = "-A PREROUTING -p tcp -m tcp --dport "+endpoint.getPort()+" -j DNAT --to-destination 10.0.0.5:80\n"
+                + "-A POSTROUTING -j MASQUERADE\n";
+
+        assertTrue(newPortForwarder().verifyPortForwarding().isEmpty());
+        // only the listing
+        assertEquals(forwarderMachine.scripts.size(), 1);
+    }
+
+    /** answers the listing of nat rules with {@link #natRules}, and records each script run */
+    public static class RecordingMachine extends SshMachineLocation {
+        volatile String natRules = "";
+        final List<List<String>> scripts = Lists.newCopyOnWriteArrayList();
+
+        @Override
+        public int execScript(String summaryForLogging, List<String> commands) {
+            return execScript(null, summaryForLogging, commands);
+        }
+
+        @Override
+        public int execScript(Map<String, ?> props, String summaryForLogging, List<String> commands) {
+            scripts.add(ImmutableList.copyOf(commands));
+            if (props != null && props.get("out") instanceof OutputStream && commands.contains(IptablesPortForwardingCommands.listNatRules())) {
+                try {
+                    ((OutputStream) props.get("out")).write(natRules.getBytes());
+                } catch (IOException e) {
+                    throw Exceptions.propagate(e);
+                }
+            }
+            return 0;
+        }
+    }
+}
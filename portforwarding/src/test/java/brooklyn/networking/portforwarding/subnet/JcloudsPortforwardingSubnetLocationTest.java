@@ -0,0 +1,272 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.portforwarding.subnet;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jclouds.compute.domain.NodeMetadata;
+import org.jclouds.compute.domain.NodeMetadataBuilder;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.basic.ApplicationBuilder;
+import brooklyn.entity.basic.Entities;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.access.PortForwardManager;
+import brooklyn.location.access.PortForwardManagerAuthority;
+import brooklyn.location.access.PortMapping;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.location.jclouds.JcloudsSshMachineLocation;
+import brooklyn.management.ManagementContext;
+import brooklyn.test.Asserts;
+import brooklyn.test.entity.TestApplication;
+import brooklyn.util.collections.MutableMap;
+import brooklyn.util.net.Networking;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+
+/**
+ * Exercises the warm pool without a cloud, by overriding how machines are obtained, checked and destroyed.
+ */
+public class JcloudsPortforwardingSubnetLocationTest {
+
+    private TestApplication app;
+    private ManagementContext managementContext;
+    private PortForwardManager portForwardManager;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        app = ApplicationBuilder.newManagedApp(TestApplication.class);
+        managementContext = app.getManagementContext();
+        portForwardManager = new PortForwardManagerAuthority();
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (app != null) Entities.destroyAll(app.getManagementContext());
+    }
+
+    @Test
+    public void testTopUpDoesNotOverfillPool() throws Exception {
+        final RecordingSubnetLocation loc = newLocation(2, JcloudsPortforwardingSubnetLocation.ReleasePolicy.DESTROY);
+        for (int i = 0; i < 5; i++) {
+            loc.topUpWarmPool();
+        }
+        assertPoolSettles(loc, 2);
+        assertEquals(loc.obtained.get(), 2);
+
+        // the pool is topped up while the machine is recycled: whichever of the two comes second is surplus
+        JcloudsSshMachineLocation m = loc.obtain(MutableMap.of());
+        loc.setConfig(JcloudsPortforwardingSubnetLocation.RELEASE_POLICY, JcloudsPortforwardingSubnetLocation.ReleasePolicy.RECYCLE);
+        loc.release(m);
+        assertPoolSettles(loc, 2);
+        assertEquals(loc.obtained.get() - loc.destroyed.size(), 2);
+    }
+
+    @Test
+    public void testDestroysStaleMachinesInsteadOfHandingThemOut() throws Exception {
+        RecordingSubnetLocation loc = newLocation(2, JcloudsPortforwardingSubnetLocation.ReleasePolicy.DESTROY);
+        loc.topUpWarmPool();
+        assertPoolSettles(loc, 2);
+        loc.dead.addAll(loc.getChildren());
+
+        JcloudsSshMachineLocation m = loc.obtain(MutableMap.of());
+
+        assertFalse(loc.dead.contains(m));
+        assertEquals(Sets.newHashSet(loc.destroyed), loc.dead);
+    }
+
+    @Test
+    public void testOnlyCompatibleFlagsGetWarmMachines() throws Exception {
+        RecordingSubnetLocation loc = newLocation(1, JcloudsPortforwardingSubnetLocation.ReleasePolicy.DESTROY);
+        loc.setConfig(JcloudsPortforwardingSubnetLocation.WARM_POOL_FLAGS, ImmutableMap.<String, Object>of(
+                "inboundPorts", ImmutableList.of(22, 8080, 8443),
+                "minRam", 2048));
+
+        assertTrue(loc.isWarmPoolCompatible(ImmutableMap.of("minRam", 2048)));
+        assertTrue(loc.isWarmPoolCompatible(ImmutableMap.of("minRam", 2048, "inboundPorts", new int[] {8080},
+                JcloudsPortforwardingSubnetLocation.CALLER_CONTEXT, "caller")));
+        assertTrue(loc.isWarmPoolCompatible(ImmutableMap.of(JcloudsPortforwardingSubnetLocation.MIN_RAM, 2048)));
+        assertFalse(loc.isWarmPoolCompatible(ImmutableMap.of("minRam", 2048, "inboundPorts", ImmutableList.of(8080, 9000))));
+        assertFalse(loc.isWarmPoolCompatible(ImmutableMap.of("minRam", 4096)));
+        assertFalse(loc.isWarmPoolCompatible(ImmutableMap.of("minRam", 2048, "imageId", "other-image")));
+        assertFalse(loc.isWarmPoolCompatible(ImmutableMap.of()));
+
+        loc.topUpWarmPool();
+        assertPoolSettles(loc, 1);
+        JcloudsSshMachineLocation warm = Iterables.getOnlyElement(Iterables.filter(loc.getChildren(), JcloudsSshMachineLocation.class));
+
+        JcloudsSshMachineLocation m = loc.obtain(ImmutableMap.of("minRam", 2048, "inboundPorts", ImmutableList.of(9000)));
+        assertFalse(m.equals(warm));
+        assertEquals(loc.getWarmPoolStats().get("ready"), (Integer) 1);
+        assertEquals(loc.lastFlags.get("inboundPorts"), ImmutableList.of(9000));
+    }
+
+    @Test
+    public void testRecycleForgetsPortMappingsOfPreviousUser() throws Exception {
+        RecordingSubnetLocation loc = newLocation(1, JcloudsPortforwardingSubnetLocation.ReleasePolicy.RECYCLE);
+        loc.topUpWarmPool();
+        assertPoolSettles(loc, 1);
+        JcloudsSshMachineLocation m = loc.obtain(MutableMap.of(JcloudsPortforwardingSubnetLocation.CALLER_CONTEXT, "caller"));
+        assertPoolSettles(loc, 1);
+        // make room for the machine when it is released
+        loc.setConfig(JcloudsPortforwardingSubnetLocation.WARM_POOL_SIZE, 2);
+        String publicIpId = "gateway-1";
+        portForwardManager.acquirePublicPortExplicit(publicIpId, 40022);
+        portForwardManager.associate(publicIpId, 40022, m, 22);
+        portForwardManager.acquirePublicPortExplicit(publicIpId, 40080);
+        portForwardManager.associate(publicIpId, 40080, m, 80);
+
+        loc.release(m);
+
+        PortMapping login = Iterables.getOnlyElement(portForwardManager.getLocationPublicIpIds(m));
+        assertEquals(login.getPrivatePort(), 22);
+        assertEquals(login.getPublicPort(), 40022);
+        assertTrue(loc.destroyed.isEmpty());
+        assertEquals(m.getConfig(JcloudsPortforwardingSubnetLocation.WARM_POOL_MEMBER), Boolean.TRUE);
+        assertNull(m.getConfig(JcloudsPortforwardingSubnetLocation.CALLER_CONTEXT));
+        assertEquals(loc.getWarmPoolStats().get("ready"), (Integer) 2);
+    }
+
+    @Test
+    public void testRecycleDestroysMachinesNotObtainedForPool() throws Exception {
+        RecordingSubnetLocation loc = newLocation(1, JcloudsPortforwardingSubnetLocation.ReleasePolicy.RECYCLE);
+        loc.setConfig(JcloudsPortforwardingSubnetLocation.WARM_POOL_FLAGS, ImmutableMap.<String, Object>of("imageId", "pool-image"));
+        loc.topUpWarmPool();
+        assertPoolSettles(loc, 1);
+        JcloudsSshMachineLocation m = loc.obtain(ImmutableMap.of("imageId", "other-image"));
+        // make room, so that only the machine's flags stop it being recycled
+        loc.setConfig(JcloudsPortforwardingSubnetLocation.WARM_POOL_SIZE, 2);
+
+        loc.release(m);
+
+        assertEquals(loc.destroyed, ImmutableList.of(m));
+        assertEquals(loc.getWarmPoolStats().get("ready"), (Integer) 1);
+        assertFalse(loc.getChildren().contains(m));
+    }
+
+    @Test
+    public void testDrainDestroysPooledMachines() throws Exception {
+        RecordingSubnetLocation loc = newLocation(2, JcloudsPortforwardingSubnetLocation.ReleasePolicy.DESTROY);
+        loc.topUpWarmPool();
+        assertPoolSettles(loc, 2);
+        Set<Object> pooled = Sets.<Object>newHashSet(loc.getChildren());
+
+        loc.drainWarmPool();
+
+        assertEquals(Sets.newHashSet(loc.destroyed), pooled);
+        assertEquals(loc.getWarmPoolStats().get("ready"), (Integer) 0);
+    }
+
+    @Test
+    public void testUnmanagingDestroysPooledMachines() throws Exception {
+        RecordingSubnetLocation loc = newLocation(1, JcloudsPortforwardingSubnetLocation.ReleasePolicy.DESTROY);
+        loc.topUpWarmPool();
+        assertPoolSettles(loc, 1);
+        Object pooled = Iterables.getOnlyElement(loc.getChildren());
+
+        managementContext.getLocationManager().unmanage(loc);
+
+        assertTrue(loc.destroyed.contains(pooled), "destroyed="+loc.destroyed);
+    }
+
+    @Test
+    public void testRecoversPoolFromChildMachines() throws Exception {
+        // as after rebind: the machines are children marked as pool members, but the pool itself was not persisted
+        RecordingSubnetLocation loc = newLocation(1, JcloudsPortforwardingSubnetLocation.ReleasePolicy.DESTROY);
+        JcloudsSshMachineLocation pooled = loc.newMachine();
+        loc.addChild(pooled);
+        pooled.setConfig(JcloudsPortforwardingSubnetLocation.WARM_POOL_MEMBER, true);
+
+        assertEquals(loc.getWarmPoolStats().get("ready"), (Integer) 1);
+        assertSame(loc.obtain(MutableMap.of()), pooled);
+        assertEquals(pooled.getConfig(JcloudsPortforwardingSubnetLocation.WARM_POOL_MEMBER), Boolean.FALSE);
+    }
+
+    private RecordingSubnetLocation newLocation(int warmPoolSize, JcloudsPortforwardingSubnetLocation.ReleasePolicy releasePolicy) {
+        return managementContext.getLocationManager().createLocation(LocationSpec.create(RecordingSubnetLocation.class)
+                .configure(JcloudsPortforwardingSubnetLocation.WARM_POOL_SIZE, warmPoolSize)
+                .configure(JcloudsPortforwardingSubnetLocation.RELEASE_POLICY, releasePolicy)
+                .configure(JcloudsPortforwardingSubnetLocation.PORT_FORWARDING_MANAGER, portForwardManager));
+    }
+
+    private void assertPoolSettles(final RecordingSubnetLocation loc, final int expectedReady) {
+        Asserts.succeedsEventually(new Runnable() {
+            @Override public void run() {
+                Map<String, Integer> stats = loc.getWarmPoolStats();
+                assertEquals(stats.get("pending"), (Integer) 0, "stats="+stats);
+                assertEquals(stats.get("ready"), (Integer) expectedReady, "stats="+stats);
+            }});
+    }
+
+    /** obtains machines which only exist as locations, recording what is obtained and destroyed */
+    public static class RecordingSubnetLocation extends JcloudsPortforwardingSubnetLocation {
+        private static final long serialVersionUID = 1L;
+
+        final AtomicInteger obtained = new AtomicInteger();
+        final List<SshMachineLocation> destroyed = new CopyOnWriteArrayList<SshMachineLocation>();
+        final Set<Object> dead = new CopyOnWriteArraySet<Object>();
+        volatile Map<?,?> lastFlags;
+
+        public RecordingSubnetLocation() {
+        }
+
+        @Override
+        protected JcloudsSshMachineLocation obtainNew(Map<?,?> flags) {
+            lastFlags = flags;
+            return newMachine();
+        }
+
+        JcloudsSshMachineLocation newMachine() {
+            int i = obtained.incrementAndGet();
+            NodeMetadata node = new NodeMetadataBuilder()
+                    .id("node-"+i)
+                    .providerId("node-"+i)
+                    .status(NodeMetadata.Status.RUNNING)
+                    .loginPort(22)
+                    .build();
+            return getManagementContext().getLocationManager().createLocation(LocationSpec.create(JcloudsSshMachineLocation.class)
+                    .configure("address", Networking.getInetAddressWithFixedName("10.0.0."+i))
+                    .configure("jcloudsParent", this)
+                    .configure("node", node));
+        }
+
+        @Override
+        protected boolean isAlive(JcloudsSshMachineLocation machine) {
+            return !dead.contains(machine);
+        }
+
+        @Override
+        protected void destroy(SshMachineLocation machine) {
+            destroyed.add(machine);
+        }
+    }
+}
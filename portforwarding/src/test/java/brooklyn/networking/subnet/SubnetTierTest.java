@@ -16,8 +16,15 @@
 package brooklyn.networking.subnet;
 
 import static com.google.common.base.Preconditions.checkNotNull;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
 
+import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,7 +38,9 @@ import brooklyn.entity.basic.Attributes;
 import brooklyn.entity.basic.Entities;
 import brooklyn.entity.basic.EntityAndAttribute;
 import brooklyn.entity.basic.EntityLocal;
+import brooklyn.entity.basic.Lifecycle;
 import brooklyn.entity.proxying.EntitySpec;
+import brooklyn.entity.trait.Startable;
 import brooklyn.event.AttributeSensor;
 import brooklyn.event.basic.BasicAttributeSensor;
 import brooklyn.location.LocationSpec;
@@ -39,13 +48,16 @@ import brooklyn.location.MachineLocation;
 import brooklyn.location.PortRange;
 import brooklyn.location.access.PortForwardManager;
 import brooklyn.location.access.PortForwardManagerAuthority;
+import brooklyn.location.basic.SimulatedLocation;
 import brooklyn.location.basic.SshMachineLocation;
 import brooklyn.management.ManagementContext;
 import brooklyn.networking.subnet.PortForwarder;
 import brooklyn.networking.subnet.SubnetTier;
+import brooklyn.test.Asserts;
 import brooklyn.test.EntityTestUtils;
 import brooklyn.test.entity.TestApplication;
 import brooklyn.test.entity.TestEntity;
+import brooklyn.util.exceptions.Exceptions;
 import brooklyn.util.net.Cidr;
 import brooklyn.util.net.Networking;
 import brooklyn.util.net.Protocol;
@@ -158,6 +170,212 @@ public class SubnetTierTest {
         EntityTestUtils.assertAttributeEqualsEventually(entity, PUBLIC_ENDPOINT, "http://"+publicAddress+":"+40080);
     }
 
+    @Test
+    public void testLocalityAwareHostAndPortTransformingEnricher() throws Exception {
+        final AttributeSensor<Integer> TARGET_PORT = new BasicAttributeSensor<Integer>(Integer.class, "target.port");
+        final AttributeSensor<String> PRIVATE_ENDPOINT = new BasicAttributeSensor<String>(String.class, "privateEndpoint");
+        final AttributeSensor<String> PUBLIC_ENDPOINT = new BasicAttributeSensor<String>(String.class, "publicEndpoint");
+
+        String publicIpId = "mypublicipid";
+        String publicAddress = "5.6.7.8";
+        portMapping.put(HostAndPort.fromParts(machineAddress, 80), HostAndPort.fromParts(publicAddress, 40080));
+        portForwardManager.recordPublicIpHostname(publicIpId, publicAddress);
+        portForwardManager.acquirePublicPortExplicit(publicIpId, 40080);
+        portForwardManager.associate(publicIpId, 40080, simulatedMachine, 80);
+
+        entity.addEnricher(subnetTier.hostAndPortTransformingEnricher(
+                new EntityAndAttribute<Integer>(entity, TARGET_PORT),
+                PRIVATE_ENDPOINT,
+                PUBLIC_ENDPOINT));
+
+        entity.addLocations(ImmutableList.of(simulatedMachine));
+        entity.setAttribute(TARGET_PORT, 80);
+
+        EntityTestUtils.assertAttributeEqualsEventually(entity, PUBLIC_ENDPOINT, publicAddress+":"+40080);
+        EntityTestUtils.assertAttributeEqualsEventually(entity, PRIVATE_ENDPOINT, machineAddress+":"+80);
+
+        TestEntity sibling = subnetTier.addChild(EntitySpec.create(TestEntity.class));
+        Entities.manage(sibling);
+
+        assertEquals(SubnetEndpointResolver.resolve(sibling, entity, PRIVATE_ENDPOINT, PUBLIC_ENDPOINT), machineAddress+":"+80);
+        assertEquals(SubnetEndpointResolver.resolve(app, entity, PRIVATE_ENDPOINT, PUBLIC_ENDPOINT), publicAddress+":"+40080);
+    }
+
+    @Test
+    public void testTransformSensorStringAdvertisesPrivateValue() throws Exception {
+        final AttributeSensor<Integer> TARGET_PORT = new BasicAttributeSensor<Integer>(Integer.class, "target.port");
+        final AttributeSensor<String> ENDPOINT = new BasicAttributeSensor<String>(String.class, "endpoint");
+        final AttributeSensor<String> PRIVATE_ENDPOINT = new BasicAttributeSensor<String>(String.class, "privateEndpoint");
+        final AttributeSensor<String> PUBLIC_ENDPOINT = new BasicAttributeSensor<String>(String.class, "publicEndpoint");
+
+        subnetTier.transformSensorStringReplacingWithPublicAddressAndPort(
+                new EntityAndAttribute<String>(app, ENDPOINT),
+                Optional.of(new EntityAndAttribute<Integer>(app, TARGET_PORT)),
+                new EntityAndAttribute<String>(app, PUBLIC_ENDPOINT),
+                new EntityAndAttribute<String>(app, PRIVATE_ENDPOINT));
+
+        ((EntityLocal)app).setAttribute(Attributes.HOSTNAME, "myprivatehostname");
+        ((EntityLocal)app).setAttribute(TARGET_PORT, 1234);
+        ((EntityLocal)app).setAttribute(ENDPOINT, "PREFIX://myprivatehostname:1234/POSTFIX");
+        ((EntityLocal)app).setAttribute(PUBLIC_ENDPOINT, "mypublichostname:5678");
+
+        EntityTestUtils.assertAttributeEqualsEventually(app, ENDPOINT, "PREFIX://mypublichostname:5678/POSTFIX");
+        EntityTestUtils.assertAttributeEqualsEventually(app, PRIVATE_ENDPOINT, "PREFIX://myprivatehostname:1234/POSTFIX");
+    }
+
+    @Test
+    public void testStartsChildrenWhileOpeningGateway() throws Exception {
+        final AtomicReference<TestEntity> child = new AtomicReference<TestEntity>();
+        PortForwarder portForwarder = new StubPortForwarder(portMapping) {
+            @Override public String openGateway() {
+                // only completes if the child is started meanwhile
+                Asserts.succeedsEventually(new Runnable() {
+                    public void run() {
+                        assertEquals(child.get().getAttribute(Startable.SERVICE_UP), Boolean.TRUE);
+                    }});
+                return "5.6.7.8";
+            }
+        };
+        SubnetTier tier = app.createAndManageChild(EntitySpec.create(SubnetTier.class)
+                .configure(SubnetTier.PORT_FORWARDER, portForwarder)
+                .configure(SubnetTier.PORT_FORWARDING_MANAGER, new PortForwardManagerAuthority()));
+        child.set(tier.addChild(EntitySpec.create(TestEntity.class)));
+        Entities.manage(child.get());
+
+        tier.start(ImmutableList.of(managementContext.getLocationManager().createLocation(LocationSpec.create(SimulatedLocation.class))));
+
+        assertEquals(tier.getPortForwardManager().getPublicIpHostname("5.6.7.8"), "5.6.7.8");
+        assertNotNull(tier.getAttribute(SubnetTier.GATEWAY_OPEN_DURATION));
+        assertNotNull(tier.getAttribute(SubnetTier.CHILDREN_START_DURATION));
+        assertNotNull(tier.getAttribute(SubnetTier.START_DURATION));
+    }
+
+    @Test
+    public void testDefersPortForwardingUntilGatewayOpenWithoutBlocking() throws Exception {
+        final AttributeSensor<Integer> TARGET_PORT = new BasicAttributeSensor<Integer>(Integer.class, "target.port");
+        final AttributeSensor<String> PUBLIC_ENDPOINT = new BasicAttributeSensor<String>(String.class, "publicEndpoint");
+        final CountDownLatch gatewayOpening = new CountDownLatch(1);
+        portMapping.put(HostAndPort.fromParts(machineAddress, 80), HostAndPort.fromParts("5.6.7.8", 40080));
+        PortForwarder portForwarder = new StubPortForwarder(portMapping) {
+            @Override public String openGateway() {
+                try {
+                    gatewayOpening.await();
+                } catch (InterruptedException e) {
+                    throw Exceptions.propagate(e);
+                }
+                return "5.6.7.8";
+            }
+        };
+        final SubnetTier tier = app.createAndManageChild(EntitySpec.create(SubnetTier.class)
+                .configure(SubnetTier.PORT_FORWARDER, portForwarder)
+                .configure(SubnetTier.PORT_FORWARDING_MANAGER, new PortForwardManagerAuthority()));
+        TestEntity child = tier.addChild(EntitySpec.create(TestEntity.class));
+        Entities.manage(child);
+
+        Thread starter = new Thread(new Runnable() {
+            public void run() {
+                tier.start(ImmutableList.of(simulatedMachine));
+            }});
+        starter.start();
+        try {
+            EntityTestUtils.assertAttributeEqualsEventually(child, Startable.SERVICE_UP, true);
+            child.setAttribute(TARGET_PORT, 80);
+
+            // returns while the gateway is still being opened, as must the subscription callbacks it registers
+            tier.openPortForwardingAndAdvertise(new EntityAndAttribute<Integer>(child, TARGET_PORT), Optional.<Integer>absent(),
+                    Protocol.TCP, Cidr.UNIVERSAL, new EntityAndAttribute<String>(child, PUBLIC_ENDPOINT));
+            assertNull(child.getAttribute(PUBLIC_ENDPOINT));
+
+            gatewayOpening.countDown();
+            EntityTestUtils.assertAttributeEqualsEventually(child, PUBLIC_ENDPOINT, "5.6.7.8:40080");
+        } finally {
+            gatewayOpening.countDown();
+            starter.join(10*1000);
+        }
+    }
+
+    @Test
+    public void testRestartKeepsGatewayAndVerifiesForwarding() throws Exception {
+        final AtomicInteger gatewaysOpened = new AtomicInteger();
+        final AtomicInteger verifications = new AtomicInteger();
+        PortForwarder portForwarder = new VerifiableStubPortForwarder(portMapping) {
+            @Override public String openGateway() {
+                gatewaysOpened.incrementAndGet();
+                return "5.6.7.8";
+            }
+            @Override public Collection<HostAndPort> verifyPortForwarding() {
+                verifications.incrementAndGet();
+                return ImmutableList.of(HostAndPort.fromParts("5.6.7.8", 40080));
+            }
+        };
+        SubnetTier tier = app.createAndManageChild(EntitySpec.create(SubnetTier.class)
+                .configure(SubnetTier.PORT_FORWARDER, portForwarder));
+        tier.start(ImmutableList.of(managementContext.getLocationManager().createLocation(LocationSpec.create(SimulatedLocation.class))));
+        tier.restart();
+
+        assertEquals(gatewaysOpened.get(), 1);
+        assertEquals(verifications.get(), 1);
+        assertEquals(tier.getAttribute(SubnetTier.FORWARDING_RULES_REPAIRED), (Integer) 1);
+        assertNotNull(tier.getAttribute(SubnetTier.RESTART_DURATION));
+    }
+
+    @Test
+    public void testRestartWithoutPreservingReopensGateway() throws Exception {
+        final AtomicInteger gatewaysOpened = new AtomicInteger();
+        PortForwarder portForwarder = new StubPortForwarder(portMapping) {
+            @Override public String openGateway() {
+                gatewaysOpened.incrementAndGet();
+                return "5.6.7.8";
+            }
+        };
+        SubnetTier tier = app.createAndManageChild(EntitySpec.create(SubnetTier.class)
+                .configure(SubnetTier.PORT_FORWARDER, portForwarder)
+                .configure(SubnetTier.RESTART_PRESERVES_FORWARDING, false));
+        tier.start(ImmutableList.of(managementContext.getLocationManager().createLocation(LocationSpec.create(SimulatedLocation.class))));
+        tier.restart();
+
+        assertEquals(gatewaysOpened.get(), 2);
+    }
+
+    @Test
+    public void testRestartAfterStopReopensGateway() throws Exception {
+        final AtomicInteger gatewaysOpened = new AtomicInteger();
+        final AtomicInteger verifications = new AtomicInteger();
+        PortForwarder portForwarder = new VerifiableStubPortForwarder(portMapping) {
+            @Override public String openGateway() {
+                gatewaysOpened.incrementAndGet();
+                return "5.6.7.8";
+            }
+            @Override public Collection<HostAndPort> verifyPortForwarding() {
+                verifications.incrementAndGet();
+                return ImmutableList.of();
+            }
+        };
+        SubnetTier tier = app.createAndManageChild(EntitySpec.create(SubnetTier.class)
+                .configure(SubnetTier.PORT_FORWARDER, portForwarder));
+        tier.start(ImmutableList.of(managementContext.getLocationManager().createLocation(LocationSpec.create(SimulatedLocation.class))));
+        assertEquals(tier.getAttribute(SubnetTier.SERVICE_STATE), Lifecycle.RUNNING);
+        assertEquals(tier.getAttribute(SubnetTier.SERVICE_UP), Boolean.TRUE);
+
+        tier.stop();
+        assertEquals(tier.getAttribute(SubnetTier.SERVICE_STATE), Lifecycle.STOPPED);
+        tier.restart();
+
+        // not running, so nothing to preserve: starts afresh
+        assertEquals(gatewaysOpened.get(), 2);
+        assertEquals(verifications.get(), 0);
+        assertEquals(tier.getAttribute(SubnetTier.SERVICE_STATE), Lifecycle.RUNNING);
+    }
+
+    public static class VerifiableStubPortForwarder extends StubPortForwarder implements VerifiablePortForwarder {
+        VerifiableStubPortForwarder(Map<HostAndPort, HostAndPort> mapping) {
+            super(mapping);
+        }
+        @Override public Collection<HostAndPort> verifyPortForwarding() {
+            return ImmutableList.of();
+        }
+    }
+
     public static class StubPortForwarder implements PortForwarder {
         final Map<HostAndPort, HostAndPort> mapping;
 
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.tunnelling;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.fail;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.basic.ApplicationBuilder;
+import brooklyn.entity.basic.Entities;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.test.entity.TestApplication;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.MoreExecutors;
+
+public class SshKeyDistributorTest {
+
+    private TestApplication app;
+    private SshMachineLocation machine1;
+    private SshMachineLocation machine2;
+    private SshMachineLocation machine3;
+    private Multiset<String> fetches;
+    private Map<SshMachineLocation, List<Collection<String>>> installs;
+    private AtomicBoolean failFetch;
+    private SshKeyDistributor distributor;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        app = ApplicationBuilder.newManagedApp(TestApplication.class);
+        machine1 = newMachine("1.1.1.1");
+        machine2 = newMachine("1.1.1.2");
+        machine3 = newMachine("1.1.1.3");
+        fetches = ConcurrentHashMultiset.create();
+        installs = Maps.newConcurrentMap();
+        failFetch = new AtomicBoolean();
+        distributor = new SshKeyDistributor(MoreExecutors.sameThreadExecutor(), "~/.ssh/id_rsa") {
+            @Override protected String fetchPublicKey(SshMachineLocation machine) {
+                fetches.add(machine.getId());
+                if (failFetch.get()) throw new IllegalStateException("simulated failure");
+                return "ssh-rsa key-"+machine.getAddress().getHostAddress();
+            }
+            @Override protected synchronized void authorizePublicKeys(SshMachineLocation target, Collection<String> keys) {
+                List<Collection<String>> calls = installs.get(target);
+                if (calls == null) {
+                    calls = Lists.newArrayList();
+                    installs.put(target, calls);
+                }
+                calls.add(ImmutableList.copyOf(keys));
+            }
+        };
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (distributor != null) distributor.close();
+        if (app != null) Entities.destroyAll(app.getManagementContext());
+    }
+
+    private SshMachineLocation newMachine(String address) {
+        return app.getManagementContext().getLocationManager().createLocation(LocationSpec.create(SshMachineLocation.class)
+                .configure("address", address));
+    }
+
+    @Test
+    public void testFullMeshInstallsAllKeysForTargetInOneUpdate() throws Exception {
+        distributor.distributeFullMesh(ImmutableList.of(machine1, machine2, machine3));
+
+        assertEquals(installs.keySet(), ImmutableSet.of(machine1, machine2, machine3));
+        assertEquals(installs.get(machine1), ImmutableList.of(ImmutableList.of("ssh-rsa key-1.1.1.2", "ssh-rsa key-1.1.1.3")));
+        assertEquals(installs.get(machine2), ImmutableList.of(ImmutableList.of("ssh-rsa key-1.1.1.1", "ssh-rsa key-1.1.1.3")));
+        assertEquals(installs.get(machine3), ImmutableList.of(ImmutableList.of("ssh-rsa key-1.1.1.1", "ssh-rsa key-1.1.1.2")));
+    }
+
+    @Test
+    public void testFetchesEachKeyOnce() throws Exception {
+        distributor.distributeFullMesh(ImmutableList.of(machine1, machine2, machine3));
+        distributor.distribute(ImmutableMultimap.of(machine1, machine2));
+        assertEquals(distributor.getPublicKey(machine1), "ssh-rsa key-1.1.1.1");
+
+        assertEquals(fetches.count(machine1.getId()), 1);
+        assertEquals(fetches.count(machine2.getId()), 1);
+        assertEquals(fetches.count(machine3.getId()), 1);
+        assertEquals(installs.get(machine2).size(), 2);
+    }
+
+    @Test
+    public void testInvalidateFetchesKeyAgain() throws Exception {
+        distributor.getPublicKey(machine1);
+        distributor.invalidate(machine1);
+        distributor.getPublicKey(machine1);
+        assertEquals(fetches.count(machine1.getId()), 2);
+    }
+
+    @Test
+    public void testFailedFetchIsRetriedAndInstallsNothing() throws Exception {
+        failFetch.set(true);
+        try {
+            distributor.distribute(ImmutableMultimap.of(machine1, machine2));
+            fail("expected failure");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(installs.size(), 0);
+
+        failFetch.set(false);
+        distributor.distribute(ImmutableMultimap.of(machine1, machine2));
+        assertEquals(fetches.count(machine1.getId()), 2);
+        assertEquals(installs.get(machine2), ImmutableList.of(ImmutableList.of("ssh-rsa key-1.1.1.1")));
+    }
+}
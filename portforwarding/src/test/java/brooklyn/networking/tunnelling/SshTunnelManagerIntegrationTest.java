@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.tunnelling;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.basic.ApplicationBuilder;
+import brooklyn.entity.basic.Entities;
+import brooklyn.location.LocationSpec;
+import brooklyn.location.basic.SshMachineLocation;
+import brooklyn.management.ManagementContext;
+import brooklyn.networking.tunnelling.SshTunnelManager.Tunnel;
+import brooklyn.test.Asserts;
+import brooklyn.test.entity.TestApplication;
+import brooklyn.util.net.Networking;
+
+import com.google.common.collect.Lists;
+import com.google.common.net.HostAndPort;
+
+/** Requires ssh to localhost with the default key. */
+public class SshTunnelManagerIntegrationTest {
+
+    protected TestApplication app;
+    protected ManagementContext managementContext;
+    protected SshMachineLocation localMachine;
+    protected SshTunnelManager tunnelManager;
+    protected ServerSocket echoServer;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        app = ApplicationBuilder.newManagedApp(TestApplication.class);
+        managementContext = app.getManagementContext();
+        localMachine = managementContext.getLocationManager().createLocation(LocationSpec.create(SshMachineLocation.class)
+                .configure("address", Networking.getLocalHost()));
+        tunnelManager = new SshTunnelManager();
+        echoServer = new ServerSocket(0);
+        Thread echo = new Thread(new Runnable() {
+            @Override public void run() {
+                try {
+                    while (true) {
+                        Socket socket = echoServer.accept();
+                        InputStream in = socket.getInputStream();
+                        OutputStream out = socket.getOutputStream();
+                        int b;
+                        while ((b = in.read()) >= 0) {
+                            out.write(b);
+                            out.flush();
+                        }
+                        socket.close();
+                    }
+                } catch (Exception e) {
+                    // closed
+                }
+            }});
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (tunnelManager != null) tunnelManager.close();
+        if (echoServer != null) echoServer.close();
+        if (managementContext != null) Entities.destroyAll(managementContext);
+    }
+
+    @Test(groups="Integration")
+    public void testLocalForwardsShareConnectionAndCountBytes() throws Exception {
+        HostAndPort target = HostAndPort.fromParts("localhost", echoServer.getLocalPort());
+        final Tunnel tunnel1 = tunnelManager.openLocalForward(localMachine, HostAndPort.fromParts("localhost", 0), target);
+        Tunnel tunnel2 = tunnelManager.openLocalForward(localMachine, HostAndPort.fromParts("localhost", 0), target);
+        assertEquals(tunnelManager.getConnectionCount(), 1);
+
+        Socket socket = new Socket(tunnel1.getEndpoint().getHostText(), tunnel1.getEndpoint().getPort());
+        try {
+            socket.getOutputStream().write("hello".getBytes());
+            socket.getOutputStream().flush();
+            byte[] reply = new byte[5];
+            int read = 0;
+            while (read < reply.length) {
+                read += socket.getInputStream().read(reply, read, reply.length - read);
+            }
+            assertEquals(new String(reply), "hello");
+            assertEquals(tunnel1.getStats().get("activeChannels"), (Long) 1L);
+        } finally {
+            socket.close();
+        }
+        assertEquals(tunnel1.getStats().get("bytesIn"), (Long) 5L);
+        assertEquals(tunnel1.getStats().get("bytesOut"), (Long) 5L);
+        Asserts.succeedsEventually(new Runnable() {
+            public void run() {
+                assertEquals(tunnel1.getStats().get("activeChannels"), (Long) 0L);
+            }});
+
+        tunnel1.close();
+        assertFalse(tunnel1.isOpen());
+        assertEquals(tunnelManager.getConnectionCount(), 1);
+        tunnel2.close();
+        assertEquals(tunnelManager.getConnectionCount(), 0);
+    }
+
+    @Test(groups="Integration")
+    public void testRemoteForwardCountsBytes() throws Exception {
+        HostAndPort target = HostAndPort.fromParts("localhost", echoServer.getLocalPort());
+        int remotePort;
+        ServerSocket probe = new ServerSocket(0);
+        try {
+            remotePort = probe.getLocalPort();
+        } finally {
+            probe.close();
+        }
+        final Tunnel tunnel = tunnelManager.openRemoteForward(localMachine, HostAndPort.fromParts("localhost", remotePort), target);
+        assertEquals(tunnel.getEndpoint(), HostAndPort.fromParts("localhost", remotePort));
+        assertEquals(tunnelManager.getConnectionCount(), 1);
+
+        Socket socket = new Socket("localhost", remotePort);
+        try {
+            assertEquals(echo(socket, "hello"), "hello");
+            assertEquals(tunnel.getStats().get("channelsOpened"), (Long) 1L);
+        } finally {
+            socket.close();
+        }
+        Asserts.succeedsEventually(new Runnable() {
+            public void run() {
+                assertEquals(tunnel.getStats().get("bytesIn"), (Long) 5L);
+                assertEquals(tunnel.getStats().get("bytesOut"), (Long) 5L);
+                assertEquals(tunnel.getStats().get("activeChannels"), (Long) 0L);
+            }});
+
+        tunnel.close();
+        assertFalse(tunnel.isOpen());
+        assertEquals(tunnelManager.getConnectionCount(), 0);
+    }
+
+    @Test(groups="Integration")
+    public void testRemoteForwardReportsPortChosenByServer() throws Exception {
+        HostAndPort target = HostAndPort.fromParts("localhost", echoServer.getLocalPort());
+        Tunnel tunnel = tunnelManager.openRemoteForward(localMachine, HostAndPort.fromParts("localhost", 0), target);
+        try {
+            assertTrue(tunnel.getEndpoint().getPort() > 0, "endpoint="+tunnel.getEndpoint());
+            Socket socket = new Socket("localhost", tunnel.getEndpoint().getPort());
+            try {
+                assertEquals(echo(socket, "hello"), "hello");
+            } finally {
+                socket.close();
+            }
+        } finally {
+            tunnel.close();
+        }
+    }
+
+    @Test(groups="Integration")
+    public void testConcurrentOpensShareOneConnection() throws Exception {
+        final HostAndPort target = HostAndPort.fromParts("localhost", echoServer.getLocalPort());
+        ExecutorService executor = Executors.newFixedThreadPool(5);
+        try {
+            List<Future<Tunnel>> futures = Lists.newArrayList();
+            for (int i = 0; i < 5; i++) {
+                futures.add(executor.submit(new Callable<Tunnel>() {
+                    @Override public Tunnel call() {
+                        return tunnelManager.openLocalForward(localMachine, HostAndPort.fromParts("localhost", 0), target);
+                    }}));
+            }
+            for (Future<Tunnel> future : futures) {
+                assertTrue(future.get().isOpen());
+            }
+            assertEquals(tunnelManager.getConnectionCount(), 1);
+            assertEquals(tunnelManager.getTunnels().size(), 5);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private String echo(Socket socket, String message) throws Exception {
+        socket.getOutputStream().write(message.getBytes());
+        socket.getOutputStream().flush();
+        byte[] reply = new byte[message.length()];
+        int read = 0;
+        while (read < reply.length) {
+            read += socket.getInputStream().read(reply, read, reply.length - read);
+        }
+        return new String(reply);
+    }
+}
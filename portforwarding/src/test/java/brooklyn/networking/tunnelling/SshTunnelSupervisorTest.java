@@ -0,0 +1,160 @@
+/*
+ * Copyright 2013-2014 by Cloudsoft Corporation Limited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package brooklyn.networking.tunnelling;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import brooklyn.entity.basic.ApplicationBuilder;
+import brooklyn.entity.basic.Entities;
+import brooklyn.test.Asserts;
+import brooklyn.test.entity.TestApplication;
+import brooklyn.util.time.Duration;
+
+import com.google.common.net.HostAndPort;
+
+public class SshTunnelSupervisorTest {
+
+    private TestApplication app;
+    private SshTunnelSupervisor supervisor;
+    private AtomicBoolean accessible;
+    private AtomicInteger reopened;
+    private AtomicInteger probes;
+    private AtomicLong clock;
+
+    @BeforeMethod(alwaysRun=true)
+    public void setUp() throws Exception {
+        app = ApplicationBuilder.newManagedApp(TestApplication.class);
+        accessible = new AtomicBoolean(true);
+        reopened = new AtomicInteger();
+        probes = new AtomicInteger();
+        clock = new AtomicLong(1000000);
+        supervisor = new SshTunnelSupervisor(app, Duration.millis(10), Duration.ZERO) {
+            @Override protected long probe(HostAndPort endpoint) {
+                probes.incrementAndGet();
+                return accessible.get() ? 3 : -1;
+            }
+            @Override protected long currentTimeMillis() {
+                return clock.get();
+            }
+        };
+    }
+
+    @AfterMethod(alwaysRun=true)
+    public void tearDown() throws Exception {
+        if (supervisor != null) supervisor.close();
+        if (app != null) Entities.destroyAll(app.getManagementContext());
+    }
+
+    @Test
+    public void testPublishesSensorsAndReopensDeadTunnel() throws Exception {
+        supervisor.supervise("db", HostAndPort.fromParts("127.0.0.1", 5432), new Callable<Void>() {
+            @Override public Void call() {
+                reopened.incrementAndGet();
+                accessible.set(true);
+                return null;
+            }});
+
+        Asserts.succeedsEventually(new Runnable() {
+            public void run() {
+                assertEquals(app.getAttribute(SshTunnelSupervisor.upSensor("db")), Boolean.TRUE);
+                assertEquals(app.getAttribute(SshTunnelSupervisor.probeLatencySensor("db")), (Long) 3L);
+            }});
+        assertEquals(app.getAttribute(SshTunnelSupervisor.reconnectsSensor("db")), (Integer) 0);
+
+        accessible.set(false);
+        Asserts.succeedsEventually(new Runnable() {
+            public void run() {
+                assertEquals(reopened.get(), 1);
+                assertEquals(app.getAttribute(SshTunnelSupervisor.reconnectsSensor("db")), (Integer) 1);
+                assertEquals(app.getAttribute(SshTunnelSupervisor.upSensor("db")), Boolean.TRUE);
+            }});
+    }
+
+    @Test
+    public void testBacksOffWhileReopeningFails() throws Exception {
+        accessible.set(false);
+        supervisor.supervise("db", HostAndPort.fromParts("127.0.0.1", 5432), new Callable<Void>() {
+            @Override public Void call() {
+                reopened.incrementAndGet();
+                throw new IllegalStateException("simulated failure");
+            }});
+
+        Asserts.succeedsEventually(new Runnable() {
+            public void run() {
+                assertEquals(reopened.get(), 1);
+                assertEquals(app.getAttribute(SshTunnelSupervisor.upSensor("db")), Boolean.FALSE);
+            }});
+
+        // retries after 1s, then after a further 2s, however often it probes meanwhile
+        long start = clock.get();
+        awaitProbes(5);
+        clock.set(start + 999);
+        awaitProbes(5);
+        assertEquals(reopened.get(), 1);
+
+        clock.set(start + 1000);
+        assertReopenedEventually(2);
+        clock.set(start + 2999);
+        awaitProbes(5);
+        assertEquals(reopened.get(), 2);
+
+        clock.set(start + 3000);
+        assertReopenedEventually(3);
+        assertEquals(app.getAttribute(SshTunnelSupervisor.reconnectsSensor("db")), (Integer) 3);
+    }
+
+    @Test
+    public void testUnsuperviseClearsSensors() throws Exception {
+        supervisor.supervise("db", HostAndPort.fromParts("127.0.0.1", 5432), new Callable<Void>() {
+            @Override public Void call() {
+                return null;
+            }});
+        Asserts.succeedsEventually(new Runnable() {
+            public void run() {
+                assertEquals(app.getAttribute(SshTunnelSupervisor.upSensor("db")), Boolean.TRUE);
+            }});
+
+        supervisor.unsupervise("db");
+        assertNull(app.getAttribute(SshTunnelSupervisor.upSensor("db")));
+        assertNull(app.getAttribute(SshTunnelSupervisor.reconnectsSensor("db")));
+    }
+
+    private void awaitProbes(int count) {
+        final int target = probes.get() + count;
+        Asserts.succeedsEventually(new Runnable() {
+            public void run() {
+                assertTrue(probes.get() >= target, "probes="+probes.get());
+            }});
+    }
+
+    private void assertReopenedEventually(final int expected) {
+        Asserts.succeedsEventually(new Runnable() {
+            public void run() {
+                assertEquals(reopened.get(), expected);
+            }});
+    }
+}
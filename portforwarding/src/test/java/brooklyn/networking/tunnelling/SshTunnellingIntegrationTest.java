@@ -18,8 +18,13 @@ package brooklyn.networking.tunnelling;
 import static org.testng.Assert.assertEquals;
 import static org.testng.Assert.assertTrue;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +47,9 @@ import brooklyn.util.text.Identifiers;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 
 public class SshTunnellingIntegrationTest {
 
@@ -130,6 +138,85 @@ public class SshTunnellingIntegrationTest {
         }
     }
 
+    @Test(groups={"Integration"})
+    public void testAuthorizePublicKeysIsIdempotent() throws Exception {
+        String key = "ssh-rsa AAAAB3NzaC1yc2EAAAADAQABAAAAgQC"+Identifiers.makeRandomId(16)+" brooklyn-test";
+        File dir = Os.newTempDir(getClass());
+        File authorizedKeys = new File(dir, "authorized_keys");
+        try {
+            SshTunnelling.authorizePublicKeys(localMachine, ImmutableList.of(key, key), authorizedKeys.getAbsolutePath());
+            SshTunnelling.authorizePublicKeys(localMachine, ImmutableList.of(key+"\n"), authorizedKeys.getAbsolutePath());
+
+            assertEquals(countLines(authorizedKeys, key), 1);
+        } finally {
+            Os.deleteRecursively(dir);
+        }
+    }
+
+    @Test(groups={"Integration"})
+    public void testConcurrentAuthorizePublicKeysKeepsAllKeys() throws Exception {
+        File dir = Os.newTempDir(getClass());
+        final File authorizedKeys = new File(dir, "authorized_keys");
+        Files.writeFile("ssh-rsa AAAAexisting brooklyn-test\n", authorizedKeys);
+        final List<String> keys = Lists.newArrayList();
+        for (int i = 0; i < 10; i++) {
+            keys.add("ssh-rsa AAAAB3NzaC1yc2EAAAADAQABAAAAgQC"+Identifiers.makeRandomId(16)+" brooklyn-test-"+i);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(keys.size());
+        try {
+            List<Future<?>> futures = Lists.newArrayList();
+            for (final String key : keys) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override public void run() {
+                        SshTunnelling.authorizePublicKeys(localMachine, ImmutableList.of(key), authorizedKeys.getAbsolutePath());
+                    }}));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            assertEquals(countLines(authorizedKeys, "ssh-rsa AAAAexisting brooklyn-test"), 1);
+            for (String key : keys) {
+                assertEquals(countLines(authorizedKeys, key), 1, "key="+key);
+            }
+            // the temp files have all been renamed into place or removed; only the lock file is left
+            assertEquals(ImmutableSet.copyOf(dir.list()), ImmutableSet.of("authorized_keys", ".authorized_keys.lock"));
+        } finally {
+            executor.shutdownNow();
+            Os.deleteRecursively(dir);
+        }
+    }
+
+    @Test(groups={"Integration"})
+    public void testKeyDistributorAuthorizesKeyOnEachTarget() throws Exception {
+        File dir = Os.newTempDir(getClass());
+        File authorizedKeys = new File(dir, "authorized_keys");
+        String privateKeyFile = new File(dir, "id_rsa").getAbsolutePath();
+        SshMachineLocation otherMachine = managementContext.getLocationManager().createLocation(LocationSpec.create(SshMachineLocation.class)
+                .configure("address", Networking.getLocalHost()));
+        SshKeyDistributor distributor = new SshKeyDistributor(MoreExecutors.sameThreadExecutor(), privateKeyFile, authorizedKeys.getAbsolutePath());
+        try {
+            distributor.distributeFullMesh(ImmutableList.of(localMachine, otherMachine));
+            distributor.distributeFullMesh(ImmutableList.of(localMachine, otherMachine));
+
+            // both machines are this host, with the same key file, so the one key is installed once
+            String publicKey = Files.readFile(new File(privateKeyFile+".pub")).trim();
+            assertEquals(distributor.getPublicKey(localMachine), publicKey);
+            assertEquals(countLines(authorizedKeys, publicKey), 1);
+        } finally {
+            distributor.close();
+            Os.deleteRecursively(dir);
+        }
+    }
+
+    private int countLines(File file, String line) throws Exception {
+        int count = 0;
+        for (String l : Files.readFile(file).split("\n")) {
+            if (l.equals(line)) count++;
+        }
+        return count;
+    }
+
     @Test(groups={"Integration"})
     public void testOpenRemoteForwardingTunnel() throws Exception {
         String remoteFile = "/tmp/nc.out-"+Identifiers.makeRandomId(8);
@@ -164,4 +251,25 @@ public class SshTunnellingIntegrationTest {
             realDb.execScript("kill-tunnel", Arrays.asList("kill `ps aux | grep ssh | grep \"localhost:24684\" | awk '{print $2}'`"));
         }
     }
+
+    @Test(groups={"Integration"})
+    public void testReopeningForwardingTunnelKillsPreviousProcess() throws Exception {
+        int port = Networking.nextAvailablePort(24686);
+        try {
+            SshTunnelling.openLocalForwardingTunnel(localMachine, localMachine, "localhost", port, "localhost", localMachine.getPort());
+            SshTunnelling.openLocalForwardingTunnel(localMachine, localMachine, "localhost", port, "localhost", localMachine.getPort());
+            assertEquals(countTunnelProcesses(port), 1);
+        } finally {
+            localMachine.execScript("kill-tunnel", Arrays.asList("kill `ps aux | grep ssh | grep \"localhost:"+port+":\" | awk '{print $2}'`"));
+        }
+    }
+
+    /** the number of ssh processes forwarding from the local port */
+    private int countTunnelProcesses(int port) {
+        ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+        assertEquals(localMachine.execCommands(ImmutableMap.of("out", stdout), "count tunnels", ImmutableList.of(
+                "ps -eo args | grep -F -- '-L localhost:"+port+":' | grep -c '^ssh -N' || true")), 0);
+        String out = new String(stdout.toByteArray()).trim();
+        return Integer.parseInt(out.substring(out.lastIndexOf('\n') + 1).trim());
+    }
 }